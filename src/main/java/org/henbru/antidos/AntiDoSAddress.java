@@ -0,0 +1,282 @@
+package org.henbru.antidos;
+
+/**
+ * Copyright 2017 Henning Brune
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *************************
+ *
+ * This class brings textual IP addresses into one canonical form, so that a
+ * client is always counted under the same key. IPv6 addresses can be written in
+ * many ways (<code>::1</code>, <code>0:0:0:0:0:0:0:1</code>,
+ * <code>[::1]</code>, <code>::1%eth0</code>, ...), IPv4 addresses may appear as
+ * IPv4-mapped IPv6 addresses. The canonical forms are:
+ *
+ * <ul>
+ * <li>IPv4 and IPv4-mapped IPv6 addresses: dotted decimal without leading
+ * zeros, e. g. <code>192.168.0.1</code>
+ * <li>Other IPv6 addresses: eight groups of lower case hex digits without
+ * leading zeros, without <code>::</code> compression and without zone, e. g.
+ * <code>2001:db8:0:0:0:0:0:1</code>
+ * </ul>
+ *
+ * These are the forms delivered by {@link java.net.InetAddress#getHostAddress()}
+ * and thus by Tomcat for the remote address. For them the parser does not
+ * allocate any memory and returns the given instance. The address is parsed
+ * into its 128 bit value held in two <code>long</code> variables, a new string
+ * is only created if the text differs from the canonical form. Values which are
+ * no IP addresses (e. g. hashed keys) are returned unchanged
+ *
+ * @author Henning
+ *
+ */
+public final class AntiDoSAddress {
+
+	private static final long IPV4_MAPPED_PREFIX = 0xffffL;
+
+	private AntiDoSAddress() {
+	}
+
+	/**
+	 * @param address The textual address. Might be <code>null</code>
+	 * @return The canonical form of the address. The same instance if the address
+	 *         is already canonical or if it is no valid IP address
+	 */
+	public static String canonicalize(String address) {
+		if (address == null)
+			return null;
+
+		int length = address.length();
+		int start = 0;
+		int end = length;
+
+		if (end > 2 && address.charAt(0) == '[' && address.charAt(end - 1) == ']') {
+			start = 1;
+			end--;
+		}
+
+		boolean ipv6 = false;
+		for (int i = start; i < end; i++) {
+			char c = address.charAt(i);
+			if (c == '%') {
+				// The zone only tells which interface the request came in on:
+				end = i;
+				break;
+			}
+			if (c == ':')
+				ipv6 = true;
+		}
+
+		if (!ipv6) {
+			long ipv4 = parseIPv4(address, start, end);
+			if (ipv4 < 0)
+				return address;
+
+			return start == 0 && end == length && isCanonicalIPv4(address, ipv4) ? address : formatIPv4(ipv4);
+		}
+
+		// Groups in front of "::" are collected in head, the others in tail:
+		long headHi = 0, headLo = 0, tailHi = 0, tailLo = 0;
+		int headGroups = 0, tailGroups = 0;
+		boolean compressed = false;
+
+		int pos = start;
+		if (address.charAt(pos) == ':') {
+			if (end - pos < 2 || address.charAt(pos + 1) != ':')
+				return address;
+			compressed = true;
+			pos += 2;
+		}
+
+		while (pos < end) {
+			long token = 0;
+			int groups = 1;
+
+			int tokenEnd = pos;
+			while (tokenEnd < end && Character.digit(address.charAt(tokenEnd), 16) >= 0) {
+				token = (token << 4) | Character.digit(address.charAt(tokenEnd), 16);
+				tokenEnd++;
+			}
+
+			if (tokenEnd < end && address.charAt(tokenEnd) == '.') {
+				// Embedded IPv4 address, only allowed as last token:
+				token = parseIPv4(address, pos, end);
+				if (token < 0)
+					return address;
+				groups = 2;
+				tokenEnd = end;
+			} else if (tokenEnd == pos || tokenEnd - pos > 4) {
+				return address;
+			}
+
+			int bits = groups << 4;
+			if (compressed) {
+				tailHi = (tailHi << bits) | (tailLo >>> (64 - bits));
+				tailLo = (tailLo << bits) | token;
+				tailGroups += groups;
+			} else {
+				headHi = (headHi << bits) | (headLo >>> (64 - bits));
+				headLo = (headLo << bits) | token;
+				headGroups += groups;
+			}
+
+			if (headGroups + tailGroups > 8)
+				return address;
+
+			if (tokenEnd == end)
+				break;
+
+			if (address.charAt(tokenEnd) != ':')
+				return address;
+
+			if (tokenEnd + 1 < end && address.charAt(tokenEnd + 1) == ':') {
+				if (compressed)
+					return address;
+				compressed = true;
+				pos = tokenEnd + 2;
+			} else {
+				pos = tokenEnd + 1;
+				if (pos == end)
+					return address;
+			}
+		}
+
+		if (compressed ? headGroups + tailGroups > 7 : headGroups != 8)
+			return address;
+
+		// Move the head groups to the top, "::" stands for the zeros in between:
+		int shift = (8 - headGroups) << 4;
+		long hi, lo;
+		if (shift == 0) {
+			hi = headHi;
+			lo = headLo;
+		} else if (shift < 64) {
+			hi = (headHi << shift) | (headLo >>> (64 - shift));
+			lo = headLo << shift;
+		} else if (shift < 128) {
+			hi = headLo << (shift - 64);
+			lo = 0;
+		} else {
+			hi = 0;
+			lo = 0;
+		}
+		hi |= tailHi;
+		lo |= tailLo;
+
+		if (hi == 0 && (lo >>> 32) == IPV4_MAPPED_PREFIX)
+			return formatIPv4(lo & 0xffffffffL);
+
+		return start == 0 && end == length && isCanonicalIPv6(address, hi, lo) ? address : formatIPv6(hi, lo);
+	}
+
+	/**
+	 * @return The address as 32 bit value or <code>-1</code> if the range is no
+	 *         dotted decimal IPv4 address
+	 */
+	private static long parseIPv4(String address, int start, int end) {
+		long value = 0;
+		int parts = 0;
+		int pos = start;
+
+		while (parts < 4) {
+			int part = 0;
+			int digits = 0;
+			while (pos < end && digits < 4) {
+				char c = address.charAt(pos);
+				if (c < '0' || c > '9')
+					break;
+				part = part * 10 + (c - '0');
+				digits++;
+				pos++;
+			}
+			if (digits == 0 || digits > 3 || part > 255)
+				return -1;
+
+			value = (value << 8) | part;
+			parts++;
+
+			if (parts < 4) {
+				if (pos >= end || address.charAt(pos) != '.')
+					return -1;
+				pos++;
+			}
+		}
+		return pos == end ? value : -1;
+	}
+
+	private static boolean isCanonicalIPv4(String address, long value) {
+		int pos = 0;
+		for (int i = 3; i >= 0; i--) {
+			int part = (int) (value >>> (i << 3)) & 0xff;
+			int divisor = part >= 100 ? 100 : part >= 10 ? 10 : 1;
+			for (; divisor > 0; divisor /= 10) {
+				if (pos >= address.length() || address.charAt(pos++) != (char) ('0' + part / divisor % 10))
+					return false;
+			}
+			if (i > 0 && (pos >= address.length() || address.charAt(pos++) != '.'))
+				return false;
+		}
+		return pos == address.length();
+	}
+
+	private static boolean isCanonicalIPv6(String address, long hi, long lo) {
+		int pos = 0;
+		for (int i = 0; i < 8; i++) {
+			int group = group(hi, lo, i);
+			for (int shift = hexShift(group); shift >= 0; shift -= 4) {
+				if (pos >= address.length()
+						|| address.charAt(pos++) != Character.forDigit((group >>> shift) & 0xf, 16))
+					return false;
+			}
+			if (i < 7 && (pos >= address.length() || address.charAt(pos++) != ':'))
+				return false;
+		}
+		return pos == address.length();
+	}
+
+	private static String formatIPv4(long value) {
+		StringBuilder sb = new StringBuilder(15);
+		for (int i = 3; i >= 0; i--) {
+			sb.append((value >>> (i << 3)) & 0xff);
+			if (i > 0)
+				sb.append('.');
+		}
+		return sb.toString();
+	}
+
+	private static String formatIPv6(long hi, long lo) {
+		StringBuilder sb = new StringBuilder(39);
+		for (int i = 0; i < 8; i++) {
+			sb.append(Integer.toHexString(group(hi, lo, i)));
+			if (i < 7)
+				sb.append(':');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return The 16 bit group with the given index, 0 is the leftmost group
+	 */
+	private static int group(long hi, long lo, int index) {
+		long half = index < 4 ? hi : lo;
+		return (int) (half >>> ((3 - (index & 3)) << 4)) & 0xffff;
+	}
+
+	/**
+	 * @return The shift of the highest hex digit of a group without leading zeros
+	 */
+	private static int hexShift(int group) {
+		return group > 0xfff ? 12 : group > 0xff ? 8 : group > 0xf ? 4 : 0;
+	}
+}
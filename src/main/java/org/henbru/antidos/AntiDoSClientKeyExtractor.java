@@ -0,0 +1,314 @@
+package org.henbru.antidos;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.regex.Pattern;
+
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.apache.tomcat.util.http.MimeHeaders;
+
+/**
+ * Copyright 2017 Henning Brune
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *************************
+ *
+ * This class determines the key under which a request is counted. By default
+ * this is the remote address of the connection. Alternatives are:
+ *
+ * <ul>
+ * <li>{@link #SOURCE_X_FORWARDED_FOR}: The client address taken from the
+ * <code>X-Forwarded-For</code> header, if the request comes from a trusted proxy
+ * <li>{@link #SOURCE_HEADER}: The value of a named header, e. g. an API key
+ * <li>{@link #SOURCE_COOKIE}: The value of a named cookie, e. g. a session id
+ * </ul>
+ *
+ * The headers are parsed directly on their bytes, without splitting strings or
+ * regular expressions. Values of headers and cookies are controlled by the
+ * client and are therefore not used as keys directly: they are hashed with a
+ * random seed, which is chosen once per JVM. This way clients can neither
+ * provoke hash collisions in the counter maps nor bloat them with long values
+ *
+ * @author Henning
+ *
+ */
+public class AntiDoSClientKeyExtractor {
+
+	/**
+	 * Key source constant: the remote address of the connection (default)
+	 */
+	public static final String SOURCE_REMOTE_ADDR = "REMOTE_ADDR";
+
+	/**
+	 * Key source constant: the rightmost address in the
+	 * <code>X-Forwarded-For</code> header that is not a trusted proxy
+	 */
+	public static final String SOURCE_X_FORWARDED_FOR = "X_FORWARDED_FOR";
+
+	/**
+	 * Key source constant: the value of a named header
+	 */
+	public static final String SOURCE_HEADER = "HEADER";
+
+	/**
+	 * Key source constant: the value of a named cookie
+	 */
+	public static final String SOURCE_COOKIE = "COOKIE";
+
+	private static final String X_FORWARDED_FOR = "X-Forwarded-For";
+
+	private static final String COOKIE = "Cookie";
+
+	/**
+	 * The longest textual form of an IPv6 address with embedded IPv4 address
+	 */
+	private static final int MAX_ADDRESS_LENGTH = 45;
+
+	private static final long SEED = new SecureRandom().nextLong();
+
+	private final String source;
+
+	private final String name;
+
+	private final byte[] nameBytes;
+
+	private final Pattern trustedProxies;
+
+	/**
+	 * @param source         One of the <code>SOURCE_*</code> constants
+	 * @param name           The name of the header or cookie. For
+	 *                       {@link #SOURCE_X_FORWARDED_FOR} a different header
+	 *                       name can be used, default is
+	 *                       <code>X-Forwarded-For</code>
+	 * @param trustedProxies Regular expression with the addresses of the trusted
+	 *                       proxies. Only used for {@link #SOURCE_X_FORWARDED_FOR}
+	 * @throws IllegalArgumentException Thrown if the source is unknown or a
+	 *                                  needed parameter is missing
+	 */
+	public AntiDoSClientKeyExtractor(String source, String name, Pattern trustedProxies)
+			throws IllegalArgumentException {
+		if (!SOURCE_REMOTE_ADDR.equals(source) && !SOURCE_X_FORWARDED_FOR.equals(source)
+				&& !SOURCE_HEADER.equals(source) && !SOURCE_COOKIE.equals(source))
+			throw new IllegalArgumentException("Unknown key source: " + source);
+
+		if (SOURCE_X_FORWARDED_FOR.equals(source)) {
+			if (trustedProxies == null)
+				throw new IllegalArgumentException("Key source " + source + " needs trusted proxies");
+			if (name == null || name.length() == 0)
+				name = X_FORWARDED_FOR;
+		}
+
+		if ((SOURCE_HEADER.equals(source) || SOURCE_COOKIE.equals(source)) && (name == null || name.length() == 0))
+			throw new IllegalArgumentException("Key source " + source + " needs a name");
+
+		this.source = source;
+		this.name = name;
+		this.nameBytes = name != null ? name.getBytes(StandardCharsets.ISO_8859_1) : null;
+		this.trustedProxies = trustedProxies;
+	}
+
+	/**
+	 * @param headers    The headers of the request
+	 * @param remoteAddr The remote address of the connection
+	 * @return The address of the client. For {@link #SOURCE_X_FORWARDED_FOR} this
+	 *         is the address of the client behind the trusted proxies, otherwise
+	 *         the remote address
+	 */
+	public String extractClientAddress(MimeHeaders headers, String remoteAddr) {
+		if (!SOURCE_X_FORWARDED_FOR.equals(source) || !trustedProxies.matcher(remoteAddr).matches())
+			return remoteAddr;
+
+		// The rightmost entry has been added by the nearest proxy. Several headers
+		// are treated as one list, so the last header is evaluated first:
+		for (int pos = lastHeader(headers, name); pos >= 0; pos = previousHeader(headers, name, pos)) {
+			ByteChunk value = bytesOf(headers.getValue(pos));
+			byte[] buf = value.getBuffer();
+
+			int end = value.getEnd();
+			while (end > value.getStart()) {
+				int start = end;
+				while (start > value.getStart() && buf[start - 1] != ',')
+					start--;
+
+				int entryStart = skipWhitespace(buf, start, end);
+				int entryEnd = trimWhitespace(buf, entryStart, end);
+
+				if (entryEnd > entryStart) {
+					if (!isAddress(buf, entryStart, entryEnd))
+						return remoteAddr;
+
+					String address = AntiDoSAddress.canonicalize(
+							new String(buf, entryStart, entryEnd - entryStart, StandardCharsets.ISO_8859_1));
+					if (!trustedProxies.matcher(address).matches())
+						return address;
+				}
+				end = start - 1;
+			}
+		}
+		return remoteAddr;
+	}
+
+	/**
+	 * @param headers       The headers of the request
+	 * @param clientAddress The result of
+	 *                      {@link #extractClientAddress(MimeHeaders, String)}
+	 * @return The key for counting the request. For {@link #SOURCE_HEADER} and
+	 *         {@link #SOURCE_COOKIE} this is the seeded hash of the value. If the
+	 *         header or cookie is missing, the client address is used
+	 */
+	public String extractKey(MimeHeaders headers, String clientAddress) {
+		if (SOURCE_HEADER.equals(source)) {
+			MessageBytes value = headers.getValue(name);
+			if (value == null)
+				return clientAddress;
+
+			ByteChunk bc = bytesOf(value);
+			int start = skipWhitespace(bc.getBuffer(), bc.getStart(), bc.getEnd());
+			int end = trimWhitespace(bc.getBuffer(), start, bc.getEnd());
+			return end > start ? hashKey(bc.getBuffer(), start, end) : clientAddress;
+		}
+
+		if (SOURCE_COOKIE.equals(source)) {
+			for (int pos = headers.findHeader(COOKIE, 0); pos >= 0; pos = headers.findHeader(COOKIE, pos + 1)) {
+				ByteChunk bc = bytesOf(headers.getValue(pos));
+				String key = findCookie(bc.getBuffer(), bc.getStart(), bc.getEnd());
+				if (key != null)
+					return key;
+			}
+			return clientAddress;
+		}
+
+		return clientAddress;
+	}
+
+	/**
+	 * @return The key source, one of the <code>SOURCE_*</code> constants
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * Searches the cookie with the configured name in a <code>Cookie</code>
+	 * header
+	 *
+	 * @return The hashed key of the cookie value or <code>null</code>
+	 */
+	private String findCookie(byte[] buf, int start, int end) {
+		int pos = start;
+		while (pos < end) {
+			int pairEnd = pos;
+			while (pairEnd < end && buf[pairEnd] != ';')
+				pairEnd++;
+
+			int nameStart = skipWhitespace(buf, pos, pairEnd);
+			int eq = nameStart;
+			while (eq < pairEnd && buf[eq] != '=')
+				eq++;
+
+			if (eq < pairEnd && trimWhitespace(buf, nameStart, eq) - nameStart == nameBytes.length
+					&& regionMatches(buf, nameStart, nameBytes)) {
+				int valueStart = skipWhitespace(buf, eq + 1, pairEnd);
+				int valueEnd = trimWhitespace(buf, valueStart, pairEnd);
+				if (valueEnd - valueStart >= 2 && buf[valueStart] == '"' && buf[valueEnd - 1] == '"') {
+					valueStart++;
+					valueEnd--;
+				}
+				if (valueEnd > valueStart)
+					return hashKey(buf, valueStart, valueEnd);
+			}
+			pos = pairEnd + 1;
+		}
+		return null;
+	}
+
+	/**
+	 * Hashes a value controlled by the client with the seed of this JVM
+	 *
+	 * @return The hash in hexadecimal form, used as counter key
+	 */
+	static String hashKey(byte[] buf, int start, int end) {
+		long h = SEED ^ ((end - start) * 0x9E3779B97F4A7C15L);
+		for (int i = start; i < end; i++)
+			h = Long.rotateLeft((h ^ (buf[i] & 0xff)) * 0xBF58476D1CE4E5B9L, 31);
+
+		// Final mix, as in MurmurHash3:
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+
+		return Long.toHexString(h);
+	}
+
+	/**
+	 * @return <code>true</code> if the range only contains characters of a
+	 *         textual IPv4 or IPv6 address
+	 */
+	private static boolean isAddress(byte[] buf, int start, int end) {
+		if (end - start > MAX_ADDRESS_LENGTH)
+			return false;
+
+		for (int i = start; i < end; i++) {
+			byte b = buf[i];
+			if (!((b >= '0' && b <= '9') || (b >= 'a' && b <= 'f') || (b >= 'A' && b <= 'F') || b == '.'
+					|| b == ':'))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean regionMatches(byte[] buf, int start, byte[] expected) {
+		for (int i = 0; i < expected.length; i++) {
+			if (buf[start + i] != expected[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static int skipWhitespace(byte[] buf, int start, int end) {
+		while (start < end && (buf[start] == ' ' || buf[start] == '\t'))
+			start++;
+		return start;
+	}
+
+	private static int trimWhitespace(byte[] buf, int start, int end) {
+		while (end > start && (buf[end - 1] == ' ' || buf[end - 1] == '\t'))
+			end--;
+		return end;
+	}
+
+	private static ByteChunk bytesOf(MessageBytes value) {
+		if (value.getType() != MessageBytes.T_BYTES)
+			value.toBytes();
+		return value.getByteChunk();
+	}
+
+	private static int lastHeader(MimeHeaders headers, String name) {
+		int last = -1;
+		for (int pos = headers.findHeader(name, 0); pos >= 0; pos = headers.findHeader(name, pos + 1))
+			last = pos;
+		return last;
+	}
+
+	private static int previousHeader(MimeHeaders headers, String name, int before) {
+		for (int pos = before - 1; pos >= 0; pos--) {
+			if (headers.getName(pos).equalsIgnoreCase(name))
+				return pos;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,127 @@
+package org.henbru.antidos;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Copyright 2017 Henning Brune
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *************************
+ *
+ * This class limits the number of requests that are processed at the same time
+ * for the same key (e. g. an IP address). The keys are mapped to a fixed array
+ * of atomic counters (stripes), so the memory requirement does not depend on
+ * the number of clients. Keys that share a stripe share their limit, the number
+ * of stripes should therefore be much higher than the number of request threads.
+ * <p>
+ * Keys are brought into their canonical form (see {@link AntiDoSAddress}) and
+ * mapped to their stripe by a seeded hash (see {@link AntiDoSHash}), so neither
+ * two spellings of one address nor keys chosen to collide in
+ * {@link String#hashCode()} can be used to share or flood a stripe
+ *
+ * @author Henning
+ *
+ */
+public class AntiDoSConcurrencyLimiter {
+
+	private final AtomicIntegerArray stripes;
+
+	private final int mask;
+
+	private final int maxConcurrent;
+
+	private final long seed = AntiDoSHash.newSeed();
+
+	/**
+	 * @param maxConcurrent    The number of requests allowed at the same time for
+	 *                         one key
+	 * @param numberOfStripes  The number of counters. Rounded up to the next power
+	 *                         of two
+	 * @throws IllegalArgumentException Thrown if a parameter is less than 1
+	 */
+	public AntiDoSConcurrencyLimiter(int maxConcurrent, int numberOfStripes) throws IllegalArgumentException {
+		if (maxConcurrent < 1)
+			throw new IllegalArgumentException("Parameter maxConcurrent is invalid: " + maxConcurrent);
+
+		if (numberOfStripes < 1 || numberOfStripes > 1 << 30)
+			throw new IllegalArgumentException("Parameter numberOfStripes is invalid: " + numberOfStripes);
+
+		int size = Integer.highestOneBit(numberOfStripes);
+		if (size < numberOfStripes)
+			size <<= 1;
+
+		this.stripes = new AtomicIntegerArray(size);
+		this.mask = size - 1;
+		this.maxConcurrent = maxConcurrent;
+	}
+
+	/**
+	 * Registers the start of a request. Every successful call must be followed by
+	 * a call to {@link #release(String)}, usually in a <code>finally</code> block
+	 *
+	 * @param key The key (e. g. an IP address)
+	 * @return <code>true</code> if the request may be processed,
+	 *         <code>false</code> if there are already too many requests in
+	 *         progress for this key
+	 */
+	public boolean tryAcquire(String key) {
+		int stripe = stripe(key);
+		// Only increment below the limit, so the count never overshoots and no
+		// caller is rejected because of another caller that is rejected itself:
+		int count;
+		do {
+			count = stripes.get(stripe);
+			if (count >= maxConcurrent)
+				return false;
+		} while (!stripes.compareAndSet(stripe, count, count + 1));
+		return true;
+	}
+
+	/**
+	 * Registers the end of a request that was accepted by
+	 * {@link #tryAcquire(String)}
+	 *
+	 * @param key The key (e. g. an IP address)
+	 */
+	public void release(String key) {
+		stripes.decrementAndGet(stripe(key));
+	}
+
+	/**
+	 * @param key The key (e. g. an IP address)
+	 * @return The number of requests currently in progress for the stripe of the
+	 *         key
+	 */
+	public int getCount(String key) {
+		return stripes.get(stripe(key));
+	}
+
+	/**
+	 * @return The number of requests allowed at the same time for one key
+	 */
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	/**
+	 * @return The number of counters
+	 */
+	public int getNumberOfStripes() {
+		return stripes.length();
+	}
+
+	private int stripe(String key) {
+		return (int) AntiDoSHash.hash(seed, AntiDoSAddress.canonicalize(key)) & mask;
+	}
+}
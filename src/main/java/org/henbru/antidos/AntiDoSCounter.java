@@ -1,6 +1,10 @@
 package org.henbru.antidos;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Copyright 2017 Henning Brune
@@ -21,24 +25,145 @@ import java.util.concurrent.atomic.AtomicInteger;
  *
  * Instances of this class are used to count occasions of similar events. For
  * example requests coming form the same IP address
+ * <p>
+ * The current count, the retained count and the lock flag are packed into a
+ * single <code>long</code>, which is updated by compare-and-set. A reader
+ * therefore always sees count, retained count and lock flag of the same
+ * moment, and a counter needs no further objects. Both counts are limited to
+ * {@link Integer#MAX_VALUE} - 1 and saturate instead of overflowing.
+ * <p>
+ * A locked counter of a client that keeps flooding would make all request
+ * threads compare-and-set the same word. Once a locked counter is contended,
+ * further additions to the count therefore go to striped cells (see
+ * {@link LongAdder}) and are added up only when the count is read. The
+ * decision on a locked counter does not need the count, and the count of a
+ * counter that is not locked is always kept in the single word, so the
+ * decisions stay exact
  * 
  * @author Henning
  *
  */
 public class AntiDoSCounter {
 
-	private final AtomicInteger count = new AtomicInteger(0);
+	private static final int COUNT_BITS = 31;
 
-	private final AtomicInteger retainedCounts = new AtomicInteger(-1);
+	private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
 
-	private boolean locked = false;
+	/**
+	 * The retained count is stored increased by 1, so 0 stands for the initial
+	 * value -1
+	 */
+	private static final long RETAINED_MASK = COUNT_MASK << COUNT_BITS;
+
+	private static final long LOCKED_BIT = 1L << 63;
+
+	private static final int MAX_VALUE = (int) COUNT_MASK - 1;
+
+	private static final VarHandle STATE;
+
+	private static final VarHandle CELLS;
+
+	static {
+		try {
+			STATE = MethodHandles.lookup().findVarHandle(AntiDoSCounter.class, "state", long.class);
+			CELLS = MethodHandles.lookup().findVarHandle(AntiDoSCounter.class, "cells", Cells.class);
+		} catch (ReflectiveOperationException ex) {
+			throw new ExceptionInInitializerError(ex);
+		}
+	}
+
+	private volatile long state;
+
+	/**
+	 * Additions to the count of a contended locked counter, which are not
+	 * included in {@link #state}. <code>null</code> for all other counters
+	 */
+	private volatile Cells cells;
+
+	/**
+	 * The record of the counter name in the additional time windows of the
+	 * monitor, looked up once per counter. <code>null</code> if the monitor has no
+	 * such windows or the record has not been looked up yet
+	 */
+	AtomicLongArray windowRecord;
+
+	/**
+	 * The striped cells and the last known sum of them
+	 */
+	private static final class Cells extends LongAdder {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * A sum of the cells at some time, so a lower bound of the current sum as
+		 * long as only positive values are added. {@link #UNKNOWN} otherwise
+		 */
+		private volatile long cachedSum = 0;
+
+		private static final long UNKNOWN = Long.MIN_VALUE;
+
+		private long sumAndCache() {
+			long sum = sum();
+			cachedSum = sum;
+			return sum;
+		}
+	}
+
+	public AntiDoSCounter() {
+		this(0);
+	}
+
+	/**
+	 * Creates a counter with the state of another counter, see
+	 * {@link #getState()}
+	 */
+	AntiDoSCounter(long state) {
+		this.state = state;
+	}
+
+	/**
+	 * View on one of the two counts, offering the methods of
+	 * {@link java.util.concurrent.atomic.AtomicInteger} used so far. Views are
+	 * created on demand and hold no value of their own
+	 */
+	public final class Value {
+
+		private final boolean retained;
+
+		private Value(boolean retained) {
+			this.retained = retained;
+		}
+
+		public int get() {
+			return retained ? getRetainedCountsValue() : getCountValue();
+		}
+
+		public void set(int newValue) {
+			if (retained)
+				setRetainedCounts(newValue);
+			else
+				setCount(newValue);
+		}
+
+		public int addAndGet(int delta) {
+			return retained ? addToRetainedCounts(delta) : addToCount(delta);
+		}
+
+		public int incrementAndGet() {
+			return addAndGet(1);
+		}
+
+		@Override
+		public String toString() {
+			return Integer.toString(get());
+		}
+	}
 
 	/**
 	 * 
 	 * @return This counter is to be used for counting current accesses
 	 */
-	public AtomicInteger getCount() {
-		return count;
+	public Value getCountView() {
+		return new Value(false);
 	}
 
 	/**
@@ -48,19 +173,232 @@ public class AntiDoSCounter {
 	 *         in this way a distinction can be made if an initialization
 	 *         already took place
 	 */
+	public Value getRetainedCountsView() {
+		return new Value(true);
+	}
+
+	/**
+	 * 
+	 * @return A copy of the current count. Changes to it do not reach the
+	 *         counter
+	 * @deprecated The counts are packed into a single <code>long</code> and no
+	 *             longer held in an {@link AtomicInteger}, whose methods cannot be
+	 *             overridden. Use {@link #getCountView()} or
+	 *             {@link #getCountValue()}, {@link #addToCount(int)} and
+	 *             {@link #setCount(int)}
+	 */
+	@Deprecated
+	public AtomicInteger getCount() {
+		return new AtomicInteger(getCountValue());
+	}
+
+	/**
+	 * 
+	 * @return A copy of the current retained count. Changes to it do not reach
+	 *         the counter
+	 * @deprecated See {@link #getCount()}. Use {@link #getRetainedCountsView()}
+	 *             or {@link #getRetainedCountsValue()},
+	 *             {@link #addToRetainedCounts(int)} and
+	 *             {@link #setRetainedCounts(int)}
+	 */
+	@Deprecated
 	public AtomicInteger getRetainedCounts() {
-		return retainedCounts;
+		return new AtomicInteger(getRetainedCountsValue());
 	}
 
 	/**
 	 * 
-	 * @return The sum of {@link #getCount()} and {@link #getRetainedCounts()}
+	 * @return The current value of {@link #getCountView()}
 	 */
-	public int getCountCombined() {
-		int countCurrent = count.get();
-		int countRetained = retainedCounts.get();
+	public int getCountValue() {
+		return count(getState());
+	}
+
+	/**
+	 * Adds to {@link #getCountView()} in a single atomic operation
+	 * 
+	 * @param delta The value to add
+	 * @return The new count
+	 */
+	public int addToCount(int delta) {
+		Cells c = cells;
+		if (c != null) {
+			c.add(delta);
+			if (delta < 0)
+				c.cachedSum = Cells.UNKNOWN;
+			return getCountValue();
+		}
+
+		while (true) {
+			long current = state;
+			int newCount = clamp((long) count(current) + delta, 0);
+			if (STATE.compareAndSet(this, current, (current & ~COUNT_MASK) | newCount))
+				return newCount;
+		}
+	}
+
+	/**
+	 * Variant of {@link #addToCount(int)} that returns the whole state written by
+	 * this call. Changes of other threads after the addition do not influence the
+	 * result, so exactly the calls that exceed a limit can be identified
+	 * 
+	 * @param delta The value to add
+	 * @return The new state, see {@link #getState()}
+	 */
+	long addToCountAndGetState(int delta) {
+		Cells c = cells;
+		if (c != null) {
+			// Locked, so the count is not needed for the decision:
+			c.add(delta);
+			return state;
+		}
 
-		return countRetained < 0 ? countCurrent : countCurrent + countRetained;
+		while (true) {
+			long current = state;
+			long update = (current & ~COUNT_MASK) | clamp((long) count(current) + delta, 0);
+			if (STATE.compareAndSet(this, current, update))
+				return update;
+
+			// Contended and locked: the count goes to the cells from now on
+			if (state < 0) {
+				c = provideCells();
+				c.add(delta);
+				return state;
+			}
+		}
+	}
+
+	/**
+	 * @return The cells, created by the first thread that needs them
+	 */
+	private Cells provideCells() {
+		Cells c = cells;
+		if (c == null) {
+			Cells newCells = new Cells();
+			c = CELLS.compareAndSet(this, (Cells) null, newCells) ? newCells : cells;
+		}
+		return c;
+	}
+
+	/**
+	 * Switches a locked counter to striped cells at once, as if it were
+	 * contended
+	 * 
+	 * @return <code>false</code> if the counter is not locked
+	 */
+	boolean stripe() {
+		if (state >= 0)
+			return false;
+
+		provideCells();
+		return true;
+	}
+
+	/**
+	 * @return <code>true</code> if the count has been added to striped cells,
+	 *         see {@link AntiDoSCounter}
+	 */
+	boolean isStriped() {
+		return cells != null;
+	}
+
+	/**
+	 * Compares the sum of {@link #getCountView()} and
+	 * {@link #getRetainedCountsView()} with a limit. For a striped counter the
+	 * cells are only added up if the last known sum is not already over the limit
+	 * 
+	 * @param limit The limit
+	 * @return <code>true</code> if the combined count is greater than the limit
+	 */
+	boolean isCountCombinedOver(int limit) {
+		long current = state;
+		Cells c = cells;
+		if (c == null)
+			return combined(current) > limit;
+
+		long cached = c.cachedSum;
+		if (cached != Cells.UNKNOWN && combined(withCellSum(current, cached)) > limit)
+			return true;
+
+		return combined(withCellSum(current, c.sumAndCache())) > limit;
+	}
+
+	/**
+	 * @param newValue The new value of {@link #getCountView()}. Replaces the
+	 *                 striped cells, additions of other threads at the same time
+	 *                 can get lost
+	 */
+	public void setCount(int newValue) {
+		int newCount = clamp(newValue, 0);
+		cells = null;
+		while (true) {
+			long current = state;
+			if (STATE.compareAndSet(this, current, (current & ~COUNT_MASK) | newCount))
+				return;
+		}
+	}
+
+	/**
+	 * 
+	 * @return The current value of {@link #getRetainedCountsView()}
+	 */
+	public int getRetainedCountsValue() {
+		return retained(state);
+	}
+
+	/**
+	 * Adds to {@link #getRetainedCountsView()} in a single atomic operation
+	 * 
+	 * @param delta The value to add
+	 * @return The new retained count
+	 */
+	public int addToRetainedCounts(int delta) {
+		while (true) {
+			long current = state;
+			int newRetained = clamp((long) retained(current) + delta, -1);
+			if (STATE.compareAndSet(this, current, withRetained(current, newRetained)))
+				return newRetained;
+		}
+	}
+
+	/**
+	 * @param newValue The new value of {@link #getRetainedCountsView()}
+	 */
+	public void setRetainedCounts(int newValue) {
+		int newRetained = clamp(newValue, -1);
+		while (true) {
+			long current = state;
+			if (STATE.compareAndSet(this, current, withRetained(current, newRetained)))
+				return;
+		}
+	}
+
+	/**
+	 * Sets {@link #getRetainedCountsView()} only if it has not been set yet, i. e.
+	 * if it is still <code>-1</code>. Threads that find a new counter at the same
+	 * time can all call this method, exactly one of them sets the value
+	 * 
+	 * @param newValue The new value of {@link #getRetainedCountsView()}
+	 * @return <code>true</code> if this call has set the value
+	 */
+	public boolean initRetainedCounts(int newValue) {
+		int newRetained = clamp(newValue, 0);
+		while (true) {
+			long current = state;
+			if (retained(current) != -1)
+				return false;
+			if (STATE.compareAndSet(this, current, withRetained(current, newRetained)))
+				return true;
+		}
+	}
+
+	/**
+	 * 
+	 * @return The sum of {@link #getCountView()} and
+	 *         {@link #getRetainedCountsView()}
+	 */
+	public int getCountCombined() {
+		return combined(getState());
 	}
 
 	/**
@@ -70,25 +408,99 @@ public class AntiDoSCounter {
 	 * 
 	 */
 	public boolean isLocked() {
-		return locked;
+		return state < 0;
 	}
 
 	/**
 	 * Using this method, the counter can be flagged as locked
+	 * 
+	 * @return <code>true</code> if the counter has been locked by this call,
+	 *         <code>false</code> if it was already locked
+	 */
+	public boolean lock() {
+		while (true) {
+			long current = state;
+			if (current < 0)
+				return false;
+			if (STATE.compareAndSet(this, current, current | LOCKED_BIT))
+				return true;
+		}
+	}
+
+	/**
+	 * 
+	 * @return Count, retained count and lock flag in their packed form. Can be
+	 *         decoded with {@link #count(long)}, {@link #retained(long)} and
+	 *         {@link #isLocked(long)}. The striped cells are added to the count
 	 */
-	public void lock() {
-		this.locked = true;
+	long getState() {
+		long current = state;
+		Cells c = cells;
+		return c == null ? current : withCellSum(current, c.sumAndCache());
+	}
+
+	/**
+	 * Variant of {@link #getState()} that does not add up the striped cells, but
+	 * uses their last known sum. The count can therefore be too low
+	 */
+	long getStateEstimate() {
+		long current = state;
+		Cells c = cells;
+		if (c == null)
+			return current;
+
+		long cached = c.cachedSum;
+		return withCellSum(current, cached != Cells.UNKNOWN ? cached : 0);
 	}
 
 	@Override
 	public String toString() {
+		long current = getState();
 		StringBuilder sb = new StringBuilder();
 
-		sb.append("Count:").append(getCount()).append(" Retained:")
-				.append(getRetainedCounts()).append(" Locked:")
-				.append(locked ? "yes" : "no");
+		sb.append("Count:").append(count(current)).append(" Retained:")
+				.append(retained(current)).append(" Locked:")
+				.append(current < 0 ? "yes" : "no");
 
 		return sb.toString();
 	}
 
+	static int count(long state) {
+		return (int) (state & COUNT_MASK);
+	}
+
+	static int retained(long state) {
+		return (int) ((state & RETAINED_MASK) >>> COUNT_BITS) - 1;
+	}
+
+	static boolean isLocked(long state) {
+		return state < 0;
+	}
+
+	static int combined(long state) {
+		int countRetained = retained(state);
+
+		return countRetained < 0 ? count(state)
+				: (int) Math.min(Integer.MAX_VALUE, (long) count(state) + countRetained);
+	}
+
+	/**
+	 * Packs the values of a counter in the form of {@link #getState()}, e. g. for
+	 * counters that keep their values elsewhere
+	 */
+	static long state(int count, int retained, boolean locked) {
+		return withRetained(clamp(count, 0), clamp(retained, -1)) | (locked ? LOCKED_BIT : 0);
+	}
+
+	private static long withCellSum(long state, long cellSum) {
+		return (state & ~COUNT_MASK) | clamp(count(state) + cellSum, 0);
+	}
+
+	private static long withRetained(long state, int retained) {
+		return (state & ~RETAINED_MASK) | ((long) (retained + 1) << COUNT_BITS);
+	}
+
+	private static int clamp(long value, int min) {
+		return (int) Math.max(min, Math.min(MAX_VALUE, value));
+	}
 }
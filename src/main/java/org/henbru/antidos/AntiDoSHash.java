@@ -0,0 +1,65 @@
+package org.henbru.antidos;
+
+import java.security.SecureRandom;
+
+/**
+ * Copyright 2017 Henning Brune
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *************************
+ *
+ * Seeded hash of keys controlled by clients (IP addresses, hashed header or
+ * cookie values), used by the tables that place keys by their hash. With a
+ * random seed, clients can neither predict the entry of a key nor choose keys
+ * sharing one, unlike with {@link String#hashCode()}, for which colliding keys
+ * are easily found
+ *
+ * @author Henning
+ *
+ */
+final class AntiDoSHash {
+
+	private AntiDoSHash() {
+	}
+
+	/**
+	 * @return A new random seed
+	 */
+	static long newSeed() {
+		return new SecureRandom().nextLong();
+	}
+
+	/**
+	 * Hashes the characters of the key with the seed. All bits of the result
+	 * depend on all characters, so the lower bits can serve as index and the upper
+	 * bits as fingerprint
+	 *
+	 * @param seed The seed of the table
+	 * @param key  The key
+	 * @return The hash, might be any value
+	 */
+	static long hash(long seed, String key) {
+		long h = seed;
+		for (int i = 0; i < key.length(); i++)
+			h = (h ^ key.charAt(i)) * 0x100000001b3L;
+
+		// Finalizer of MurmurHash3:
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,267 @@
+package org.henbru.antidos;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Copyright 2017 Henning Brune
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *************************
+ *
+ * This class watches the heap of the JVM and runs the registered actions (e. g.
+ * {@link AntiDoSMonitor#shedMemory()} of the monitors of a valve) when the heap
+ * is still filled over the threshold of the action after a garbage collection.
+ * It uses the collection usage threshold of the heap memory pools, so the JVM
+ * checks the usage only after a collection and no thread of its own is needed.
+ * <p>
+ * The guard is installed with the first action (see
+ * {@link #addAction(Runnable, int)}): the lowest threshold of the actions is
+ * set on all heap pools that support it and the guard listens to the
+ * notifications of the JVM. The threshold of a pool is a single value for the
+ * whole JVM, so a threshold set by someone else is kept: the actions are then
+ * notified at that threshold and only run if their own one is reached. When
+ * the last action is removed, the thresholds set by the guard are reset and
+ * the listener is removed again, so no reference to the classes of a stopped
+ * web application is left in the JVM
+ *
+ * @author Henning
+ *
+ */
+public class AntiDoSMemoryGuard implements NotificationListener {
+
+	private static final Log log = LogFactory.getLog(AntiDoSValve.ANTIDOS_LOGGER_NAME);
+
+	/**
+	 * The installed guard, <code>null</code> if no action is registered. Guarded
+	 * by the class
+	 */
+	private static AntiDoSMemoryGuard instance = null;
+
+	/**
+	 * The actions with their threshold in percent
+	 */
+	private final Map<Runnable, Integer> actions = new ConcurrentHashMap<Runnable, Integer>();
+
+	/**
+	 * The collection usage thresholds set by the guard, by name of the pool.
+	 * Pools with a threshold of someone else are not contained
+	 */
+	private final Map<String, Long> ownThresholds = new HashMap<String, Long>();
+
+	private final AtomicLong notifications = new AtomicLong();
+
+	/**
+	 * The lowest threshold of the actions in percent of the maximum size of each
+	 * heap pool. Guarded by the class
+	 */
+	private int threshold = 0;
+
+	/**
+	 * Use {@link #addAction(Runnable, int)}
+	 */
+	private AntiDoSMemoryGuard() {
+	}
+
+	/**
+	 * Registers an action that is run when the heap is still filled over the
+	 * threshold after a collection. If the action is already registered, only its
+	 * threshold is changed
+	 *
+	 * @param action    The action, must be fast and must not allocate much memory
+	 * @param threshold Percent of the maximum size of a heap pool, between 1 and
+	 *                  99
+	 * @throws IllegalArgumentException Thrown if the threshold is invalid
+	 */
+	public static synchronized void addAction(Runnable action, int threshold) throws IllegalArgumentException {
+		if (threshold < 1 || threshold > 99)
+			throw new IllegalArgumentException("Parameter memoryPressureThreshold is invalid: " + threshold);
+
+		if (instance == null) {
+			AntiDoSMemoryGuard guard = new AntiDoSMemoryGuard();
+			((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(guard, null, null);
+			instance = guard;
+		}
+		instance.actions.put(action, threshold);
+		instance.applyThreshold();
+	}
+
+	/**
+	 * Removes an action. The guard is uninstalled with the last action
+	 *
+	 * @param action The action to be removed
+	 */
+	public static synchronized void removeAction(Runnable action) {
+		if (instance == null || instance.actions.remove(action) == null)
+			return;
+
+		if (instance.actions.isEmpty()) {
+			instance.uninstall();
+			instance = null;
+		} else
+			instance.applyThreshold();
+	}
+
+	/**
+	 *
+	 * @return The installed guard, <code>null</code> if no action is registered
+	 */
+	public static synchronized AntiDoSMemoryGuard getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Sets the lowest threshold of the actions on all heap pools that support it
+	 * and have no threshold of someone else
+	 */
+	private void applyThreshold() {
+		int lowest = 100;
+		for (int actionThreshold : actions.values())
+			lowest = Math.min(lowest, actionThreshold);
+
+		if (lowest == threshold)
+			return;
+
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			long max = pool.getUsage().getMax();
+			if (pool.getType() != MemoryType.HEAP || !pool.isCollectionUsageThresholdSupported() || max <= 0)
+				continue;
+
+			String name = pool.getName();
+			long current = pool.getCollectionUsageThreshold();
+			Long own = ownThresholds.get(name);
+			if (own == null ? current != 0 : current != own) {
+				// Set by someone else before or after the guard:
+				if (log.isInfoEnabled())
+					log.info("AntiDoSMemoryGuard keeps the threshold of " + name + ": " + current + " bytes");
+				ownThresholds.remove(name);
+				continue;
+			}
+
+			long newThreshold = max / 100 * lowest;
+			pool.setCollectionUsageThreshold(newThreshold);
+			ownThresholds.put(name, newThreshold);
+		}
+		threshold = lowest;
+
+		if (log.isInfoEnabled())
+			log.info("AntiDoSMemoryGuard sheds memory over " + threshold + "% of the heap after a collection");
+	}
+
+	/**
+	 * Resets the thresholds set by the guard, unless they have been changed by
+	 * someone else in the meantime, and removes the listener
+	 */
+	private void uninstall() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			Long own = ownThresholds.get(pool.getName());
+			if (own != null && pool.getCollectionUsageThreshold() == own)
+				pool.setCollectionUsageThreshold(0);
+		}
+		ownThresholds.clear();
+		threshold = 0;
+
+		try {
+			((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(this);
+		} catch (ListenerNotFoundException ex) {
+			log.warn("AntiDoSMemoryGuard: listener already removed", ex);
+		}
+
+		if (log.isInfoEnabled())
+			log.info("AntiDoSMemoryGuard removed");
+	}
+
+	/**
+	 *
+	 * @return The lowest threshold of the actions in percent of the maximum size
+	 *         of the heap pools. 0 if the guard is uninstalled
+	 */
+	public int getThreshold() {
+		synchronized (AntiDoSMemoryGuard.class) {
+			return threshold;
+		}
+	}
+
+	/**
+	 *
+	 * @return The number of registered actions
+	 */
+	public int getNumberOfActions() {
+		return actions.size();
+	}
+
+	/**
+	 *
+	 * @return The number of times the threshold has been exceeded
+	 */
+	public long getNotifications() {
+		return notifications.get();
+	}
+
+	/**
+	 * Runs the actions whose threshold is exceeded by the pool reported in the
+	 * notification
+	 */
+	@Override
+	public void handleNotification(Notification notification, Object handback) {
+		if (!MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())
+				|| !(notification.getUserData() instanceof CompositeData))
+			return;
+
+		MemoryUsage usage = MemoryNotificationInfo.from((CompositeData) notification.getUserData()).getUsage();
+		if (usage.getMax() > 0)
+			runActions(usage.getUsed(), usage.getMax());
+	}
+
+	/**
+	 * Runs the actions whose threshold is reached, calculated like the threshold
+	 * set on the pools
+	 *
+	 * @param used The used bytes of a heap pool after a collection
+	 * @param max  The maximum size of the pool
+	 */
+	void runActions(long used, long max) {
+		notifications.incrementAndGet();
+
+		if (log.isWarnEnabled())
+			log.warn("AntiDoSMemoryGuard: heap at " + (used * 100 / max) + "% after a collection");
+
+		for (Map.Entry<Runnable, Integer> action : actions.entrySet()) {
+			if (used < max / 100 * action.getValue())
+				continue;
+
+			try {
+				action.getKey().run();
+			} catch (RuntimeException ex) {
+				log.error("AntiDoSMemoryGuard: action failed", ex);
+			}
+		}
+	}
+}
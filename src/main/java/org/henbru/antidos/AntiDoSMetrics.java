@@ -0,0 +1,224 @@
+package org.henbru.antidos;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Copyright 2017 Henning Brune
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *************************
+ *
+ * This class collects the metrics of a valve and prints them together with the
+ * statistics of its monitors in the text format of Prometheus, see
+ * {@link AntiDoSValve#setMetricsPath(String)}.
+ * <p>
+ * The valve counts its verdicts and the time needed for them in
+ * {@link LongAdder} instances, so the requests do not contend for a single
+ * counter and do not allocate memory. The sums are only built when the metrics
+ * are printed
+ *
+ * @author Henning
+ *
+ */
+public class AntiDoSMetrics {
+
+	/**
+	 * The content type of the text format
+	 */
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	/**
+	 * Upper bounds of the buckets of the decision time in nanoseconds
+	 */
+	private static final long[] DURATION_BOUNDS = { 1000, 5000, 10000, 50000, 100000, 500000, 1000000, 5000000 };
+
+	/**
+	 * {@link #DURATION_BOUNDS} in seconds, as printed
+	 */
+	private static final String[] DURATION_LABELS = { "1e-06", "5e-06", "1e-05", "5e-05", "0.0001", "0.0005", "0.001",
+			"0.005" };
+
+	private final String[] verdictNames;
+
+	private final LongAdder[] verdicts;
+
+	private final LongAdder concurrencyRejections = new LongAdder();
+
+	/**
+	 * Decisions per bucket of {@link #DURATION_BOUNDS}, not cumulative. The last
+	 * bucket holds the decisions over the highest bound
+	 */
+	private final LongAdder[] durations = new LongAdder[DURATION_BOUNDS.length + 1];
+
+	/**
+	 * Sum of the decision times in nanoseconds
+	 */
+	private final LongAdder durationSum = new LongAdder();
+
+	/**
+	 * @param verdictNames The names of the verdicts, printed as label values. The
+	 *                     index of a name is the verdict passed to
+	 *                     {@link #registerVerdict(int, long)}
+	 */
+	public AntiDoSMetrics(String... verdictNames) {
+		this.verdictNames = verdictNames.clone();
+		this.verdicts = new LongAdder[verdictNames.length];
+		for (int i = 0; i < verdicts.length; i++)
+			verdicts[i] = new LongAdder();
+		for (int i = 0; i < durations.length; i++)
+			durations[i] = new LongAdder();
+	}
+
+	/**
+	 * Counts a decision of the valve
+	 *
+	 * @param verdict  The index of the verdict in the names given to the
+	 *                 constructor
+	 * @param duration The time needed for the decision in nanoseconds
+	 */
+	public void registerVerdict(int verdict, long duration) {
+		verdicts[verdict].increment();
+
+		int bucket = 0;
+		while (bucket < DURATION_BOUNDS.length && duration > DURATION_BOUNDS[bucket])
+			bucket++;
+		durations[bucket].increment();
+		durationSum.add(duration);
+	}
+
+	/**
+	 * Counts an allowed request rejected by the limit of concurrent requests
+	 */
+	public void registerConcurrencyRejection() {
+		concurrencyRejections.increment();
+	}
+
+	/**
+	 *
+	 * @param verdict The index of the verdict
+	 * @return The number of decisions with this verdict
+	 */
+	public long getVerdicts(int verdict) {
+		return verdicts[verdict].sum();
+	}
+
+	/**
+	 *
+	 * @return The number of allowed requests rejected by the limit of concurrent
+	 *         requests
+	 */
+	public long getConcurrencyRejections() {
+		return concurrencyRejections.sum();
+	}
+
+	/**
+	 * Prints the metrics in the text format of Prometheus
+	 *
+	 * @param sb          The metrics are appended here
+	 * @param monitorName The name of the monitor of the valve, used as label of
+	 *                    the metrics of the valve
+	 * @param monitors    The monitors of the valve, each labeled with its own
+	 *                    name. <code>null</code> entries are skipped
+	 */
+	public void print(StringBuilder sb, String monitorName, AntiDoSMonitor... monitors) {
+		printHeader(sb, "antidos_requests_total", "counter", "Requests checked by the valve, by verdict");
+		for (int i = 0; i < verdicts.length; i++) {
+			sb.append("antidos_requests_total{");
+			appendLabel(sb, "monitor", monitorName).append(',');
+			appendLabel(sb, "verdict", verdictNames[i]).append("} ").append(verdicts[i].sum()).append('\n');
+		}
+
+		printHeader(sb, "antidos_concurrency_rejections_total", "counter",
+				"Allowed requests rejected by the limit of concurrent requests per IP address");
+		printValue(sb, "antidos_concurrency_rejections_total", monitorName, concurrencyRejections.sum());
+
+		printHeader(sb, "antidos_decision_duration_seconds", "histogram", "Time needed to check a request");
+		long cumulated = 0;
+		for (int i = 0; i < durations.length; i++) {
+			cumulated += durations[i].sum();
+			sb.append("antidos_decision_duration_seconds_bucket{");
+			appendLabel(sb, "monitor", monitorName).append(',');
+			appendLabel(sb, "le", i < DURATION_LABELS.length ? DURATION_LABELS[i] : "+Inf").append("} ")
+					.append(cumulated).append('\n');
+		}
+		sb.append("antidos_decision_duration_seconds_sum{");
+		appendLabel(sb, "monitor", monitorName).append("} ").append(durationSum.sum() / 1e9).append('\n');
+		printValue(sb, "antidos_decision_duration_seconds_count", monitorName, cumulated);
+
+		printHeader(sb, "antidos_locks_total", "counter", "Counters locked because they exceeded the limit");
+		for (AntiDoSMonitor monitor : monitors) {
+			if (monitor != null)
+				printValue(sb, "antidos_locks_total", monitor.getMonitorName(), monitor.getLocks());
+		}
+
+		printHeader(sb, "antidos_evictions_total", "counter", "Counters removed to make room for new ones");
+		for (AntiDoSMonitor monitor : monitors) {
+			if (monitor != null)
+				printValue(sb, "antidos_evictions_total", monitor.getMonitorName(), monitor.getEvictions());
+		}
+
+		printHeader(sb, "antidos_slot_rotations_total", "counter", "Slots started");
+		for (AntiDoSMonitor monitor : monitors) {
+			if (monitor != null)
+				printValue(sb, "antidos_slot_rotations_total", monitor.getMonitorName(), monitor.getSlotRotations());
+		}
+
+		printHeader(sb, "antidos_counters", "gauge", "Counters held in all slots");
+		for (AntiDoSMonitor monitor : monitors) {
+			if (monitor != null)
+				printValue(sb, "antidos_counters", monitor.getMonitorName(), monitor.getNumberOfCounters());
+		}
+
+		printHeader(sb, "antidos_counters_per_slot_max", "gauge",
+				"Counters a slot can hold, reduced while memory is shed");
+		for (AntiDoSMonitor monitor : monitors) {
+			if (monitor != null)
+				printValue(sb, "antidos_counters_per_slot_max", monitor.getMonitorName(),
+						monitor.getEffectiveMaxCountersPerSlot());
+		}
+
+		printHeader(sb, "antidos_locked_keys", "gauge", "Entries in the index of locked IP addresses");
+		for (AntiDoSMonitor monitor : monitors) {
+			if (monitor != null)
+				printValue(sb, "antidos_locked_keys", monitor.getMonitorName(), monitor.getNumberOfLockedKeys());
+		}
+	}
+
+	private static void printHeader(StringBuilder sb, String name, String type, String help) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void printValue(StringBuilder sb, String name, String monitorName, long value) {
+		sb.append(name).append('{');
+		appendLabel(sb, "monitor", monitorName).append("} ").append(value).append('\n');
+	}
+
+	/**
+	 * Appends a label with the value escaped as required by the text format
+	 */
+	static StringBuilder appendLabel(StringBuilder sb, String name, String value) {
+		sb.append(name).append("=\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"')
+				sb.append('\\').append(c);
+			else if (c == '\n')
+				sb.append("\\n");
+			else
+				sb.append(c);
+		}
+		return sb.append('"');
+	}
+}
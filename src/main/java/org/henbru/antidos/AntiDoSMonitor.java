@@ -1,10 +1,12 @@
 package org.henbru.antidos;
 
-import java.util.Calendar;
-import java.util.Collections;
-import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
@@ -31,6 +33,11 @@ import org.apache.juli.logging.LogFactory;
  * the IP addresses of web requests. The decision about blocking a request is
  * then made based of these counters. These checks are made in method
  * {@link #registerAndCheckRequest(String)}
+ * <p>
+ * No <code>synchronized</code> blocks are used, so the monitor does not pin the
+ * carrier threads of virtual threads. The current slot is published through a
+ * volatile field, the lock for creating slots is only taken when a new slot
+ * begins
  * 
  * @author Henning
  *
@@ -39,15 +46,150 @@ public class AntiDoSMonitor {
 
 	private static final Log log = LogFactory.getLog(AntiDoSValve.ANTIDOS_LOGGER_NAME);
 
+	/**
+	 * Rough size of a counter in a slot in bytes: map entry, counter, address
+	 * string and the share of the map table. Used to derive
+	 * <code>maxCountersPerSlot</code> from a memory budget, see
+	 * {@link #provideMaxCountersForMemory(long, int)}
+	 */
+	public static final int ESTIMATED_BYTES_PER_COUNTER = 160;
+
+	/**
+	 * The capacity of a slot is not reduced below this number by
+	 * {@link #shedMemory()}
+	 */
+	static final int MIN_COUNTERS_AFTER_SHEDDING = 16;
+
 	private String monitorName;
 	private String name4logging;
 	private int maxCountersPerSlot;
-	private Map<String, AntiDoSSlot> slots = null;
+
+	/**
+	 * The number of counters of a new slot. Equal to
+	 * <code>maxCountersPerSlot</code> unless memory has been shed, see
+	 * {@link #shedMemory()}
+	 */
+	private volatile int effectiveMaxCounters;
+	private int numberOfSlots;
+
+	/**
+	 * The slots, sorted by their number (see {@link #provideCurrentSlot()})
+	 */
+	private ConcurrentSkipListMap<Long, AntiDoSSlot> slots = new ConcurrentSkipListMap<Long, AntiDoSSlot>();
+
+	/**
+	 * The most recent slot, read without locking on every request
+	 */
+	private volatile CurrentSlot currentSlot = null;
+
+	private static final class CurrentSlot {
+		private final long number;
+		private final AntiDoSSlot slot;
+
+		private CurrentSlot(long number, AntiDoSSlot slot) {
+			this.number = number;
+			this.slot = slot;
+		}
+	}
+
+	/**
+	 * Guards the creation and removal of slots
+	 */
+	private final ReentrantLock slotsLock = new ReentrantLock();
 	private int slotLength;
-	private int allowedRequestsPerSlot;
+	/**
+	 * Volatile, because it can be adapted to the server load while requests are
+	 * checked. See {@link #setAllowedRequestsPerSlot(int)}
+	 */
+	private volatile int allowedRequestsPerSlot;
 	private float shareOfRetainedFormerRequests;
 
-	private AtomicInteger totalrequests = new AtomicInteger(0);
+	/**
+	 * Written by every request, so a {@link LongAdder} instead of a single
+	 * atomic word, which would serialize the threads even if their counters are
+	 * sampled or striped
+	 */
+	private final LongAdder totalrequests = new LongAdder();
+
+	/**
+	 * Only every n-th request rejected by {@link #isLocked(String)} is counted,
+	 * see {@link #getFastRejectedRequests()}
+	 */
+	private static final int FAST_REJECT_SAMPLING = 16;
+
+	/**
+	 * Locked counter names and the time in milliseconds until which they are
+	 * locked. Only filled if the index is enabled, see
+	 * {@link #setLockedKeyIndexEnabled(boolean)}, or if a block duration is set,
+	 * see {@link #setBlockDuration(int)}
+	 */
+	private final Map<String, Long> lockedKeys = new ConcurrentHashMap<String, Long>();
+
+	private volatile boolean lockedKeyIndexEnabled = false;
+
+	/**
+	 * Duration of a lock in milliseconds. 0 if a lock ends with the slot
+	 */
+	private volatile long blockDuration = 0;
+
+	/**
+	 * Strikes of the counter names that have been locked. <code>null</code> if
+	 * locks of repeat offenders are not extended, see
+	 * {@link #setRepeatOffenders(int, int, int)}
+	 */
+	private volatile AntiDoSOffenderTable offenders = null;
+
+	/**
+	 * Upper limit for the extended locks of repeat offenders in milliseconds
+	 */
+	private volatile long maxBlockDuration = 0;
+
+	/**
+	 * Length of a tick of {@link #lockExpiries} in milliseconds
+	 */
+	private static final long LOCK_EXPIRY_TICK = 1000;
+
+	/**
+	 * Removes the entries from {@link #lockedKeys} when their lock ends. Created
+	 * on first use, see {@link #provideLockExpiries()}
+	 */
+	private volatile AntiDoSTimingWheel lockExpiries = null;
+
+	private final LongAdder fastRejectedRequests = new LongAdder();
+
+	/**
+	 * Count of a counter in the current slot from which on its requests are
+	 * sampled, see {@link #setSampling(int, int)}
+	 */
+	private volatile int samplingThreshold = 0;
+
+	/**
+	 * One of this number of requests is counted past {@link #samplingThreshold}.
+	 * 1 if every request is counted
+	 */
+	private volatile int samplingRate = 1;
+
+	/**
+	 * Additional time windows with limits of their own, see
+	 * {@link #setWindows(int[], int[])}. <code>null</code> if not set
+	 */
+	private volatile AntiDoSWindows windows = null;
+
+	/**
+	 * Number of counters locked, see {@link #getLocks()}
+	 */
+	private final LongAdder locks = new LongAdder();
+
+	/**
+	 * Number of counters removed because a slot was full or memory was shed. Also
+	 * counted by {@link AntiDoSRingMonitor}
+	 */
+	final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Number of slots started. Also counted by {@link AntiDoSRingMonitor}
+	 */
+	final LongAdder slotRotations = new LongAdder();
 
 	/**
 	 * The constructor gets all parameters that define the function of the Anti-DoS
@@ -109,15 +251,9 @@ public class AntiDoSMonitor {
 		this.name4logging = "AntiDoSMonitor [" + this.monitorName + "]";
 
 		this.maxCountersPerSlot = maxCountersPerSlot;
+		this.effectiveMaxCounters = maxCountersPerSlot;
 
-		slots = Collections.synchronizedMap(new LinkedHashMap<String, AntiDoSSlot>(maxCountersPerSlot, 0.75f, false) {
-			private static final long serialVersionUID = 1L;
-
-			@Override
-			protected boolean removeEldestEntry(Map.Entry<String, AntiDoSSlot> eldest) {
-				return size() > numberOfSlots;
-			}
-		});
+		this.numberOfSlots = numberOfSlots;
 
 		// Convert slot length in milliseconds:
 		this.slotLength = slotLength * 1000;
@@ -145,33 +281,105 @@ public class AntiDoSMonitor {
 	 *                                  empty
 	 */
 	public boolean registerAndCheckRequest(String counterName) throws IllegalArgumentException {
+		return registerAndCheckRequest(counterName, 1);
+	}
+
+	/**
+	 * Variant of {@link #registerAndCheckRequest(String)} for requests that put a
+	 * higher load on the server than others. The counter is incremented by
+	 * <code>weight</code> instead of 1, so <code>allowedRequestsPerSlot</code>
+	 * becomes a budget of cost units
+	 * 
+	 * @param counterName The name of the counter (e. g. an IP address)
+	 * @param weight      The cost of the request, at least 1
+	 * @return If <code>true</code> the request is allowed. If <code>false</code>
+	 *         there had been to many accesses for this counter and the request
+	 *         should be blocked
+	 * @throws IllegalArgumentException If the counter name is <code>null</code> or
+	 *                                  empty or the weight is less than 1
+	 */
+	public boolean registerAndCheckRequest(String counterName, int weight) throws IllegalArgumentException {
+		return register(counterName, weight, true);
+	}
+
+	/**
+	 * Charges additional cost units to a counter after a request has been
+	 * processed, e. g. depending on the measured response time. If the budget of
+	 * the counter is exceeded, the counter is locked and following requests are
+	 * blocked. Does not count as a request in {@link #getTotalRequestCount()}
+	 * 
+	 * @param counterName The name of the counter (e. g. an IP address)
+	 * @param weight      The cost units to add, at least 1
+	 * @return <code>false</code> if the counter is locked after the charge
+	 * @throws IllegalArgumentException If the counter name is <code>null</code> or
+	 *                                  empty or the weight is less than 1
+	 */
+	public boolean chargeRequest(String counterName, int weight) throws IllegalArgumentException {
+		return register(counterName, weight, false);
+	}
+
+	private boolean register(String counterName, int weight, boolean isRequest) throws IllegalArgumentException {
 
 		if (counterName == null || counterName.length() == 0)
 			throw new IllegalArgumentException();
 
-		totalrequests.addAndGet(1);
+		// Different notations of the same address must share a counter:
+		counterName = AntiDoSAddress.canonicalize(counterName);
 
-		// Step 1: Provide current slot, create it if necessary:
-		AntiDoSSlot slot = provideCurrentSlot();
+		if (weight < 1)
+			throw new IllegalArgumentException("Parameter weight is invalid: " + weight);
 
-		// Step 2: Get and increment counter
-		AntiDoSCounter counter = slot.getCounter(counterName);
-		counter.getCount().addAndGet(1);
+		if (isRequest)
+			totalrequests.increment();
+
+		// Step 1: Get the counter of the current slot, create it if necessary:
+		AntiDoSCounter counter = provideCounter(counterName);
 
-		// Step 3: Do we have to retain counter values from previous slots?
-		if (counter.getRetainedCounts().get() == -1)
-			counter.getRetainedCounts().set(provideRetainedCountForCounter(counterName, slot.getKey()));
+		// Step 2: Increment counter. The decision is made on the state written by
+		// this request, so exactly the requests over the limit are blocked:
+		long state = isRequest ? provideSampledState(counter, weight) : counter.addToCountAndGetState(weight);
 
-		// Schritt 4: Counter already locked?
-		if (counter.isLocked())
+		// Schritt 3: Counter already locked?
+		if (AntiDoSCounter.isLocked(state))
 			return false;
 
-		// Do we have to lock the counter now?
-		if (counter.getCountCombined() > allowedRequestsPerSlot) {
+		// Still blocked from a former slot? Then the new counter is locked at once:
+		if (isLockOutlastingSlot() && isInLockedKeys(counterName)) {
 			counter.lock();
+			return false;
+		}
+
+		// Exceeded in one of the additional windows? Then the lock lasts until the
+		// end of that window:
+		AntiDoSWindows currentWindows = windows;
+		if (currentWindows != null) {
+			long now = getTimeInMillis();
+			int violated = registerInWindows(currentWindows, counter, counterName, weight, now);
+			if (violated >= 0) {
+				if (counter.lock()) {
+					locks.increment();
+					registerLockedKey(counterName, currentWindows.getWindowEnd(violated, now));
 
-			if (log.isInfoEnabled())
-				log.info(name4logging + " - Counter for '" + counterName + "': " + counter.toString());
+					if (log.isInfoEnabled())
+						log.info(name4logging + " - Counter for '" + counterName + "' exceeds the window of "
+								+ currentWindows.getLengthInMillis(violated) / 1000 + " seconds: "
+								+ counter.toString());
+				}
+
+				return false;
+			}
+		}
+
+		// Do we have to lock the counter now?
+		if (AntiDoSCounter.combined(state) > allowedRequestsPerSlot) {
+			// Only the thread that actually locks the counter registers and logs it:
+			if (counter.lock()) {
+				locks.increment();
+				registerLockedKey(counterName, 0);
+
+				if (log.isInfoEnabled())
+					log.info(name4logging + " - Counter for '" + counterName + "': " + counter.toString());
+			}
 
 			return false;
 		}
@@ -179,6 +387,433 @@ public class AntiDoSMonitor {
 		return true;
 	}
 
+	/**
+	 * Provides the counter of the current slot and creates it, if it does not yet
+	 * exist. The retained count of the counter is initialized from the previous
+	 * slots. Can be overridden by monitors with another memory layout
+	 * 
+	 * @param counterName The name of the counter (e. g. an IP address), already
+	 *                    canonicalized
+	 */
+	protected AntiDoSCounter provideCounter(String counterName) {
+		AntiDoSSlot slot = provideCurrentSlot();
+		AntiDoSCounter counter = slot.getCounter(counterName);
+
+		// Do we have to retain counter values from previous slots? Every thread that
+		// finds the counter uninitialized computes the value, the first one sets it,
+		// so no thread decides on a counter without its retained count:
+		if (counter.getRetainedCountsValue() == -1)
+			counter.initRetainedCounts(provideRetainedCountForCounter(counterName, slot.getKey()));
+
+		return counter;
+	}
+
+	/**
+	 * Adds the weight of a request to the additional windows. The record of the
+	 * counter name is looked up once and then kept with the counter, so a request
+	 * updates all windows with a single lookup of its counter
+	 * 
+	 * @return The index of the first window exceeded by this request,
+	 *         <code>-1</code> if none
+	 */
+	private int registerInWindows(AntiDoSWindows currentWindows, AntiDoSCounter counter, String counterName,
+			int weight, long now) {
+		AtomicLongArray record = counter.windowRecord;
+		if (record == null) {
+			record = currentWindows.provideRecord(counterName, now);
+			counter.windowRecord = record;
+		}
+		return currentWindows.register(record, weight, now);
+	}
+
+	/**
+	 * Checks whether a counter is locked, using only the index of locked counters.
+	 * The check needs a single hash lookup and changes nothing, so it is meant to
+	 * reject requests of locked clients before any counter work is done. Such
+	 * requests are not counted. Always returns <code>false</code> if the index is
+	 * not enabled
+	 * 
+	 * @param counterName The name of the counter (e. g. an IP address)
+	 * @return <code>true</code> if the counter is locked
+	 * @see #setLockedKeyIndexEnabled(boolean)
+	 */
+	public boolean isLocked(String counterName) {
+		if (!lockedKeyIndexEnabled || counterName == null)
+			return false;
+
+		if (!isInLockedKeys(AntiDoSAddress.canonicalize(counterName)))
+			return false;
+
+		if (ThreadLocalRandom.current().nextInt(FAST_REJECT_SAMPLING) == 0)
+			fastRejectedRequests.add(FAST_REJECT_SAMPLING);
+
+		return true;
+	}
+
+	/**
+	 * @return <code>true</code> if the key is in {@link #lockedKeys} and its lock
+	 *         has not ended yet. Entries that have already ended are removed
+	 */
+	private boolean isInLockedKeys(String key) {
+		Long lockedUntil = lockedKeys.get(key);
+		if (lockedUntil == null)
+			return false;
+
+		if (getTimeInMillis() >= lockedUntil) {
+			lockedKeys.remove(key, lockedUntil);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Turns the index of locked counters on or off. When it is on, every counter
+	 * locked by {@link #registerAndCheckRequest(String)} is entered into a
+	 * separate map until the end of the current slot, so {@link #isLocked(String)}
+	 * can answer with a single lookup
+	 * 
+	 * @param enabled <code>true</code> to enable the index
+	 */
+	public void setLockedKeyIndexEnabled(boolean enabled) {
+		lockedKeyIndexEnabled = enabled;
+		if (!enabled && !isLockOutlastingSlot())
+			lockedKeys.clear();
+	}
+
+	/**
+	 * 
+	 * @return <code>true</code> if the index of locked counters is enabled
+	 */
+	public boolean isLockedKeyIndexEnabled() {
+		return lockedKeyIndexEnabled;
+	}
+
+	/**
+	 * Sets the time a counter stays locked, independent of the slot length. A
+	 * locked counter name is kept with the end of its lock in the index of locked
+	 * counters, and the counters of following slots are locked at once until then.
+	 * The entries are removed by a timing wheel when the lock ends, see
+	 * {@link #startLockExpiry()}. A lock lasts at least until the end of the slot
+	 * in which it happened
+	 * 
+	 * @param blockDuration The duration of a lock in seconds. 0 (default) if a
+	 *                      lock ends with the slot
+	 * @throws IllegalArgumentException Thrown if the value is negative
+	 */
+	public void setBlockDuration(int blockDuration) throws IllegalArgumentException {
+		if (blockDuration < 0)
+			throw new IllegalArgumentException("Parameter blockDuration is invalid: " + blockDuration);
+
+		this.blockDuration = blockDuration * 1000L;
+	}
+
+	/**
+	 * 
+	 * @return The duration of a lock in milliseconds. 0 if a lock ends with the
+	 *         slot
+	 */
+	public long getBlockDurationInMillis() {
+		return blockDuration;
+	}
+
+	/**
+	 * Extends the locks of counters that are locked again and again. Each lock
+	 * adds a strike for the counter name in a table of fixed size, strikes decay
+	 * by one per <code>strikeDecay</code> seconds. The first lock lasts as usual,
+	 * each further strike doubles the duration, starting with the block duration
+	 * or the slot length, up to <code>maxBlockDuration</code>. The strikes are
+	 * kept independent of the slots, so a repeat offender is blocked at once when
+	 * it comes back in a new slot
+	 * 
+	 * @param offenderTableSize The number of entries of the table, 0 to turn the
+	 *                          extension off
+	 * @param strikeDecay       The time in seconds after which a strike is
+	 *                          forgotten
+	 * @param maxBlockDuration  The upper limit of an extended lock in seconds
+	 * @throws IllegalArgumentException Thrown if a parameter is invalid
+	 * @see AntiDoSOffenderTable
+	 */
+	public void setRepeatOffenders(int offenderTableSize, int strikeDecay, int maxBlockDuration)
+			throws IllegalArgumentException {
+		if (offenderTableSize == 0) {
+			offenders = null;
+			return;
+		}
+
+		if (maxBlockDuration < 1)
+			throw new IllegalArgumentException("Parameter maxBlockDuration is invalid: " + maxBlockDuration);
+
+		this.maxBlockDuration = maxBlockDuration * 1000L;
+		this.offenders = new AntiDoSOffenderTable(offenderTableSize, strikeDecay * 1000L);
+	}
+
+	/**
+	 * Adds time windows with limits of their own to the slots, e. g. 600 requests
+	 * per minute and 5000 per hour next to 20 requests per slot of one second.
+	 * Every request is counted in all windows, a counter exceeding the limit of
+	 * any window is locked until the end of that window. The windows are aligned
+	 * to multiples of their length and do not retain former requests. The counts
+	 * of a counter name in all windows are kept together in one record. Room for
+	 * <code>maxCountersPerSlot</code> records is reserved, if it is used up the
+	 * records used least recently are replaced
+	 * 
+	 * @param windowLengths   The lengths of the windows in seconds.
+	 *                        <code>null</code> or empty to remove the windows
+	 * @param allowedRequests The number of requests allowed in each window
+	 * @throws IllegalArgumentException Thrown if a parameter is invalid
+	 * @see AntiDoSWindows
+	 */
+	public void setWindows(int[] windowLengths, int[] allowedRequests) throws IllegalArgumentException {
+		if (windowLengths == null || windowLengths.length == 0) {
+			windows = null;
+			return;
+		}
+
+		windows = new AntiDoSWindows(getMonitorName(), windowLengths, allowedRequests, maxCountersPerSlot);
+	}
+
+	/**
+	 * 
+	 * @return The additional time windows. <code>null</code> if not set
+	 */
+	public AntiDoSWindows getWindows() {
+		return windows;
+	}
+
+	/**
+	 * 
+	 * @param counterName The name of the counter (e. g. an IP address)
+	 * @param window      The index of the window
+	 * @return The count of the counter in the current additional window. 0 if no
+	 *         windows are set
+	 */
+	public int getWindowCount(String counterName, int window) {
+		AntiDoSWindows currentWindows = windows;
+		if (currentWindows == null || counterName == null)
+			return 0;
+
+		return currentWindows.getCount(AntiDoSAddress.canonicalize(counterName), window, getTimeInMillis());
+	}
+
+	/**
+	 * Counts only a sample of the requests of counters with a high count, so that
+	 * an IP address sending a flood of requests does not make all request threads
+	 * write to the same counter. Once the count of a counter in the current slot
+	 * has reached <code>threshold</code>, only one of <code>rate</code> requests,
+	 * chosen at random, is counted with <code>rate</code> times its weight. The
+	 * other requests are decided on the current state of the counter without
+	 * changing it.
+	 * <p>
+	 * The count is then an estimate: the request that exceeds the limit may come
+	 * up to about <code>rate</code> requests early or late. The threshold should
+	 * therefore be well below <code>allowedRequestsPerSlot</code> only if this
+	 * inaccuracy is acceptable for all clients; a threshold near the limit
+	 * samples mainly the requests of clients that are already blocked.
+	 * <p>
+	 * Sampling only saves the writes to the counter. Each request still looks the
+	 * counter up in the current slot under the lock of the slot (see
+	 * {@link AntiDoSSlot#getCounter(String)}), which keeps the slot in access
+	 * order for the eviction. The lock is held for the map lookup only, but under
+	 * a flood it is the remaining point where all request threads of a monitor
+	 * meet. {@link #isLocked(String)} avoids it for locked counters if the index
+	 * of locked counters is enabled
+	 * 
+	 * @param threshold The count from which on requests are sampled, at least 0
+	 * @param rate      One of this number of requests is counted. 1 turns
+	 *                  sampling off
+	 * @throws IllegalArgumentException Thrown if a parameter is invalid
+	 */
+	public void setSampling(int threshold, int rate) throws IllegalArgumentException {
+		if (threshold < 0)
+			throw new IllegalArgumentException("Parameter samplingThreshold is invalid: " + threshold);
+		if (rate < 1)
+			throw new IllegalArgumentException("Parameter samplingRate is invalid: " + rate);
+
+		this.samplingThreshold = threshold;
+		this.samplingRate = rate;
+	}
+
+	/**
+	 * 
+	 * @return The count from which on requests are sampled
+	 * @see #setSampling(int, int)
+	 */
+	public int getSamplingThreshold() {
+		return samplingThreshold;
+	}
+
+	/**
+	 * 
+	 * @return One of this number of requests is counted past the threshold. 1 if
+	 *         sampling is off
+	 * @see #setSampling(int, int)
+	 */
+	public int getSamplingRate() {
+		return samplingRate;
+	}
+
+	/**
+	 * Adds the weight of a request to a counter, or only a sample of the requests
+	 * past the sampling threshold, see {@link #setSampling(int, int)}
+	 * 
+	 * @return The state on which the request is decided
+	 */
+	private long provideSampledState(AntiDoSCounter counter, int weight) {
+		int rate = samplingRate;
+		if (rate == 1)
+			return counter.addToCountAndGetState(weight);
+
+		long state = counter.getStateEstimate();
+		if (AntiDoSCounter.count(state) < samplingThreshold)
+			return counter.addToCountAndGetState(weight);
+
+		// Not sampled: read only, no write to the shared counter
+		if (ThreadLocalRandom.current().nextInt(rate) != 0)
+			return state;
+
+		return counter.addToCountAndGetState((int) Math.min((long) weight * rate, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * 
+	 * @param counterName The name of the counter (e. g. an IP address)
+	 * @return The strikes of the counter that have not decayed yet. Always 0 if
+	 *         the locks of repeat offenders are not extended
+	 * @see #setRepeatOffenders(int, int, int)
+	 */
+	public int getStrikes(String counterName) {
+		AntiDoSOffenderTable table = offenders;
+		if (table == null || counterName == null)
+			return 0;
+
+		return table.getStrikes(AntiDoSAddress.canonicalize(counterName), getTimeInMillis());
+	}
+
+	/**
+	 * @return <code>true</code> if a lock can last longer than the slot in which
+	 *         it happened
+	 */
+	private boolean isLockOutlastingSlot() {
+		return blockDuration > 0 || offenders != null || windows != null;
+	}
+
+	/**
+	 * Lets a background thread remove the ended locks from the index of locked
+	 * counters once per second. Without it ended locks are only removed when they
+	 * are looked up or when the index is full
+	 */
+	public void startLockExpiry() {
+		provideLockExpiries().startTicking();
+	}
+
+	/**
+	 * Stops the background thread started by {@link #startLockExpiry()}. Should be
+	 * called when the monitor is replaced or no longer used
+	 */
+	public void stopLockExpiry() {
+		AntiDoSTimingWheel wheel = lockExpiries;
+		if (wheel != null)
+			wheel.stopTicking();
+	}
+
+	/**
+	 * 
+	 * @return <code>true</code> if the ended locks are removed in the background,
+	 *         see {@link #startLockExpiry()}
+	 */
+	public boolean isLockExpiryStarted() {
+		AntiDoSTimingWheel wheel = lockExpiries;
+		return wheel != null && wheel.isTicking();
+	}
+
+	/**
+	 * The timing wheel is created on first use and not in the constructor, since
+	 * it reads the clock of {@link #getTimeInMillis()}, which subclasses may only
+	 * be able to provide after their construction
+	 */
+	private AntiDoSTimingWheel provideLockExpiries() {
+		AntiDoSTimingWheel wheel = lockExpiries;
+		if (wheel == null) {
+			slotsLock.lock();
+			try {
+				wheel = lockExpiries;
+				if (wheel == null) {
+					wheel = new AntiDoSTimingWheel(LOCK_EXPIRY_TICK, 512, this::getTimeInMillis);
+					lockExpiries = wheel;
+				}
+			} finally {
+				slotsLock.unlock();
+			}
+		}
+		return wheel;
+	}
+
+	/**
+	 * 
+	 * @return The number of entries in the index of locked counters, including
+	 *         expired entries not yet removed
+	 */
+	public int getNumberOfLockedKeys() {
+		return lockedKeys.size();
+	}
+
+	/**
+	 * 
+	 * @return The estimated number of requests rejected by
+	 *         {@link #isLocked(String)}. The requests are sampled, so the value is
+	 *         only approximate
+	 */
+	public long getFastRejectedRequests() {
+		return fastRejectedRequests.sum();
+	}
+
+	/**
+	 * Enters a counter that has just been locked into the index of locked
+	 * counters and schedules the removal at the end of the lock. The size of the
+	 * index is limited like a slot: if it is full after removing the ended locks,
+	 * the counter is not entered
+	 * 
+	 * @param minLockEnd The time in milliseconds until which the lock lasts at
+	 *                   least, e. g. the end of an additional window. 0 if the
+	 *                   lock follows the slots only
+	 */
+	private void registerLockedKey(String counterName, long minLockEnd) {
+		if (!lockedKeyIndexEnabled && !isLockOutlastingSlot())
+			return;
+
+		long now = getTimeInMillis();
+		AntiDoSOffenderTable table = offenders;
+		int strikes = table != null ? table.addStrike(counterName, now) : 1;
+
+		if (lockedKeys.size() >= maxCountersPerSlot) {
+			provideLockExpiries().advance(now);
+			if (lockedKeys.size() >= maxCountersPerSlot)
+				return;
+		}
+
+		Long lockedUntil = Math.max(provideLockEnd(now, strikes), minLockEnd);
+		lockedKeys.put(counterName, lockedUntil);
+		provideLockExpiries().schedule(lockedUntil, () -> lockedKeys.remove(counterName, lockedUntil));
+	}
+
+	/**
+	 * @return The time in milliseconds until which a counter locked at the given
+	 *         time stays locked: the end of the current slot or the end of the
+	 *         block duration, whichever is later. From the second strike on the
+	 *         duration is doubled per strike
+	 */
+	private long provideLockEnd(long now, int strikes) {
+		long slotEnd = (now / slotLength + 1) * slotLength;
+
+		long duration = blockDuration;
+		if (strikes > 1) {
+			long base = blockDuration > 0 ? blockDuration : slotLength;
+			long extended = strikes > 20 ? maxBlockDuration : Math.min(base << (strikes - 1), maxBlockDuration);
+			duration = Math.max(duration, extended);
+		}
+		return Math.max(slotEnd, now + duration);
+	}
+
 	/**
 	 * This method fetches the desired counter from the current slot. Does not
 	 * modify the status of the counter
@@ -190,7 +825,7 @@ public class AntiDoSMonitor {
 	 */
 	public AntiDoSCounter provideCurrentCounter(String counterName) throws IllegalArgumentException {
 		AntiDoSSlot slot = provideCurrentSlot();
-		return slot.getCounterIfExists(counterName);
+		return slot.getCounterIfExists(AntiDoSAddress.canonicalize(counterName));
 	}
 
 	/**
@@ -200,13 +835,122 @@ public class AntiDoSMonitor {
 	private AntiDoSSlot provideCurrentSlot() {
 		// Integer division, which provides the same result for every
 		// millisecond within the slot length:
-		long _slotKey = getTimeInMillis() / slotLength;
-		String slotKey = "" + _slotKey;
+		long slotNumber = getTimeInMillis() / slotLength;
+
+		CurrentSlot current = currentSlot;
+		if (current != null && current.number == slotNumber)
+			return current.slot;
+
+		AntiDoSSlot previousSlot = null;
+		AntiDoSSlot slot;
+
+		slotsLock.lock();
+		try {
+			slot = slots.get(slotNumber);
+			if (slot == null) {
+				slot = new AntiDoSSlot(monitorName, "" + slotNumber, growEffectiveMaxCounters(), evictions);
+				slots.put(slotNumber, slot);
+				slotRotations.increment();
+
+				// Remove the oldest slots:
+				while (slots.size() > numberOfSlots)
+					slots.pollFirstEntry();
+			}
+
+			if (slotNumber >= slots.lastKey()) {
+				current = currentSlot;
+				if (current != null && current.slot != slot)
+					previousSlot = current.slot;
+
+				currentSlot = new CurrentSlot(slotNumber, slot);
+			}
+		} finally {
+			slotsLock.unlock();
+		}
+
+		// Past slots are only read from now on:
+		if (previousSlot != null)
+			previousSlot.freeze();
+
+		return slot;
+	}
+
+	/**
+	 * Doubles the capacity after memory has been shed, until
+	 * <code>maxCountersPerSlot</code> is reached again. Must be called with
+	 * {@link #slotsLock} held
+	 * 
+	 * @return The capacity of a new slot
+	 */
+	private int growEffectiveMaxCounters() {
+		int capacity = effectiveMaxCounters;
+		if (capacity < maxCountersPerSlot) {
+			capacity = (int) Math.min(maxCountersPerSlot, capacity * 2L);
+			effectiveMaxCounters = capacity;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Frees memory when the heap runs short, e. g. while an attack with many
+	 * addresses fills the slots. The past slots are dropped, so the retained
+	 * counts start from scratch, and the current slot keeps only half of its
+	 * capacity, the counters not accessed the longest are removed. Each new slot
+	 * doubles the capacity again until <code>maxCountersPerSlot</code> is
+	 * reached.
+	 * <p>
+	 * Dropping counters lets clients through that would have been blocked, it
+	 * must not be used as a regular limit. Locks that outlast the slot (see
+	 * {@link #setBlockDuration(int)}) are kept
+	 */
+	public void shedMemory() {
+		int capacity;
 
-		if (!slots.containsKey(slotKey))
-			slots.putIfAbsent(slotKey, new AntiDoSSlot(monitorName, slotKey, maxCountersPerSlot));
+		slotsLock.lock();
+		try {
+			capacity = Math.max(Math.min(MIN_COUNTERS_AFTER_SHEDDING, maxCountersPerSlot), effectiveMaxCounters / 2);
+			effectiveMaxCounters = capacity;
 
-		return slots.get(slotKey);
+			CurrentSlot current = currentSlot;
+			slots.values().removeIf(slot -> current == null || slot != current.slot);
+
+			if (current != null)
+				current.slot.setMaxCounters(capacity);
+		} finally {
+			slotsLock.unlock();
+		}
+
+		if (log.isWarnEnabled())
+			log.warn(name4logging + " sheds memory, counters per slot reduced to " + capacity);
+	}
+
+	/**
+	 * 
+	 * @return The number of counters a new slot can hold. Less than
+	 *         {@link #getMaxCountersPerSlot()} after {@link #shedMemory()}
+	 */
+	public int getEffectiveMaxCountersPerSlot() {
+		return effectiveMaxCounters;
+	}
+
+	/**
+	 * Derives the number of counters per slot from a memory budget, using
+	 * {@link #ESTIMATED_BYTES_PER_COUNTER}. Each of the slots can be full
+	 * 
+	 * @param maxMemory     The memory budget in bytes
+	 * @param numberOfSlots The number of slots
+	 * @return The number of counters per slot, at least 1
+	 * @throws IllegalArgumentException Thrown if a parameter is less than 1
+	 */
+	public static int provideMaxCountersForMemory(long maxMemory, int numberOfSlots)
+			throws IllegalArgumentException {
+		if (maxMemory < 1)
+			throw new IllegalArgumentException("Parameter maxMemory is invalid: " + maxMemory);
+		if (numberOfSlots < 1)
+			throw new IllegalArgumentException("Parameter numberOfSlots is invalid: " + numberOfSlots);
+
+		long counters = maxMemory / ((long) numberOfSlots * ESTIMATED_BYTES_PER_COUNTER);
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE, counters));
 	}
 
 	/**
@@ -215,12 +959,12 @@ public class AntiDoSMonitor {
 	 * the system time. Can be overridden for testcases.
 	 */
 	protected long getTimeInMillis() {
-		return Calendar.getInstance().getTimeInMillis();
+		return System.currentTimeMillis();
 	}
 
 	/**
 	 * This method calculates the value for
-	 * {@link AntiDoSCounter#getRetainedCounts()} for a newly created counter. For
+	 * {@link AntiDoSCounter#getRetainedCountsView()} for a newly created counter. For
 	 * this calculation the methods looks for the same counter in all other slots,
 	 * sums the values in {@link AntiDoSSlot#getCounter(String)}, divides the result
 	 * by the number of slots and multiplies everything with the value in
@@ -247,9 +991,9 @@ public class AntiDoSMonitor {
 
 			numberOfSlots++;
 
-			AntiDoSCounter counter = slot.getCounterIfExists(counterName);
-			if (counter != null)
-				sumOfCounts += counter.getCount().get();
+			int count = slot.getCountIfExists(counterName);
+			if (count > 0)
+				sumOfCounts += count;
 		}
 
 		return sumOfCounts > 0 ? Math.round(sumOfCounts * shareOfRetainedFormerRequests / numberOfSlots) : 0;
@@ -258,10 +1002,117 @@ public class AntiDoSMonitor {
 	/**
 	 * 
 	 * @return The total number of calls to {@link #registerAndCheckRequest(String)}
-	 *         in the lifetime of this monitor instance
+	 *         in the lifetime of this monitor instance, limited to
+	 *         {@link Integer#MAX_VALUE}
+	 * @see #getTotalRequestCount()
 	 */
 	public int getTotalrequests() {
-		return totalrequests.get();
+		return (int) Math.min(Integer.MAX_VALUE, getTotalRequestCount());
+	}
+
+	/**
+	 * 
+	 * @return The total number of calls to {@link #registerAndCheckRequest(String)}
+	 *         in the lifetime of this monitor instance. Unlike
+	 *         {@link #getTotalrequests()} not limited to the range of an
+	 *         <code>int</code>
+	 */
+	public long getTotalRequestCount() {
+		return totalrequests.sum();
+	}
+
+	/**
+	 * 
+	 * @return The time in milliseconds until the current slot ends and the locks
+	 *         of the current slot are released
+	 */
+	public long getMillisUntilSlotEnd() {
+		return slotLength - getTimeInMillis() % slotLength;
+	}
+
+	/**
+	 * 
+	 * @param counterName The name of the counter (e. g. an IP address)
+	 * @return The time in milliseconds until the lock of the counter ends. Taken
+	 *         from the index of locked counters, which holds locks that outlast
+	 *         the slot (see {@link #setBlockDuration(int)}); for all other locks
+	 *         this is {@link #getMillisUntilSlotEnd()}
+	 */
+	public long getMillisUntilLockEnd(String counterName) {
+		long untilSlotEnd = getMillisUntilSlotEnd();
+		if (counterName == null)
+			return untilSlotEnd;
+
+		Long lockedUntil = lockedKeys.get(AntiDoSAddress.canonicalize(counterName));
+		if (lockedUntil == null)
+			return untilSlotEnd;
+
+		return Math.max(untilSlotEnd, lockedUntil - getTimeInMillis());
+	}
+
+	/**
+	 * 
+	 * @return The monitors name
+	 */
+	public String getMonitorName() {
+		return monitorName;
+	}
+
+	/**
+	 * 
+	 * @return The number of counters that can be monitored within a time slot
+	 */
+	public int getMaxCountersPerSlot() {
+		return maxCountersPerSlot;
+	}
+
+	/**
+	 * 
+	 * @return The number of slots to be held
+	 */
+	public int getNumberOfSlots() {
+		return numberOfSlots;
+	}
+
+	/**
+	 * 
+	 * @return The length of the individual slots in milliseconds
+	 */
+	public int getSlotLengthInMillis() {
+		return slotLength;
+	}
+
+	/**
+	 * 
+	 * @return The portion of the requests from previous slots retained in a new
+	 *         slot
+	 */
+	public float getShareOfRetainedFormerRequests() {
+		return shareOfRetainedFormerRequests;
+	}
+
+	/**
+	 * 
+	 * @return The number of requests currently allowed within a slot
+	 */
+	public int getAllowedRequestsPerSlot() {
+		return allowedRequestsPerSlot;
+	}
+
+	/**
+	 * Changes the number of requests allowed within a slot while the monitor is
+	 * running, e. g. to adapt the limit to the current server load. Counters
+	 * already locked in the current slot stay locked
+	 * 
+	 * @param allowedRequestsPerSlot The new limit, must be greater than 0
+	 * @throws IllegalArgumentException Thrown if the limit is less than 1
+	 */
+	public void setAllowedRequestsPerSlot(int allowedRequestsPerSlot) throws IllegalArgumentException {
+		if (allowedRequestsPerSlot < 1)
+			throw new IllegalArgumentException(
+					"Parameter allowedRequestsPerSlot is invalid: " + allowedRequestsPerSlot);
+
+		this.allowedRequestsPerSlot = allowedRequestsPerSlot;
 	}
 
 	/**
@@ -272,6 +1123,46 @@ public class AntiDoSMonitor {
 		return slots.size();
 	}
 
+	/**
+	 * 
+	 * @return The number of counters locked because they exceeded the limit, in
+	 *         the lifetime of this monitor instance. Counters locked again in a
+	 *         new slot because their block has not ended are not included
+	 */
+	public long getLocks() {
+		return locks.sum();
+	}
+
+	/**
+	 * 
+	 * @return The number of counters removed from the current slot to make room
+	 *         for new ones or by {@link #shedMemory()}, in the lifetime of this
+	 *         monitor instance
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * 
+	 * @return The number of slots started in the lifetime of this monitor
+	 *         instance. Slots without requests are not started
+	 */
+	public long getSlotRotations() {
+		return slotRotations.sum();
+	}
+
+	/**
+	 * 
+	 * @return The number of counters held in all slots
+	 */
+	public int getNumberOfCounters() {
+		int numberOfCounters = 0;
+		for (AntiDoSSlot slot : slots.values())
+			numberOfCounters += slot.getNumberOfCounters();
+		return numberOfCounters;
+	}
+
 	/**
 	 * Prints the configuration and the current state of all slots
 	 */
@@ -282,7 +1173,7 @@ public class AntiDoSMonitor {
 				.append("; allowedRequestsPerSlot: ").append(allowedRequestsPerSlot).append("; maxCountersPerSlot: ")
 				.append(maxCountersPerSlot).append("; shareOfRetainedFormerRequests: ")
 				.append(shareOfRetainedFormerRequests).append("\n");
-		sb.append("#total requests: ").append(getTotalrequests()).append("\n");
+		sb.append("#total requests: ").append(getTotalRequestCount()).append("\n");
 		for (AntiDoSSlot slot : slots.values()) {
 			sb.append("Slot '").append(slot.getKey()).append("' ").append(slot.toString()).append("\n");
 		}
@@ -0,0 +1,153 @@
+package org.henbru.antidos;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Copyright 2017 Henning Brune
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *************************
+ *
+ * This class remembers how often a key (e. g. an IP address) has been locked,
+ * independent of the slots of the monitor. Each key gets a strike per lock,
+ * strikes decay by one per <code>strikeDecay</code> milliseconds since the last
+ * lock.
+ * <p>
+ * The table is a fixed array of <code>long</code> values, so its memory
+ * requirement does not depend on the number of clients. Each key is mapped to
+ * one entry holding a fingerprint of the key (24 bits), the strikes (8 bits)
+ * and the time of the last lock in seconds (32 bits). A key whose fingerprint
+ * differs from the one in its entry takes the entry over, so in rare cases a
+ * repeat offender loses its strikes, but a key never gets the strikes of
+ * another one unless their fingerprints collide as well. Index and
+ * fingerprint are taken from a seeded hash of the key, see {@link AntiDoSHash}
+ *
+ * @author Henning
+ *
+ */
+public class AntiDoSOffenderTable {
+
+	/**
+	 * The highest number of strikes stored
+	 */
+	public static final int MAX_STRIKES = 0xff;
+
+	private static final int STRIKES_SHIFT = 32;
+
+	private static final int FINGERPRINT_SHIFT = 40;
+
+	private final AtomicLongArray entries;
+
+	private final int mask;
+
+	private final long strikeDecay;
+
+	private final long seed = AntiDoSHash.newSeed();
+
+	/**
+	 * @param size        The number of entries. Rounded up to the next power of
+	 *                    two
+	 * @param strikeDecay The time in milliseconds after which a strike is
+	 *                    forgotten
+	 * @throws IllegalArgumentException Thrown if a parameter is invalid
+	 */
+	public AntiDoSOffenderTable(int size, long strikeDecay) throws IllegalArgumentException {
+		if (size < 1 || size > 1 << 26)
+			throw new IllegalArgumentException("Parameter size is invalid: " + size);
+
+		if (strikeDecay < 1000)
+			throw new IllegalArgumentException("Parameter strikeDecay is invalid: " + strikeDecay);
+
+		int length = Integer.highestOneBit(size);
+		if (length < size)
+			length <<= 1;
+
+		this.entries = new AtomicLongArray(length);
+		this.mask = length - 1;
+		this.strikeDecay = strikeDecay;
+	}
+
+	/**
+	 * Adds a strike for a key that has just been locked
+	 *
+	 * @param key The key (e. g. an IP address)
+	 * @param now The current time in milliseconds
+	 * @return The strikes of the key including the new one, at least 1
+	 */
+	public int addStrike(String key, long now) {
+		long hash = hash(key);
+		int index = (int) hash & mask;
+		long fingerprint = fingerprint(hash);
+		long seconds = (now / 1000) & 0xffffffffL;
+
+		for (;;) {
+			long entry = entries.get(index);
+			int strikes = Math.min(strikes(entry, fingerprint, now) + 1, MAX_STRIKES);
+			long update = (fingerprint << FINGERPRINT_SHIFT) | ((long) strikes << STRIKES_SHIFT) | seconds;
+
+			if (entries.compareAndSet(index, entry, update))
+				return strikes;
+		}
+	}
+
+	/**
+	 * @param key The key (e. g. an IP address)
+	 * @param now The current time in milliseconds
+	 * @return The strikes of the key that have not decayed yet
+	 */
+	public int getStrikes(String key, long now) {
+		long hash = hash(key);
+		return strikes(entries.get((int) hash & mask), fingerprint(hash), now);
+	}
+
+	/**
+	 * @return The number of entries
+	 */
+	public int size() {
+		return entries.length();
+	}
+
+	/**
+	 * @return The time in milliseconds after which a strike is forgotten
+	 */
+	public long getStrikeDecay() {
+		return strikeDecay;
+	}
+
+	private int strikes(long entry, long fingerprint, long now) {
+		if (entry == 0 || (entry >>> FINGERPRINT_SHIFT) != fingerprint)
+			return 0;
+
+		int strikes = (int) (entry >>> STRIKES_SHIFT) & 0xff;
+		long lastLock = (entry & 0xffffffffL) * 1000;
+		long decayed = (now - lastLock) / strikeDecay;
+
+		return decayed >= strikes ? 0 : strikes - (int) Math.max(decayed, 0);
+	}
+
+	/**
+	 * Index and fingerprint are taken from different bits of the hash
+	 */
+	private long hash(String key) {
+		return AntiDoSHash.hash(seed, key);
+	}
+
+	/**
+	 * @return The upper 24 bits of the hash, never 0
+	 */
+	private static long fingerprint(long hash) {
+		long fingerprint = hash >>> FINGERPRINT_SHIFT;
+		return fingerprint != 0 ? fingerprint : 1;
+	}
+}
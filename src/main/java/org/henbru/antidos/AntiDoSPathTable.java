@@ -0,0 +1,181 @@
+package org.henbru.antidos;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Copyright 2017 Henning Brune
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *************************
+ *
+ * Instances of this class hold a table of path rules, each consisting of a
+ * regular expression and a list of integer values. The configuration value has
+ * this form:
+ * <p>
+ * <code>"/search.*=10;/export.*=5,60,10"</code>
+ * <p>
+ * Rules are separated by <code>;</code>, the values of a rule follow the last
+ * <code>=</code> of the rule and are separated by <code>,</code>. All regular
+ * expressions are compiled into a single {@link Pattern}, so a path is matched
+ * against the whole table in one pass. If several rules match, the first one
+ * wins. Each rule is put into a named group of its own, which renumbers its
+ * groups, so rules with backreferences or named groups are rejected
+ *
+ * @author Henning
+ *
+ */
+public class AntiDoSPathTable {
+
+	private final Pattern combined;
+
+	private final String[] groupNames;
+
+	private final String[] paths;
+
+	private final int[][] values;
+
+	/**
+	 * @param configValue The table in the format described above
+	 * @param minValues   The number of values every rule must at least provide
+	 * @param maxValues   The number of values a rule may provide at most
+	 * @throws IllegalArgumentException Thrown if <code>configValue</code> is empty
+	 *                                  or does not match the format
+	 */
+	public AntiDoSPathTable(String configValue, int minValues, int maxValues) throws IllegalArgumentException {
+		if (configValue == null || configValue.trim().length() == 0)
+			throw new IllegalArgumentException("Path table is empty");
+
+		List<String> _paths = new ArrayList<String>();
+		List<int[]> _values = new ArrayList<int[]>();
+
+		for (String rule : configValue.split(";")) {
+			if (rule.trim().length() == 0)
+				continue;
+
+			int separator = rule.lastIndexOf('=');
+			if (separator < 1)
+				throw new IllegalArgumentException("Path rule without values: " + rule);
+
+			String path = rule.substring(0, separator).trim();
+			// Validates the single expression, so errors can be reported per rule:
+			Pattern.compile(path);
+			checkCombinable(path, rule);
+
+			String[] _ruleValues = rule.substring(separator + 1).split(",");
+			if (_ruleValues.length < minValues || _ruleValues.length > maxValues)
+				throw new IllegalArgumentException("Path rule has an invalid number of values: " + rule);
+
+			int[] ruleValues = new int[_ruleValues.length];
+			for (int i = 0; i < ruleValues.length; i++)
+				ruleValues[i] = Integer.parseInt(_ruleValues[i].trim());
+
+			_paths.add(path);
+			_values.add(ruleValues);
+		}
+
+		if (_paths.isEmpty())
+			throw new IllegalArgumentException("Path table is empty");
+
+		paths = _paths.toArray(new String[_paths.size()]);
+		values = _values.toArray(new int[_values.size()][]);
+		groupNames = new String[paths.length];
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < paths.length; i++) {
+			groupNames[i] = "r" + i;
+			if (i > 0)
+				sb.append('|');
+			sb.append("(?<").append(groupNames[i]).append('>').append(paths[i]).append(')');
+		}
+		combined = Pattern.compile(sb.toString());
+	}
+
+	/**
+	 * Checks that an expression means the same inside the combined pattern. Its
+	 * groups get other numbers there and the names of the groups are taken by the
+	 * rules, so backreferences (<code>\1</code>, <code>\k&lt;name&gt;</code>)
+	 * and named groups are not allowed. Escaped and quoted characters are skipped
+	 *
+	 * @throws IllegalArgumentException Thrown if the expression contains one of
+	 *                                  them
+	 */
+	private static void checkCombinable(String path, String rule) throws IllegalArgumentException {
+		for (int i = 0; i < path.length() - 1; i++) {
+			char c = path.charAt(i);
+			if (c == '\\') {
+				char next = path.charAt(++i);
+				if ((next >= '1' && next <= '9') || next == 'k')
+					throw new IllegalArgumentException("Path rule with a backreference: " + rule);
+				if (next == 'Q') {
+					int end = path.indexOf("\\E", i + 1);
+					if (end < 0)
+						return;
+					i = end + 1;
+				}
+			} else if (c == '(' && path.startsWith("?<", i + 1) && i + 3 < path.length()
+					&& path.charAt(i + 3) != '=' && path.charAt(i + 3) != '!') {
+				throw new IllegalArgumentException("Path rule with a named group: " + rule);
+			}
+		}
+	}
+
+	/**
+	 * @param requestURI The path. Should be the result of
+	 *                   {@link jakarta.servlet.http.HttpServletRequest#getRequestURI()}
+	 * @return The index of the first rule matching the path or <code>-1</code> if
+	 *         no rule matches
+	 */
+	public int match(String requestURI) {
+		if (requestURI == null)
+			return -1;
+
+		Matcher m = combined.matcher(requestURI);
+		if (!m.matches())
+			return -1;
+
+		for (int i = 0; i < groupNames.length; i++) {
+			if (m.start(groupNames[i]) >= 0)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The number of rules in the table
+	 */
+	public int size() {
+		return paths.length;
+	}
+
+	/**
+	 * @return The regular expression of the rule with the given index
+	 */
+	public String getPath(int index) {
+		return paths[index];
+	}
+
+	/**
+	 * @param index        The index of the rule
+	 * @param position     The position of the value within the rule
+	 * @param defaultValue Returned if the rule provides less values
+	 * @return The value at the given position of a rule
+	 */
+	public int getValue(int index, int position, int defaultValue) {
+		int[] ruleValues = values[index];
+		return position < ruleValues.length ? ruleValues[position] : defaultValue;
+	}
+}
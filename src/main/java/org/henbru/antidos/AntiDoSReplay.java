@@ -0,0 +1,557 @@
+package org.henbru.antidos;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.tomcat.util.IntrospectionUtils;
+
+/**
+ * Copyright 2017 Henning Brune
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *************************
+ *
+ * This class replays an access log of Tomcat through an {@link AntiDoSValve},
+ * so that the effect of a configuration can be checked with real traffic before
+ * it is used in production. The log is expected in the common format of the
+ * <code>AccessLogValve</code>, i. e. it starts with <code>%h %l %u %t "%r"</code>.
+ * Further fields are ignored.
+ * <p>
+ * The monitors of the valve run with a virtual clock that follows the time
+ * stamps of the log, so a day of traffic is replayed in seconds. The file is
+ * memory-mapped and parsed on the bytes; IP addresses and paths are taken from
+ * a small cache, so only new values create strings. The result are the decisions
+ * per second, the share of blocked requests and the intervals in which each IP
+ * address has been blocked.
+ * <p>
+ * Usage:
+ * <p>
+ * <code>java -cp anti-dos-valve.jar:tomcat-catalina.jar:... org.henbru.antidos.AntiDoSReplay access.log
+ * allowedRequestsPerSlot=50 slotLength=15 ...</code>
+ * <p>
+ * The parameters are set on the valve like the attributes in
+ * <code>server.xml</code>. If <i>relevantPaths</i> is not given, all paths are
+ * relevant
+ *
+ * @author Henning
+ *
+ */
+public class AntiDoSReplay {
+
+	/**
+	 * Size of the parts of the file that are mapped at once
+	 */
+	private static final int CHUNK_SIZE = 1 << 28;
+
+	private static final byte[] MONTHS = "JanFebMarAprMayJunJulAugSepOctNovDec".getBytes(StandardCharsets.US_ASCII);
+
+	private final ReplayValve valve;
+
+	private final StringCache addresses = new StringCache(1 << 14);
+
+	private final StringCache paths = new StringCache(1 << 12);
+
+	private final Map<String, Timeline> timelines = new HashMap<String, Timeline>();
+
+	private long requests = 0;
+
+	private long blockedRequests = 0;
+
+	private long skippedLines = 0;
+
+	private long replayNanos = 0;
+
+	private long firstTimestamp = -1;
+
+	/**
+	 * Result of the parsing of the current line. Set by
+	 * {@link #parseLine(ByteBuffer, int, int)}
+	 */
+	private String lineAddress;
+	private String linePath;
+	private long lineTimestamp;
+
+	/**
+	 * The decisions of one IP address
+	 */
+	public static class Timeline {
+		private int requests = 0;
+		private int blocked = 0;
+		private long blockStart = -1;
+		private long lastBlocked = -1;
+		private final List<long[]> intervals = new ArrayList<long[]>();
+
+		private void register(long timestamp, boolean allowed) {
+			requests++;
+			if (allowed) {
+				closeInterval();
+				return;
+			}
+
+			blocked++;
+			if (blockStart < 0)
+				blockStart = timestamp;
+			lastBlocked = timestamp;
+		}
+
+		private void closeInterval() {
+			if (blockStart >= 0) {
+				intervals.add(new long[] { blockStart, lastBlocked });
+				blockStart = -1;
+			}
+		}
+
+		/**
+		 * @return The number of requests of the IP address
+		 */
+		public int getRequests() {
+			return requests;
+		}
+
+		/**
+		 * @return The number of blocked requests of the IP address
+		 */
+		public int getBlocked() {
+			return blocked;
+		}
+
+		/**
+		 * @return The intervals of consecutive blocked requests, each with the time
+		 *         stamps of the first and the last blocked request in
+		 *         milliseconds
+		 */
+		public List<long[]> getIntervals() {
+			if (blockStart < 0)
+				return intervals;
+
+			List<long[]> all = new ArrayList<long[]>(intervals);
+			all.add(new long[] { blockStart, lastBlocked });
+			return all;
+		}
+	}
+
+	/**
+	 * Valve whose monitors use the time stamps of the log as clock
+	 */
+	private static class ReplayValve extends AntiDoSValve {
+		private volatile long now = 0;
+
+		private final List<AntiDoSMonitor> createdMonitors = new ArrayList<AntiDoSMonitor>();
+
+		@Override
+		protected AntiDoSMonitor createMonitor(String name, int maxCountersPerSlot, int numberOfSlots, int slotLength,
+				int allowedRequestsPerSlot, float shareOfRetainedFormerRequests) throws IllegalArgumentException {
+			AntiDoSMonitor monitor;
+			if (RING_MONITOR_LAYOUT.equals(getMonitorLayout())) {
+				monitor = new AntiDoSRingMonitor(name, maxCountersPerSlot, numberOfSlots, slotLength,
+						allowedRequestsPerSlot, shareOfRetainedFormerRequests) {
+					@Override
+					protected long getTimeInMillis() {
+						return now;
+					}
+				};
+			} else {
+				monitor = new AntiDoSMonitor(name, maxCountersPerSlot, numberOfSlots, slotLength,
+						allowedRequestsPerSlot, shareOfRetainedFormerRequests) {
+					@Override
+					protected long getTimeInMillis() {
+						return now;
+					}
+				};
+			}
+			createdMonitors.add(monitor);
+			return monitor;
+		}
+
+		private void stopMonitors() {
+			for (AntiDoSMonitor monitor : createdMonitors)
+				monitor.stopLockExpiry();
+		}
+	}
+
+	/**
+	 * @param parameters The parameters of the valve in the form
+	 *                   <code>name=value</code>
+	 * @throws IllegalArgumentException Thrown if a parameter is unknown or the
+	 *                                  configuration is invalid
+	 */
+	public AntiDoSReplay(String... parameters) throws IllegalArgumentException {
+		valve = new ReplayValve();
+		valve.setMonitorName("REPLAY");
+		valve.setRelevantPaths(".*");
+
+		for (String parameter : parameters) {
+			int pos = parameter.indexOf('=');
+			if (pos < 1)
+				throw new IllegalArgumentException("Parameter is not in the form name=value: " + parameter);
+
+			String name = parameter.substring(0, pos);
+			if (!IntrospectionUtils.setProperty(valve, name, parameter.substring(pos + 1)))
+				throw new IllegalArgumentException("Unknown parameter: " + name);
+		}
+
+		String monitorMsg = valve.reloadMonitor();
+		if (monitorMsg != null)
+			throw new IllegalArgumentException("AntiDoSMonitor parameter is invalid: " + monitorMsg);
+
+		try {
+			valve.checkConfiguration();
+		} catch (LifecycleException ex) {
+			throw new IllegalArgumentException(ex.getMessage());
+		}
+	}
+
+	/**
+	 * Replays an access log. Can be called several times, e. g. for the files of
+	 * consecutive days
+	 *
+	 * @param file The access log
+	 * @throws IOException Thrown if the file cannot be read
+	 */
+	public void replay(Path file) throws IOException {
+		long start = System.nanoTime();
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			long position = 0;
+
+			while (position < size) {
+				int length = (int) Math.min(size - position, CHUNK_SIZE);
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+				boolean lastChunk = position + length == size;
+
+				int lineStart = 0;
+				for (int i = 0; i < length; i++) {
+					if (buffer.get(i) == '\n') {
+						replayLine(buffer, lineStart, i);
+						lineStart = i + 1;
+					}
+				}
+
+				if (lastChunk) {
+					if (lineStart < length)
+						replayLine(buffer, lineStart, length);
+					position = size;
+				} else if (lineStart == 0) {
+					// A line longer than a chunk can only be garbage:
+					skippedLines++;
+					position += length;
+				} else {
+					position += lineStart;
+				}
+			}
+		} finally {
+			replayNanos += System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * Stops the background work of the monitors of the valve
+	 */
+	public void close() {
+		valve.stopMonitors();
+	}
+
+	private void replayLine(ByteBuffer buffer, int start, int end) {
+		if (end > start && buffer.get(end - 1) == '\r')
+			end--;
+		if (end == start)
+			return;
+
+		if (!parseLine(buffer, start, end)) {
+			skippedLines++;
+			return;
+		}
+
+		if (firstTimestamp < 0)
+			firstTimestamp = lineTimestamp;
+		// The monitors expect a clock that does not go back:
+		if (lineTimestamp > valve.now)
+			valve.now = lineTimestamp;
+
+		boolean allowed = valve.isRequestAllowed(lineAddress, linePath);
+
+		requests++;
+		if (!allowed)
+			blockedRequests++;
+
+		Timeline timeline = timelines.get(lineAddress);
+		if (timeline == null) {
+			timeline = new Timeline();
+			timelines.put(lineAddress, timeline);
+		}
+		timeline.register(valve.now, allowed);
+	}
+
+	/**
+	 * Parses <code>%h %l %u %t "%r"</code>, e. g.
+	 * <code>10.0.0.1 - - [10/Oct/2000:13:55:36 -0700] "GET /a.gif?x=1 HTTP/1.1"</code>
+	 *
+	 * @return <code>false</code> if the line does not have this format
+	 */
+	private boolean parseLine(ByteBuffer buffer, int start, int end) {
+		int pos = indexOf(buffer, start, end, (byte) ' ');
+		if (pos <= start)
+			return false;
+		int addressEnd = pos;
+
+		int timeStart = indexOf(buffer, pos, end, (byte) '[');
+		if (timeStart < 0)
+			return false;
+		lineTimestamp = parseTimestamp(buffer, timeStart + 1, end);
+		if (lineTimestamp < 0)
+			return false;
+
+		int requestStart = indexOf(buffer, timeStart, end, (byte) '"');
+		if (requestStart < 0)
+			return false;
+		int pathStart = indexOf(buffer, requestStart + 1, end, (byte) ' ');
+		if (pathStart < 0)
+			return false;
+		pathStart++;
+
+		int pathEnd = pathStart;
+		while (pathEnd < end) {
+			byte b = buffer.get(pathEnd);
+			if (b == ' ' || b == '"' || b == '?')
+				break;
+			pathEnd++;
+		}
+		if (pathEnd == pathStart)
+			return false;
+
+		lineAddress = addresses.get(buffer, start, addressEnd);
+		linePath = paths.get(buffer, pathStart, pathEnd);
+		return true;
+	}
+
+	/**
+	 * @return The time stamp in the form <code>dd/MMM/yyyy:HH:mm:ss Z</code> in
+	 *         milliseconds or <code>-1</code> if the format is invalid
+	 */
+	static long parseTimestamp(ByteBuffer buffer, int pos, int end) {
+		if (end - pos < 26)
+			return -1;
+
+		int day = number(buffer, pos, 2);
+		int month = month(buffer, pos + 3);
+		int year = number(buffer, pos + 7, 4);
+		int hour = number(buffer, pos + 12, 2);
+		int minute = number(buffer, pos + 15, 2);
+		int second = number(buffer, pos + 18, 2);
+		byte sign = buffer.get(pos + 21);
+		int zoneHours = number(buffer, pos + 22, 2);
+		int zoneMinutes = number(buffer, pos + 24, 2);
+
+		if (day < 1 || month < 1 || year < 0 || hour < 0 || minute < 0 || second < 0 || zoneHours < 0
+				|| zoneMinutes < 0 || (sign != '+' && sign != '-'))
+			return -1;
+
+		long offset = (zoneHours * 60L + zoneMinutes) * 60;
+		long seconds = daysFromCivil(year, month, day) * 86400 + hour * 3600 + minute * 60 + second
+				- (sign == '+' ? offset : -offset);
+		return seconds * 1000;
+	}
+
+	/**
+	 * @return The days since 1970-01-01 of a date of the Gregorian calendar
+	 */
+	private static long daysFromCivil(int year, int month, int day) {
+		year -= month <= 2 ? 1 : 0;
+		long era = Math.floorDiv(year, 400);
+		long yearOfEra = year - era * 400;
+		long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	private static int number(ByteBuffer buffer, int pos, int digits) {
+		int value = 0;
+		for (int i = 0; i < digits; i++) {
+			byte b = buffer.get(pos + i);
+			if (b < '0' || b > '9')
+				return -1;
+			value = value * 10 + (b - '0');
+		}
+		return value;
+	}
+
+	private static int month(ByteBuffer buffer, int pos) {
+		for (int m = 0; m < 12; m++) {
+			if (buffer.get(pos) == MONTHS[3 * m] && buffer.get(pos + 1) == MONTHS[3 * m + 1]
+					&& buffer.get(pos + 2) == MONTHS[3 * m + 2])
+				return m + 1;
+		}
+		return -1;
+	}
+
+	private static int indexOf(ByteBuffer buffer, int start, int end, byte b) {
+		for (int i = start; i < end; i++) {
+			if (buffer.get(i) == b)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The number of replayed requests
+	 */
+	public long getRequests() {
+		return requests;
+	}
+
+	/**
+	 * @return The number of blocked requests
+	 */
+	public long getBlockedRequests() {
+		return blockedRequests;
+	}
+
+	/**
+	 * @return The number of lines that could not be parsed
+	 */
+	public long getSkippedLines() {
+		return skippedLines;
+	}
+
+	/**
+	 * @return The number of decisions per second of the replay, including the
+	 *         parsing of the log
+	 */
+	public long getDecisionsPerSecond() {
+		return replayNanos > 0 ? requests * 1000000000L / replayNanos : 0;
+	}
+
+	/**
+	 * @param ip The IP address as written in the log
+	 * @return The decisions for the IP address or <code>null</code> if there has
+	 *         been no request
+	 */
+	public Timeline getTimeline(String ip) {
+		return timelines.get(ip);
+	}
+
+	/**
+	 * Prints the results of the replay
+	 *
+	 * @param out              The stream
+	 * @param numberOfBlockedIPs The number of IP addresses with the most blocked
+	 *                         requests whose intervals are printed
+	 */
+	public void printReport(PrintStream out, int numberOfBlockedIPs) {
+		out.println("Requests: " + requests + " (skipped lines: " + skippedLines + ")");
+		out.println("Blocked: " + blockedRequests + " ("
+				+ String.format("%.2f", requests > 0 ? blockedRequests * 100.0 / requests : 0.0) + " %)");
+		out.println("Decisions per second: " + getDecisionsPerSecond());
+		if (firstTimestamp >= 0)
+			out.println("Log time: " + Instant.ofEpochMilli(firstTimestamp) + " - " + Instant.ofEpochMilli(valve.now));
+		out.println("IP addresses: " + timelines.size());
+
+		List<Map.Entry<String, Timeline>> blocked = new ArrayList<Map.Entry<String, Timeline>>();
+		for (Map.Entry<String, Timeline> entry : timelines.entrySet()) {
+			if (entry.getValue().blocked > 0)
+				blocked.add(entry);
+		}
+		blocked.sort((a, b) -> Integer.compare(b.getValue().blocked, a.getValue().blocked));
+
+		out.println("Blocked IP addresses: " + blocked.size());
+		for (int i = 0; i < Math.min(numberOfBlockedIPs, blocked.size()); i++) {
+			Timeline timeline = blocked.get(i).getValue();
+			StringBuilder sb = new StringBuilder();
+			sb.append(blocked.get(i).getKey()).append(" requests: ").append(timeline.requests).append(" blocked: ")
+					.append(timeline.blocked);
+			for (long[] interval : timeline.getIntervals())
+				sb.append("\n    ").append(Instant.ofEpochMilli(interval[0])).append(" - ")
+						.append(Instant.ofEpochMilli(interval[1]));
+			out.println(sb);
+		}
+	}
+
+	/**
+	 * Direct-mapped cache of the strings for byte sequences of the log. A byte
+	 * sequence that is already in the cache does not create a new string
+	 */
+	private static class StringCache {
+		private final byte[][] keys;
+		private final String[] values;
+		private final int mask;
+
+		private StringCache(int size) {
+			keys = new byte[size][];
+			values = new String[size];
+			mask = size - 1;
+		}
+
+		private String get(ByteBuffer buffer, int start, int end) {
+			int hash = 0;
+			for (int i = start; i < end; i++)
+				hash = 31 * hash + buffer.get(i);
+			int index = (hash ^ (hash >>> 16)) & mask;
+
+			byte[] key = keys[index];
+			if (key != null && key.length == end - start) {
+				boolean same = true;
+				for (int i = 0; i < key.length && same; i++)
+					same = key[i] == buffer.get(start + i);
+				if (same)
+					return values[index];
+			}
+
+			key = new byte[end - start];
+			buffer.get(start, key);
+			keys[index] = key;
+			values[index] = new String(key, StandardCharsets.ISO_8859_1);
+			return values[index];
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: AntiDoSReplay <access log> [<parameter>=<value> ...]");
+			System.exit(1);
+		}
+
+		String[] parameters = new String[args.length - 1];
+		System.arraycopy(args, 1, parameters, 0, parameters.length);
+
+		AntiDoSReplay replay;
+		try {
+			replay = new AntiDoSReplay(parameters);
+		} catch (IllegalArgumentException ex) {
+			System.err.println(ex.getMessage());
+			System.exit(1);
+			return;
+		}
+
+		try {
+			replay.replay(Paths.get(args[0]));
+		} finally {
+			replay.close();
+		}
+		replay.printReport(System.out, 20);
+	}
+}
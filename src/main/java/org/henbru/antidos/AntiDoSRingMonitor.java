@@ -0,0 +1,357 @@
+package org.henbru.antidos;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Copyright 2017 Henning Brune
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *************************
+ *
+ * Variant of {@link AntiDoSMonitor} with another memory layout. Instead of one
+ * map of counters per slot, there is a single map holding one entry per counter
+ * name. The entry consists of the {@link AntiDoSCounter} of the current slot
+ * and a small ring of the counts in the previous slots, indexed by the number
+ * of the slot modulo <code>numberOfSlots</code>. Positions of slots that have
+ * passed without requests are zeroed lazily, when the entry is accessed again.
+ * <p>
+ * An active IP address is thus stored once instead of once per slot, and the
+ * retained count is computed from an array instead of lookups in all slots.
+ * The decisions are the same as in {@link AntiDoSMonitor}, with one exception:
+ * <code>maxCountersPerSlot</code> limits the number of entries in the single
+ * map, so counters can be evicted earlier
+ *
+ * @author Henning
+ *
+ */
+public class AntiDoSRingMonitor extends AntiDoSMonitor {
+
+	private static final Log log = LogFactory.getLog(AntiDoSValve.ANTIDOS_LOGGER_NAME);
+
+	/**
+	 * Rough size of an entry in bytes without the ring of past counts: map entry,
+	 * {@link Entry}, counter, address string and the share of the map table
+	 */
+	public static final int ESTIMATED_BYTES_PER_ENTRY = 200;
+
+	private final String name4logging;
+
+	/**
+	 * The entries, least recently used first. Guarded by {@link #lock}
+	 */
+	private final Map<String, Entry> entries;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * The number of the most recent slot. Guarded by {@link #lock}
+	 */
+	private long lastSlotNumber = Long.MIN_VALUE;
+
+	/**
+	 * Consecutive number of the slots that have been started, -1 before the first
+	 * slot. Slots without requests do not count, as in {@link AntiDoSMonitor}.
+	 * Guarded by {@link #lock}
+	 */
+	private long generation = -1;
+
+	/**
+	 * The number of entries that can be held. Less than
+	 * <code>maxCountersPerSlot</code> after {@link #shedMemory()}. Guarded by
+	 * {@link #lock}
+	 */
+	private int capacity;
+
+	private static final class Entry {
+		/**
+		 * The generation of {@link #counter}
+		 */
+		private long generation;
+
+		private AntiDoSCounter counter;
+
+		/**
+		 * Counts of the previous generations. <code>null</code> if no requests are
+		 * retained
+		 */
+		private final int[] pastCounts;
+
+		private Entry(long generation, int numberOfSlots, boolean retain) {
+			this.generation = generation;
+			this.counter = new AntiDoSCounter();
+			this.pastCounts = retain && numberOfSlots > 1 ? new int[numberOfSlots] : null;
+		}
+	}
+
+	/**
+	 * @see AntiDoSMonitor#AntiDoSMonitor(String, int, int, int, int, float)
+	 */
+	public AntiDoSRingMonitor(String monitorName, final int maxCountersPerSlot, int numberOfSlots, int slotLength,
+			int allowedRequestsPerSlot, float shareOfRetainedFormerRequests) throws IllegalArgumentException {
+		super(monitorName, maxCountersPerSlot, numberOfSlots, slotLength, allowedRequestsPerSlot,
+				shareOfRetainedFormerRequests);
+
+		this.name4logging = "AntiDoSRingMonitor [" + getMonitorName() + "]";
+
+		this.capacity = maxCountersPerSlot;
+
+		// The map grows with the entries, a monitor with few clients stays small:
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				if (size() <= capacity)
+					return false;
+
+				evictions.increment();
+				return true;
+			}
+		};
+	}
+
+	@Override
+	protected AntiDoSCounter provideCounter(String counterName) {
+		boolean cacheFull = false;
+		AntiDoSCounter counter;
+
+		lock.lock();
+		try {
+			long currentGeneration = provideCurrentGeneration();
+
+			Entry entry = entries.get(counterName);
+			if (entry == null) {
+				boolean notFullYet = entries.size() < capacity;
+
+				entry = new Entry(currentGeneration, getNumberOfSlots(), getShareOfRetainedFormerRequests() > 0);
+				entry.counter.setRetainedCounts(0);
+				entries.put(counterName, entry);
+
+				cacheFull = notFullYet && entries.size() >= capacity;
+			} else if (entry.generation < currentGeneration) {
+				rotate(entry, currentGeneration);
+			}
+			counter = entry.counter;
+		} finally {
+			lock.unlock();
+		}
+
+		if (cacheFull && log.isInfoEnabled())
+			log.info(name4logging + " Counter Cache is full");
+
+		return counter;
+	}
+
+	@Override
+	public AntiDoSCounter provideCurrentCounter(String counterName) throws IllegalArgumentException {
+		if (counterName == null || counterName.length() == 0)
+			throw new IllegalArgumentException();
+
+		lock.lock();
+		try {
+			long currentGeneration = provideCurrentGeneration();
+
+			Entry entry = entries.get(AntiDoSAddress.canonicalize(counterName));
+			return entry != null && entry.generation == currentGeneration ? entry.counter : null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int getNumberOfActiveSlots() {
+		lock.lock();
+		try {
+			return (int) Math.min(generation + 1, getNumberOfSlots());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 *
+	 * @return The number of entries in the map
+	 */
+	public int getNumberOfEntries() {
+		lock.lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Each entry holds one counter
+	 */
+	@Override
+	public int getNumberOfCounters() {
+		return getNumberOfEntries();
+	}
+
+	/**
+	 * Halves the number of entries, the entries not accessed the longest are
+	 * removed. Each new generation doubles the capacity again until
+	 * <code>maxCountersPerSlot</code> is reached
+	 * 
+	 * @see AntiDoSMonitor#shedMemory()
+	 */
+	@Override
+	public void shedMemory() {
+		int newCapacity;
+
+		lock.lock();
+		try {
+			newCapacity = Math.max(Math.min(MIN_COUNTERS_AFTER_SHEDDING, getMaxCountersPerSlot()), capacity / 2);
+			capacity = newCapacity;
+
+			// Least recently used first:
+			Iterator<Entry> it = entries.values().iterator();
+			while (entries.size() > newCapacity && it.hasNext()) {
+				it.next();
+				it.remove();
+				evictions.increment();
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		if (log.isWarnEnabled())
+			log.warn(name4logging + " sheds memory, entries reduced to " + newCapacity);
+	}
+
+	@Override
+	public int getEffectiveMaxCountersPerSlot() {
+		lock.lock();
+		try {
+			return capacity;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Derives the number of entries from a memory budget, using
+	 * {@link #ESTIMATED_BYTES_PER_ENTRY} and the ring of past counts
+	 * 
+	 * @param maxMemory     The memory budget in bytes
+	 * @param numberOfSlots The number of slots
+	 * @return The number of entries, at least 1
+	 * @throws IllegalArgumentException Thrown if a parameter is less than 1
+	 */
+	public static int provideMaxEntriesForMemory(long maxMemory, int numberOfSlots) throws IllegalArgumentException {
+		if (maxMemory < 1)
+			throw new IllegalArgumentException("Parameter maxMemory is invalid: " + maxMemory);
+		if (numberOfSlots < 1)
+			throw new IllegalArgumentException("Parameter numberOfSlots is invalid: " + numberOfSlots);
+
+		long bytesPerEntry = ESTIMATED_BYTES_PER_ENTRY + (numberOfSlots > 1 ? 16 + 4L * numberOfSlots : 0);
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxMemory / bytesPerEntry));
+	}
+
+	/**
+	 * Moves an entry to the current generation. The count of its last generation
+	 * is stored in the ring, the positions of the generations in between are
+	 * zeroed. The new counter gets the retained count from the ring
+	 */
+	private void rotate(Entry entry, long currentGeneration) {
+		int numberOfSlots = getNumberOfSlots();
+		int[] pastCounts = entry.pastCounts;
+
+		if (pastCounts != null) {
+			if (entry.generation > currentGeneration - numberOfSlots)
+				pastCounts[(int) (entry.generation % numberOfSlots)] = entry.counter.getCountValue();
+
+			for (long g = Math.max(entry.generation + 1, currentGeneration - numberOfSlots + 1); g <= currentGeneration; g++)
+				pastCounts[(int) (g % numberOfSlots)] = 0;
+		}
+
+		entry.generation = currentGeneration;
+		entry.counter = new AntiDoSCounter();
+		entry.counter.setRetainedCounts(provideRetainedCount(pastCounts, currentGeneration));
+	}
+
+	/**
+	 * Same calculation as in {@link AntiDoSMonitor}: the average count in the
+	 * previous slots multiplied by <code>shareOfRetainedFormerRequests</code>
+	 */
+	private int provideRetainedCount(int[] pastCounts, long currentGeneration) {
+		if (pastCounts == null)
+			return 0;
+
+		int sumOfCounts = 0;
+		for (int count : pastCounts)
+			sumOfCounts += count;
+
+		long previousSlots = Math.min(currentGeneration, getNumberOfSlots() - 1);
+
+		return sumOfCounts > 0 ? Math.round(sumOfCounts * getShareOfRetainedFormerRequests() / previousSlots) : 0;
+	}
+
+	/**
+	 * Starts a new generation, if the current time belongs to a new slot. Must be
+	 * called with the lock held
+	 */
+	private long provideCurrentGeneration() {
+		long slotNumber = getTimeInMillis() / getSlotLengthInMillis();
+		if (slotNumber > lastSlotNumber) {
+			lastSlotNumber = slotNumber;
+			generation++;
+			slotRotations.increment();
+
+			// Recover from shedMemory():
+			if (capacity < getMaxCountersPerSlot())
+				capacity = (int) Math.min(getMaxCountersPerSlot(), capacity * 2L);
+		}
+		return generation;
+	}
+
+	/**
+	 * Prints the configuration and the locked counters of the current slot
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+
+		lock.lock();
+		try {
+			sb.append("#Slots: ").append(Math.min(generation + 1, getNumberOfSlots())).append("; slotLenght: ")
+					.append(getSlotLengthInMillis()).append("; allowedRequestsPerSlot: ")
+					.append(getAllowedRequestsPerSlot()).append("; maxCountersPerSlot: ")
+					.append(getMaxCountersPerSlot()).append("; shareOfRetainedFormerRequests: ")
+					.append(getShareOfRetainedFormerRequests()).append("\n");
+			sb.append("#total requests: ").append(getTotalRequestCount()).append("\n");
+			sb.append("#entries: ").append(entries.size()).append("\n");
+			sb.append("Slot '").append(lastSlotNumber).append("' locked: ");
+			for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+				Entry entry = mapEntry.getValue();
+				if (entry.generation == generation && entry.counter.isLocked()) {
+					sb.append(mapEntry.getKey()).append(" (").append(entry.counter.getCountValue()).append("|")
+							.append(entry.counter.getRetainedCountsValue()).append(")");
+				}
+			}
+			sb.append("\n");
+		} finally {
+			lock.unlock();
+		}
+
+		return sb.toString();
+	}
+}
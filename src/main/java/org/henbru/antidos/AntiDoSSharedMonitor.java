@@ -0,0 +1,295 @@
+package org.henbru.antidos;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Copyright 2017 Henning Brune
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *************************
+ *
+ * Variant of {@link AntiDoSMonitor} that keeps its counters in a
+ * memory-mapped file, see {@link AntiDoSSharedTable}. Several JVMs on one host
+ * that create a monitor on the same file count in the same table, so the limit
+ * applies to all of them together instead of once per JVM.
+ * <p>
+ * The counters returned by this monitor are views on a record of the table,
+ * they hold no values of their own. <code>maxCountersPerSlot</code> is the
+ * number of records in the table (rounded up to a power of two), a record
+ * holds the counts of a key in all slots. The retained count is calculated as
+ * in {@link AntiDoSMonitor}, except that the slots are counted from the first
+ * slot of the table instead of the slots that have seen requests.
+ * <p>
+ * Only the counters are shared. The index of locked counters, the block
+ * duration, the repeat offenders and the statistics belong to each JVM. All
+ * JVMs must use the same configuration, a file with another layout is
+ * rejected. The file is never shrunk, so {@link #shedMemory()} does nothing
+ *
+ * @author Henning
+ *
+ */
+public class AntiDoSSharedMonitor extends AntiDoSMonitor {
+
+	private static final Log log = LogFactory.getLog(AntiDoSValve.ANTIDOS_LOGGER_NAME);
+
+	private final String name4logging;
+
+	private final AntiDoSSharedTable table;
+
+	/**
+	 * The number of the most recent slot seen by this JVM
+	 */
+	private final AtomicLong lastSlotNumber = new AtomicLong(Long.MIN_VALUE);
+
+	private volatile boolean cacheFullLogged = false;
+
+	/**
+	 * View on the cell of a record in one slot. The count and the lock flag are
+	 * read from and written to the table. The retained count is calculated when
+	 * the view is created and kept in the state of the view, so it belongs to the
+	 * view only
+	 */
+	static final class SharedCounter extends AntiDoSCounter {
+
+		private final AntiDoSSharedTable table;
+
+		private final int record;
+
+		private final long slotNumber;
+
+		private SharedCounter(AntiDoSSharedTable table, int record, long slotNumber, int retained) {
+			super(AntiDoSCounter.state(0, retained, false));
+			this.table = table;
+			this.record = record;
+			this.slotNumber = slotNumber;
+		}
+
+		private long toState(long cell) {
+			return AntiDoSCounter.state(AntiDoSSharedTable.count(cell), getRetainedCountsValue(),
+					AntiDoSSharedTable.isLocked(cell));
+		}
+
+		@Override
+		long addToCountAndGetState(int delta) {
+			return toState(table.addToCount(record, slotNumber, delta));
+		}
+
+		@Override
+		long getState() {
+			return toState(table.getCell(record, slotNumber));
+		}
+
+		@Override
+		long getStateEstimate() {
+			return getState();
+		}
+
+		@Override
+		boolean isCountCombinedOver(int limit) {
+			return combined(getState()) > limit;
+		}
+
+		@Override
+		boolean stripe() {
+			return false;
+		}
+
+		@Override
+		boolean isStriped() {
+			return false;
+		}
+
+		@Override
+		public int addToCount(int delta) {
+			return count(addToCountAndGetState(delta));
+		}
+
+		@Override
+		public boolean isLocked() {
+			return AntiDoSSharedTable.isLocked(table.getCell(record, slotNumber));
+		}
+
+		@Override
+		public boolean lock() {
+			return table.lock(record, slotNumber);
+		}
+
+		@Override
+		public void setCount(int newValue) {
+			table.setCount(record, slotNumber, newValue);
+		}
+	}
+
+	/**
+	 * @param file The memory-mapped file, created if it does not exist
+	 * @see AntiDoSMonitor#AntiDoSMonitor(String, int, int, int, int, float)
+	 * @throws IllegalArgumentException Thrown if a parameter is invalid, if the
+	 *                                  file has another layout or cannot be
+	 *                                  mapped
+	 */
+	public AntiDoSSharedMonitor(String monitorName, final int maxCountersPerSlot, int numberOfSlots, int slotLength,
+			int allowedRequestsPerSlot, float shareOfRetainedFormerRequests, Path file)
+			throws IllegalArgumentException {
+		super(monitorName, maxCountersPerSlot, numberOfSlots, slotLength, allowedRequestsPerSlot,
+				shareOfRetainedFormerRequests);
+
+		if (file == null)
+			throw new IllegalArgumentException("Parameter file is missing");
+
+		this.name4logging = "AntiDoSSharedMonitor [" + getMonitorName() + "]";
+
+		try {
+			this.table = new AntiDoSSharedTable(file, maxCountersPerSlot, numberOfSlots, getSlotLengthInMillis());
+		} catch (IOException ex) {
+			throw new IllegalArgumentException("Shared file " + file + " cannot be mapped: " + ex.getMessage(), ex);
+		}
+
+		if (log.isInfoEnabled())
+			log.info(name4logging + " uses " + file + " with " + table.getCapacity() + " records");
+	}
+
+	@Override
+	protected AntiDoSCounter provideCounter(String counterName) {
+		long slotNumber = provideCurrentSlotNumber();
+
+		int record = table.provideRecord(counterName, slotNumber);
+		if (record < 0) {
+			// Taken over from a key whose counts were still in use:
+			record = -1 - record;
+			evictions.increment();
+
+			if (!cacheFullLogged) {
+				cacheFullLogged = true;
+				if (log.isInfoEnabled())
+					log.info(name4logging + " Counter Cache is full");
+			}
+		}
+
+		return new SharedCounter(table, record, slotNumber, provideRetainedCount(record, slotNumber));
+	}
+
+	@Override
+	public AntiDoSCounter provideCurrentCounter(String counterName) throws IllegalArgumentException {
+		if (counterName == null || counterName.length() == 0)
+			throw new IllegalArgumentException();
+
+		long slotNumber = provideCurrentSlotNumber();
+
+		int record = table.findRecord(AntiDoSAddress.canonicalize(counterName));
+		if (record < 0 || table.getCell(record, slotNumber) == 0)
+			return null;
+
+		return new SharedCounter(table, record, slotNumber, provideRetainedCount(record, slotNumber));
+	}
+
+	@Override
+	public int getNumberOfActiveSlots() {
+		long firstSlot = table.getFirstSlot();
+		if (firstSlot == 0)
+			return 0;
+
+		long slotNumber = getTimeInMillis() / getSlotLengthInMillis();
+		return (int) Math.max(0, Math.min(getNumberOfSlots(), slotNumber - firstSlot + 1));
+	}
+
+	/**
+	 * Each record in use holds one counter. Scans the whole table
+	 */
+	@Override
+	public int getNumberOfCounters() {
+		return table.getNumberOfRecordsInUse(getTimeInMillis() / getSlotLengthInMillis());
+	}
+
+	/**
+	 * The size of the table is fixed
+	 */
+	@Override
+	public void shedMemory() {
+	}
+
+	@Override
+	public int getEffectiveMaxCountersPerSlot() {
+		return table.getCapacity();
+	}
+
+	/**
+	 *
+	 * @return The table of the counters
+	 */
+	public AntiDoSSharedTable getTable() {
+		return table;
+	}
+
+	/**
+	 * Same calculation as in {@link AntiDoSMonitor}: the average count in the
+	 * previous slots multiplied by <code>shareOfRetainedFormerRequests</code>
+	 */
+	private int provideRetainedCount(int record, long slotNumber) {
+		if (getShareOfRetainedFormerRequests() == 0)
+			return 0;
+
+		long previousSlots = Math.min(getNumberOfSlots() - 1, slotNumber - table.getFirstSlot());
+		if (previousSlots < 1)
+			return 0;
+
+		long sumOfCounts = table.getSumOfPreviousCounts(record, slotNumber);
+
+		if (sumOfCounts == 0)
+			return 0;
+
+		long retained = Math.round(sumOfCounts * (double) getShareOfRetainedFormerRequests() / previousSlots);
+		return (int) Math.min(Integer.MAX_VALUE, retained);
+	}
+
+	/**
+	 * Counts the slots started in this JVM and stores the first slot in the
+	 * table
+	 */
+	private long provideCurrentSlotNumber() {
+		long slotNumber = getTimeInMillis() / getSlotLengthInMillis();
+
+		long last = lastSlotNumber.get();
+		if (slotNumber > last && lastSlotNumber.compareAndSet(last, slotNumber)) {
+			slotRotations.increment();
+			table.provideFirstSlot(slotNumber);
+		}
+		return slotNumber;
+	}
+
+	/**
+	 * Prints the configuration and the table
+	 */
+	@Override
+	public String toString() {
+		long slotNumber = getTimeInMillis() / getSlotLengthInMillis();
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("#Slots: ").append(getNumberOfActiveSlots()).append("; slotLenght: ")
+				.append(getSlotLengthInMillis()).append("; allowedRequestsPerSlot: ")
+				.append(getAllowedRequestsPerSlot()).append("; maxCountersPerSlot: ")
+				.append(getMaxCountersPerSlot()).append("; shareOfRetainedFormerRequests: ")
+				.append(getShareOfRetainedFormerRequests()).append("\n");
+		sb.append("#total requests: ").append(getTotalRequestCount()).append("\n");
+		sb.append("#shared file: ").append(table.getFile()).append("; records in use: ")
+				.append(table.getNumberOfRecordsInUse(slotNumber)).append(" of ").append(table.getCapacity())
+				.append("\n");
+
+		return sb.toString();
+	}
+}
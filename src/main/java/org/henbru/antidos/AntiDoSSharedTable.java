@@ -0,0 +1,499 @@
+package org.henbru.antidos;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Copyright 2017 Henning Brune
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *************************
+ *
+ * This class is a hash table of counters in a memory-mapped file, so that
+ * several JVMs on one host can count in the same table, see
+ * {@link AntiDoSSharedMonitor}. All values are <code>long</code> words that are
+ * read and changed with the atomic operations of a {@link VarHandle} on the
+ * mapped buffer. There are no locks, except while the file is created.
+ * <p>
+ * The file starts with a header of 64 bytes: a magic number, the layout (format
+ * version, number of slots, capacity, slot length), a random seed for the hash
+ * of the keys and the number of the first slot. It is followed by
+ * <code>capacity</code> records of the same size. A record consists of
+ * <ul>
+ * <li>the hash of its key, <code>0</code> if the record is free,
+ * {@link #CLAIMED} while it is taken over from another key
+ * <li><code>numberOfSlots</code> cells, one per slot, indexed by the slot
+ * number modulo <code>numberOfSlots</code>. A cell holds the lock flag (bit
+ * 63), the lower 32 bits of the slot number (bits 31 - 62) and the count (bits
+ * 0 - 30). A cell whose slot number is not the one of the current slot is
+ * treated as empty, so the cells are reused without being cleared
+ * </ul>
+ * The records are found by linear probing over at most {@link #MAX_PROBES}
+ * records. If none of them is free or holds the key, the record with the
+ * oldest counts is taken over: its hash is replaced by {@link #CLAIMED}, its
+ * cells are cleared and only then the hash of the new key is written, so the
+ * new key never loses counts to the clearing. A search that meets a claimed
+ * record waits for its new hash, as it might be the searched key. A takeover
+ * that is not finished within {@link #CLAIM_TIMEOUT}, e. g. because its JVM
+ * has ended, is finished by the next search that needs a record
+ *
+ * @author Henning
+ *
+ */
+public class AntiDoSSharedTable {
+
+	/**
+	 * The number of records searched for a key
+	 */
+	static final int MAX_PROBES = 8;
+
+	private static final long MAGIC = 0x414e5449444f5331L;
+
+	/**
+	 * Hash of a record that is being taken over. Never the hash of a key
+	 */
+	static final long CLAIMED = -1L;
+
+	/**
+	 * The time in nanoseconds to wait for the hash of a record that is
+	 * {@link #CLAIMED} by someone else. After that the takeover is regarded as
+	 * abandoned and finished by the waiting thread
+	 */
+	static final long CLAIM_TIMEOUT = 10000000L;
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 64;
+
+	private static final int MAGIC_OFFSET = 0;
+
+	private static final int LAYOUT_OFFSET = 8;
+
+	private static final int SIZE_OFFSET = 16;
+
+	private static final int SEED_OFFSET = 24;
+
+	private static final int FIRST_SLOT_OFFSET = 32;
+
+	private static final long COUNT_MASK = (1L << 31) - 1;
+
+	private static final long TAG_MASK = 0xffffffffL;
+
+	private static final long LOCKED_BIT = 1L << 63;
+
+	private static final int MAX_COUNT = (int) COUNT_MASK - 1;
+
+	private static final VarHandle WORDS = MethodHandles.byteBufferViewVarHandle(long[].class,
+			ByteOrder.nativeOrder());
+
+	private final MappedByteBuffer buffer;
+
+	private final Path file;
+
+	private final int numberOfSlots;
+
+	private final int capacity;
+
+	private final int recordSize;
+
+	private final long seed;
+
+	/**
+	 * Maps the file, creates and initializes it if it does not exist yet. If it
+	 * exists, its layout must match the parameters
+	 *
+	 * @param file          The file
+	 * @param capacity      The number of records. Rounded up to the next power of
+	 *                      two
+	 * @param numberOfSlots The number of slots
+	 * @param slotLength    The length of a slot in milliseconds
+	 * @throws IllegalArgumentException Thrown if a parameter is invalid or does
+	 *                                  not match the layout of the existing file
+	 * @throws IOException              Thrown if the file cannot be created or
+	 *                                  mapped
+	 */
+	public AntiDoSSharedTable(Path file, int capacity, int numberOfSlots, int slotLength)
+			throws IllegalArgumentException, IOException {
+		if (capacity < 1 || capacity > 1 << 24)
+			throw new IllegalArgumentException("Parameter capacity is invalid: " + capacity);
+		if (numberOfSlots < 1 || numberOfSlots > 64)
+			throw new IllegalArgumentException("Parameter numberOfSlots is invalid: " + numberOfSlots);
+
+		int length = Integer.highestOneBit(capacity);
+		if (length < capacity)
+			length <<= 1;
+
+		long size = HEADER_SIZE + (long) length * (8 + 8 * numberOfSlots);
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Shared table too large: " + size + " bytes");
+
+		this.file = file;
+		this.numberOfSlots = numberOfSlots;
+		this.capacity = length;
+		this.recordSize = 8 + 8 * numberOfSlots;
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			// Held while the header is checked or written, the other JVMs wait:
+			FileLock lock = channel.lock();
+			try {
+				long existing = channel.size();
+				if (existing != 0 && existing != size)
+					throw new IllegalArgumentException("Shared table " + file + " has another layout: " + existing
+							+ " bytes instead of " + size);
+
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+				long layout = ((long) VERSION << 32) | numberOfSlots;
+				long sizes = ((long) length << 32) | slotLength;
+
+				if (existing == 0 || getWord(MAGIC_OFFSET) != MAGIC) {
+					// The magic number is written last, an interrupted initialization is
+					// repeated:
+					WORDS.setVolatile(buffer, LAYOUT_OFFSET, layout);
+					WORDS.setVolatile(buffer, SIZE_OFFSET, sizes);
+					WORDS.setVolatile(buffer, SEED_OFFSET, AntiDoSHash.newSeed());
+					WORDS.setVolatile(buffer, MAGIC_OFFSET, MAGIC);
+				} else if (getWord(LAYOUT_OFFSET) != layout || getWord(SIZE_OFFSET) != sizes) {
+					throw new IllegalArgumentException("Shared table " + file + " has another layout");
+				}
+				buffer.force();
+			} finally {
+				lock.release();
+			}
+		}
+
+		this.seed = getWord(SEED_OFFSET);
+	}
+
+	/**
+	 * Provides the record of a key and creates it if necessary
+	 *
+	 * @param key        The key (e. g. an IP address)
+	 * @param slotNumber The number of the current slot
+	 * @return The index of the record. A negative value (<code>-1 - index</code>)
+	 *         if the record has been taken over from another key whose counts
+	 *         were still in use
+	 */
+	public int provideRecord(String key, long slotNumber) {
+		long hash = hash(key);
+		int start = (int) hash & (capacity - 1);
+		int probes = Math.min(MAX_PROBES, capacity);
+
+		while (true) {
+			int victim = -1;
+			long victimHash = 0;
+			long victimAge = -1;
+
+			for (int p = 0; p < probes; p++) {
+				int record = (start + p) & (capacity - 1);
+				long offset = recordOffset(record);
+				long recordHash = getWord(offset);
+
+				if (recordHash == 0) {
+					if (WORDS.compareAndSet(buffer, (int) offset, 0L, hash))
+						return record;
+					recordHash = getWord(offset);
+				}
+				if (recordHash == CLAIMED) {
+					// Another thread or JVM is taking the record over, maybe for the
+					// same key. Wait for the new hash instead of passing by, otherwise
+					// the key could get a second record further along:
+					recordHash = awaitClaim(offset);
+				}
+				if (recordHash == hash)
+					return record;
+
+				// A takeover that has not been finished in time is finished by the
+				// next one, before any record with counts is taken:
+				long age = recordHash == CLAIMED ? Long.MAX_VALUE : getAge(record, slotNumber);
+				if (age > victimAge) {
+					victim = record;
+					victimHash = recordHash;
+					victimAge = age;
+				}
+			}
+
+			// Take over the record with the oldest counts. The cells are cleared
+			// while the record belongs to no key, so no count of the new key is lost.
+			// The hash is published by compare-and-set, so of several threads
+			// finishing the same stale takeover only one gets the record:
+			long offset = recordOffset(victim);
+			if (victimHash == CLAIMED || WORDS.compareAndSet(buffer, (int) offset, victimHash, CLAIMED)) {
+				for (int cell = 0; cell < numberOfSlots; cell++)
+					WORDS.setVolatile(buffer, (int) (offset + 8 + 8 * cell), 0L);
+				if (WORDS.compareAndSet(buffer, (int) offset, CLAIMED, hash))
+					return victimAge < numberOfSlots ? -1 - victim : victim;
+			}
+		}
+	}
+
+	/**
+	 * Waits until the hash of a record taken over by another thread or JVM is
+	 * published. The takeover only clears the cells, so this takes at most a few
+	 * microseconds unless the other side has been stopped in between
+	 *
+	 * @return The new hash, {@link #CLAIMED} if it has not been published within
+	 *         {@link #CLAIM_TIMEOUT}, e. g. because the other JVM has ended during
+	 *         the takeover
+	 */
+	private long awaitClaim(long offset) {
+		long start = System.nanoTime();
+		for (int spin = 0;; spin++) {
+			if (spin < 100)
+				Thread.onSpinWait();
+			else if (System.nanoTime() - start < CLAIM_TIMEOUT)
+				Thread.yield();
+			else
+				return CLAIMED;
+
+			long recordHash = getWord(offset);
+			if (recordHash != CLAIMED)
+				return recordHash;
+		}
+	}
+
+	/**
+	 * @param key The key (e. g. an IP address)
+	 * @return The index of the record of the key, <code>-1</code> if there is none
+	 */
+	public int findRecord(String key) {
+		long hash = hash(key);
+		int start = (int) hash & (capacity - 1);
+
+		for (int p = 0; p < Math.min(MAX_PROBES, capacity); p++) {
+			int record = (start + p) & (capacity - 1);
+			long recordHash = getWord(recordOffset(record));
+			if (recordHash == hash)
+				return record;
+			if (recordHash == 0)
+				return -1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Adds to the count of a record in a slot. A cell of an older slot is reset
+	 * first
+	 *
+	 * @return The cell after the addition
+	 */
+	public long addToCount(int record, long slotNumber, int delta) {
+		int offset = cellOffset(record, slotNumber);
+		long tag = slotNumber & TAG_MASK;
+
+		while (true) {
+			long cell = (long) WORDS.getVolatile(buffer, offset);
+			long update;
+			if (tag(cell) == tag)
+				update = (cell & ~COUNT_MASK) | clamp(count(cell) + (long) delta);
+			else
+				update = (tag << 31) | clamp(delta);
+
+			if (WORDS.compareAndSet(buffer, offset, cell, update))
+				return update;
+		}
+	}
+
+	/**
+	 * Sets the count of a record in a slot and keeps its lock flag. A cell of an
+	 * older slot is reset first
+	 *
+	 * @return The cell after the change
+	 */
+	public long setCount(int record, long slotNumber, int newValue) {
+		int offset = cellOffset(record, slotNumber);
+		long tag = slotNumber & TAG_MASK;
+
+		while (true) {
+			long cell = (long) WORDS.getVolatile(buffer, offset);
+			long update;
+			if (tag(cell) == tag)
+				update = (cell & ~COUNT_MASK) | clamp(newValue);
+			else
+				update = (tag << 31) | clamp(newValue);
+
+			if (WORDS.compareAndSet(buffer, offset, cell, update))
+				return update;
+		}
+	}
+
+	/**
+	 * Sets the lock flag of a record in a slot
+	 *
+	 * @return <code>true</code> if the flag has been set by this call
+	 */
+	public boolean lock(int record, long slotNumber) {
+		int offset = cellOffset(record, slotNumber);
+		long tag = slotNumber & TAG_MASK;
+
+		while (true) {
+			long cell = (long) WORDS.getVolatile(buffer, offset);
+			long update;
+			if (tag(cell) == tag) {
+				if (cell < 0)
+					return false;
+				update = cell | LOCKED_BIT;
+			} else {
+				update = (tag << 31) | LOCKED_BIT;
+			}
+
+			if (WORDS.compareAndSet(buffer, offset, cell, update))
+				return true;
+		}
+	}
+
+	/**
+	 * @return The cell of a record in a slot, <code>0</code> if the cell belongs
+	 *         to another slot
+	 */
+	public long getCell(int record, long slotNumber) {
+		long cell = getWord(cellOffset(record, slotNumber));
+		return tag(cell) == (slotNumber & TAG_MASK) ? cell : 0;
+	}
+
+	/**
+	 * @return <code>true</code> if a record has counts in one of the
+	 *         <code>numberOfSlots</code> slots up to the current one
+	 */
+	public boolean isInUse(int record, long slotNumber) {
+		return getWord(recordOffset(record)) != 0 && getAge(record, slotNumber) < numberOfSlots;
+	}
+
+	/**
+	 * @return The sum of the counts of a record in the
+	 *         <code>numberOfSlots - 1</code> slots before the current one
+	 */
+	public long getSumOfPreviousCounts(int record, long slotNumber) {
+		long offset = recordOffset(record);
+		long tag = slotNumber & TAG_MASK;
+		long sum = 0;
+		for (int cell = 0; cell < numberOfSlots; cell++) {
+			long value = getWord(offset + 8 + 8 * cell);
+			long age = (tag - tag(value)) & TAG_MASK;
+			if (value != 0 && age > 0 && age < numberOfSlots)
+				sum += count(value);
+		}
+		return sum;
+	}
+
+	/**
+	 * @return The number of records with counts in one of the
+	 *         <code>numberOfSlots</code> slots up to the current one. Scans the
+	 *         whole table
+	 */
+	public int getNumberOfRecordsInUse(long slotNumber) {
+		int records = 0;
+		for (int record = 0; record < capacity; record++) {
+			if (isInUse(record, slotNumber))
+				records++;
+		}
+		return records;
+	}
+
+	/**
+	 * Stores the number of the first slot, if it has not been stored yet
+	 *
+	 * @return The number of the first slot
+	 */
+	public long provideFirstSlot(long slotNumber) {
+		long first = getWord(FIRST_SLOT_OFFSET);
+		if (first == 0 && WORDS.compareAndSet(buffer, FIRST_SLOT_OFFSET, 0L, slotNumber))
+			return slotNumber;
+
+		return getWord(FIRST_SLOT_OFFSET);
+	}
+
+	/**
+	 * @return The number of the first slot counted in the table, <code>0</code> if
+	 *         none has been counted yet
+	 */
+	public long getFirstSlot() {
+		return getWord(FIRST_SLOT_OFFSET);
+	}
+
+	/**
+	 * @return The number of records
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return The mapped file
+	 */
+	public Path getFile() {
+		return file;
+	}
+
+	static int count(long cell) {
+		return (int) (cell & COUNT_MASK);
+	}
+
+	static boolean isLocked(long cell) {
+		return cell < 0;
+	}
+
+	private static long tag(long cell) {
+		return (cell >>> 31) & TAG_MASK;
+	}
+
+	/**
+	 * @return The number of slots since the newest count of a record
+	 */
+	private long getAge(int record, long slotNumber) {
+		long offset = recordOffset(record);
+		long tag = slotNumber & TAG_MASK;
+		long age = TAG_MASK;
+		for (int cell = 0; cell < numberOfSlots; cell++) {
+			long value = getWord(offset + 8 + 8 * cell);
+			if (value != 0)
+				age = Math.min(age, (tag - tag(value)) & TAG_MASK);
+		}
+		return age;
+	}
+
+	private long getWord(long offset) {
+		return (long) WORDS.getVolatile(buffer, (int) offset);
+	}
+
+	private long recordOffset(int record) {
+		return HEADER_SIZE + (long) record * recordSize;
+	}
+
+	private int cellOffset(int record, long slotNumber) {
+		return (int) (recordOffset(record) + 8 + 8 * (slotNumber % numberOfSlots));
+	}
+
+	/**
+	 * Seeded hash of the key with the seed stored in the file, so that all JVMs
+	 * find the same record, see {@link AntiDoSHash}. Never <code>0</code> or
+	 * {@link #CLAIMED}
+	 */
+	long hash(String key) {
+		long h = AntiDoSHash.hash(seed, key);
+		return h != 0 && h != CLAIMED ? h : 1;
+	}
+
+	private static long clamp(long value) {
+		return Math.max(0, Math.min(MAX_COUNT, value));
+	}
+}
@@ -1,8 +1,11 @@
 package org.henbru.antidos;
 
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
@@ -27,7 +30,18 @@ import org.apache.juli.logging.LogFactory;
  * This class implements the slots within the Anti-DoS Monitor. It manages a set
  * of counters that can, for example, represent the accesses of individual IP
  * addresses. The maximum number of managed counters is limited by the parameter
- * in the constructor
+ * in the constructor.
+ * <p>
+ * The counters are held in an access ordered map, so even reading access
+ * changes the map. All accesses are guarded by a {@link ReentrantLock} instead
+ * of <code>synchronized</code>, which would pin the carrier threads of virtual
+ * threads on some JDKs.
+ * <p>
+ * When a slot is no longer the current slot of its monitor, it is only read.
+ * {@link #freeze()} then replaces the map by three sorted arrays: the hash
+ * codes of the counter names, the names and the packed states of the counters.
+ * Lookups in a frozen slot are a binary search without any lock, and the
+ * arrays need a fraction of the memory of the map
  * 
  * @author Henning
  *
@@ -38,10 +52,64 @@ public class AntiDoSSlot {
 	private String key;
 	private String name4logging;
 
+	/**
+	 * The counters while the slot is not frozen, <code>null</code> afterwards.
+	 * Guarded by {@link #lock}
+	 */
 	private Map<String, AntiDoSCounter> counters = null;
 
+	/**
+	 * The counters after {@link #freeze()}
+	 */
+	private volatile Frozen frozen = null;
+
+	/**
+	 * Immutable snapshot of the counters, sorted by the hash codes of their names
+	 */
+	private static final class Frozen {
+		private final int[] hashes;
+		private final String[] names;
+		private final long[] states;
+
+		private Frozen(int[] hashes, String[] names, long[] states) {
+			this.hashes = hashes;
+			this.names = names;
+			this.states = states;
+		}
+
+		/**
+		 * @return The index of the counter name or -1
+		 */
+		private int indexOf(String counterName) {
+			int hash = counterName.hashCode();
+			int index = Arrays.binarySearch(hashes, hash);
+			if (index < 0)
+				return -1;
+
+			// Names with the same hash code are adjacent:
+			while (index > 0 && hashes[index - 1] == hash)
+				index--;
+			for (; index < hashes.length && hashes[index] == hash; index++) {
+				if (names[index].equals(counterName))
+					return index;
+			}
+			return -1;
+		}
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Guarded by {@link #lock}
+	 */
 	private int maxCountersPerSlot;
 
+	/**
+	 * Counts the counters removed because the slot is full. <code>null</code> if
+	 * not counted
+	 */
+	private final LongAdder evictions;
+
 	/**
 	 * @param monitorName        The monitors name. Used for logging
 	 * @param key                This attribute is used to name a slot. It should be
@@ -54,6 +122,16 @@ public class AntiDoSSlot {
 	 * @throws IllegalArgumentException Thrown if <code>key</code> is empty
 	 */
 	public AntiDoSSlot(String monitorName, String key, final int maxCountersPerSlot) throws IllegalArgumentException {
+		this(monitorName, key, maxCountersPerSlot, null);
+	}
+
+	/**
+	 * @param evictions Incremented for every counter removed because the slot is
+	 *                  full. Can be <code>null</code>
+	 * @see #AntiDoSSlot(String, String, int)
+	 */
+	AntiDoSSlot(String monitorName, String key, int maxCountersPerSlot, LongAdder evictions)
+			throws IllegalArgumentException {
 		if (key == null || key.length() == 0)
 			throw new IllegalArgumentException();
 
@@ -61,16 +139,22 @@ public class AntiDoSSlot {
 
 		this.key = key;
 
-		counters = Collections
-				.synchronizedMap(new LinkedHashMap<String, AntiDoSCounter>(maxCountersPerSlot, 0.75f, true) {
-					private static final long serialVersionUID = 1L;
+		// The map grows with the counters, a slot with few clients stays small:
+		counters = new LinkedHashMap<String, AntiDoSCounter>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, AntiDoSCounter> eldest) {
+				if (size() <= AntiDoSSlot.this.maxCountersPerSlot)
+					return false;
 
-					@Override
-					protected boolean removeEldestEntry(Map.Entry<String, AntiDoSCounter> eldest) {
-						return size() > maxCountersPerSlot;
-					}
-				});
+				if (AntiDoSSlot.this.evictions != null)
+					AntiDoSSlot.this.evictions.increment();
+				return true;
+			}
+		};
 		this.maxCountersPerSlot = maxCountersPerSlot;
+		this.evictions = evictions;
 	}
 
 	/**
@@ -83,15 +167,34 @@ public class AntiDoSSlot {
 		if (counterName == null || counterName.length() == 0)
 			throw new IllegalArgumentException();
 
-		boolean slotNotFullYet = counters.size() < maxCountersPerSlot;
+		AntiDoSCounter counter;
+		boolean cacheFull = false;
+
+		if (frozen != null)
+			return provideDetachedCounter(counterName);
+
+		lock.lock();
+		try {
+			if (counters == null)
+				return provideDetachedCounter(counterName);
+
+			counter = counters.get(counterName);
+			if (counter == null) {
+				boolean slotNotFullYet = counters.size() < maxCountersPerSlot;
 
-		if (!counters.containsKey(counterName)) {
-			counters.putIfAbsent(counterName, new AntiDoSCounter());
+				counter = new AntiDoSCounter();
+				counters.put(counterName, counter);
 
-			if (log.isInfoEnabled() && slotNotFullYet && counters.size() >= maxCountersPerSlot)
-				log.info(name4logging + " Counter Cache is full");
+				cacheFull = slotNotFullYet && counters.size() >= maxCountersPerSlot;
+			}
+		} finally {
+			lock.unlock();
 		}
-		return counters.get(counterName);
+
+		if (cacheFull && log.isInfoEnabled())
+			log.info(name4logging + " Counter Cache is full");
+
+		return counter;
 	}
 
 	/**
@@ -104,7 +207,158 @@ public class AntiDoSSlot {
 		if (counterName == null || counterName.length() == 0)
 			throw new IllegalArgumentException();
 
-		return counters.get(counterName);
+		if (frozen != null)
+			return provideFrozenCounter(counterName);
+
+		lock.lock();
+		try {
+			if (counters == null)
+				return provideFrozenCounter(counterName);
+
+			return counters.get(counterName);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Variant of {@link #getCounterIfExists(String)} that does not create any
+	 * object, used to compute the retained counts from previous slots
+	 * 
+	 * @param counterName The name of the counter (e. g. an IP address)
+	 * @return The count of the counter or <code>-1</code> if it does not exist
+	 */
+	public int getCountIfExists(String counterName) {
+		Frozen _frozen = frozen;
+		if (_frozen != null) {
+			int index = _frozen.indexOf(counterName);
+			return index >= 0 ? AntiDoSCounter.count(_frozen.states[index]) : -1;
+		}
+
+		AntiDoSCounter counter = getCounterIfExists(counterName);
+		return counter != null ? counter.getCountValue() : -1;
+	}
+
+	/**
+	 * Replaces the map of counters by sorted arrays. Afterwards counters can
+	 * still be read, but they are copies: changes to them are not stored in the
+	 * slot any more. Called by the monitor when the slot is no longer the current
+	 * one
+	 */
+	public void freeze() {
+		lock.lock();
+		try {
+			if (counters == null)
+				return;
+
+			int size = counters.size();
+
+			// Sort by hash code, the lower half keeps the position in the map:
+			long[] order = new long[size];
+			String[] mapNames = new String[size];
+			long[] mapStates = new long[size];
+			int i = 0;
+			for (Map.Entry<String, AntiDoSCounter> entry : counters.entrySet()) {
+				mapNames[i] = entry.getKey();
+				mapStates[i] = entry.getValue().getState();
+				order[i] = ((long) entry.getKey().hashCode() << 32) | i;
+				i++;
+			}
+			Arrays.sort(order);
+
+			int[] hashes = new int[size];
+			String[] names = new String[size];
+			long[] states = new long[size];
+			for (i = 0; i < size; i++) {
+				int index = (int) order[i];
+				hashes[i] = (int) (order[i] >> 32);
+				names[i] = mapNames[index];
+				states[i] = mapStates[index];
+			}
+
+			frozen = new Frozen(hashes, names, states);
+			counters = null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 
+	 * @return <code>true</code> after {@link #freeze()}
+	 */
+	public boolean isFrozen() {
+		return frozen != null;
+	}
+
+	/**
+	 * @return A copy of a counter of the frozen slot or <code>null</code>
+	 */
+	private AntiDoSCounter provideFrozenCounter(String counterName) {
+		Frozen _frozen = frozen;
+		int index = _frozen.indexOf(counterName);
+		return index >= 0 ? new AntiDoSCounter(_frozen.states[index]) : null;
+	}
+
+	/**
+	 * A request may still reach a slot that has just been frozen. It is decided
+	 * on a copy of the counter, so a locked counter stays locked
+	 */
+	private AntiDoSCounter provideDetachedCounter(String counterName) {
+		AntiDoSCounter counter = provideFrozenCounter(counterName);
+		return counter != null ? counter : new AntiDoSCounter();
+	}
+
+	/**
+	 * Changes the number of counters that can be held in the slot. If the slot
+	 * holds more counters, the counters that have not been accessed the longest
+	 * are removed. Has no effect on a frozen slot
+	 * 
+	 * @param maxCounters The new number of counters, at least 1
+	 * @throws IllegalArgumentException Thrown if the number is less than 1
+	 */
+	public void setMaxCounters(int maxCounters) throws IllegalArgumentException {
+		if (maxCounters < 1)
+			throw new IllegalArgumentException("Parameter maxCounters is invalid: " + maxCounters);
+
+		lock.lock();
+		try {
+			maxCountersPerSlot = maxCounters;
+			if (counters == null)
+				return;
+
+			// Least recently used first:
+			Iterator<AntiDoSCounter> it = counters.values().iterator();
+			while (counters.size() > maxCounters && it.hasNext()) {
+				it.next();
+				it.remove();
+
+				if (evictions != null)
+					evictions.increment();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 
+	 * @return The number of counters in the slot
+	 */
+	public int getNumberOfCounters() {
+		Frozen _frozen = frozen;
+		if (_frozen != null)
+			return _frozen.names.length;
+
+		lock.lock();
+		try {
+			if (counters == null)
+				return frozen.names.length;
+
+			return counters.size();
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	public String getKey() {
@@ -115,16 +369,44 @@ public class AntiDoSSlot {
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 
-		sb.append("#Counters: ").append(counters.size()).append(" Locked: ");
-
 		boolean hasLockedCounters = false;
-		for (String _ip : counters.keySet()) {
-			AntiDoSCounter ip = counters.get(_ip);
-			if (ip.isLocked()) {
-				sb.append(_ip).append(" (").append(ip.getCount()).append("|").append(ip.getRetainedCounts())
-						.append(")");
-				hasLockedCounters = true;
+
+		Frozen _frozen = frozen;
+		if (_frozen != null) {
+			sb.append("#Counters: ").append(_frozen.names.length).append(" Locked: ");
+
+			for (int i = 0; i < _frozen.names.length; i++) {
+				long state = _frozen.states[i];
+				if (AntiDoSCounter.isLocked(state)) {
+					sb.append(_frozen.names[i]).append(" (").append(AntiDoSCounter.count(state)).append("|")
+							.append(AntiDoSCounter.retained(state)).append(")");
+					hasLockedCounters = true;
+				}
+			}
+			if (!hasLockedCounters)
+				sb.append("-");
+
+			return sb.toString();
+		}
+
+		lock.lock();
+		try {
+			if (counters == null)
+				return toString();
+
+			sb.append("#Counters: ").append(counters.size()).append(" Locked: ");
+
+			// Iteration over the entries does not change the access order:
+			for (Map.Entry<String, AntiDoSCounter> entry : counters.entrySet()) {
+				AntiDoSCounter ip = entry.getValue();
+				if (ip.isLocked()) {
+					sb.append(entry.getKey()).append(" (").append(ip.getCountValue()).append("|")
+							.append(ip.getRetainedCountsValue()).append(")");
+					hasLockedCounters = true;
+				}
 			}
+		} finally {
+			lock.unlock();
 		}
 
 		if (!hasLockedCounters)
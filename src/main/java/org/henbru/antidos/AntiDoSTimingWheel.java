@@ -0,0 +1,325 @@
+package org.henbru.antidos;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Copyright 2017 Henning Brune
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *************************
+ *
+ * This class implements a hashed timing wheel: tasks are sorted into a ring of
+ * buckets by their deadline, each bucket covers one tick. Adding a task and
+ * running it when it is due costs O(1), no matter how many tasks are waiting.
+ * Tasks whose deadline is further away than one turn of the wheel stay in their
+ * bucket until the deadline is reached.
+ * <p>
+ * The wheel is advanced by {@link #advance(long)}, either by the caller or by a
+ * shared background thread after {@link #startTicking()}. Tasks are run on the
+ * advancing thread and should therefore be short. The background thread ends
+ * when the last wheel stops ticking
+ *
+ * @author Henning
+ *
+ */
+public class AntiDoSTimingWheel {
+
+	private static final Log log = LogFactory.getLog(AntiDoSValve.ANTIDOS_LOGGER_NAME);
+
+	/**
+	 * Guards {@link #ticker} and {@link #tickingWheels}. A lock instead of
+	 * <code>synchronized</code>, as wheels are started from request threads, which
+	 * might be virtual threads
+	 */
+	private static final ReentrantLock tickerLock = new ReentrantLock();
+
+	/**
+	 * The thread advancing all ticking wheels. Created when the first wheel starts
+	 * ticking and shut down when the last one stops. Guarded by
+	 * {@link #tickerLock}
+	 */
+	private static ScheduledExecutorService ticker = null;
+
+	/**
+	 * The number of wheels advanced by {@link #ticker}. Guarded by
+	 * {@link #tickerLock}
+	 */
+	private static int tickingWheels = 0;
+
+	private final long tickLength;
+
+	private final Bucket[] buckets;
+
+	private final int mask;
+
+	private final LongSupplier clock;
+
+	/**
+	 * Guards the buckets and <code>lastTick</code>. Tasks are run outside of the
+	 * lock
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private long lastTick;
+
+	private int size = 0;
+
+	/**
+	 * Guards {@link #tickerFuture}. Never held while waiting for
+	 * {@link #lock}
+	 */
+	private final ReentrantLock tickingLock = new ReentrantLock();
+
+	private ScheduledFuture<?> tickerFuture = null;
+
+	/**
+	 * The tasks of one tick. A class of its own, since arrays of a generic type
+	 * cannot be created
+	 */
+	private static class Bucket extends ArrayList<Timeout> {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Takes the due tasks out of the bucket in a single pass: the others are
+		 * moved to the front and the rest is cut off, so draining a bucket with many
+		 * tasks of the same deadline costs O(n)
+		 *
+		 * @param due The list for the due tasks, created if <code>null</code>
+		 * @return The list with the due tasks, <code>null</code> if there are none
+		 */
+		private List<Runnable> drain(long nowTick, long tickLength, List<Runnable> due) {
+			int kept = 0;
+			int length = size();
+			for (int i = 0; i < length; i++) {
+				Timeout timeout = get(i);
+				if (timeout.deadline / tickLength <= nowTick) {
+					if (due == null)
+						due = new ArrayList<Runnable>();
+					due.add(timeout.task);
+				} else {
+					set(kept++, timeout);
+				}
+			}
+			removeRange(kept, length);
+			return due;
+		}
+	}
+
+	private static class Timeout {
+		private final long deadline;
+		private final Runnable task;
+
+		private Timeout(long deadline, Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+	}
+
+	/**
+	 * @param tickLength      The time covered by one bucket in milliseconds
+	 * @param numberOfBuckets The number of buckets. Rounded up to the next power of
+	 *                        two
+	 * @param clock           Provides the current time in milliseconds, used by
+	 *                        the background thread and for the start of the wheel
+	 * @throws IllegalArgumentException Thrown if a parameter is invalid
+	 */
+	public AntiDoSTimingWheel(long tickLength, int numberOfBuckets, LongSupplier clock)
+			throws IllegalArgumentException {
+		if (tickLength < 1)
+			throw new IllegalArgumentException("Parameter tickLength is invalid: " + tickLength);
+
+		if (numberOfBuckets < 1 || numberOfBuckets > 1 << 20)
+			throw new IllegalArgumentException("Parameter numberOfBuckets is invalid: " + numberOfBuckets);
+
+		if (clock == null)
+			throw new IllegalArgumentException("Parameter clock is missing");
+
+		int length = Integer.highestOneBit(numberOfBuckets);
+		if (length < numberOfBuckets)
+			length <<= 1;
+
+		this.tickLength = tickLength;
+		this.buckets = new Bucket[length];
+		for (int i = 0; i < length; i++)
+			buckets[i] = new Bucket();
+		this.mask = length - 1;
+		this.clock = clock;
+		this.lastTick = clock.getAsLong() / tickLength;
+	}
+
+	/**
+	 * Adds a task to the wheel. Tasks with a deadline in the past are run on the
+	 * next call of {@link #advance(long)}
+	 *
+	 * @param deadline The time in milliseconds at which the task is due
+	 * @param task     The task
+	 */
+	public void schedule(long deadline, Runnable task) {
+		lock.lock();
+		try {
+			long tick = Math.max(deadline / tickLength, lastTick + 1);
+			buckets[(int) (tick & mask)].add(new Timeout(deadline, task));
+			size++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Moves the wheel forward to the given time and runs all tasks that are due.
+	 * If the time has jumped more than one turn of the wheel, every bucket is
+	 * visited once
+	 *
+	 * @param now The current time in milliseconds
+	 * @return The number of tasks that have been run
+	 */
+	public int advance(long now) {
+		List<Runnable> due = null;
+
+		lock.lock();
+		try {
+			long nowTick = now / tickLength;
+			long firstTick = Math.max(lastTick + 1, nowTick - mask);
+
+			for (long tick = firstTick; tick <= nowTick; tick++) {
+				Bucket bucket = buckets[(int) (tick & mask)];
+				if (!bucket.isEmpty()) {
+					int before = bucket.size();
+					due = bucket.drain(nowTick, tickLength, due);
+					size -= before - bucket.size();
+				}
+			}
+			if (nowTick > lastTick)
+				lastTick = nowTick;
+		} finally {
+			lock.unlock();
+		}
+
+		if (due == null)
+			return 0;
+
+		for (Runnable task : due) {
+			try {
+				task.run();
+			} catch (RuntimeException ex) {
+				log.warn("AntiDoSTimingWheel task failed", ex);
+			}
+		}
+		return due.size();
+	}
+
+	/**
+	 * @return The number of tasks waiting in the wheel
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Lets the shared background thread advance this wheel once per tick, using
+	 * the clock of the wheel
+	 */
+	public void startTicking() {
+		tickingLock.lock();
+		try {
+			if (tickerFuture != null)
+				return;
+
+			tickerLock.lock();
+			try {
+				if (ticker == null) {
+					ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+						Thread thread = new Thread(r, "AntiDoSTimingWheel");
+						thread.setDaemon(true);
+						return thread;
+					});
+				}
+				tickerFuture = ticker.scheduleAtFixedRate(() -> advance(clock.getAsLong()), tickLength, tickLength,
+						TimeUnit.MILLISECONDS);
+				tickingWheels++;
+			} finally {
+				tickerLock.unlock();
+			}
+		} finally {
+			tickingLock.unlock();
+		}
+	}
+
+	/**
+	 * Stops advancing this wheel in the background. Waiting tasks are kept. The
+	 * background thread is shut down if no other wheel is ticking
+	 */
+	public void stopTicking() {
+		tickingLock.lock();
+		try {
+			if (tickerFuture == null)
+				return;
+
+			tickerFuture.cancel(false);
+			tickerFuture = null;
+
+			tickerLock.lock();
+			try {
+				if (--tickingWheels == 0) {
+					ticker.shutdown();
+					ticker = null;
+				}
+			} finally {
+				tickerLock.unlock();
+			}
+		} finally {
+			tickingLock.unlock();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if this wheel is advanced in the background
+	 */
+	public boolean isTicking() {
+		tickingLock.lock();
+		try {
+			return tickerFuture != null;
+		} finally {
+			tickingLock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of wheels advanced by the shared background thread. The
+	 *         thread is only running if this number is greater than 0
+	 */
+	static int getTickingWheels() {
+		tickerLock.lock();
+		try {
+			return ticker != null ? tickingWheels : 0;
+		} finally {
+			tickerLock.unlock();
+		}
+	}
+}
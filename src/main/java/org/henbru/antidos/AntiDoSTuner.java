@@ -0,0 +1,548 @@
+package org.henbru.antidos;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copyright 2017 Henning Brune
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *************************
+ *
+ * This class evaluates many configurations of {@link AntiDoSMonitor} with the
+ * same synthetic traffic, so the parameters can be chosen from data instead of
+ * trial and error. The traffic of {@link TrafficModel} consists of regular
+ * users with Zipf distributed activity and of attackers: crawlers with bursts,
+ * a distributed flood and a client that uses a new IPv6 address of its /64
+ * network for every request.
+ * <p>
+ * Each configuration is simulated with its own monitor and virtual clock on a
+ * fork/join pool. Since every simulation creates the traffic from the same
+ * seed, all configurations see the same requests. The result per configuration
+ * is the share of blocked requests of regular users, the requests per second
+ * allowed to the attackers and the peak number of counters.
+ * <p>
+ * Usage, with comma separated values per parameter:
+ * <p>
+ * <code>java -cp anti-dos-valve.jar:... org.henbru.antidos.AntiDoSTuner maxIPCacheSize=250,1000
+ * numberOfSlots=10,20 slotLength=15,30 allowedRequestsPerSlot=20,50,100 shareOfRetainedFormerRequests=0,1,5</code>
+ * <p>
+ * The parameters of the traffic model can be given in the same way, see
+ * {@link TrafficModel#setParameter(String, String)}
+ *
+ * @author Henning
+ *
+ */
+public class AntiDoSTuner {
+
+	/**
+	 * Length of a step of the simulation in milliseconds
+	 */
+	private static final int TICK = 100;
+
+	/**
+	 * The monitor parameters of one simulation
+	 */
+	public static class Configuration {
+		private final int maxCountersPerSlot;
+		private final int numberOfSlots;
+		private final int slotLength;
+		private final int allowedRequestsPerSlot;
+		private final float shareOfRetainedFormerRequests;
+
+		/**
+		 * @see AntiDoSMonitor#AntiDoSMonitor(String, int, int, int, int, float)
+		 */
+		public Configuration(int maxCountersPerSlot, int numberOfSlots, int slotLength, int allowedRequestsPerSlot,
+				float shareOfRetainedFormerRequests) {
+			this.maxCountersPerSlot = maxCountersPerSlot;
+			this.numberOfSlots = numberOfSlots;
+			this.slotLength = slotLength;
+			this.allowedRequestsPerSlot = allowedRequestsPerSlot;
+			this.shareOfRetainedFormerRequests = shareOfRetainedFormerRequests;
+		}
+
+		@Override
+		public String toString() {
+			return "maxIPCacheSize=" + maxCountersPerSlot + " numberOfSlots=" + numberOfSlots + " slotLength="
+					+ slotLength + " allowedRequestsPerSlot=" + allowedRequestsPerSlot
+					+ " shareOfRetainedFormerRequests=" + shareOfRetainedFormerRequests;
+		}
+	}
+
+	/**
+	 * The outcome of one simulation
+	 */
+	public static class Result {
+		private final Configuration configuration;
+		private long regularRequests = 0;
+		private long regularBlocked = 0;
+		private long attackRequests = 0;
+		private long attackAllowed = 0;
+		private int peakCounters = 0;
+		private int duration = 0;
+		private String error = null;
+
+		private Result(Configuration configuration) {
+			this.configuration = configuration;
+		}
+
+		public Configuration getConfiguration() {
+			return configuration;
+		}
+
+		/**
+		 * @return The share of the requests of regular users that have been
+		 *         blocked
+		 */
+		public double getFalseBlockRate() {
+			return regularRequests > 0 ? (double) regularBlocked / regularRequests : 0;
+		}
+
+		/**
+		 * @return The number of requests of attackers allowed per second
+		 */
+		public double getAttackerThroughput() {
+			return duration > 0 ? (double) attackAllowed / duration : 0;
+		}
+
+		/**
+		 * @return The share of the requests of attackers that have been allowed
+		 */
+		public double getAttackerShare() {
+			return attackRequests > 0 ? (double) attackAllowed / attackRequests : 0;
+		}
+
+		/**
+		 * @return The highest number of counters held by the monitor at the end of
+		 *         a simulated second
+		 */
+		public int getPeakCounters() {
+			return peakCounters;
+		}
+
+		/**
+		 * @return The memory of the counters at their peak in bytes, estimated with
+		 *         {@link AntiDoSMonitor#ESTIMATED_BYTES_PER_COUNTER}
+		 */
+		public long getEstimatedPeakMemory() {
+			return (long) peakCounters * AntiDoSMonitor.ESTIMATED_BYTES_PER_COUNTER;
+		}
+
+		/**
+		 * @return The message if the configuration is invalid, otherwise
+		 *         <code>null</code>
+		 */
+		public String getError() {
+			return error;
+		}
+
+		@Override
+		public String toString() {
+			if (error != null)
+				return configuration + ": " + error;
+
+			return String.format("%s: falseBlocks=%.3f%% attackerThroughput=%.1f/s (%.1f%%) peakCounters=%d (~%d KB)",
+					configuration, getFalseBlockRate() * 100, getAttackerThroughput(), getAttackerShare() * 100,
+					peakCounters, getEstimatedPeakMemory() / 1024);
+		}
+	}
+
+	/**
+	 * The synthetic traffic. The parameters are set before the simulations
+	 * start, afterwards the model is only read and can be shared by all
+	 * simulations
+	 */
+	public static class TrafficModel {
+		private long seed = 4711;
+		private int duration = 3600;
+		private int regularUsers = 2000;
+		private double regularRate = 50;
+		private double zipfExponent = 1.0;
+		private int crawlers = 5;
+		private double crawlerRate = 10;
+		private int crawlerBurst = 60;
+		private int crawlerPause = 300;
+		private int floodIPs = 1000;
+		private double floodRate = 200;
+		private int floodStart = 1200;
+		private int floodEnd = 1800;
+		private double rotatingIPv6Rate = 20;
+
+		/**
+		 * Sets a parameter by its name. The names are <code>seed</code>,
+		 * <code>duration</code> (seconds), <code>regularUsers</code>,
+		 * <code>regularRate</code> (requests per second of all regular users),
+		 * <code>zipfExponent</code>, <code>crawlers</code>,
+		 * <code>crawlerRate</code> (requests per second of a crawler in a burst),
+		 * <code>crawlerBurst</code> and <code>crawlerPause</code> (mean duration in
+		 * seconds), <code>floodIPs</code>, <code>floodRate</code> (requests per
+		 * second of all flooding IP addresses), <code>floodStart</code> and
+		 * <code>floodEnd</code> (seconds) and <code>rotatingIPv6Rate</code>
+		 * (requests per second)
+		 *
+		 * @return <code>false</code> if the name is unknown
+		 * @throws NumberFormatException Thrown if the value is no number
+		 */
+		public boolean setParameter(String name, String value) throws NumberFormatException {
+			switch (name) {
+			case "seed":
+				seed = Long.parseLong(value);
+				break;
+			case "duration":
+				duration = Integer.parseInt(value);
+				break;
+			case "regularUsers":
+				regularUsers = Integer.parseInt(value);
+				break;
+			case "regularRate":
+				regularRate = Double.parseDouble(value);
+				break;
+			case "zipfExponent":
+				zipfExponent = Double.parseDouble(value);
+				break;
+			case "crawlers":
+				crawlers = Integer.parseInt(value);
+				break;
+			case "crawlerRate":
+				crawlerRate = Double.parseDouble(value);
+				break;
+			case "crawlerBurst":
+				crawlerBurst = Integer.parseInt(value);
+				break;
+			case "crawlerPause":
+				crawlerPause = Integer.parseInt(value);
+				break;
+			case "floodIPs":
+				floodIPs = Integer.parseInt(value);
+				break;
+			case "floodRate":
+				floodRate = Double.parseDouble(value);
+				break;
+			case "floodStart":
+				floodStart = Integer.parseInt(value);
+				break;
+			case "floodEnd":
+				floodEnd = Integer.parseInt(value);
+				break;
+			case "rotatingIPv6Rate":
+				rotatingIPv6Rate = Double.parseDouble(value);
+				break;
+			default:
+				return false;
+			}
+			return true;
+		}
+
+		public int getDuration() {
+			return duration;
+		}
+	}
+
+	/**
+	 * Monitor with the virtual clock of a simulation
+	 */
+	private static class SimulatedMonitor extends AntiDoSMonitor {
+		private long now;
+
+		private SimulatedMonitor(Configuration configuration, long start) {
+			super("TUNER", configuration.maxCountersPerSlot, configuration.numberOfSlots, configuration.slotLength,
+					configuration.allowedRequestsPerSlot, configuration.shareOfRetainedFormerRequests);
+			now = start;
+		}
+
+		@Override
+		protected long getTimeInMillis() {
+			return now;
+		}
+	}
+
+	/**
+	 * Splits the simulations between the threads of the pool
+	 */
+	private class SweepTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Result[] results;
+		private final int from;
+		private final int to;
+
+		private SweepTask(Result[] results, int from, int to) {
+			this.results = results;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				simulate(results[from]);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new SweepTask(results, from, middle), new SweepTask(results, middle, to));
+		}
+	}
+
+	private final TrafficModel model;
+
+	private final String[] regularAddresses;
+
+	private final String[] crawlerAddresses;
+
+	private final String[] floodAddresses;
+
+	/**
+	 * Cumulative probabilities of the regular users
+	 */
+	private final double[] zipf;
+
+	/**
+	 * @param model The traffic. Must not be changed afterwards
+	 */
+	public AntiDoSTuner(TrafficModel model) {
+		this.model = model;
+
+		regularAddresses = new String[model.regularUsers];
+		for (int i = 0; i < regularAddresses.length; i++)
+			regularAddresses[i] = "10." + (i >>> 16 & 0xff) + "." + (i >>> 8 & 0xff) + "." + (i & 0xff);
+
+		crawlerAddresses = new String[model.crawlers];
+		for (int i = 0; i < crawlerAddresses.length; i++)
+			crawlerAddresses[i] = "172.16." + (i >>> 8 & 0xff) + "." + (i & 0xff);
+
+		floodAddresses = new String[model.floodIPs];
+		for (int i = 0; i < floodAddresses.length; i++)
+			floodAddresses[i] = "192.0." + (i >>> 8 & 0xff) + "." + (i & 0xff);
+
+		zipf = new double[model.regularUsers];
+		double sum = 0;
+		for (int i = 0; i < zipf.length; i++) {
+			sum += 1 / Math.pow(i + 1, model.zipfExponent);
+			zipf[i] = sum;
+		}
+		for (int i = 0; i < zipf.length; i++)
+			zipf[i] /= sum;
+	}
+
+	/**
+	 * Simulates all configurations in parallel
+	 *
+	 * @param configurations The configurations
+	 * @param pool           The pool running the simulations
+	 * @return The results in the order of the configurations
+	 */
+	public List<Result> sweep(List<Configuration> configurations, ForkJoinPool pool) {
+		Result[] results = new Result[configurations.size()];
+		for (int i = 0; i < results.length; i++)
+			results[i] = new Result(configurations.get(i));
+
+		if (results.length > 0)
+			pool.invoke(new SweepTask(results, 0, results.length));
+
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * Runs the traffic of the model through a monitor with the configuration
+	 */
+	private void simulate(Result result) {
+		long start = 1000000000000L;
+		SimulatedMonitor monitor;
+		try {
+			monitor = new SimulatedMonitor(result.configuration, start);
+		} catch (IllegalArgumentException ex) {
+			result.error = ex.getMessage();
+			return;
+		}
+
+		Random random = new Random(model.seed);
+		boolean[] bursting = new boolean[model.crawlers];
+		double ticksPerSecond = 1000.0 / TICK;
+
+		for (int second = 0; second < model.duration; second++) {
+			for (int tick = 0; tick < ticksPerSecond; tick++) {
+				monitor.now = start + second * 1000L + tick * TICK;
+
+				int regular = requests(random, model.regularRate / ticksPerSecond);
+				for (int i = 0; i < regular; i++) {
+					int user = Arrays.binarySearch(zipf, random.nextDouble());
+					String ip = regularAddresses[Math.min(user < 0 ? -user - 1 : user, zipf.length - 1)];
+					result.regularRequests++;
+					if (!monitor.registerAndCheckRequest(ip))
+						result.regularBlocked++;
+				}
+
+				for (int c = 0; c < model.crawlers; c++) {
+					// Bursts and pauses with exponentially distributed durations:
+					int meanDuration = bursting[c] ? model.crawlerBurst : model.crawlerPause;
+					if (random.nextDouble() < 1.0 / (meanDuration * ticksPerSecond))
+						bursting[c] = !bursting[c];
+					if (bursting[c]) {
+						int crawler = requests(random, model.crawlerRate / ticksPerSecond);
+						attack(result, monitor, crawlerAddresses[c], crawler);
+					}
+				}
+
+				if (second >= model.floodStart && second < model.floodEnd && floodAddresses.length > 0) {
+					int flood = requests(random, model.floodRate / ticksPerSecond);
+					for (int i = 0; i < flood; i++)
+						attack(result, monitor, floodAddresses[random.nextInt(floodAddresses.length)], 1);
+				}
+
+				int rotating = requests(random, model.rotatingIPv6Rate / ticksPerSecond);
+				for (int i = 0; i < rotating; i++) {
+					String ip = "2001:db8:0:1:" + Integer.toHexString(random.nextInt(0x10000)) + ":"
+							+ Integer.toHexString(random.nextInt(0x10000)) + ":"
+							+ Integer.toHexString(random.nextInt(0x10000)) + ":"
+							+ Integer.toHexString(random.nextInt(0x10000));
+					attack(result, monitor, ip, 1);
+				}
+			}
+
+			result.peakCounters = Math.max(result.peakCounters, monitor.getNumberOfCounters());
+		}
+		result.duration = model.duration;
+	}
+
+	private static void attack(Result result, AntiDoSMonitor monitor, String ip, int requests) {
+		for (int i = 0; i < requests; i++) {
+			result.attackRequests++;
+			if (monitor.registerAndCheckRequest(ip))
+				result.attackAllowed++;
+		}
+	}
+
+	/**
+	 * @return The number of requests in a tick for a mean value: the integer
+	 *         part and one more with the probability of the fraction
+	 */
+	private static int requests(Random random, double mean) {
+		int requests = (int) mean;
+		return random.nextDouble() < mean - requests ? requests + 1 : requests;
+	}
+
+	/**
+	 * Creates all combinations of the values of the parameters
+	 *
+	 * @throws IllegalArgumentException Thrown if a list is empty
+	 */
+	public static List<Configuration> combine(int[] maxCountersPerSlot, int[] numberOfSlots, int[] slotLength,
+			int[] allowedRequestsPerSlot, float[] shareOfRetainedFormerRequests) throws IllegalArgumentException {
+		if (maxCountersPerSlot.length == 0 || numberOfSlots.length == 0 || slotLength.length == 0
+				|| allowedRequestsPerSlot.length == 0 || shareOfRetainedFormerRequests.length == 0)
+			throw new IllegalArgumentException("Every parameter needs at least one value");
+
+		List<Configuration> configurations = new ArrayList<Configuration>();
+		for (int cache : maxCountersPerSlot)
+			for (int slots : numberOfSlots)
+				for (int length : slotLength)
+					for (int allowed : allowedRequestsPerSlot)
+						for (float share : shareOfRetainedFormerRequests)
+							configurations.add(new Configuration(cache, slots, length, allowed, share));
+		return configurations;
+	}
+
+	/**
+	 * Sorts the results by the false block rate, then by the attacker throughput
+	 * and prints them
+	 */
+	public static void printReport(PrintStream out, List<Result> results) {
+		List<Result> sorted = new ArrayList<Result>(results);
+		sorted.sort(Comparator.comparing((Result r) -> r.error != null).thenComparingDouble(Result::getFalseBlockRate)
+				.thenComparingDouble(Result::getAttackerThroughput));
+		for (Result result : sorted)
+			out.println(result);
+	}
+
+	private static int[] parseInts(String values) {
+		String[] parts = values.split(",");
+		int[] result = new int[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			result[i] = Integer.parseInt(parts[i].trim());
+		return result;
+	}
+
+	private static float[] parseFloats(String values) {
+		String[] parts = values.split(",");
+		float[] result = new float[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			result[i] = Float.parseFloat(parts[i].trim());
+		return result;
+	}
+
+	public static void main(String[] args) {
+		// Every lock would be logged otherwise:
+		Logger antidosLogger = Logger.getLogger(AntiDoSValve.ANTIDOS_LOGGER_NAME);
+		antidosLogger.setLevel(Level.WARNING);
+
+		int[] maxIPCacheSize = { 1000 };
+		int[] numberOfSlots = { 10 };
+		int[] slotLength = { 30 };
+		int[] allowedRequestsPerSlot = { 50 };
+		float[] shareOfRetainedFormerRequests = { 1 };
+		TrafficModel model = new TrafficModel();
+
+		try {
+			for (String arg : args) {
+				int pos = arg.indexOf('=');
+				if (pos < 1)
+					throw new IllegalArgumentException("Parameter is not in the form name=value: " + arg);
+
+				String name = arg.substring(0, pos);
+				String value = arg.substring(pos + 1);
+				switch (name) {
+				case "maxIPCacheSize":
+					maxIPCacheSize = parseInts(value);
+					break;
+				case "numberOfSlots":
+					numberOfSlots = parseInts(value);
+					break;
+				case "slotLength":
+					slotLength = parseInts(value);
+					break;
+				case "allowedRequestsPerSlot":
+					allowedRequestsPerSlot = parseInts(value);
+					break;
+				case "shareOfRetainedFormerRequests":
+					shareOfRetainedFormerRequests = parseFloats(value);
+					break;
+				default:
+					if (!model.setParameter(name, value))
+						throw new IllegalArgumentException("Unknown parameter: " + name);
+				}
+			}
+		} catch (IllegalArgumentException ex) {
+			System.err.println(ex.getMessage());
+			System.exit(1);
+		}
+
+		List<Configuration> configurations = combine(maxIPCacheSize, numberOfSlots, slotLength,
+				allowedRequestsPerSlot, shareOfRetainedFormerRequests);
+
+		long start = System.currentTimeMillis();
+		List<Result> results = new AntiDoSTuner(model).sweep(configurations, ForkJoinPool.commonPool());
+		printReport(System.out, results);
+		System.out.println(configurations.size() + " configurations with " + model.duration + " seconds of traffic in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+}
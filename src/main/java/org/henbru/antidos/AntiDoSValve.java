@@ -1,20 +1,38 @@
 package org.henbru.antidos;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
 
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.DispatcherType;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
+import org.apache.catalina.Container;
+import org.apache.catalina.Engine;
 import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Service;
+import org.apache.catalina.connector.Connector;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
 import org.apache.catalina.valves.ValveBase;
+import org.apache.coyote.ActionCode;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.http.MimeHeaders;
+import org.apache.tomcat.util.threads.ResizableExecutor;
+import org.apache.tomcat.util.threads.ThreadPoolExecutor;
 
 /**
  * Copyright 2017 Henning Brune
@@ -47,10 +65,30 @@ import org.apache.juli.logging.LogFactory;
  * <li>{@link #setAlwaysForbiddenIPs(String)}
  * <li>{@link #setRelevantPaths(String)}
  * <li>{@link #setNonRelevantPaths(String)}
+ * <li>{@link #setRouteRules(String)}
+ * <li>{@link #setPathCosts(String)}
+ * <li>{@link #setResponseTimeCostUnit(int)}
  * <li>{@link #setMaxIPCacheSize(int)}
  * <li>{@link #setNumberOfSlots(int)}
  * <li>{@link #setSlotLength(int)}
  * <li>{@link #setShareOfRetainedFormerRequests(String)}
+ * <li>{@link #setMaxConcurrentPerIP(int)}
+ * <li>{@link #setAdaptiveMinRequestsPerSlot(int)}
+ * <li>{@link #setAdaptiveMaxRequestsPerSlot(int)}
+ * <li>{@link #setClientKeySource(String)}
+ * <li>{@link #setMonitorLayout(String)}
+ * <li>{@link #setSharedMemoryDirectory(String)}
+ * <li>{@link #setFastRejectLockedIPs(boolean)}
+ * <li>{@link #setBlockDuration(int)}
+ * <li>{@link #setOffenderTableSize(int)}
+ * <li>{@link #setStrikeDecay(int)}
+ * <li>{@link #setMaxBlockDuration(int)}
+ * <li>{@link #setMaxMonitorMemory(long)}
+ * <li>{@link #setMemoryPressureThreshold(int)}
+ * <li>{@link #setMetricsPath(String)}
+ * <li>{@link #setSamplingThreshold(int)}
+ * <li>{@link #setSamplingRate(int)}
+ * <li>{@link #setAdditionalWindows(String)}
  * <li>{@link #setSimulationMode(boolean)}
  * </ul>
  * 
@@ -79,6 +117,17 @@ public class AntiDoSValve extends ValveBase {
 	 */
 	public static final String MARKING_ATTRIBUTE_NAME = "org.henbru.antidos.AntiDoS";
 
+	/**
+	 * The default HTTP response status code that is set during a rejection due to
+	 * too many accesses in {@link #REJECTING_MONITOR_MODE}
+	 */
+	public static final int DEFAULT_REJECTION_HTTP_STATUS = 429;
+
+	/**
+	 * The body written during a rejection in {@link #REJECTING_MONITOR_MODE}
+	 */
+	private static final byte[] REJECTION_BODY = "Too many requests\n".getBytes(StandardCharsets.US_ASCII);
+
 	public AntiDoSValve() {
 		super(true);
 	}
@@ -98,8 +147,156 @@ public class AntiDoSValve extends ValveBase {
 	 */
 	public static final String MARKING_MONITOR_MODE = "MARKING";
 
+	/**
+	 * Monitor mode constant: This is the value for setting the mode to
+	 * 'rejecting'. Like in blocking mode requests which exceed the limits of the
+	 * valve are not passed to the application. Instead of an error which is
+	 * processed by the error pages of the container, a small fixed response with
+	 * the status {@link #setRejectionHttpStatus(int)} and a
+	 * <code>Retry-After</code> header is written directly by the valve. This keeps
+	 * the cost of rejected requests as low as possible
+	 */
+	public static final String REJECTING_MONITOR_MODE = "REJECTING";
+
+	/**
+	 * Monitor mode constant: This is the value for setting the mode to 'drop'. In
+	 * this mode the connection of requests which exceed the limits of the valve is
+	 * closed immediately, without writing any response. Meant for clients that are
+	 * clearly hostile, so connector threads and sockets are freed as fast as
+	 * possible. Requests only refused by {@link #setMaxConcurrentPerIP(int)} come
+	 * from clients within their limits and are rejected like in
+	 * {@link #REJECTING_MONITOR_MODE}. See also {@link #setDropThreshold(int)}
+	 */
+	public static final String DROP_MONITOR_MODE = "DROP";
+
+	/**
+	 * Monitor mode constant: This is the value for setting the mode to 'tarpit'.
+	 * In this mode requests from IP addresses over
+	 * {@link #setTarpitSoftLimit(int)} are delayed before they are passed to the
+	 * application. The delay grows with the number of requests over the soft
+	 * limit. Delayed requests are suspended using asynchronous processing, so
+	 * they do not hold a request thread while waiting. Requests which exceed the
+	 * limits of the monitor are blocked like in {@link #DEFAULT_MONITOR_MODE}
+	 */
+	public static final String TARPIT_MONITOR_MODE = "TARPIT";
+
+	/**
+	 * This name of the request attribute that is set by the valve on requests
+	 * suspended in {@link #TARPIT_MONITOR_MODE}. It is removed when the request is
+	 * dispatched again after the delay
+	 */
+	public static final String TARPIT_ATTRIBUTE_NAME = "org.henbru.antidos.AntiDoS.tarpit";
+
+	/**
+	 * Monitor layout constant: This is the default value. The monitor holds one
+	 * map of counters per slot, see {@link AntiDoSMonitor}
+	 */
+	public static final String DEFAULT_MONITOR_LAYOUT = "SLOTS";
+
+	/**
+	 * Monitor layout constant: The monitor holds a single map with one entry per
+	 * IP address and a ring of the counts in the previous slots, see
+	 * {@link AntiDoSRingMonitor}. Needs less memory if <code>numberOfSlots</code>
+	 * is large
+	 */
+	public static final String RING_MONITOR_LAYOUT = "RING";
+
+	/**
+	 * Monitor layout constant: The counters are held in a memory-mapped file in
+	 * {@link #setSharedMemoryDirectory(String)}, see {@link AntiDoSSharedMonitor}.
+	 * All JVMs on a host with the same directory and monitor name enforce one
+	 * limit together
+	 */
+	public static final String SHARED_MONITOR_LAYOUT = "SHARED";
+
+	/**
+	 * File name extension of the files of {@link #SHARED_MONITOR_LAYOUT}
+	 */
+	private static final String SHARED_FILE_EXTENSION = ".antidos";
+
+	/**
+	 * Ticks of the timing wheel resuming the requests delayed in
+	 * {@link #TARPIT_MONITOR_MODE}, in milliseconds
+	 */
+	private static final long TARPIT_TICK = 10;
+
 	private static final String DEFAULT_MONITOR_NAME = "DEFAULT";
 
+	/**
+	 * Time in milliseconds for which the answer under
+	 * {@link #setMetricsPath(String)} is reused instead of printed again
+	 */
+	private static final long METRICS_CACHE_MILLIS = 1000;
+
+	/**
+	 * Results of {@link #checkRequest(String, String, String)}. The request is allowed
+	 * without being counted in a monitor
+	 */
+	private static final int VERDICT_NOT_COUNTED = 0;
+
+	/**
+	 * The request has been counted and is allowed
+	 */
+	private static final int VERDICT_ALLOWED = 1;
+
+	/**
+	 * The request has been counted and is blocked by the monitor
+	 */
+	private static final int VERDICT_BLOCKED = 2;
+
+	/**
+	 * The request is blocked because of {@link #setAlwaysForbiddenIPs(String)}
+	 */
+	private static final int VERDICT_FORBIDDEN = 3;
+
+	/**
+	 * Names of the verdicts in the metrics, indexed by the verdict
+	 */
+	private static final String[] VERDICT_NAMES = { "not_counted", "allowed", "blocked", "forbidden" };
+
+	/**
+	 * Result of {@link #checkRequest(String, String, String)}: the verdict and the
+	 * monitor that has counted the request, so the further handling of the
+	 * request needs no second lookup of the route or the monitor
+	 */
+	private static final class RequestCheck {
+		private final int verdict;
+
+		/**
+		 * <code>null</code> if the request has not been counted
+		 */
+		private final AntiDoSMonitor monitor;
+
+		private RequestCheck(int verdict, AntiDoSMonitor monitor) {
+			this.verdict = verdict;
+			this.monitor = monitor;
+		}
+	}
+
+	/**
+	 * The answer under {@link #setMetricsPath(String)} and the time it has been
+	 * printed
+	 */
+	private static final class MetricsSnapshot {
+		private final byte[] body;
+
+		private final long created;
+
+		private MetricsSnapshot(byte[] body, long created) {
+			this.body = body;
+			this.created = created;
+		}
+	}
+
+	private static final RequestCheck CHECK_NOT_COUNTED = new RequestCheck(VERDICT_NOT_COUNTED, null);
+
+	private static final RequestCheck CHECK_FORBIDDEN = new RequestCheck(VERDICT_FORBIDDEN, null);
+
+	/**
+	 * The number of stripes used by the {@link AntiDoSConcurrencyLimiter}
+	 */
+	private static final int CONCURRENCY_STRIPES = 16384;
+
 	/**
 	 * Map of monitor objects for different valve instances
 	 */
@@ -110,13 +307,157 @@ public class AntiDoSValve extends ValveBase {
 	private int slotLength = -1;
 	private int allowedRequestsPerSlot = -1;
 	private float shareOfRetainedFormerRequests = -1;
+	private int adaptiveMinRequestsPerSlot = -1;
+	private int adaptiveMaxRequestsPerSlot = -1;
 	private boolean simulationMode = false;
 
+	/**
+	 * If <code>true</code> requests from locked IP addresses are rejected by the
+	 * index of locked counters, without counting them
+	 */
+	private volatile boolean fastRejectLockedIPs = false;
+
+	/**
+	 * Duration of a lock in seconds. 0 if a lock ends with the slot
+	 */
+	private volatile int blockDuration = 0;
+
+	/**
+	 * Number of entries of the table of repeat offenders. 0 if locks are not
+	 * extended for repeat offenders
+	 */
+	private volatile int offenderTableSize = 0;
+
+	/**
+	 * Time in seconds after which a strike of a repeat offender is forgotten
+	 */
+	private volatile int strikeDecay = 3600;
+
+	/**
+	 * Upper limit in seconds for the extended locks of repeat offenders
+	 */
+	private volatile int maxBlockDuration = 86400;
+
+	/**
+	 * Memory budget of the monitors in bytes. 0 if {@link #maxIPCacheSize} is
+	 * used
+	 */
+	private volatile long maxMonitorMemory = 0;
+
+	/**
+	 * Heap usage after a collection in percent from which on the monitors shed
+	 * memory. 0 if not active
+	 */
+	private volatile int memoryPressureThreshold = 0;
+
+	/**
+	 * Count of an IP address in a slot from which on only a sample of its
+	 * requests is counted
+	 */
+	private volatile int samplingThreshold = 0;
+
+	/**
+	 * One of this number of requests is counted past {@link #samplingThreshold}.
+	 * 1 if every request is counted
+	 */
+	private volatile int samplingRate = 1;
+
+	/**
+	 * Additional time windows of the monitor in the form
+	 * <code>windowLength=allowedRequests;...</code>. <code>null</code> if not set
+	 */
+	private volatile String additionalWindows = null;
+
+	/**
+	 * Path under which the valve answers with its metrics. <code>null</code> if
+	 * not active
+	 */
+	private volatile String metricsPath = null;
+
+	/**
+	 * Regular expression with the IP addresses to which the metrics are provided.
+	 * <code>null</code> if no address gets them
+	 */
+	private volatile Pattern metricsAllowedIPs = null;
+
+	/**
+	 * Configuration value for {@link #metricsAllowedIPs}. Probably not a valid
+	 * {@link Pattern}.
+	 */
+	private volatile String metricsAllowedIPsConfigValue = null;
+
+	/**
+	 * Variable for testing for configuration errors. <code>true</code> by default,
+	 * is set to <code>false</code> if {@link #setMetricsAllowedIPs(String)}
+	 * receives an invalid value
+	 */
+	private volatile boolean metricsAllowedIPsValid = true;
+
+	private final AntiDoSMetrics metrics = new AntiDoSMetrics(VERDICT_NAMES);
+
+	/**
+	 * The last answer under {@link #setMetricsPath(String)}. <code>null</code> if
+	 * there is none yet
+	 */
+	private volatile MetricsSnapshot metricsSnapshot = null;
+
 	/**
 	 * Monitor operation mode. If not set the default mode is used
 	 */
 	private volatile String monitorMode = DEFAULT_MONITOR_MODE;
 
+	/**
+	 * Memory layout of the monitor. If not set the default layout is used
+	 */
+	private volatile String monitorLayout = DEFAULT_MONITOR_LAYOUT;
+
+	/**
+	 * Directory of the files of {@link #SHARED_MONITOR_LAYOUT}. <code>null</code>
+	 * if not set
+	 */
+	private volatile String sharedMemoryDirectory = null;
+
+	/**
+	 * HTTP response status code used in {@link #REJECTING_MONITOR_MODE}
+	 */
+	private volatile int rejectionHttpStatus = DEFAULT_REJECTION_HTTP_STATUS;
+
+	/**
+	 * Number of counted requests in a slot from which on blocked requests are
+	 * dropped instead of answered. Not active if less than 1
+	 */
+	private volatile int dropThreshold = -1;
+
+	/**
+	 * Number of counted requests in a slot from which on requests are delayed in
+	 * {@link #TARPIT_MONITOR_MODE}
+	 */
+	private volatile int tarpitSoftLimit = -1;
+
+	/**
+	 * Delay in milliseconds per request over {@link #tarpitSoftLimit}
+	 */
+	private volatile int tarpitDelay = -1;
+
+	/**
+	 * Upper bound of the delay in milliseconds in {@link #TARPIT_MONITOR_MODE}
+	 */
+	private volatile int tarpitMaxDelay = 10000;
+
+	/**
+	 * The timing wheel resuming the requests delayed in
+	 * {@link #TARPIT_MONITOR_MODE}. Created on first use, stopped in
+	 * {@link #stopInternal()}
+	 */
+	private volatile AntiDoSTimingWheel tarpitWheel = null;
+
+	/**
+	 * Guards the creation and the stop of {@link #tarpitWheel}. A lock instead of
+	 * <code>synchronized</code>, as the wheel is created by a request thread,
+	 * which might be a virtual thread
+	 */
+	private final ReentrantLock tarpitWheelLock = new ReentrantLock();
+
 	/**
 	 * Internal monitor name. If not set a default name is used
 	 */
@@ -203,6 +544,104 @@ public class AntiDoSValve extends ValveBase {
 	 */
 	private volatile boolean nonRelevantPathsValid = true;
 
+	/**
+	 * Table of route rules, each with its own {@link AntiDoSMonitor} instance
+	 */
+	private volatile AntiDoSPathTable routeRules = null;
+
+	/**
+	 * Configuration value for the route rules. Probably not a valid
+	 * {@link AntiDoSPathTable}.
+	 */
+	private volatile String routeRulesConfigValue = null;
+
+	/**
+	 * Variable for testing for configuration errors. <code>true</code> by default,
+	 * is set to <code>false</code> if {@link #setRouteRules(String)} receives an
+	 * invalid value
+	 */
+	private volatile boolean routeRulesValid = true;
+
+	/**
+	 * The monitor objects for the route rules, in the order of the rules. Created
+	 * in {@link #reloadMonitor()}
+	 */
+	private volatile AntiDoSMonitor[] routeMonitors = null;
+
+	/**
+	 * Frees memory in the monitors of this valve, registered at the
+	 * {@link AntiDoSMemoryGuard} while the valve is started and
+	 * <code>memoryPressureThreshold</code> is set
+	 */
+	private final Runnable memoryShedding = this::shedMemory;
+
+	/**
+	 * Table of costs for requests on specific paths
+	 */
+	private volatile AntiDoSPathTable pathCosts = null;
+
+	/**
+	 * Configuration value for the path costs. Probably not a valid
+	 * {@link AntiDoSPathTable}.
+	 */
+	private volatile String pathCostsConfigValue = null;
+
+	/**
+	 * Variable for testing for configuration errors. <code>true</code> by default,
+	 * is set to <code>false</code> if {@link #setPathCosts(String)} receives an
+	 * invalid value
+	 */
+	private volatile boolean pathCostsValid = true;
+
+	/**
+	 * Response time in milliseconds that is charged as one additional cost unit.
+	 * Not active if less than 1
+	 */
+	private volatile int responseTimeCostUnit = -1;
+
+	/**
+	 * Limits the number of requests from one IP address processed at the same
+	 * time. <code>null</code> if not active
+	 */
+	private volatile AntiDoSConcurrencyLimiter concurrencyLimiter = null;
+
+	/**
+	 * Source of the key under which requests are counted, one of the
+	 * <code>SOURCE_*</code> constants in {@link AntiDoSClientKeyExtractor}
+	 */
+	private volatile String clientKeySource = AntiDoSClientKeyExtractor.SOURCE_REMOTE_ADDR;
+
+	/**
+	 * Name of the header or cookie for the client key
+	 */
+	private volatile String clientKeyName = null;
+
+	/**
+	 * Regular expression with the IP addresses of trusted proxies
+	 */
+	private volatile Pattern trustedProxies = null;
+
+	/**
+	 * The configured text value for trustedProxies
+	 */
+	private volatile String trustedProxiesConfigValue = null;
+
+	/**
+	 * Indicates whether the configured trustedProxies value is valid
+	 */
+	private volatile boolean trustedProxiesValid = true;
+
+	/**
+	 * Determines the client key. <code>null</code> if the remote address is used
+	 */
+	private volatile AntiDoSClientKeyExtractor clientKeyExtractor = null;
+
+	/**
+	 * Indicates whether clientKeySource, clientKeyName and trustedProxies fit
+	 * together
+	 */
+	private volatile boolean clientKeyValid = true;
+
 	/**
 	 * The monitor object for the monitorName in this instance. Calls
 	 * {@link #reloadMonitor()} to create monitor instance, if necessary
@@ -216,6 +655,41 @@ public class AntiDoSValve extends ValveBase {
 		return monitors.get(monitorName);
 	}
 
+	/**
+	 * The monitor object for a route rule in this instance. Calls
+	 * {@link #reloadMonitor()} to create the monitor instances, if necessary
+	 * 
+	 * @param route The index of the rule in {@link #setRouteRules(String)}
+	 * @return might be <code>null</code> if configuration is incomplete
+	 */
+	private AntiDoSMonitor provideRouteMonitor(int route) {
+		AntiDoSMonitor[] _routeMonitors = routeMonitors;
+		if (_routeMonitors == null || route >= _routeMonitors.length) {
+			reloadMonitor();
+			_routeMonitors = routeMonitors;
+		}
+
+		return _routeMonitors != null && route < _routeMonitors.length ? _routeMonitors[route] : null;
+	}
+
+	/**
+	 * @param name The name of a monitor, for route rules see
+	 *             {@link #provideRouteMonitorName(int)}
+	 * @return The monitor registered under the name, <code>null</code> if there is
+	 *         none. Does not create any monitor
+	 */
+	static AntiDoSMonitor getRegisteredMonitor(String name) {
+		Map<String, AntiDoSMonitor> _monitors = monitors;
+		return _monitors != null ? _monitors.get(name) : null;
+	}
+
+	/**
+	 * @return The name under which the monitor of a route rule is registered
+	 */
+	private String provideRouteMonitorName(int route) {
+		return monitorName + "#" + (route + 1);
+	}
+
 	/**
 	 * Creates the map for the monitors. Should be called only once in the lifetime
 	 * of the Tomcat container
@@ -239,6 +713,9 @@ public class AntiDoSValve extends ValveBase {
 	 *                    to check if the parameter is valid
 	 * @see #DEFAULT_MONITOR_MODE
 	 * @see #MARKING_MONITOR_MODE
+	 * @see #REJECTING_MONITOR_MODE
+	 * @see #DROP_MONITOR_MODE
+	 * @see #TARPIT_MONITOR_MODE
 	 */
 	public void setMonitorMode(String monitorMode) {
 		if (monitorMode == null || monitorMode.length() == 0) {
@@ -269,60 +746,263 @@ public class AntiDoSValve extends ValveBase {
 	}
 
 	/**
-	 * @return <code>true</code> is either {@link #isMonitorModeDefault()} or
-	 *         {@link #isMonitorModeMarking()} is <code>true</code>
+	 * 
+	 * @return returns <code>true</code> if monitorMode equals
+	 *         {@link #REJECTING_MONITOR_MODE}
+	 * @see #setMonitorMode(String)
 	 */
-	public boolean isMonitorModeValid() {
-		return isMonitorModeDefault() || isMonitorModeMarking();
+	public boolean isMonitorModeRejecting() {
+		return REJECTING_MONITOR_MODE.equals(monitorMode);
 	}
 
 	/**
-	 * Monitor name used by this valve instance
+	 * 
+	 * @return returns <code>true</code> if monitorMode equals
+	 *         {@link #DROP_MONITOR_MODE}
+	 * @see #setMonitorMode(String)
 	 */
-	public String getMonitorName() {
-		return monitorName;
+	public boolean isMonitorModeDrop() {
+		return DROP_MONITOR_MODE.equals(monitorMode);
 	}
 
 	/**
-	 *
-	 * @param monitorName The name of the monitor object used by this valve
-	 *                    instance. Might be empty and is then set to a default.
+	 * 
+	 * @return returns <code>true</code> if monitorMode equals
+	 *         {@link #TARPIT_MONITOR_MODE}
+	 * @see #setMonitorMode(String)
 	 */
-	public void setMonitorName(String monitorName) {
-		if (monitorName == null || monitorName.length() == 0) {
-			this.monitorName = DEFAULT_MONITOR_NAME;
-		} else {
-			this.monitorName = monitorName;
-		}
-		name4logging = provideName4logging(this.monitorName);
+	public boolean isMonitorModeTarpit() {
+		return TARPIT_MONITOR_MODE.equals(monitorMode);
 	}
 
 	/**
-	 * @see {@link #setMonitorName(String)}
-	 * @return always <code>true</code>
+	 * @return <code>true</code> is either {@link #isMonitorModeDefault()},
+	 *         {@link #isMonitorModeMarking()}, {@link #isMonitorModeRejecting()},
+	 *         {@link #isMonitorModeDrop()} or {@link #isMonitorModeTarpit()} is
+	 *         <code>true</code>
 	 */
-	public boolean isMonitorNameValid() {
-		return true;
+	public boolean isMonitorModeValid() {
+		return isMonitorModeDefault() || isMonitorModeMarking() || isMonitorModeRejecting() || isMonitorModeDrop()
+				|| isMonitorModeTarpit();
 	}
 
 	/**
-	 * Regular expression with IP addresses that are always blocked
+	 * Memory layout of the monitors used by this valve instance
 	 */
-	public String getAlwaysForbiddenIPsConfigValue() {
-		return alwaysForbiddenIPsConfigValue;
+	public String getMonitorLayout() {
+		return monitorLayout;
 	}
 
 	/**
-	 * Setting of the regular expression with IP addresses that are always blocked.
-	 * Example for blocking all requests from <code>localhost</code>:
-	 * <p>
-	 * <code>"127\.\d+\.\d+\.\d+|::1|0:0:0:0:0:0:0:1"</code>
 	 *
-	 * @param alwaysForbiddenIPs The regular expression. Might be empty. Whether the
-	 *                           parameter was valid can be checked via the result
-	 *                           of the method {@link #isAlwaysForbiddenIPsValid()}
+	 * @param monitorLayout The memory layout of the monitors used by this valve
+	 *                      instance. Might be empty and is then set to default.
+	 *                      Use {@link #isMonitorLayoutValid()} to check if the
+	 *                      parameter is valid. Takes effect when the monitor is
+	 *                      (re)created
+	 * @see #DEFAULT_MONITOR_LAYOUT
+	 * @see #RING_MONITOR_LAYOUT
+	 * @see #SHARED_MONITOR_LAYOUT
 	 */
-	public void setAlwaysForbiddenIPs(String alwaysForbiddenIPs) {
+	public void setMonitorLayout(String monitorLayout) {
+		if (monitorLayout == null || monitorLayout.length() == 0) {
+			this.monitorLayout = DEFAULT_MONITOR_LAYOUT;
+		} else {
+			this.monitorLayout = monitorLayout.trim().toUpperCase();
+		}
+	}
+
+	/**
+	 * 
+	 * @return returns <code>true</code> if the monitorLayout is known
+	 * @see #setMonitorLayout(String)
+	 */
+	public boolean isMonitorLayoutValid() {
+		return DEFAULT_MONITOR_LAYOUT.equals(monitorLayout) || RING_MONITOR_LAYOUT.equals(monitorLayout)
+				|| SHARED_MONITOR_LAYOUT.equals(monitorLayout);
+	}
+
+	/**
+	 * 
+	 * @return The directory of the files of {@link #SHARED_MONITOR_LAYOUT}.
+	 *         <code>null</code> (default) if not set
+	 */
+	public String getSharedMemoryDirectory() {
+		return sharedMemoryDirectory;
+	}
+
+	/**
+	 * 
+	 * @param sharedMemoryDirectory The directory of the files of
+	 *                              {@link #SHARED_MONITOR_LAYOUT}, one file per
+	 *                              monitor, named after the monitor. Should be
+	 *                              on a memory file system like
+	 *                              <code>/dev/shm</code>. Might be empty and is
+	 *                              then reset. Takes effect when the monitor is
+	 *                              (re)created
+	 */
+	public void setSharedMemoryDirectory(String sharedMemoryDirectory) {
+		if (sharedMemoryDirectory == null || sharedMemoryDirectory.trim().length() == 0)
+			this.sharedMemoryDirectory = null;
+		else
+			this.sharedMemoryDirectory = sharedMemoryDirectory.trim();
+	}
+
+	/**
+	 * HTTP response status code used in {@link #REJECTING_MONITOR_MODE}
+	 */
+	public int getRejectionHttpStatus() {
+		return rejectionHttpStatus;
+	}
+
+	/**
+	 * 
+	 * @param rejectionHttpStatus The HTTP response status code used in
+	 *                            {@link #REJECTING_MONITOR_MODE}, usually 429 (Too
+	 *                            Many Requests) or 403 (Forbidden). Default is
+	 *                            {@link #DEFAULT_REJECTION_HTTP_STATUS}. Use
+	 *                            {@link #isRejectionHttpStatusValid()} to check if
+	 *                            the parameter is valid
+	 */
+	public void setRejectionHttpStatus(int rejectionHttpStatus) {
+		this.rejectionHttpStatus = rejectionHttpStatus;
+	}
+
+	/**
+	 * @return <code>true</code> if the status set by
+	 *         {@link #setRejectionHttpStatus(int)} is a client or server error
+	 */
+	public boolean isRejectionHttpStatusValid() {
+		return rejectionHttpStatus >= 400 && rejectionHttpStatus < 600;
+	}
+
+	/**
+	 * Number of counted requests in a slot from which on blocked requests are
+	 * dropped
+	 */
+	public int getDropThreshold() {
+		return dropThreshold;
+	}
+
+	/**
+	 * 
+	 * @param dropThreshold In {@link #DEFAULT_MONITOR_MODE} and
+	 *                      {@link #REJECTING_MONITOR_MODE}: if the combined count
+	 *                      of an IP address in the current slot exceeds this
+	 *                      value, its blocked requests are dropped like in
+	 *                      {@link #DROP_MONITOR_MODE} instead of being answered.
+	 *                      Requests from {@link #setAlwaysForbiddenIPs(String)}
+	 *                      are always dropped while the threshold is active.
+	 *                      Should be set well above
+	 *                      <code>allowedRequestsPerSlot</code>. Values less than
+	 *                      1 turn the threshold off, which is the default
+	 */
+	public void setDropThreshold(int dropThreshold) {
+		this.dropThreshold = dropThreshold;
+	}
+
+	/**
+	 * 
+	 * @param tarpitSoftLimit The number of counted requests in a slot from which
+	 *                        on the requests of an IP address are delayed in
+	 *                        {@link #TARPIT_MONITOR_MODE}. Should be lower than
+	 *                        <code>allowedRequestsPerSlot</code>
+	 */
+	public void setTarpitSoftLimit(int tarpitSoftLimit) {
+		this.tarpitSoftLimit = tarpitSoftLimit;
+	}
+
+	/**
+	 * 
+	 * @param tarpitDelay The delay in milliseconds per request over
+	 *                    {@link #setTarpitSoftLimit(int)}. With a value of 100 the
+	 *                    fifth request over the soft limit waits half a second
+	 */
+	public void setTarpitDelay(int tarpitDelay) {
+		this.tarpitDelay = tarpitDelay;
+	}
+
+	/**
+	 * 
+	 * @param tarpitMaxDelay The upper bound of the delay in milliseconds in
+	 *                       {@link #TARPIT_MONITOR_MODE}. Default is 10000
+	 */
+	public void setTarpitMaxDelay(int tarpitMaxDelay) {
+		this.tarpitMaxDelay = tarpitMaxDelay;
+	}
+
+	/**
+	 * @return <code>true</code> if the parameters for
+	 *         {@link #TARPIT_MONITOR_MODE} are valid. Only checked in this mode
+	 */
+	public boolean isTarpitConfigurationValid() {
+		return !isMonitorModeTarpit() || (tarpitSoftLimit > 0 && tarpitDelay > 0 && tarpitMaxDelay > 0);
+	}
+
+	/**
+	 * Calculates the delay of a request in {@link #TARPIT_MONITOR_MODE}. The
+	 * method is public and can be called by JMX
+	 * 
+	 * @param countCombined The combined count of the IP address in the current
+	 *                      slot, including the request
+	 * @return The delay in milliseconds, 0 if the count is not over
+	 *         {@link #setTarpitSoftLimit(int)}
+	 */
+	public long getTarpitDelay(int countCombined) {
+		int softLimit = tarpitSoftLimit;
+		if (softLimit < 1 || countCombined <= softLimit)
+			return 0;
+
+		return Math.min((long) (countCombined - softLimit) * tarpitDelay, tarpitMaxDelay);
+	}
+
+	/**
+	 * Monitor name used by this valve instance
+	 */
+	public String getMonitorName() {
+		return monitorName;
+	}
+
+	/**
+	 *
+	 * @param monitorName The name of the monitor object used by this valve
+	 *                    instance. Might be empty and is then set to a default.
+	 */
+	public void setMonitorName(String monitorName) {
+		if (monitorName == null || monitorName.length() == 0) {
+			this.monitorName = DEFAULT_MONITOR_NAME;
+		} else {
+			this.monitorName = monitorName;
+		}
+		name4logging = provideName4logging(this.monitorName);
+	}
+
+	/**
+	 * @see {@link #setMonitorName(String)}
+	 * @return always <code>true</code>
+	 */
+	public boolean isMonitorNameValid() {
+		return true;
+	}
+
+	/**
+	 * Regular expression with IP addresses that are always blocked
+	 */
+	public String getAlwaysForbiddenIPsConfigValue() {
+		return alwaysForbiddenIPsConfigValue;
+	}
+
+	/**
+	 * Setting of the regular expression with IP addresses that are always blocked.
+	 * Example for blocking all requests from <code>localhost</code>:
+	 * <p>
+	 * <code>"127\.\d+\.\d+\.\d+|::1|0:0:0:0:0:0:0:1"</code>
+	 *
+	 * @param alwaysForbiddenIPs The regular expression. Might be empty. Whether the
+	 *                           parameter was valid can be checked via the result
+	 *                           of the method {@link #isAlwaysForbiddenIPsValid()}
+	 */
+	public void setAlwaysForbiddenIPs(String alwaysForbiddenIPs) {
 		if (alwaysForbiddenIPs == null || alwaysForbiddenIPs.length() == 0) {
 			this.alwaysForbiddenIPs = null;
 			alwaysForbiddenIPsConfigValue = null;
@@ -474,6 +1154,139 @@ public class AntiDoSValve extends ValveBase {
 		return nonRelevantPathsValid;
 	}
 
+	/**
+	 * 
+	 * @return The route rules, each with a path expression and its own limits
+	 */
+	public String getRouteRulesConfigValue() {
+		return routeRulesConfigValue;
+	}
+
+	/**
+	 * Setting of the route rules. Every rule defines a regular expression for
+	 * paths and the limits for the requests on these paths. Each rule is counted
+	 * in its own {@link AntiDoSMonitor} instance, so expensive endpoints can get
+	 * lower limits than the rest of the application without stacking several
+	 * valves. The format of a rule is
+	 * <p>
+	 * <code>regex=allowedRequestsPerSlot[,slotLength[,numberOfSlots]]</code>
+	 * <p>
+	 * Rules are separated by <code>;</code>. If <code>slotLength</code> or
+	 * <code>numberOfSlots</code> are omitted the values of the valve are used.
+	 * Example:
+	 * <p>
+	 * <code>"/search.*=10;/export.*=5,60,10"</code>
+	 * <p>
+	 * A request matching a rule is only counted in the monitor of the first
+	 * matching rule. All other requests are handled by
+	 * {@link #setRelevantPaths(String)}
+	 * 
+	 * @param routeRules The rules. Might be empty. Whether the parameter was valid
+	 *                   can be checked via the result of the method
+	 *                   {@link #isRouteRulesValid()}
+	 */
+	public void setRouteRules(String routeRules) {
+		if (routeRules == null || routeRules.length() == 0) {
+			this.routeRules = null;
+			routeRulesConfigValue = null;
+			routeRulesValid = true;
+		} else {
+			boolean valid = false;
+			try {
+				routeRulesConfigValue = routeRules;
+				this.routeRules = new AntiDoSPathTable(routeRules, 1, 3);
+				valid = true;
+			} catch (Exception ex) {
+			} finally {
+				routeRulesValid = valid;
+			}
+		}
+		routeMonitors = null;
+	}
+
+	/**
+	 * @see #setRouteRules(String)
+	 */
+	public boolean isRouteRulesValid() {
+		return routeRulesValid;
+	}
+
+	/**
+	 * 
+	 * @return The costs for requests on specific paths
+	 */
+	public String getPathCostsConfigValue() {
+		return pathCostsConfigValue;
+	}
+
+	/**
+	 * Setting of the costs for requests on specific paths. Requests on these paths
+	 * increment the counter of an IP address by their cost instead of 1, so
+	 * <code>allowedRequestsPerSlot</code> becomes a budget of cost units. The
+	 * format is <code>regex=cost</code>, several entries are separated by
+	 * <code>;</code>. Example:
+	 * <p>
+	 * <code>"/report.*=20;/pdf/.*=5"</code>
+	 * <p>
+	 * The first matching entry is used, paths without a matching entry cost 1
+	 * 
+	 * @param pathCosts The cost table. Might be empty. Whether the parameter was
+	 *                  valid can be checked via the result of the method
+	 *                  {@link #isPathCostsValid()}
+	 */
+	public void setPathCosts(String pathCosts) {
+		if (pathCosts == null || pathCosts.length() == 0) {
+			this.pathCosts = null;
+			pathCostsConfigValue = null;
+			pathCostsValid = true;
+		} else {
+			boolean valid = false;
+			try {
+				pathCostsConfigValue = pathCosts;
+				AntiDoSPathTable costs = new AntiDoSPathTable(pathCosts, 1, 1);
+				for (int i = 0; i < costs.size(); i++) {
+					if (costs.getValue(i, 0, 0) < 1)
+						throw new IllegalArgumentException();
+				}
+				this.pathCosts = costs;
+				valid = true;
+			} catch (Exception ex) {
+			} finally {
+				pathCostsValid = valid;
+			}
+		}
+	}
+
+	/**
+	 * @see #setPathCosts(String)
+	 */
+	public boolean isPathCostsValid() {
+		return pathCostsValid;
+	}
+
+	/**
+	 * 
+	 * @return The response time in milliseconds that is charged as one additional
+	 *         cost unit. Values less than 1 mean that the response time is not
+	 *         charged
+	 */
+	public int getResponseTimeCostUnit() {
+		return responseTimeCostUnit;
+	}
+
+	/**
+	 * 
+	 * @param responseTimeCostUnit The response time in milliseconds that is charged
+	 *                             as one additional cost unit to the IP address
+	 *                             after a counted request has been processed. With
+	 *                             a value of 500 a request taking 2 seconds costs 4
+	 *                             additional units. Values less than 1 turn the
+	 *                             charging off, which is the default
+	 */
+	public void setResponseTimeCostUnit(int responseTimeCostUnit) {
+		this.responseTimeCostUnit = responseTimeCostUnit;
+	}
+
 	/**
 	 * 
 	 * @param maxIPCacheSize The number of IP addresses that can be monitored within
@@ -498,103 +1311,1017 @@ public class AntiDoSValve extends ValveBase {
 	}
 
 	/**
-	 * 
-	 * @param slotLength The length of the individual slots in seconds
+	 * 
+	 * @param slotLength The length of the individual slots in seconds
+	 */
+	public void setSlotLength(int slotLength) {
+		this.slotLength = slotLength;
+	}
+
+	/**
+	 * 
+	 * @param allowedRequestsPerSlot The number of requests from one IP address
+	 *                               allowed within a slot until it is blocked
+	 */
+	public void setAllowedRequestsPerSlot(int allowedRequestsPerSlot) {
+		this.allowedRequestsPerSlot = allowedRequestsPerSlot;
+	}
+
+	/**
+	 * 
+	 * @param shareOfRetainedFormerRequests This parameter defines which portion of
+	 *                                      the requests from an IP address from
+	 *                                      previous slots is retained in a new
+	 *                                      slot. The higher this share, the longer
+	 *                                      it takes for an IP address to recover
+	 *                                      from a blocking. The value 1 would mean
+	 *                                      that the average number of requests for
+	 *                                      an IP address in the past slots is
+	 *                                      retained completely. A value of 0.5
+	 *                                      would retain half, the value of 0 would
+	 *                                      completely ignore the past (is this case
+	 *                                      the retention of older slots would make
+	 *                                      no sense). A value greater than 1 would
+	 *                                      eventually lead to a block in the case
+	 *                                      of an IP address which remains below the
+	 *                                      <code>allowedRequestsPerSlot</code> per
+	 *                                      slot on average.
+	 */
+	public void setShareOfRetainedFormerRequests(String shareOfRetainedFormerRequests) {
+		this.shareOfRetainedFormerRequests = -1;
+		try {
+			this.shareOfRetainedFormerRequests = Float.parseFloat(shareOfRetainedFormerRequests);
+		} catch (Exception ex) {
+		}
+	}
+
+	/**
+	 * 
+	 * @return The number of requests from one IP address that may be processed at
+	 *         the same time. <code>-1</code> if there is no limit
+	 */
+	public int getMaxConcurrentPerIP() {
+		AntiDoSConcurrencyLimiter limiter = concurrencyLimiter;
+		return limiter != null ? limiter.getMaxConcurrent() : -1;
+	}
+
+	/**
+	 * 
+	 * @param maxConcurrentPerIP The number of counted requests from one IP address
+	 *                           that may be processed at the same time. Further
+	 *                           requests are handled like requests blocked by the
+	 *                           monitor. Values less than 1 turn the limit off,
+	 *                           which is the default. The limit only applies to
+	 *                           requests which are counted by a monitor
+	 */
+	public void setMaxConcurrentPerIP(int maxConcurrentPerIP) {
+		concurrencyLimiter = maxConcurrentPerIP > 0
+				? new AntiDoSConcurrencyLimiter(maxConcurrentPerIP, CONCURRENCY_STRIPES)
+				: null;
+	}
+
+	/**
+	 *
+	 * @return The source of the key under which requests are counted
+	 */
+	public String getClientKeySource() {
+		return clientKeySource;
+	}
+
+	/**
+	 * Setting of the source of the key under which requests are counted. Possible
+	 * values are:
+	 * <ul>
+	 * <li><code>REMOTE_ADDR</code>: the remote address of the connection
+	 * (default)
+	 * <li><code>X_FORWARDED_FOR</code>: the client address from the
+	 * <code>X-Forwarded-For</code> header, if the connection comes from
+	 * {@link #setTrustedProxies(String)}. This address is also used for
+	 * alwaysAllowedIPs and alwaysForbiddenIPs
+	 * <li><code>HEADER</code>: the value of the header
+	 * {@link #setClientKeyName(String)}
+	 * <li><code>COOKIE</code>: the value of the cookie
+	 * {@link #setClientKeyName(String)}
+	 * </ul>
+	 * If the header or cookie is missing the address of the client is used
+	 *
+	 * @param clientKeySource The source. Whether the configuration is valid can be
+	 *                        checked via the result of the method
+	 *                        {@link #isClientKeyValid()}
+	 */
+	public void setClientKeySource(String clientKeySource) {
+		this.clientKeySource = clientKeySource != null && clientKeySource.length() > 0
+				? clientKeySource.toUpperCase()
+				: AntiDoSClientKeyExtractor.SOURCE_REMOTE_ADDR;
+		updateClientKeyExtractor();
+	}
+
+	/**
+	 *
+	 * @return The name of the header or cookie for the client key
+	 */
+	public String getClientKeyName() {
+		return clientKeyName;
+	}
+
+	/**
+	 *
+	 * @param clientKeyName The name of the header or cookie for the client key.
+	 *                      For <code>X_FORWARDED_FOR</code> another header with
+	 *                      the same format can be named
+	 */
+	public void setClientKeyName(String clientKeyName) {
+		this.clientKeyName = clientKeyName;
+		updateClientKeyExtractor();
+	}
+
+	/**
+	 * Regular expression with the IP addresses of trusted proxies
+	 */
+	public String getTrustedProxiesConfigValue() {
+		return trustedProxiesConfigValue;
+	}
+
+	/**
+	 * Setting of the regular expression with the IP addresses of trusted proxies.
+	 * The <code>X-Forwarded-For</code> header is only evaluated for connections
+	 * from these addresses, and proxy addresses within the header are skipped.
+	 * Example:
+	 * <p>
+	 * <code>"10\.0\.0\.\d+"</code>
+	 *
+	 * @param trustedProxies The regular expression. Might be empty. Whether the
+	 *                       parameter was valid can be checked via the result of
+	 *                       the method {@link #isTrustedProxiesValid()}
+	 */
+	public void setTrustedProxies(String trustedProxies) {
+		if (trustedProxies == null || trustedProxies.length() == 0) {
+			this.trustedProxies = null;
+			trustedProxiesConfigValue = null;
+			trustedProxiesValid = true;
+		} else {
+			boolean valid = false;
+			try {
+				trustedProxiesConfigValue = trustedProxies;
+				this.trustedProxies = Pattern.compile(trustedProxies);
+				valid = true;
+			} catch (Exception ex) {
+			} finally {
+				trustedProxiesValid = valid;
+			}
+		}
+		updateClientKeyExtractor();
+	}
+
+	/**
+	 * @see #setTrustedProxies(String)
+	 */
+	public boolean isTrustedProxiesValid() {
+		return trustedProxiesValid;
+	}
+
+	/**
+	 *
+	 * @return <code>true</code> if the settings for the client key fit together
+	 */
+	public boolean isClientKeyValid() {
+		return clientKeyValid;
+	}
+
+	/**
+	 * Creates the {@link AntiDoSClientKeyExtractor} for the current settings
+	 */
+	private void updateClientKeyExtractor() {
+		boolean valid = false;
+		try {
+			clientKeyExtractor = AntiDoSClientKeyExtractor.SOURCE_REMOTE_ADDR.equals(clientKeySource) ? null
+					: new AntiDoSClientKeyExtractor(clientKeySource, clientKeyName, trustedProxies);
+			valid = true;
+		} catch (IllegalArgumentException ex) {
+			clientKeyExtractor = null;
+		} finally {
+			clientKeyValid = valid;
+		}
+	}
+
+	/**
+	 * 
+	 * @param adaptiveMinRequestsPerSlot The lower bound for the number of requests
+	 *                                   allowed within a slot in adaptive mode. It
+	 *                                   is used when the request threads of the
+	 *                                   server are fully busy. See
+	 *                                   {@link #setAdaptiveMaxRequestsPerSlot(int)}
+	 */
+	public void setAdaptiveMinRequestsPerSlot(int adaptiveMinRequestsPerSlot) {
+		this.adaptiveMinRequestsPerSlot = adaptiveMinRequestsPerSlot;
+	}
+
+	/**
+	 * 
+	 * @param adaptiveMaxRequestsPerSlot The upper bound for the number of requests
+	 *                                   allowed within a slot in adaptive mode. It
+	 *                                   is used when the server is idle. If this
+	 *                                   value and
+	 *                                   {@link #setAdaptiveMinRequestsPerSlot(int)}
+	 *                                   are set, the limit of the monitor is scaled
+	 *                                   between both values depending on the share
+	 *                                   of busy request threads. The sampling takes
+	 *                                   place in {@link #backgroundProcess()}
+	 */
+	public void setAdaptiveMaxRequestsPerSlot(int adaptiveMaxRequestsPerSlot) {
+		this.adaptiveMaxRequestsPerSlot = adaptiveMaxRequestsPerSlot;
+	}
+
+	/**
+	 * 
+	 * @return <code>true</code> if both bounds for the adaptive mode are set
+	 */
+	public boolean isAdaptiveMode() {
+		return adaptiveMinRequestsPerSlot > 0 && adaptiveMaxRequestsPerSlot > 0;
+	}
+
+	/**
+	 * 
+	 * @return if <code>true</code> the valve operates in simulation mode and will
+	 *         not perform actual blockings. Default is <code>false</code>
+	 */
+	public boolean isSimulationMode() {
+		return simulationMode;
+	}
+
+	/**
+	 * 
+	 * @return <code>true</code> if requests from locked IP addresses are rejected
+	 *         without counting them. Default is <code>false</code>
+	 */
+	public boolean isFastRejectLockedIPs() {
+		return fastRejectLockedIPs;
+	}
+
+	/**
+	 * 
+	 * @param fastRejectLockedIPs If <code>true</code> the monitors keep an index of
+	 *                            the locked IP addresses until the end of the
+	 *                            slot. Requests from these addresses are rejected
+	 *                            with a single lookup and are not counted any
+	 *                            more, see {@link AntiDoSMonitor#isLocked(String)}.
+	 *                            Takes effect when the monitor is (re)created
+	 */
+	public void setFastRejectLockedIPs(boolean fastRejectLockedIPs) {
+		this.fastRejectLockedIPs = fastRejectLockedIPs;
+	}
+
+	/**
+	 * 
+	 * @return The duration of a lock in seconds. 0 (default) if a lock ends with
+	 *         the slot
+	 */
+	public int getBlockDuration() {
+		return blockDuration;
+	}
+
+	/**
+	 * 
+	 * @param blockDuration The time in seconds an IP address stays blocked once it
+	 *                      has been locked, independent of
+	 *                      {@link #setSlotLength(int)}. 0 if a lock ends with the
+	 *                      slot. Takes effect when the monitor is (re)created
+	 * @see AntiDoSMonitor#setBlockDuration(int)
+	 */
+	public void setBlockDuration(int blockDuration) {
+		this.blockDuration = blockDuration;
+	}
+
+	/**
+	 * 
+	 * @return The number of entries of the table of repeat offenders. 0 (default)
+	 *         if locks are not extended for repeat offenders
+	 */
+	public int getOffenderTableSize() {
+		return offenderTableSize;
+	}
+
+	/**
+	 * 
+	 * @param offenderTableSize The number of entries of the table in which the
+	 *                          monitor counts the locks (strikes) per IP address.
+	 *                          Each further strike doubles the duration of the
+	 *                          lock. An entry needs 8 bytes. 0 turns the
+	 *                          extension off. Takes effect when the monitor is
+	 *                          (re)created
+	 * @see AntiDoSMonitor#setRepeatOffenders(int, int, int)
+	 */
+	public void setOffenderTableSize(int offenderTableSize) {
+		this.offenderTableSize = offenderTableSize;
+	}
+
+	/**
+	 * 
+	 * @return The time in seconds after which a strike of a repeat offender is
+	 *         forgotten. Default is 3600
+	 */
+	public int getStrikeDecay() {
+		return strikeDecay;
+	}
+
+	/**
+	 * 
+	 * @param strikeDecay The time in seconds after which a strike of a repeat
+	 *                    offender is forgotten
+	 */
+	public void setStrikeDecay(int strikeDecay) {
+		this.strikeDecay = strikeDecay;
+	}
+
+	/**
+	 * 
+	 * @return The upper limit in seconds for the extended locks of repeat
+	 *         offenders. Default is 86400
+	 */
+	public int getMaxBlockDuration() {
+		return maxBlockDuration;
+	}
+
+	/**
+	 * 
+	 * @param maxBlockDuration The upper limit in seconds for the extended locks of
+	 *                         repeat offenders
+	 */
+	public void setMaxBlockDuration(int maxBlockDuration) {
+		this.maxBlockDuration = maxBlockDuration;
+	}
+
+	/**
+	 * 
+	 * @return The memory budget of the monitors in bytes. 0 (default) if
+	 *         <code>maxIPCacheSize</code> is used
+	 */
+	public long getMaxMonitorMemory() {
+		return maxMonitorMemory;
+	}
+
+	/**
+	 * 
+	 * @param maxMonitorMemory The memory budget of the monitors in bytes. If set,
+	 *                         the number of IP addresses per slot is derived from
+	 *                         it instead of using <code>maxIPCacheSize</code>. The
+	 *                         budget is shared evenly by the monitor and the
+	 *                         monitors of the route rules. 0 turns the budget off.
+	 *                         Takes effect when the monitor is (re)created
+	 * @see AntiDoSMonitor#provideMaxCountersForMemory(long, int)
+	 * @see AntiDoSRingMonitor#provideMaxEntriesForMemory(long, int)
+	 */
+	public void setMaxMonitorMemory(long maxMonitorMemory) {
+		this.maxMonitorMemory = maxMonitorMemory;
+	}
+
+	/**
+	 * 
+	 * @return The heap usage after a collection in percent from which on the
+	 *         monitors shed memory. 0 (default) if not active
+	 */
+	public int getMemoryPressureThreshold() {
+		return memoryPressureThreshold;
+	}
+
+	/**
+	 * 
+	 * @param memoryPressureThreshold The heap usage after a collection in percent
+	 *                                (1 - 99) from which on the monitors of this
+	 *                                valve shed memory. 0 turns the shedding off.
+	 *                                Takes effect when the valve is (re)started
+	 * @see AntiDoSMemoryGuard
+	 * @see AntiDoSMonitor#shedMemory()
+	 */
+	public void setMemoryPressureThreshold(int memoryPressureThreshold) {
+		this.memoryPressureThreshold = memoryPressureThreshold;
+	}
+
+	/**
+	 * 
+	 * @return The count of an IP address in a slot from which on only a sample of
+	 *         its requests is counted. Default is 0
+	 */
+	public int getSamplingThreshold() {
+		return samplingThreshold;
+	}
+
+	/**
+	 * 
+	 * @param samplingThreshold The count of an IP address in a slot from which on
+	 *                          only one of <code>samplingRate</code> requests is
+	 *                          counted. Takes effect when the monitor is
+	 *                          (re)created
+	 * @see AntiDoSMonitor#setSampling(int, int)
+	 */
+	public void setSamplingThreshold(int samplingThreshold) {
+		this.samplingThreshold = samplingThreshold;
+	}
+
+	/**
+	 * 
+	 * @return One of this number of requests is counted past the sampling
+	 *         threshold. 1 (default) if every request is counted
+	 */
+	public int getSamplingRate() {
+		return samplingRate;
+	}
+
+	/**
+	 * 
+	 * @param samplingRate Past <code>samplingThreshold</code> one of this number
+	 *                     of requests, chosen at random, is counted with this
+	 *                     number as weight. 1 turns sampling off. Takes effect
+	 *                     when the monitor is (re)created
+	 * @see AntiDoSMonitor#setSampling(int, int)
+	 */
+	public void setSamplingRate(int samplingRate) {
+		this.samplingRate = samplingRate;
+	}
+
+	/**
+	 * 
+	 * @return The additional time windows of the monitor. <code>null</code>
+	 *         (default) if not set
+	 */
+	public String getAdditionalWindows() {
+		return additionalWindows;
+	}
+
+	/**
+	 * Sets time windows with limits of their own next to the slots. Each window
+	 * has the format
+	 * <p>
+	 * <code>windowLength=allowedRequests</code>
+	 * <p>
+	 * with the length in seconds, windows are separated by <code>;</code>. With
+	 * <code>slotLength=1</code>, <code>allowedRequestsPerSlot=20</code> and
+	 * <code>"60=600;3600=5000"</code> an IP address may send 20 requests per
+	 * second, 600 per minute and 5000 per hour. An IP address exceeding a window
+	 * is blocked until the window ends. The windows apply to the monitor of the
+	 * valve, not to the monitors of the route rules
+	 * 
+	 * @param additionalWindows The windows. Might be empty. Takes effect when the
+	 *                          monitor is (re)created
+	 * @see AntiDoSMonitor#setWindows(int[], int[])
+	 */
+	public void setAdditionalWindows(String additionalWindows) {
+		if (additionalWindows == null || additionalWindows.trim().length() == 0)
+			this.additionalWindows = null;
+		else
+			this.additionalWindows = additionalWindows.trim();
+	}
+
+	/**
+	 * 
+	 * @return The path under which the valve answers with its metrics.
+	 *         <code>null</code> (default) if not active
+	 */
+	public String getMetricsPath() {
+		return metricsPath;
+	}
+
+	/**
+	 * 
+	 * @param metricsPath The request URI (e. g. <code>/antidos/metrics</code>)
+	 *                    under which the valve answers with its metrics in the
+	 *                    text format of Prometheus, see {@link #getMetrics()}.
+	 *                    Only addresses in
+	 *                    {@link #setMetricsAllowedIPs(String)} get the metrics,
+	 *                    their requests are neither checked nor counted and are
+	 *                    not passed to the application. The answer is printed at
+	 *                    most once per second. Requests from other addresses or
+	 *                    from {@link #setAlwaysForbiddenIPs(String)} are handled
+	 *                    like any other request. <code>null</code> or an empty
+	 *                    value turns the path off, which is the default
+	 */
+	public void setMetricsPath(String metricsPath) {
+		this.metricsPath = metricsPath == null || metricsPath.length() == 0 ? null : metricsPath;
+	}
+
+	/**
+	 * Regular expression with the IP addresses to which the metrics are provided
+	 */
+	public String getMetricsAllowedIPsConfigValue() {
+		return metricsAllowedIPsConfigValue;
+	}
+
+	/**
+	 * Setting of the regular expression with the IP addresses (e. g. of the
+	 * Prometheus servers) to which the valve answers under
+	 * {@link #setMetricsPath(String)}. Example for localhost only:
+	 * <p>
+	 * <code>"127\.0\.0\.1|::1|0:0:0:0:0:0:0:1"</code>
+	 *
+	 * @param metricsAllowedIPs The regular expression. Might be empty, then no
+	 *                          address gets the metrics.
+	 *                          Whether the parameter was valid can be checked via
+	 *                          the result of the method
+	 *                          {@link #isMetricsAllowedIPsValid()}
+	 */
+	public void setMetricsAllowedIPs(String metricsAllowedIPs) {
+		if (metricsAllowedIPs == null || metricsAllowedIPs.length() == 0) {
+			this.metricsAllowedIPs = null;
+			metricsAllowedIPsConfigValue = null;
+			metricsAllowedIPsValid = true;
+		} else {
+			boolean valid = false;
+			try {
+				metricsAllowedIPsConfigValue = metricsAllowedIPs;
+				this.metricsAllowedIPs = Pattern.compile(metricsAllowedIPs);
+				valid = true;
+			} catch (Exception ex) {
+			} finally {
+				metricsAllowedIPsValid = valid;
+			}
+		}
+	}
+
+	/**
+	 * @see #setMetricsAllowedIPs(String)
+	 */
+	public boolean isMetricsAllowedIPsValid() {
+		return metricsAllowedIPsValid;
+	}
+
+	/**
+	 * Turn simulation mode on or off
+	 * 
+	 * @param simulationMode if <code>true</code> the valve will operate in
+	 *                       simulation mode and not perform actual blockings
+	 */
+	public void setSimulationMode(boolean simulationMode) {
+		this.simulationMode = simulationMode;
+	}
+
+	/**
+	 * This method is called on every request. It uses
+	 * {@link #isRequestAllowed(String, String)} for its checks. If a request is
+	 * blocked the reaction of the valve depends on its mode:
+	 * <ul>
+	 * <lli>{@link #DEFAULT_MONITOR_MODE}: the value of
+	 * {@link #BLOCKING_HTTP_STATUS} is set as error code
+	 * <li>{@link #MARKING_MONITOR_MODE}: an information is added to the request
+	 * <li>{@link #REJECTING_MONITOR_MODE}: a small fixed response is written, see
+	 * {@link #writeRejection(Response, String, RequestCheck)}
+	 * <li>{@link #DROP_MONITOR_MODE}: the connection is closed without a response,
+	 * see {@link #dropConnection(Response)}. In the other blocking modes this also
+	 * happens for IP addresses over {@link #setDropThreshold(int)} and for
+	 * {@link #setAlwaysForbiddenIPs(String)}
+	 * <li>{@link #TARPIT_MONITOR_MODE}: like {@link #DEFAULT_MONITOR_MODE}, but
+	 * allowed requests may be delayed, see
+	 * {@link #startTarpit(Request, String, String, AntiDoSMonitor)}
+	 * </ul>
+	 * The same applies to requests exceeding
+	 * {@link #setMaxConcurrentPerIP(int)}, except that they are never dropped. When
+	 * simulationMode is on only logging information is generated
+	 */
+	public void invoke(Request request, Response response) throws IOException, ServletException {
+
+		if (request.getDispatcherType() == DispatcherType.ASYNC) {
+			Object tarpit = request.getAttribute(TARPIT_ATTRIBUTE_NAME);
+			if (tarpit instanceof Tarpit) {
+				// Resumed after the delay, the request has already been counted. Its
+				// concurrency slot is released when the request is complete:
+				request.removeAttribute(TARPIT_ATTRIBUTE_NAME);
+				invokeNext(request, response, ((Tarpit) tarpit).monitor, ((Tarpit) tarpit).key);
+				return;
+			}
+		}
+
+		String ip = request.getRemoteAddr();
+		String key = ip;
+		String path = request.getRequestURI();
+
+		// Local copy for thread safety
+		AntiDoSClientKeyExtractor extractor = clientKeyExtractor;
+		if (extractor != null) {
+			MimeHeaders headers = request.getCoyoteRequest().getMimeHeaders();
+			ip = extractor.extractClientAddress(headers, ip);
+			key = extractor.extractKey(headers, ip);
+		}
+
+		if (log.isDebugEnabled()) {
+			log.debug(name4logging + ", ip: " + ip);
+			if (key != ip)
+				log.debug(name4logging + ", key: " + key);
+			log.debug(name4logging + ", path: " + path);
+		}
+
+		String _metricsPath = metricsPath;
+		if (_metricsPath != null && _metricsPath.equals(path) && isMetricsAllowed(ip)) {
+			writeMetrics(response);
+			return;
+		}
+
+		RequestCheck check = checkRequest(ip, key, path);
+		int verdict = check.verdict;
+		boolean allowed = verdict <= VERDICT_ALLOWED;
+
+		// Local copy, the limiter might be replaced while the request is processed:
+		AntiDoSConcurrencyLimiter limiter = concurrencyLimiter;
+		boolean acquired = false;
+		if (verdict == VERDICT_ALLOWED && limiter != null) {
+			acquired = limiter.tryAcquire(key);
+			if (!acquired) {
+				allowed = false;
+				metrics.registerConcurrencyRejection();
+				if (log.isDebugEnabled())
+					log.debug(name4logging + " too many concurrent requests: " + key);
+			}
+		}
+
+		try {
+			if (allowed && verdict == VERDICT_ALLOWED && isMonitorModeTarpit() && !simulationMode
+					&& startTarpit(request, key, path, check.monitor, acquired ? limiter : null)) {
+				// The suspended request keeps its concurrency slot until it is complete:
+				acquired = false;
+				return;
+			}
+
+			if (allowed || simulationMode) {
+				invokeNext(request, response, check.monitor, key);
+				return;
+			}
+
+			// Requests over the concurrency limit come from clients within their
+			// limits and are never dropped:
+			boolean droppable = verdict != VERDICT_ALLOWED;
+
+			if (droppable && (isMonitorModeDrop() || (!isMonitorModeMarking() && isOverDropThreshold(key, check)))) {
+				// drop request:
+				dropConnection(response);
+			} else if (isMonitorModeDefault() || isMonitorModeTarpit()) {
+				// block request:
+				response.sendError(BLOCKING_HTTP_STATUS);
+			} else if (isMonitorModeRejecting() || isMonitorModeDrop()) {
+				// reject request without the error page handling of the container:
+				writeRejection(response, key, check);
+			} else {
+				// mark request:
+				response.getRequest().setAttribute(MARKING_ATTRIBUTE_NAME, name4logging);
+				getNext().invoke(request, response);
+			}
+		} finally {
+			if (acquired)
+				limiter.release(key);
+		}
+	}
+
+	/**
+	 * Passes an allowed request on to the next valve. If
+	 * {@link #setResponseTimeCostUnit(int)} is set, the response time is charged
+	 * to the monitor that has counted the request
+	 * 
+	 * @param monitor The monitor that has counted the request, <code>null</code>
+	 *                if it has not been counted
+	 */
+	private void invokeNext(Request request, Response response, AntiDoSMonitor monitor, String key)
+			throws IOException, ServletException {
+		int costUnit = responseTimeCostUnit;
+		if (costUnit < 1 || monitor == null) {
+			getNext().invoke(request, response);
+			return;
+		}
+
+		long start = System.nanoTime();
+		try {
+			getNext().invoke(request, response);
+		} finally {
+			long elapsed = (System.nanoTime() - start) / 1000000;
+			if (elapsed >= costUnit)
+				chargeRequest(monitor, key, (int) Math.min(elapsed / costUnit, Integer.MAX_VALUE));
+		}
+	}
+
+	/**
+	 * Called periodically by the container. In adaptive mode the limit of the
+	 * monitor is updated here, see {@link #updateAdaptiveLimit()}
+	 */
+	@Override
+	public void backgroundProcess() {
+		super.backgroundProcess();
+
+		if (isAdaptiveMode())
+			updateAdaptiveLimit();
+	}
+
+	/**
+	 * Sets the limit of the monitor according to the current load of the server.
+	 * The limit is scaled linearly between
+	 * {@link #setAdaptiveMaxRequestsPerSlot(int)} for an idle server and
+	 * {@link #setAdaptiveMinRequestsPerSlot(int)} for a server whose request
+	 * threads are fully busy. Route monitors keep their limits. The method is
+	 * public and can be called by JMX
+	 * 
+	 * @return The new limit or <code>-1</code> if there is no monitor
+	 */
+	public int updateAdaptiveLimit() {
+		AntiDoSMonitor monitor = provideMonitor();
+		if (monitor == null || !isAdaptiveMode())
+			return -1;
+
+		float loadRatio = Math.max(0, Math.min(1, provideLoadRatio()));
+		int limit = Math.round(
+				adaptiveMaxRequestsPerSlot - (adaptiveMaxRequestsPerSlot - adaptiveMinRequestsPerSlot) * loadRatio);
+
+		if (limit != monitor.getAllowedRequestsPerSlot()) {
+			monitor.setAllowedRequestsPerSlot(limit);
+
+			if (log.isInfoEnabled())
+				log.info(name4logging + " load ratio " + loadRatio + ", allowedRequestsPerSlot set to " + limit);
+		}
+		return limit;
+	}
+
+	/**
+	 * Provides the share of busy request threads in the executors of the
+	 * connectors the valve is running in. If there are several connectors, the
+	 * highest share is used. Can be overridden for testcases.
+	 * 
+	 * @return A value between 0 (idle) and 1 (fully busy). If no executor can be
+	 *         found, 0 is returned
+	 */
+	protected float provideLoadRatio() {
+		Container container = getContainer();
+		while (container != null && !(container instanceof Engine))
+			container = container.getParent();
+
+		Service service = container != null ? ((Engine) container).getService() : null;
+		if (service == null)
+			return 0;
+
+		float loadRatio = 0;
+		for (Connector connector : service.findConnectors()) {
+			Object executor = connector.getProtocolHandler() != null ? connector.getProtocolHandler().getExecutor()
+					: null;
+
+			int active = 0;
+			int max = 0;
+			if (executor instanceof ResizableExecutor) {
+				active = ((ResizableExecutor) executor).getActiveCount();
+				max = ((ResizableExecutor) executor).getMaxThreads();
+			} else if (executor instanceof ThreadPoolExecutor) {
+				active = ((ThreadPoolExecutor) executor).getActiveCount();
+				max = ((ThreadPoolExecutor) executor).getMaximumPoolSize();
+			} else if (executor instanceof java.util.concurrent.ThreadPoolExecutor) {
+				active = ((java.util.concurrent.ThreadPoolExecutor) executor).getActiveCount();
+				max = ((java.util.concurrent.ThreadPoolExecutor) executor).getMaximumPoolSize();
+			}
+
+			if (max > 0)
+				loadRatio = Math.max(loadRatio, (float) active / max);
+		}
+		return loadRatio;
+	}
+
+	/**
+	 * Writes the response for a rejected request in
+	 * {@link #REJECTING_MONITOR_MODE}: the status
+	 * {@link #getRejectionHttpStatus()}, a <code>Retry-After</code> header with the
+	 * end of the lock and a tiny fixed body. Since {@link Response#sendError(int)} is not used, the
+	 * error page handling of the container is never started
+	 * 
+	 * @param check The result of {@link #checkRequest(String, String, String)}
+	 */
+	private void writeRejection(Response response, String key, RequestCheck check) throws IOException {
+		response.setStatus(rejectionHttpStatus);
+
+		long retryAfter = -1;
+		if (check.verdict == VERDICT_BLOCKED) {
+			if (check.monitor != null)
+				retryAfter = (check.monitor.getMillisUntilLockEnd(key) + 999) / 1000;
+		} else if (check.verdict == VERDICT_ALLOWED) {
+			// Rejected by the concurrency limit
+			retryAfter = 1;
+		}
+		if (retryAfter > 0)
+			response.setHeader("Retry-After", Long.toString(retryAfter));
+
+		response.setContentType("text/plain");
+		response.setContentLength(REJECTION_BODY.length);
+		response.getOutputStream().write(REJECTION_BODY);
+	}
+
+	/**
+	 * 
+	 * @return <code>true</code> if the IP address may get the metrics: it is not
+	 *         in {@link #setAlwaysForbiddenIPs(String)} and it is in
+	 *         {@link #setMetricsAllowedIPs(String)}. Without the latter no address
+	 *         gets the metrics, as their requests bypass the monitor
+	 */
+	private boolean isMetricsAllowed(String ip) {
+		if (isIPAddressInAlwaysForbidden(ip))
+			return false;
+
+		// Local copy for thread safety
+		Pattern allowed = this.metricsAllowedIPs;
+		return allowed != null && allowed.matcher(ip).matches();
+	}
+
+	/**
+	 * Answers a request to {@link #setMetricsPath(String)}. The answer is printed
+	 * at most once per {@link #METRICS_CACHE_MILLIS}, so frequent requests cannot
+	 * make the valve walk its monitors over and over
 	 */
-	public void setSlotLength(int slotLength) {
-		this.slotLength = slotLength;
+	private void writeMetrics(Response response) throws IOException {
+		long now = System.currentTimeMillis();
+		// Local copy for thread safety
+		MetricsSnapshot snapshot = metricsSnapshot;
+		if (snapshot == null || now - snapshot.created >= METRICS_CACHE_MILLIS || now < snapshot.created) {
+			snapshot = new MetricsSnapshot(getMetrics().getBytes(StandardCharsets.UTF_8), now);
+			metricsSnapshot = snapshot;
+		}
+		byte[] body = snapshot.body;
+
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setHeader("Cache-Control", "no-store");
+		response.setContentType(AntiDoSMetrics.CONTENT_TYPE);
+		response.setContentLength(body.length);
+		response.getOutputStream().write(body);
 	}
 
 	/**
+	 * Suspends an allowed request in {@link #TARPIT_MONITOR_MODE} if its IP
+	 * address is over {@link #setTarpitSoftLimit(int)}. The request is put into
+	 * asynchronous mode and the timing wheel of the valve dispatches it again after
+	 * the delay, so no request thread is held while waiting. The dispatched request
+	 * passes the valve without being counted again
 	 * 
-	 * @param allowedRequestsPerSlot The number of requests from one IP address
-	 *                               allowed within a slot until it is blocked
+	 * @param monitor The monitor that has counted the request
+	 * @param limiter The limiter in which the request holds a slot,
+	 *                <code>null</code> if none. If the request is suspended, the
+	 *                slot is released when the request is complete
+	 * @return <code>true</code> if the request has been suspended
 	 */
-	public void setAllowedRequestsPerSlot(int allowedRequestsPerSlot) {
-		this.allowedRequestsPerSlot = allowedRequestsPerSlot;
+	private boolean startTarpit(Request request, String key, String path, AntiDoSMonitor monitor,
+			AntiDoSConcurrencyLimiter limiter) {
+		AntiDoSCounter counter = monitor != null ? monitor.provideCurrentCounter(key) : null;
+
+		long delay = counter != null ? getTarpitDelay(counter.getCountCombined()) : 0;
+		if (delay <= 0)
+			return false;
+
+		if (!request.isAsyncSupported()) {
+			if (log.isDebugEnabled())
+				log.debug(name4logging + " no async support, tarpit not possible: " + path);
+			return false;
+		}
+
+		if (log.isDebugEnabled())
+			log.debug(name4logging + " tarpit " + delay + " ms: " + key);
+
+		Tarpit tarpit = new Tarpit(key, monitor, limiter);
+		final AsyncContext asyncContext = request.startAsync();
+		asyncContext.setTimeout(delay + 30000);
+		asyncContext.addListener(tarpit);
+		request.setAttribute(TARPIT_ATTRIBUTE_NAME, tarpit);
+
+		provideTarpitWheel().schedule(System.currentTimeMillis() + delay, () -> {
+			try {
+				asyncContext.dispatch();
+			} catch (IllegalStateException ex) {
+				// The request has timed out or the client is gone
+				if (log.isDebugEnabled())
+					log.debug(name4logging + " tarpit dispatch failed: " + ex.getMessage());
+			}
+		});
+		return true;
+	}
+
+	private AntiDoSTimingWheel provideTarpitWheel() {
+		AntiDoSTimingWheel wheel = tarpitWheel;
+		if (wheel == null) {
+			tarpitWheelLock.lock();
+			try {
+				wheel = tarpitWheel;
+				if (wheel == null) {
+					wheel = new AntiDoSTimingWheel(TARPIT_TICK, 1024, System::currentTimeMillis);
+					wheel.startTicking();
+					tarpitWheel = wheel;
+				}
+			} finally {
+				tarpitWheelLock.unlock();
+			}
+		}
+		return wheel;
 	}
 
 	/**
-	 * 
-	 * @param shareOfRetainedFormerRequests This parameter defines which portion of
-	 *                                      the requests from an IP address from
-	 *                                      previous slots is retained in a new
-	 *                                      slot. The higher this share, the longer
-	 *                                      it takes for an IP address to recover
-	 *                                      from a blocking. The value 1 would mean
-	 *                                      that the average number of requests for
-	 *                                      an IP address in the past slots is
-	 *                                      retained completely. A value of 0.5
-	 *                                      would retain half, the value of 0 would
-	 *                                      completely ignore the past (is this case
-	 *                                      the retention of older slots would make
-	 *                                      no sense). A value greater than 1 would
-	 *                                      eventually lead to a block in the case
-	 *                                      of an IP address which remains below the
-	 *                                      <code>allowedRequestsPerSlot</code> per
-	 *                                      slot on average.
+	 * Stops the timing wheel of {@link #TARPIT_MONITOR_MODE}. Requests still
+	 * waiting are dispatched at once
 	 */
-	public void setShareOfRetainedFormerRequests(String shareOfRetainedFormerRequests) {
-		this.shareOfRetainedFormerRequests = -1;
+	private void stopTarpitWheel() {
+		AntiDoSTimingWheel wheel;
+		tarpitWheelLock.lock();
 		try {
-			this.shareOfRetainedFormerRequests = Float.parseFloat(shareOfRetainedFormerRequests);
-		} catch (Exception ex) {
+			wheel = tarpitWheel;
+			tarpitWheel = null;
+		} finally {
+			tarpitWheelLock.unlock();
+		}
+		if (wheel != null) {
+			wheel.stopTicking();
+			wheel.advance(Long.MAX_VALUE);
 		}
 	}
 
 	/**
-	 * 
-	 * @return if <code>true</code> the valve operates in simulation mode and will
-	 *         not perform actual blockings. Default is <code>false</code>
+	 * A request suspended in {@link #TARPIT_MONITOR_MODE}. Kept in the request
+	 * attribute {@link #TARPIT_ATTRIBUTE_NAME} until the request is dispatched
+	 * again, and registered as listener of the asynchronous processing, so the
+	 * concurrency slot of the request is released only when it is complete
 	 */
-	public boolean isSimulationMode() {
-		return simulationMode;
+	private static final class Tarpit implements AsyncListener {
+		private final String key;
+		private final AntiDoSMonitor monitor;
+		private final AntiDoSConcurrencyLimiter limiter;
+		private final AtomicBoolean released = new AtomicBoolean(false);
+
+		private Tarpit(String key, AntiDoSMonitor monitor, AntiDoSConcurrencyLimiter limiter) {
+			this.key = key;
+			this.monitor = monitor;
+			this.limiter = limiter;
+		}
+
+		/**
+		 * Releases the concurrency slot. A timeout or an error is followed by the
+		 * completion, the slot is released only once
+		 */
+		private void release() {
+			if (limiter != null && released.compareAndSet(false, true))
+				limiter.release(key);
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) {
+			release();
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+			release();
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+			release();
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+			// The application suspends the dispatched request again, keep the slot
+			// until this processing is complete, too:
+			event.getAsyncContext().addListener(this);
+		}
 	}
 
 	/**
-	 * Turn simulation mode on or off
-	 * 
-	 * @param simulationMode if <code>true</code> the valve will operate in
-	 *                       simulation mode and not perform actual blockings
+	 * Closes the connection of a blocked request without writing a response. The
+	 * output of the response is suspended and the connector is told to close the
+	 * connection at once, so neither keep-alive nor the error page handling of the
+	 * container take place
 	 */
-	public void setSimulationMode(boolean simulationMode) {
-		this.simulationMode = simulationMode;
+	private void dropConnection(Response response) {
+		response.setSuspended(true);
+		response.getCoyoteResponse().action(ActionCode.CLOSE_NOW, null);
 	}
 
 	/**
-	 * This method is called on every request. It uses
-	 * {@link #isRequestAllowed(String, String)} for its checks. If a request is
-	 * blocked the reaction of the valve depends on its mode:
-	 * <ul>
-	 * <lli>{@link #DEFAULT_MONITOR_MODE}: the value of
-	 * {@link #BLOCKING_HTTP_STATUS} is set as error code
-	 * <li>{@link #MARKING_MONITOR_MODE}: an information is added to the request
-	 * </ul>
-	 * When simulationMode is on only logging information is generated
+	 * @param check The result of {@link #checkRequest(String, String, String)}
+	 * @return <code>true</code> if {@link #setDropThreshold(int)} is active and a
+	 *         request comes from {@link #setAlwaysForbiddenIPs(String)} or is
+	 *         blocked by the monitor for an IP address whose combined count is
+	 *         over the threshold
 	 */
-	public void invoke(Request request, Response response) throws IOException, ServletException {
+	private boolean isOverDropThreshold(String key, RequestCheck check) {
+		int threshold = dropThreshold;
+		if (threshold < 1)
+			return false;
 
-		String ip = request.getRemoteAddr();
-		String path = request.getRequestURI();
+		if (check.verdict == VERDICT_FORBIDDEN)
+			return true;
 
-		if (log.isDebugEnabled()) {
-			log.debug(name4logging + ", ip: " + ip);
-			log.debug(name4logging + ", path: " + path);
-		}
+		if (check.verdict != VERDICT_BLOCKED || check.monitor == null)
+			return false;
 
-		boolean allowed = isRequestAllowed(ip, path);
-		if (allowed || simulationMode) {
-			getNext().invoke(request, response);
-			return;
-		}
+		AntiDoSCounter counter = check.monitor.provideCurrentCounter(key);
+		return counter != null && counter.isCountCombinedOver(threshold);
+	}
 
-		if (isMonitorModeDefault()) {
-			// block request:
-			response.sendError(BLOCKING_HTTP_STATUS);
-		} else {
-			// mark request:
-			response.getRequest().setAttribute(MARKING_ATTRIBUTE_NAME, name4logging);
-			getNext().invoke(request, response);
+	/**
+	 * Frees memory in the main monitor and in the route monitors, see
+	 * {@link AntiDoSMonitor#shedMemory()}
+	 */
+	private void shedMemory() {
+		Map<String, AntiDoSMonitor> _monitors = monitors;
+		AntiDoSMonitor monitor = _monitors != null ? _monitors.get(monitorName) : null;
+		if (monitor != null)
+			monitor.shedMemory();
+		AntiDoSMonitor[] _routeMonitors = routeMonitors;
+		if (_routeMonitors != null) {
+			for (AntiDoSMonitor routeMonitor : _routeMonitors)
+				routeMonitor.shedMemory();
 		}
 	}
 
@@ -607,24 +2334,81 @@ public class AntiDoSValve extends ValveBase {
 	@Override
 	protected synchronized void startInternal() throws LifecycleException {
 		checkConfiguration();
+
+		// The monitors are kept over a restart of the valve:
+		AntiDoSMonitor monitor = provideMonitor();
+		if (monitor != null && (isLockExpiryNeeded() || additionalWindows != null))
+			monitor.startLockExpiry();
+		AntiDoSMonitor[] _routeMonitors = routeMonitors;
+		if (_routeMonitors != null && isLockExpiryNeeded()) {
+			for (AntiDoSMonitor routeMonitor : _routeMonitors)
+				routeMonitor.startLockExpiry();
+		}
+		if (memoryPressureThreshold != 0) {
+			try {
+				AntiDoSMemoryGuard.addAction(memoryShedding, memoryPressureThreshold);
+			} catch (IllegalArgumentException ex) {
+				throw new LifecycleException(name4logging + ".memoryPressureThreshold is invalid", ex);
+			}
+		}
+
 		super.startInternal();
 	}
 
+	/**
+	 * Stops the background work of the valve and of its monitors
+	 */
+	@Override
+	protected synchronized void stopInternal() throws LifecycleException {
+		super.stopInternal();
+		stopTarpitWheel();
+		AntiDoSMemoryGuard.removeAction(memoryShedding);
+
+		Map<String, AntiDoSMonitor> _monitors = monitors;
+		AntiDoSMonitor monitor = _monitors != null ? _monitors.get(monitorName) : null;
+		if (monitor != null)
+			monitor.stopLockExpiry();
+		AntiDoSMonitor[] _routeMonitors = routeMonitors;
+		if (_routeMonitors != null) {
+			for (AntiDoSMonitor routeMonitor : _routeMonitors)
+				routeMonitor.stopLockExpiry();
+		}
+	}
+
 	/**
 	 * Checks the valve configuration. Creates the internal {@link AntiDoSMonitor}
 	 * instance if it does not yet exit
 	 * 
 	 * @throws LifecycleException Thrown if configuration is invalid
 	 */
-	private void checkConfiguration() throws LifecycleException {
+	void checkConfiguration() throws LifecycleException {
 		if (!alwaysForbiddenIPsValid)
 			throw new LifecycleException(name4logging + ".alwaysForbiddenIPs is invalid");
 		if (!alwaysAllowedIPsValid)
 			throw new LifecycleException(name4logging + ".alwaysAllowedIPs is invalid");
+		if (!metricsAllowedIPsValid)
+			throw new LifecycleException(name4logging + ".metricsAllowedIPs is invalid");
 		if (!relevantPathsValid)
 			throw new LifecycleException(name4logging + ".relevantPaths is invalid");
+		if (!routeRulesValid)
+			throw new LifecycleException(name4logging + ".routeRules is invalid");
+		if (!pathCostsValid)
+			throw new LifecycleException(name4logging + ".pathCosts is invalid");
 		if (!isMonitorModeValid())
 			throw new LifecycleException(name4logging + ".monitorMode is invalid");
+		if (!isMonitorLayoutValid())
+			throw new LifecycleException(name4logging + ".monitorLayout is invalid");
+		if (!isRejectionHttpStatusValid())
+			throw new LifecycleException(name4logging + ".rejectionHttpStatus is invalid");
+		if (!isTarpitConfigurationValid())
+			throw new LifecycleException(name4logging + ".tarpit parameters are invalid");
+		if (!trustedProxiesValid)
+			throw new LifecycleException(name4logging + ".trustedProxies is invalid");
+		if (!clientKeyValid)
+			throw new LifecycleException(name4logging + ".clientKeySource is invalid");
+		if (isAdaptiveMode() && adaptiveMinRequestsPerSlot > adaptiveMaxRequestsPerSlot)
+			throw new LifecycleException(name4logging + ".adaptiveMinRequestsPerSlot is greater than "
+					+ "adaptiveMaxRequestsPerSlot");
 
 		if (provideMonitor() == null) {
 			String monitorMsg = reloadMonitor();
@@ -648,22 +2432,98 @@ public class AntiDoSValve extends ValveBase {
 			if (monitors == null)
 				initializeMonitors();
 
-			AntiDoSMonitor monitor = new AntiDoSMonitor(monitorName, maxIPCacheSize, numberOfSlots, slotLength,
+			AntiDoSPathTable routes = routeRules;
+			AntiDoSMonitor[] _routeMonitors = new AntiDoSMonitor[routes != null ? routes.size() : 0];
+
+			long memoryPerMonitor = maxMonitorMemory;
+			if (memoryPerMonitor < 0)
+				throw new IllegalArgumentException("Parameter maxMonitorMemory is invalid: " + memoryPerMonitor);
+			memoryPerMonitor /= 1 + _routeMonitors.length;
+
+			AntiDoSMonitor monitor = createMonitor(monitorName,
+					provideMaxIPCacheSize(memoryPerMonitor, numberOfSlots), numberOfSlots, slotLength,
 					allowedRequestsPerSlot, shareOfRetainedFormerRequests);
 
 			if (monitorName == null)
 				monitorName = DEFAULT_MONITOR_NAME;
 
-			monitors.put(monitorName, monitor);
+			for (int i = 0; i < _routeMonitors.length; i++) {
+				int routeSlots = routes.getValue(i, 2, numberOfSlots);
+				_routeMonitors[i] = createMonitor(provideRouteMonitorName(i),
+						provideMaxIPCacheSize(memoryPerMonitor, routeSlots), routeSlots,
+						routes.getValue(i, 1, slotLength), routes.getValue(i, 0, -1), shareOfRetainedFormerRequests);
+			}
+
+			// Only checked here, the action is registered while the valve is started:
+			if (memoryPressureThreshold < 0 || memoryPressureThreshold > 99)
+				throw new IllegalArgumentException(
+						"Parameter memoryPressureThreshold is invalid: " + memoryPressureThreshold);
+
+			configureMonitor(monitor);
+			configureWindows(monitor);
+			for (int i = 0; i < _routeMonitors.length; i++)
+				configureMonitor(_routeMonitors[i]);
+
+			replaceMonitor(monitorName, monitor);
+			for (int i = 0; i < _routeMonitors.length; i++)
+				replaceMonitor(provideRouteMonitorName(i), _routeMonitors[i]);
+			// The monitors of routes that have been removed from the rules:
+			for (int i = _routeMonitors.length; removeMonitor(provideRouteMonitorName(i)); i++)
+				;
+			routeMonitors = _routeMonitors;
 
 			if (log.isInfoEnabled()) {
 				if (isMonitorModeDefault())
 					log.info(name4logging + " is in blocking mode");
 				else if (isMonitorModeMarking())
 					log.info(name4logging + " is in marking mode");
+				else if (isMonitorModeRejecting())
+					log.info(name4logging + " is in rejecting mode");
+				else if (isMonitorModeDrop())
+					log.info(name4logging + " is in drop mode");
+				else if (isMonitorModeTarpit())
+					log.info(name4logging + " is in tarpit mode");
 
 				if (simulationMode)
 					log.info(name4logging + " is in SIMULATION MODE");
+
+				if (RING_MONITOR_LAYOUT.equals(monitorLayout))
+					log.info(name4logging + " uses the ring layout");
+
+				if (SHARED_MONITOR_LAYOUT.equals(monitorLayout))
+					log.info(name4logging + " shares its counters in " + sharedMemoryDirectory);
+
+				if (fastRejectLockedIPs)
+					log.info(name4logging + " rejects locked IP addresses without counting");
+
+				if (blockDuration > 0)
+					log.info(name4logging + " blocks locked IP addresses for " + blockDuration + " seconds");
+
+				if (metricsPath != null && metricsAllowedIPs == null)
+					log.info(name4logging + " has a metricsPath but no metricsAllowedIPs, no address gets the metrics");
+
+				if (offenderTableSize > 0)
+					log.info(name4logging + " extends the locks of repeat offenders up to " + maxBlockDuration
+							+ " seconds");
+
+				if (additionalWindows != null)
+					log.info(name4logging + " limits the requests per IP address also in the windows "
+							+ additionalWindows);
+
+				if (samplingRate > 1)
+					log.info(name4logging + " counts one of " + samplingRate + " requests per IP address over "
+							+ samplingThreshold);
+
+				if (maxMonitorMemory > 0)
+					log.info(name4logging + " holds up to " + monitor.getMaxCountersPerSlot()
+							+ " IP addresses per slot for a memory budget of " + maxMonitorMemory + " bytes");
+
+				if (clientKeyExtractor != null)
+					log.info(name4logging + " counts requests by " + clientKeyExtractor.getSource());
+
+				if (isAdaptiveMode())
+					log.info(name4logging + " is in adaptive mode, allowedRequestsPerSlot between "
+							+ adaptiveMinRequestsPerSlot + " and " + adaptiveMaxRequestsPerSlot);
 			}
 			return null;
 		} catch (IllegalArgumentException ex) {
@@ -671,6 +2531,138 @@ public class AntiDoSValve extends ValveBase {
 		}
 	}
 
+	/**
+	 * 
+	 * @return The number of IP addresses per slot: derived from the memory budget
+	 *         if set, otherwise <code>maxIPCacheSize</code>. The shared layout
+	 *         keeps its counters outside the heap and always uses
+	 *         <code>maxIPCacheSize</code>
+	 */
+	private int provideMaxIPCacheSize(long memory, int numberOfSlots) throws IllegalArgumentException {
+		if (memory == 0 || numberOfSlots < 1 || SHARED_MONITOR_LAYOUT.equals(monitorLayout))
+			return maxIPCacheSize;
+
+		if (RING_MONITOR_LAYOUT.equals(monitorLayout))
+			return AntiDoSRingMonitor.provideMaxEntriesForMemory(memory, numberOfSlots);
+
+		return AntiDoSMonitor.provideMaxCountersForMemory(memory, numberOfSlots);
+	}
+
+	/**
+	 * Sets the parameters of the locks and of the sampling on a new monitor and
+	 * starts the removal of ended locks if the monitor keeps them
+	 */
+	private void configureMonitor(AntiDoSMonitor monitor) throws IllegalArgumentException {
+		monitor.setSampling(samplingThreshold, samplingRate);
+		monitor.setBlockDuration(blockDuration);
+		monitor.setRepeatOffenders(offenderTableSize, strikeDecay, maxBlockDuration);
+		monitor.setLockedKeyIndexEnabled(fastRejectLockedIPs);
+
+		if (isLockExpiryNeeded())
+			monitor.startLockExpiry();
+	}
+
+	/**
+	 * @return <code>true</code> if the monitors keep locks that have to be removed
+	 *         in the background when they end. The additional windows apply only
+	 *         to the monitor of the valve and are not included
+	 */
+	private boolean isLockExpiryNeeded() {
+		return blockDuration > 0 || offenderTableSize > 0 || fastRejectLockedIPs;
+	}
+
+	/**
+	 * Sets the additional time windows on the monitor of the valve. A locked IP
+	 * address is kept until the end of its window, so the ended locks are removed
+	 * in the background
+	 */
+	private void configureWindows(AntiDoSMonitor monitor) throws IllegalArgumentException {
+		String definitions = additionalWindows;
+		if (definitions == null)
+			return;
+
+		String[] windows = definitions.split(";");
+		int[] windowLengths = new int[windows.length];
+		int[] allowedRequests = new int[windows.length];
+		for (int i = 0; i < windows.length; i++) {
+			String[] parts = windows[i].split("=");
+			if (parts.length != 2)
+				throw new IllegalArgumentException("Parameter additionalWindows is invalid: " + definitions);
+			try {
+				windowLengths[i] = Integer.parseInt(parts[0].trim());
+				allowedRequests[i] = Integer.parseInt(parts[1].trim());
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Parameter additionalWindows is invalid: " + definitions);
+			}
+		}
+
+		monitor.setWindows(windowLengths, allowedRequests);
+		monitor.startLockExpiry();
+	}
+
+	/**
+	 * Puts a monitor into the map of monitors and stops the background work of the
+	 * monitor it replaces
+	 */
+	private static void replaceMonitor(String name, AntiDoSMonitor monitor) {
+		AntiDoSMonitor former = monitors.put(name, monitor);
+		if (former != null && former != monitor)
+			former.stopLockExpiry();
+	}
+
+	/**
+	 * Removes a monitor from the map of monitors and stops its background work
+	 * 
+	 * @return <code>false</code> if there is no monitor with this name
+	 */
+	private static boolean removeMonitor(String name) {
+		AntiDoSMonitor former = monitors.remove(name);
+		if (former == null)
+			return false;
+
+		former.stopLockExpiry();
+		return true;
+	}
+
+	/**
+	 * Creates a monitor instance with the layout set in
+	 * {@link #setMonitorLayout(String)}. Can be overridden, e. g. to provide
+	 * monitors with another clock
+	 * 
+	 * @see AntiDoSMonitor#AntiDoSMonitor(String, int, int, int, int, float)
+	 */
+	protected AntiDoSMonitor createMonitor(String name, int maxCountersPerSlot, int numberOfSlots, int slotLength,
+			int allowedRequestsPerSlot, float shareOfRetainedFormerRequests) throws IllegalArgumentException {
+		if (RING_MONITOR_LAYOUT.equals(monitorLayout))
+			return new AntiDoSRingMonitor(name, maxCountersPerSlot, numberOfSlots, slotLength, allowedRequestsPerSlot,
+					shareOfRetainedFormerRequests);
+
+		if (SHARED_MONITOR_LAYOUT.equals(monitorLayout))
+			return new AntiDoSSharedMonitor(name, maxCountersPerSlot, numberOfSlots, slotLength,
+					allowedRequestsPerSlot, shareOfRetainedFormerRequests, provideSharedFile(name));
+
+		return new AntiDoSMonitor(name, maxCountersPerSlot, numberOfSlots, slotLength, allowedRequestsPerSlot,
+				shareOfRetainedFormerRequests);
+	}
+
+	/**
+	 * 
+	 * @return The file of a monitor in {@link #sharedMemoryDirectory}. Characters
+	 *         of the monitor name that are not safe in file names are replaced
+	 */
+	private Path provideSharedFile(String name) throws IllegalArgumentException {
+		String directory = sharedMemoryDirectory;
+		if (directory == null)
+			throw new IllegalArgumentException("Parameter sharedMemoryDirectory is missing");
+
+		String fileName = (name != null ? name : DEFAULT_MONITOR_NAME).replaceAll("[^A-Za-z0-9._-]", "_");
+		try {
+			return Paths.get(directory, fileName + SHARED_FILE_EXTENSION);
+		} catch (InvalidPathException ex) {
+			throw new IllegalArgumentException("Parameter sharedMemoryDirectory is invalid: " + directory);
+		}
+	}
+
 	/**
 	 * This method implements the actual business logic of the valve. The method is
 	 * public and can be called by JMX. The test runs in this order:
@@ -688,6 +2680,9 @@ public class AntiDoSValve extends ValveBase {
 	 * {@link #isRequestURIInNonRelevantPaths(String)}. If <code>true</code> the check
 	 * is finished and <code>true</code> returned as result, but the IP address is
 	 * not counted
+	 * <li>Does the request URI match a route rule? Calls
+	 * {@link #getRouteForRequestURI(String)}. If so the IP address is counted
+	 * and checked only in the monitor of this route
 	 * <li>Is the request URI in the relevant paths? Calls
 	 * {@link #isRequestURIInRelevantPaths(String)}. If not returns
 	 * <code>true</code>, but the IP address is not counted
@@ -702,36 +2697,122 @@ public class AntiDoSValve extends ValveBase {
 	 *         should be blocked
 	 */
 	public boolean isRequestAllowed(String ip, String requestURI) {
+		return checkRequest(ip, ip, requestURI).verdict <= VERDICT_ALLOWED;
+	}
+
+	/**
+	 * Implementation of {@link #isRequestAllowed(String, String)}, which tells
+	 * the caller in addition why a request is allowed or blocked
+	 * 
+	 * @param ip  The IP address, checked against the IP address lists
+	 * @param key The key under which the request is counted, see
+	 *            {@link #setClientKeySource(String)}
+	 * @return One of the <code>VERDICT_*</code> constants and the monitor that has
+	 *         counted the request
+	 */
+	private RequestCheck checkRequest(String ip, String key, String requestURI) {
+		long start = System.nanoTime();
+		RequestCheck check = provideVerdict(ip, key, requestURI);
+		metrics.registerVerdict(check.verdict, System.nanoTime() - start);
+		return check;
+	}
+
+	/**
+	 * The checks of {@link #checkRequest(String, String, String)}, without the
+	 * metrics
+	 */
+	private RequestCheck provideVerdict(String ip, String key, String requestURI) {
 
 		if (isIPAddressInAlwaysForbidden(ip)) {
 			if (log.isDebugEnabled())
 				log.debug(name4logging + " Is in AlwaysForbiddenIPs: " + ip);
 
-			return false;
+			return CHECK_FORBIDDEN;
 		}
 
 		if (isIPAddressInAlwaysAllowed(ip)) {
 			if (log.isDebugEnabled())
 				log.debug(name4logging + " Is in alwaysAllowedIPs: " + ip);
 
-			return true;
+			return CHECK_NOT_COUNTED;
 		}
 
 		if (isRequestURIInNonRelevantPaths(requestURI)) {
 			if (log.isDebugEnabled())
 				log.debug(name4logging + " Is in nonRelevantPaths: " + requestURI);
 
-			return true;
+			return CHECK_NOT_COUNTED;
+		}
+
+		int route = getRouteForRequestURI(requestURI);
+		if (route >= 0) {
+			if (log.isDebugEnabled())
+				log.debug(name4logging + " Is in route " + (route + 1) + ": " + requestURI);
+
+			return countRequest(key, provideRouteMonitor(route), getCostForRequestURI(requestURI));
 		}
 
 		if (!isRequestURIInRelevantPaths(requestURI)) {
 			if (log.isDebugEnabled())
 				log.debug(name4logging + " Not in relevantPaths: " + requestURI);
 
-			return true;
+			return CHECK_NOT_COUNTED;
 		}
 
-		return !isIPAddressBlocked(ip);
+		return countRequest(key, provideMonitor(), getCostForRequestURI(requestURI));
+	}
+
+	/**
+	 * Counts a request in the monitor of its path
+	 * 
+	 * @param monitor The monitor, might be <code>null</code>
+	 */
+	private RequestCheck countRequest(String key, AntiDoSMonitor monitor, int cost) {
+		return new RequestCheck(isIPAddressBlocked(key, monitor, cost) ? VERDICT_BLOCKED : VERDICT_ALLOWED, monitor);
+	}
+
+	/**
+	 * This method charges additional cost units to an IP address after a request
+	 * has been processed. The units are added in the monitor that counted the
+	 * request, requests that are not counted are ignored. The method is public and
+	 * can be called by JMX
+	 * 
+	 * @param ip         The IP address
+	 * @param requestURI The path, should be the result of
+	 *                   {@link HttpServletRequest#getRequestURI()}
+	 * @param cost       The cost units to add
+	 * @see AntiDoSMonitor#chargeRequest(String, int)
+	 */
+	public void chargeRequest(String ip, String requestURI, int cost) {
+		if (isIPAddressInAlwaysForbidden(ip) || isIPAddressInAlwaysAllowed(ip)
+				|| isRequestURIInNonRelevantPaths(requestURI))
+			return;
+
+		AntiDoSMonitor monitor = null;
+		int route = getRouteForRequestURI(requestURI);
+		if (route >= 0)
+			monitor = provideRouteMonitor(route);
+		else if (isRequestURIInRelevantPaths(requestURI))
+			monitor = provideMonitor();
+
+		chargeRequest(monitor, ip, cost);
+	}
+
+	/**
+	 * Implementation of {@link #chargeRequest(String, String, int)} for a request
+	 * whose monitor is already known from
+	 * {@link #checkRequest(String, String, String)}
+	 * 
+	 * @param monitor The monitor that has counted the request. <code>null</code>
+	 *                if the request has not been counted
+	 * @param key     The key under which the request has been counted
+	 */
+	private void chargeRequest(AntiDoSMonitor monitor, String key, int cost) {
+		if (cost < 1 || monitor == null)
+			return;
+
+		if (!monitor.chargeRequest(key, cost) && log.isDebugEnabled())
+			log.debug(name4logging + " locked after charging " + cost + ": " + key);
 	}
 
 	/**
@@ -745,8 +2826,25 @@ public class AntiDoSValve extends ValveBase {
 	 *                                  empty
 	 */
 	public boolean isIPAddressBlocked(String ip) throws IllegalArgumentException {
-		AntiDoSMonitor monitor = provideMonitor();
-		if (monitor == null || monitor.registerAndCheckRequest(ip)) {
+		return isIPAddressBlocked(ip, provideMonitor(), 1);
+	}
+
+	/**
+	 * Checks and counts an IP address in the given monitor
+	 * 
+	 * @param ip      The IP address
+	 * @param monitor The monitor, might be <code>null</code>
+	 * @param cost    The cost of the request
+	 */
+	private boolean isIPAddressBlocked(String ip, AntiDoSMonitor monitor, int cost) throws IllegalArgumentException {
+		if (monitor != null && monitor.isLocked(ip)) {
+			if (log.isDebugEnabled())
+				log.debug(name4logging + " blocks by index of locked IP addresses: " + ip);
+
+			return true;
+		}
+
+		if (monitor == null || monitor.registerAndCheckRequest(ip, cost)) {
 			if (log.isDebugEnabled())
 				if (monitor == null)
 					log.debug(name4logging + " not available");
@@ -847,12 +2945,81 @@ public class AntiDoSValve extends ValveBase {
 		return false;
 	}
 
+	/**
+	 * This method determines the route rule for a URL. The method is public and
+	 * can be called by JMX
+	 *
+	 * @param requestURI The path. Should be the result of
+	 *                   {@link HttpServletRequest#getRequestURI()}
+	 * @return The index of the first matching rule in
+	 *         {@link #getRouteRulesConfigValue()} or <code>-1</code>
+	 */
+	public int getRouteForRequestURI(String requestURI) {
+		// Local copy for thread safety
+		AntiDoSPathTable routes = this.routeRules;
+
+		return routes != null ? routes.match(requestURI) : -1;
+	}
+
+	/**
+	 * This method determines the cost of a request on a URL. The method is public
+	 * and can be called by JMX
+	 *
+	 * @param requestURI The path. Should be the result of
+	 *                   {@link HttpServletRequest#getRequestURI()}
+	 * @return The cost of the first matching entry in
+	 *         {@link #getPathCostsConfigValue()} or 1
+	 */
+	public int getCostForRequestURI(String requestURI) {
+		// Local copy for thread safety
+		AntiDoSPathTable costs = this.pathCosts;
+
+		int entry = costs != null ? costs.match(requestURI) : -1;
+		return entry >= 0 ? costs.getValue(entry, 0, 1) : 1;
+	}
+
+	/**
+	 * Provides the metrics of the valve and its monitors in the text format of
+	 * Prometheus: the checked requests by verdict, the time needed for the
+	 * checks, and per monitor the locks, evictions, slot rotations and the
+	 * number of counters. The method is public and can be called by JMX
+	 * 
+	 * @return The metrics, see {@link AntiDoSMetrics}
+	 */
+	public String getMetrics() {
+		AntiDoSMonitor[] _routeMonitors = routeMonitors;
+		AntiDoSMonitor[] _monitors = new AntiDoSMonitor[1 + (_routeMonitors != null ? _routeMonitors.length : 0)];
+		_monitors[0] = provideMonitor();
+		for (int i = 1; i < _monitors.length; i++)
+			_monitors[i] = _routeMonitors[i - 1];
+
+		StringBuilder sb = new StringBuilder(4096);
+		metrics.print(sb, monitorName, _monitors);
+		return sb.toString();
+	}
+
 	/**
 	 * @return Prints the current status of the internal monitoring object, e. g.
 	 *         for JMX monitoring
 	 */
 	public String getMonitorStatus() {
 		AntiDoSMonitor monitor = provideMonitor();
-		return monitor != null ? monitor.toString() : "NOT INITIALIZED!";
+		if (monitor == null)
+			return "NOT INITIALIZED!";
+
+		StringBuilder sb = new StringBuilder(monitor.toString());
+		if (monitor.getEffectiveMaxCountersPerSlot() < monitor.getMaxCountersPerSlot())
+			sb.append("#memory shed, maxCountersPerSlot reduced to ")
+					.append(monitor.getEffectiveMaxCountersPerSlot()).append("\n");
+		if (monitor.isLockedKeyIndexEnabled())
+			sb.append("#locked IP addresses: ").append(monitor.getNumberOfLockedKeys())
+					.append("; fast rejected requests: ~").append(monitor.getFastRejectedRequests()).append("\n");
+
+		AntiDoSMonitor[] _routeMonitors = routeMonitors;
+		if (_routeMonitors != null) {
+			for (int i = 0; i < _routeMonitors.length; i++)
+				sb.append("Route ").append(i + 1).append(": ").append(_routeMonitors[i].toString());
+		}
+		return sb.toString();
 	}
 }
@@ -0,0 +1,341 @@
+package org.henbru.antidos;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Copyright 2017 Henning Brune
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ *************************
+ *
+ * This class holds additional time windows of a monitor, each with its own
+ * length and limit, e. g. 600 requests per minute and 5000 per hour next to
+ * the limit per slot, see {@link AntiDoSMonitor#setWindows(int[], int[])}.
+ * <p>
+ * The counts of a key in all windows are kept next to each other in one record
+ * of its own, an {@link AtomicLongArray} with one value per window holding the
+ * lower 32 bits of the window number (bits 31 - 62) and the count (bits 0 -
+ * 30). A value whose window number is not the current one is treated as
+ * empty, so the windows start over without being cleared. Like the slots, the
+ * windows are aligned to multiples of their length. The windows outlast the
+ * slots, so the records cannot be kept with the counters of a slot; a counter
+ * only caches the record of its key, see {@link AntiDoSCounter}.
+ * <p>
+ * The records are held in a fixed array with at least <code>maxRecords</code>
+ * entries and found by linear probing over at most {@link #MAX_PROBES}
+ * entries, starting at a seeded hash of the key (see {@link AntiDoSHash}). If
+ * none of them is free or holds the key, the record used least recently is
+ * replaced by a new one. Every key is therefore counted: a key whose record has been
+ * replaced starts over in its windows, but a counter that still holds the
+ * replaced record goes on counting in it until the end of its slot
+ *
+ * @author Henning
+ *
+ */
+public class AntiDoSWindows {
+
+	private static final Log log = LogFactory.getLog(AntiDoSValve.ANTIDOS_LOGGER_NAME);
+
+	/**
+	 * The maximum number of entries searched for a key
+	 */
+	static final int MAX_PROBES = 8;
+
+	private static final long COUNT_MASK = (1L << 31) - 1;
+
+	private static final long TAG_MASK = 0xffffffffL;
+
+	private static final int MAX_COUNT = (int) COUNT_MASK - 1;
+
+	private final String name4logging;
+
+	private final long[] lengths;
+
+	private final int[] allowed;
+
+	private final AtomicReferenceArray<Record> records;
+
+	private final long seed = AntiDoSHash.newSeed();
+
+	private final LongAdder evictions = new LongAdder();
+
+	private volatile boolean recordsFullLogged = false;
+
+	/**
+	 * The counts of a key in all windows and the hash of the key
+	 */
+	private static final class Record extends AtomicLongArray {
+		private static final long serialVersionUID = 1L;
+
+		private final long hash;
+
+		private Record(long hash, int windows) {
+			super(windows);
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * @param monitorName     The name of the monitor, used for logging
+	 * @param windowLengths   The lengths of the windows in seconds
+	 * @param allowedRequests The number of requests allowed in each window
+	 * @param maxRecords      The number of keys that can be counted. Rounded up
+	 *                        to the next power of two
+	 * @throws IllegalArgumentException Thrown if a parameter is invalid
+	 */
+	public AntiDoSWindows(String monitorName, int[] windowLengths, int[] allowedRequests, int maxRecords)
+			throws IllegalArgumentException {
+		if (windowLengths == null || windowLengths.length == 0)
+			throw new IllegalArgumentException("Parameter windowLengths is missing");
+		if (allowedRequests == null || allowedRequests.length != windowLengths.length)
+			throw new IllegalArgumentException("Parameter allowedRequests does not match windowLengths");
+		if (maxRecords < 1 || maxRecords > 1 << 26)
+			throw new IllegalArgumentException("Parameter maxRecords is invalid: " + maxRecords);
+
+		this.name4logging = "AntiDoSWindows [" + monitorName + "]";
+		this.lengths = new long[windowLengths.length];
+		this.allowed = allowedRequests.clone();
+		for (int i = 0; i < windowLengths.length; i++) {
+			if (windowLengths[i] < 1)
+				throw new IllegalArgumentException("Parameter windowLength is invalid: " + windowLengths[i]);
+			if (allowedRequests[i] < 1)
+				throw new IllegalArgumentException("Parameter allowedRequests is invalid: " + allowedRequests[i]);
+			lengths[i] = windowLengths[i] * 1000L;
+		}
+
+		int length = Integer.highestOneBit(maxRecords);
+		if (length < maxRecords)
+			length <<= 1;
+		this.records = new AtomicReferenceArray<Record>(length);
+	}
+
+	/**
+	 * Provides the record of a key and creates it if necessary. If there is no
+	 * room, the record used least recently among the searched entries is
+	 * replaced
+	 *
+	 * @param key The key (e. g. an IP address)
+	 * @param now The current time in milliseconds
+	 * @return The record, never <code>null</code>
+	 */
+	public AtomicLongArray provideRecord(String key, long now) {
+		long hash = hash(key);
+		int mask = records.length() - 1;
+		int start = (int) hash & mask;
+		int probes = Math.min(MAX_PROBES, records.length());
+
+		while (true) {
+			int victim = -1;
+			Record victimRecord = null;
+			long victimLastUse = Long.MAX_VALUE;
+
+			for (int p = 0; p < probes; p++) {
+				int index = (start + p) & mask;
+				Record record = records.get(index);
+
+				if (record == null) {
+					Record newRecord = new Record(hash, lengths.length);
+					if (records.compareAndSet(index, null, newRecord))
+						return newRecord;
+					record = records.get(index);
+				}
+				if (record.hash == hash)
+					return record;
+
+				long lastUse = getLastUse(record);
+				if (lastUse < victimLastUse) {
+					victim = index;
+					victimRecord = record;
+					victimLastUse = lastUse;
+				}
+			}
+
+			Record newRecord = new Record(hash, lengths.length);
+			if (records.compareAndSet(victim, victimRecord, newRecord)) {
+				if (isInUse(victimRecord, now))
+					registerEviction();
+				return newRecord;
+			}
+		}
+	}
+
+	/**
+	 * Adds the weight of a request to all windows of a record
+	 *
+	 * @param record The record of the key
+	 * @param weight The weight of the request
+	 * @param now    The current time in milliseconds
+	 * @return The index of the first window whose limit is exceeded by this
+	 *         request, <code>-1</code> if none
+	 */
+	public int register(AtomicLongArray record, int weight, long now) {
+		int violated = -1;
+		for (int i = 0; i < lengths.length; i++) {
+			if (add(record, i, weight, now) > allowed[i] && violated < 0)
+				violated = i;
+		}
+		return violated;
+	}
+
+	/**
+	 * @param key    The key (e. g. an IP address)
+	 * @param window The index of the window
+	 * @param now    The current time in milliseconds
+	 * @return The count of the key in the current window
+	 */
+	public int getCount(String key, int window, long now) {
+		AtomicLongArray record = findRecord(key);
+		if (record == null)
+			return 0;
+
+		long value = record.get(window);
+		return tag(value) == tag(window, now) ? (int) (value & COUNT_MASK) : 0;
+	}
+
+	/**
+	 * @param window The index of the window
+	 * @param now    The current time in milliseconds
+	 * @return The end of the current window in milliseconds
+	 */
+	public long getWindowEnd(int window, long now) {
+		return (now / lengths[window] + 1) * lengths[window];
+	}
+
+	/**
+	 * @return The number of windows
+	 */
+	public int size() {
+		return lengths.length;
+	}
+
+	/**
+	 * @param window The index of the window
+	 * @return The length of the window in milliseconds
+	 */
+	public long getLengthInMillis(int window) {
+		return lengths[window];
+	}
+
+	/**
+	 * @param window The index of the window
+	 * @return The number of requests allowed in the window
+	 */
+	public int getAllowedRequests(int window) {
+		return allowed[window];
+	}
+
+	/**
+	 * @return The number of keys with a record, including ended records not yet
+	 *         replaced. Scans the whole array
+	 */
+	public int getNumberOfRecords() {
+		int number = 0;
+		for (int i = 0; i < records.length(); i++) {
+			if (records.get(i) != null)
+				number++;
+		}
+		return number;
+	}
+
+	/**
+	 * @return The number of records with counts in a current window that have
+	 *         been replaced by the record of another key
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return The record of a key, <code>null</code> if there is none
+	 */
+	private Record findRecord(String key) {
+		long hash = hash(key);
+		int mask = records.length() - 1;
+		int start = (int) hash & mask;
+
+		for (int p = 0; p < Math.min(MAX_PROBES, records.length()); p++) {
+			Record record = records.get((start + p) & mask);
+			if (record == null)
+				return null;
+			if (record.hash == hash)
+				return record;
+		}
+		return null;
+	}
+
+	private int add(AtomicLongArray record, int window, int weight, long now) {
+		long tag = tag(window, now);
+		while (true) {
+			long value = record.get(window);
+			long count = tag(value) == tag ? (value & COUNT_MASK) + weight : weight;
+			long update = (tag << 31) | Math.min(MAX_COUNT, count);
+			if (record.compareAndSet(window, value, update))
+				return (int) (update & COUNT_MASK);
+		}
+	}
+
+	/**
+	 * @return The start of the latest window in which the record has been
+	 *         counted, in milliseconds. <code>-1</code> if it has never been
+	 *         counted
+	 */
+	private long getLastUse(Record record) {
+		long lastUse = -1;
+		for (int i = 0; i < lengths.length; i++) {
+			long value = record.get(i);
+			if (value != 0)
+				lastUse = Math.max(lastUse, tag(value) * lengths[i]);
+		}
+		return lastUse;
+	}
+
+	/**
+	 * @return <code>true</code> if the record has counts in a current window
+	 */
+	private boolean isInUse(Record record, long now) {
+		for (int i = 0; i < lengths.length; i++) {
+			long value = record.get(i);
+			if (value != 0 && tag(value) == tag(i, now))
+				return true;
+		}
+		return false;
+	}
+
+	private void registerEviction() {
+		evictions.increment();
+
+		if (!recordsFullLogged) {
+			recordsFullLogged = true;
+			if (log.isInfoEnabled())
+				log.info(name4logging + " Window records are full, the least recently used are replaced");
+		}
+	}
+
+	private long hash(String key) {
+		return AntiDoSHash.hash(seed, key);
+	}
+
+	private long tag(int window, long now) {
+		return (now / lengths[window]) & TAG_MASK;
+	}
+
+	private static long tag(long value) {
+		return (value >>> 31) & TAG_MASK;
+	}
+}
@@ -0,0 +1,183 @@
+package org.henbru.antidos;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the address canonicalization. Besides fixed examples, random
+ * addresses are written in all supported notations and compared with the
+ * result of {@link InetAddress#getHostAddress()}
+ */
+public class AntiDoSAddressTest extends TestCase {
+
+	private static final int ROUNDS = 20000;
+
+	public void testExamples() {
+		assertEquals("0:0:0:0:0:0:0:1", AntiDoSAddress.canonicalize("::1"));
+		assertEquals("0:0:0:0:0:0:0:1", AntiDoSAddress.canonicalize("[::1]"));
+		assertEquals("0:0:0:0:0:0:0:1", AntiDoSAddress.canonicalize("0000:0:0:0:0:0:0:0001"));
+		assertEquals("0:0:0:0:0:0:0:0", AntiDoSAddress.canonicalize("::"));
+		assertEquals("2001:db8:0:0:0:0:0:1", AntiDoSAddress.canonicalize("2001:DB8::1"));
+		assertEquals("fe80:0:0:0:0:0:0:1", AntiDoSAddress.canonicalize("fe80::1%eth0"));
+		assertEquals("1:0:0:0:0:0:0:0", AntiDoSAddress.canonicalize("1::"));
+		assertEquals("1:2:3:4:5:6:0:8", AntiDoSAddress.canonicalize("1:2:3:4:5:6::8"));
+		assertEquals("0:0:0:0:0:0:102:304", AntiDoSAddress.canonicalize("::1.2.3.4"));
+
+		assertEquals("192.168.0.1", AntiDoSAddress.canonicalize("::ffff:192.168.0.1"));
+		assertEquals("192.168.0.1", AntiDoSAddress.canonicalize("::FFFF:c0a8:1"));
+		assertEquals("192.168.0.1", AntiDoSAddress.canonicalize("0:0:0:0:0:ffff:192.168.0.1"));
+		assertEquals("192.168.0.1", AntiDoSAddress.canonicalize("192.168.000.001"));
+		assertEquals("192.168.0.1", AntiDoSAddress.canonicalize("[192.168.0.1]"));
+	}
+
+	public void testCanonicalInstanceIsKept() {
+		String[] canonical = { "127.0.0.1", "255.255.255.255", "0.0.0.0", "0:0:0:0:0:0:0:1",
+				"2001:db8:0:0:8:800:200c:417a", "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff" };
+
+		for (String address : canonical)
+			assertSame(address, AntiDoSAddress.canonicalize(address));
+	}
+
+	public void testNoAddress() {
+		String[] invalid = { "", "abc", "1a2b3c4d5e6f", "123.456.789.000", "1.2.3", "1.2.3.4.5", "1..2.3",
+				"1.2.3.4:80", "1:2", ":1", "1:", ":::", "1::2::3", "12345::", "1:2:3:4:5:6:7:8:9",
+				"1:2:3:4:5:6:7::8", "::1.2.3", "::1.2.3.4:5", "g::1", "[::1", "::1]" };
+
+		for (String value : invalid)
+			assertSame(value, AntiDoSAddress.canonicalize(value));
+
+		assertNull(AntiDoSAddress.canonicalize(null));
+	}
+
+	public void testRandomIPv4() throws UnknownHostException {
+		Random random = new Random(4711);
+
+		for (int round = 0; round < ROUNDS; round++) {
+			byte[] bytes = new byte[4];
+			random.nextBytes(bytes);
+			String expected = InetAddress.getByAddress(bytes).getHostAddress();
+
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < 4; i++) {
+				if (i > 0)
+					sb.append('.');
+				String part = Integer.toString(bytes[i] & 0xff);
+				if (random.nextInt(4) == 0)
+					part = "000".substring(part.length()) + part;
+				sb.append(part);
+			}
+
+			assertEquals(expected, AntiDoSAddress.canonicalize(sb.toString()));
+			assertEquals(expected, AntiDoSAddress.canonicalize("::ffff:" + sb));
+			assertSame(expected, AntiDoSAddress.canonicalize(expected));
+		}
+	}
+
+	public void testRandomIPv6() throws UnknownHostException {
+		Random random = new Random(815);
+
+		for (int round = 0; round < ROUNDS; round++) {
+			int[] groups = randomGroups(random);
+
+			byte[] bytes = new byte[16];
+			for (int i = 0; i < 8; i++) {
+				bytes[2 * i] = (byte) (groups[i] >>> 8);
+				bytes[2 * i + 1] = (byte) groups[i];
+			}
+			// IPv4-mapped addresses become Inet4Address instances:
+			String expected = InetAddress.getByAddress(bytes).getHostAddress();
+
+			String notation = randomNotation(random, groups);
+			assertEquals(notation, expected, AntiDoSAddress.canonicalize(notation));
+
+			String canonical = AntiDoSAddress.canonicalize(expected);
+			assertSame(expected, canonical);
+		}
+	}
+
+	/**
+	 * Groups with many zeros, so that compression and IPv4-mapped addresses
+	 * occur frequently
+	 */
+	private static int[] randomGroups(Random random) {
+		int[] groups = new int[8];
+		for (int i = 0; i < 8; i++) {
+			switch (random.nextInt(4)) {
+			case 0:
+			case 1:
+				groups[i] = 0;
+				break;
+			case 2:
+				groups[i] = random.nextInt(0x100);
+				break;
+			default:
+				groups[i] = random.nextInt(0x10000);
+			}
+		}
+		if (random.nextInt(8) == 0) {
+			for (int i = 0; i < 5; i++)
+				groups[i] = 0;
+			groups[5] = 0xffff;
+		}
+		return groups;
+	}
+
+	/**
+	 * Writes the groups with random compression, leading zeros, case, embedded
+	 * IPv4 address, zone and brackets
+	 */
+	private static String randomNotation(Random random, int[] groups) {
+		String[] texts = new String[8];
+		for (int i = 0; i < 8; i++) {
+			String text = Integer.toHexString(groups[i]);
+			if (random.nextInt(4) == 0)
+				text = "0000".substring(text.length()) + text;
+			if (random.nextBoolean())
+				text = text.toUpperCase();
+			texts[i] = text;
+		}
+
+		int count = 8;
+		if (random.nextInt(3) == 0) {
+			texts[6] = (groups[6] >>> 8) + "." + (groups[6] & 0xff) + "." + (groups[7] >>> 8) + "."
+					+ (groups[7] & 0xff);
+			count = 7;
+		}
+
+		// Compress a random run of zero groups, if there is one:
+		int runStart = -1;
+		int runEnd = -1;
+		int first = random.nextInt(8);
+		for (int i = first; i < 8 && (count == 8 || i < 6); i++) {
+			if (groups[i] != 0)
+				break;
+			if (runStart < 0)
+				runStart = i;
+			runEnd = i + 1;
+			if (random.nextInt(3) == 0)
+				break;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (i == runStart) {
+				sb.append("::");
+				i = runEnd - 1;
+				continue;
+			}
+			if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ':')
+				sb.append(':');
+			sb.append(texts[i]);
+		}
+
+		if (random.nextInt(5) == 0)
+			sb.append(random.nextBoolean() ? "%eth0" : "%3");
+		if (random.nextInt(5) == 0)
+			sb.insert(0, '[').append(']');
+
+		return sb.toString();
+	}
+}
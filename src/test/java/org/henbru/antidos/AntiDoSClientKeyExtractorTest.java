@@ -0,0 +1,132 @@
+package org.henbru.antidos;
+
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+import org.apache.tomcat.util.http.MimeHeaders;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the client key extraction
+ */
+public class AntiDoSClientKeyExtractorTest extends TestCase {
+
+	private static final Pattern PROXIES = Pattern.compile("10\\.0\\.0\\.\\d+");
+
+	public void testInvalidParameters() {
+		assertInvalid("SOMETHING", null, null);
+		assertInvalid(AntiDoSClientKeyExtractor.SOURCE_X_FORWARDED_FOR, null, null);
+		assertInvalid(AntiDoSClientKeyExtractor.SOURCE_HEADER, null, null);
+		assertInvalid(AntiDoSClientKeyExtractor.SOURCE_COOKIE, "", null);
+	}
+
+	public void testRemoteAddr() {
+		AntiDoSClientKeyExtractor extractor = new AntiDoSClientKeyExtractor(
+				AntiDoSClientKeyExtractor.SOURCE_REMOTE_ADDR, null, null);
+		MimeHeaders headers = headers("X-Forwarded-For", "1.2.3.4");
+
+		assertEquals("10.0.0.1", extractor.extractClientAddress(headers, "10.0.0.1"));
+		assertEquals("10.0.0.1", extractor.extractKey(headers, "10.0.0.1"));
+	}
+
+	public void testXForwardedFor() {
+		AntiDoSClientKeyExtractor extractor = new AntiDoSClientKeyExtractor(
+				AntiDoSClientKeyExtractor.SOURCE_X_FORWARDED_FOR, null, PROXIES);
+
+		assertEquals("1.2.3.4", extractor.extractClientAddress(headers("X-Forwarded-For", "1.2.3.4"), "10.0.0.1"));
+		// Header is ignored for connections not from a trusted proxy:
+		assertEquals("5.6.7.8", extractor.extractClientAddress(headers("X-Forwarded-For", "1.2.3.4"), "5.6.7.8"));
+		// The entries in front of the nearest untrusted address can be forged:
+		assertEquals("1.2.3.4",
+				extractor.extractClientAddress(headers("x-forwarded-for", "6.6.6.6, 1.2.3.4 ,10.0.0.7"), "10.0.0.1"));
+		assertEquals("2001:db8:0:0:0:0:0:1",
+				extractor.extractClientAddress(headers("X-Forwarded-For", " 2001:db8::1 "), "10.0.0.1"));
+		// Several headers form one list:
+		assertEquals("1.2.3.4", extractor.extractClientAddress(
+				headers("X-Forwarded-For", "6.6.6.6", "Accept", "*/*", "X-Forwarded-For", "1.2.3.4, 10.0.0.2"),
+				"10.0.0.1"));
+		assertEquals("6.6.6.6", extractor.extractClientAddress(
+				headers("X-Forwarded-For", "6.6.6.6", "X-Forwarded-For", "10.0.0.3,, 10.0.0.2"), "10.0.0.1"));
+
+		// Only proxies, missing header or garbage:
+		assertEquals("10.0.0.1", extractor.extractClientAddress(headers("X-Forwarded-For", "10.0.0.2"), "10.0.0.1"));
+		assertEquals("10.0.0.1", extractor.extractClientAddress(headers("Accept", "*/*"), "10.0.0.1"));
+		assertEquals("10.0.0.1",
+				extractor.extractClientAddress(headers("X-Forwarded-For", "1.2.3.4, unknown"), "10.0.0.1"));
+		assertEquals("10.0.0.1", extractor.extractClientAddress(
+				headers("X-Forwarded-For", "1111:2222:3333:4444:5555:6666:7777:8888:9999:0000"), "10.0.0.1"));
+
+		// The key is the client address:
+		assertEquals("1.2.3.4", extractor.extractKey(headers("X-Forwarded-For", "1.2.3.4"), "1.2.3.4"));
+	}
+
+	public void testOtherHeaderName() {
+		AntiDoSClientKeyExtractor extractor = new AntiDoSClientKeyExtractor(
+				AntiDoSClientKeyExtractor.SOURCE_X_FORWARDED_FOR, "X-Real-IP", PROXIES);
+
+		assertEquals("1.2.3.4",
+				extractor.extractClientAddress(headers("X-Forwarded-For", "6.6.6.6", "X-Real-IP", "1.2.3.4"),
+						"10.0.0.1"));
+	}
+
+	public void testHeader() {
+		AntiDoSClientKeyExtractor extractor = new AntiDoSClientKeyExtractor(AntiDoSClientKeyExtractor.SOURCE_HEADER,
+				"X-Api-Key", null);
+
+		String key = extractor.extractKey(headers("X-Api-Key", "secret"), "1.2.3.4");
+		assertFalse(key.contains("secret"));
+		assertEquals(key, extractor.extractKey(headers("x-api-key", " secret "), "5.6.7.8"));
+		assertFalse(key.equals(extractor.extractKey(headers("X-Api-Key", "secret2"), "1.2.3.4")));
+
+		assertEquals("1.2.3.4", extractor.extractKey(headers("Accept", "*/*"), "1.2.3.4"));
+		assertEquals("1.2.3.4", extractor.extractKey(headers("X-Api-Key", "  "), "1.2.3.4"));
+		assertEquals("1.2.3.4", extractor.extractClientAddress(headers("X-Api-Key", "secret"), "1.2.3.4"));
+	}
+
+	public void testCookie() {
+		AntiDoSClientKeyExtractor extractor = new AntiDoSClientKeyExtractor(AntiDoSClientKeyExtractor.SOURCE_COOKIE,
+				"SID", null);
+
+		String key = extractor.extractKey(headers("Cookie", "SID=abc"), "1.2.3.4");
+		assertFalse(key.equals("1.2.3.4"));
+		assertEquals(key, extractor.extractKey(headers("Cookie", "a=1; SID = abc ;b=2"), "1.2.3.4"));
+		assertEquals(key, extractor.extractKey(headers("Cookie", "SID=\"abc\""), "1.2.3.4"));
+		assertEquals(key, extractor.extractKey(headers("Cookie", "a=1", "Cookie", "SID=abc"), "1.2.3.4"));
+
+		assertEquals("1.2.3.4", extractor.extractKey(headers("Cookie", "XSID=abc; SIDX=abc; a=SID"), "1.2.3.4"));
+		assertEquals("1.2.3.4", extractor.extractKey(headers("Cookie", "SID="), "1.2.3.4"));
+		assertEquals("1.2.3.4", extractor.extractKey(headers("Accept", "*/*"), "1.2.3.4"));
+	}
+
+	public void testHashKey() {
+		byte[] value = "xxabcxx".getBytes(StandardCharsets.ISO_8859_1);
+		byte[] other = "abc".getBytes(StandardCharsets.ISO_8859_1);
+
+		assertEquals(AntiDoSClientKeyExtractor.hashKey(value, 2, 5), AntiDoSClientKeyExtractor.hashKey(other, 0, 3));
+		assertFalse(AntiDoSClientKeyExtractor.hashKey(value, 2, 5)
+				.equals(AntiDoSClientKeyExtractor.hashKey(other, 0, 2)));
+		assertTrue(AntiDoSClientKeyExtractor.hashKey(value, 0, value.length).length() <= 16);
+	}
+
+	/**
+	 * Creates headers from name value pairs. The values are stored as bytes, as
+	 * the connector does
+	 */
+	private static MimeHeaders headers(String... namesAndValues) {
+		MimeHeaders headers = new MimeHeaders();
+		for (int i = 0; i < namesAndValues.length; i += 2) {
+			byte[] value = namesAndValues[i + 1].getBytes(StandardCharsets.ISO_8859_1);
+			headers.addValue(namesAndValues[i]).setBytes(value, 0, value.length);
+		}
+		return headers;
+	}
+
+	private static void assertInvalid(String source, String name, Pattern trustedProxies) {
+		try {
+			new AntiDoSClientKeyExtractor(source, name, trustedProxies);
+			fail("IllegalArgumentException expected: " + source);
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+}
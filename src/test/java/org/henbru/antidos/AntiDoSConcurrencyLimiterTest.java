@@ -0,0 +1,111 @@
+package org.henbru.antidos;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the concurrency limiter implementation
+ */
+public class AntiDoSConcurrencyLimiterTest extends TestCase {
+
+	public void testAcquireAndRelease() {
+		AntiDoSConcurrencyLimiter limiter = new AntiDoSConcurrencyLimiter(2, 1024);
+
+		assertTrue(limiter.tryAcquire("123.456.789.000"));
+		assertTrue(limiter.tryAcquire("123.456.789.000"));
+		assertFalse(limiter.tryAcquire("123.456.789.000"));
+		assertEquals(2, limiter.getCount("123.456.789.000"));
+
+		limiter.release("123.456.789.000");
+		assertEquals(1, limiter.getCount("123.456.789.000"));
+		assertTrue(limiter.tryAcquire("123.456.789.000"));
+		assertFalse(limiter.tryAcquire("123.456.789.000"));
+
+		limiter.release("123.456.789.000");
+		limiter.release("123.456.789.000");
+		assertEquals(0, limiter.getCount("123.456.789.000"));
+	}
+
+	public void testStripes() {
+		assertEquals(1024, new AntiDoSConcurrencyLimiter(1, 1000).getNumberOfStripes());
+		assertEquals(1024, new AntiDoSConcurrencyLimiter(1, 1024).getNumberOfStripes());
+		assertEquals(1, new AntiDoSConcurrencyLimiter(1, 1).getNumberOfStripes());
+
+		// With a single stripe all keys share the limit:
+		AntiDoSConcurrencyLimiter limiter = new AntiDoSConcurrencyLimiter(1, 1);
+		assertTrue(limiter.tryAcquire("123.456.789.000"));
+		assertFalse(limiter.tryAcquire("123.456.789.001"));
+	}
+
+	public void testCanonicalKeys() {
+		AntiDoSConcurrencyLimiter limiter = new AntiDoSConcurrencyLimiter(1, 1024);
+
+		// Different spellings of one address share the limit:
+		assertTrue(limiter.tryAcquire("::1"));
+		assertFalse(limiter.tryAcquire("0:0:0:0:0:0:0:1"));
+		assertFalse(limiter.tryAcquire("[::1]"));
+		assertEquals(1, limiter.getCount("0:0:0:0:0:0:0:1"));
+
+		limiter.release("[::1]");
+		assertEquals(0, limiter.getCount("::1"));
+	}
+
+	public void testCollidingHashCodes() {
+		// "Aa" and "BB" have the same String.hashCode(), concatenations of them
+		// as well. With 2^20 stripes they must not all end up in one stripe:
+		assertEquals("Aa".hashCode(), "BB".hashCode());
+		AntiDoSConcurrencyLimiter limiter = new AntiDoSConcurrencyLimiter(1, 1 << 20);
+
+		int rejected = 0;
+		for (int i = 0; i < 256; i++) {
+			StringBuilder key = new StringBuilder();
+			for (int b = 0; b < 8; b++)
+				key.append((i & (1 << b)) != 0 ? "Aa" : "BB");
+			if (!limiter.tryAcquire(key.toString()))
+				rejected++;
+		}
+		assertTrue("Rejected: " + rejected, rejected < 8);
+	}
+
+	public void testInvalidParameters() {
+		try {
+			new AntiDoSConcurrencyLimiter(0, 1024);
+			fail("maxConcurrent 0 accepted");
+		} catch (IllegalArgumentException ex) {
+		}
+		try {
+			new AntiDoSConcurrencyLimiter(1, 0);
+			fail("numberOfStripes 0 accepted");
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+
+	public void testConcurrentAccess() throws InterruptedException {
+		final AntiDoSConcurrencyLimiter limiter = new AntiDoSConcurrencyLimiter(3, 1024);
+		final int[] violations = new int[1];
+
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 10000; i++) {
+						if (limiter.tryAcquire("123.456.789.000")) {
+							if (limiter.getCount("123.456.789.000") > 3) {
+								synchronized (violations) {
+									violations[0]++;
+								}
+							}
+							limiter.release("123.456.789.000");
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		assertEquals(0, violations[0]);
+		assertEquals(0, limiter.getCount("123.456.789.000"));
+	}
+}
@@ -9,41 +9,174 @@ public class AntiDoSCounterTest extends TestCase {
 
 	public void testCount() {
 		AntiDoSCounter rec = new AntiDoSCounter();
-		assertEquals(0, rec.getCount().get());
-		rec.getCount().addAndGet(1);		
-		assertEquals(1, rec.getCount().get());
-		rec.getCount().addAndGet(1);		
-		assertEquals(2, rec.getCount().get());
-		rec.getCount().set(1);		
-		assertEquals(1, rec.getCount().get());
-		rec.getCount().set(100);		
-		assertEquals(100, rec.getCount().get());		
+		assertEquals(0, rec.getCountView().get());
+		rec.getCountView().addAndGet(1);		
+		assertEquals(1, rec.getCountView().get());
+		rec.getCountView().addAndGet(1);		
+		assertEquals(2, rec.getCountView().get());
+		rec.getCountView().set(1);		
+		assertEquals(1, rec.getCountView().get());
+		rec.getCountView().set(100);		
+		assertEquals(100, rec.getCountView().get());		
 	}
 	
 	public void testRetainedCounts() {
 		AntiDoSCounter rec = new AntiDoSCounter();
-		assertEquals(-1, rec.getRetainedCounts().get());
-		rec.getRetainedCounts().addAndGet(1);		
-		assertEquals(0, rec.getRetainedCounts().get());
-		rec.getRetainedCounts().addAndGet(1);		
-		assertEquals(1, rec.getRetainedCounts().get());
-		rec.getRetainedCounts().addAndGet(1);		
-		assertEquals(2, rec.getRetainedCounts().get());
-		rec.getRetainedCounts().set(1);		
-		assertEquals(1, rec.getRetainedCounts().get());
+		assertEquals(-1, rec.getRetainedCountsView().get());
+		rec.getRetainedCountsView().addAndGet(1);		
+		assertEquals(0, rec.getRetainedCountsView().get());
+		rec.getRetainedCountsView().addAndGet(1);		
+		assertEquals(1, rec.getRetainedCountsView().get());
+		rec.getRetainedCountsView().addAndGet(1);		
+		assertEquals(2, rec.getRetainedCountsView().get());
+		rec.getRetainedCountsView().set(1);		
+		assertEquals(1, rec.getRetainedCountsView().get());
 		
 	}
 	public void testCountCombined() {
 		AntiDoSCounter rec = new AntiDoSCounter();
 		assertEquals(0, rec.getCountCombined());
 		
-		rec.getCount().addAndGet(1);		
+		rec.getCountView().addAndGet(1);		
 		assertEquals(1, rec.getCountCombined());
 		
-		rec.getCount().addAndGet(1);		
+		rec.getCountView().addAndGet(1);		
 		assertEquals(2, rec.getCountCombined());
 		
-		rec.getRetainedCounts().set(123);		
+		rec.getRetainedCountsView().set(123);		
 		assertEquals(125, rec.getCountCombined());
 	}	
+
+	@SuppressWarnings("deprecation")
+	public void testDeprecatedGetters() {
+		AntiDoSCounter rec = new AntiDoSCounter();
+		rec.addToCount(3);
+		rec.setRetainedCounts(4);
+		assertEquals(3, rec.getCount().get());
+		assertEquals(4, rec.getRetainedCounts().get());
+
+		// Copies, the counter is not changed through them:
+		rec.getCount().set(100);
+		rec.getRetainedCounts().addAndGet(100);
+		assertEquals(3, rec.getCountValue());
+		assertEquals(4, rec.getRetainedCountsValue());
+	}
+
+	public void testLock() {
+		AntiDoSCounter rec = new AntiDoSCounter();
+		rec.getCountView().set(5);
+		rec.getRetainedCountsView().set(7);
+		assertFalse(rec.isLocked());
+
+		assertTrue(rec.lock());
+		assertFalse(rec.lock());
+		assertTrue(rec.isLocked());
+
+		// The counts are not affected by the lock flag and vice versa:
+		assertEquals(5, rec.getCountView().get());
+		assertEquals(7, rec.getRetainedCountsView().get());
+		rec.getCountView().addAndGet(1);
+		rec.getRetainedCountsView().set(-1);
+		assertTrue(rec.isLocked());
+		assertEquals(6, rec.getCountCombined());
+		assertEquals("Count:6 Retained:-1 Locked:yes", rec.toString());
+	}
+
+	public void testSaturation() {
+		AntiDoSCounter rec = new AntiDoSCounter();
+		rec.getCountView().set(Integer.MAX_VALUE);
+		assertEquals(Integer.MAX_VALUE - 1, rec.getCountView().get());
+		assertEquals(Integer.MAX_VALUE - 1, rec.addToCount(10));
+		assertEquals(-1, rec.getRetainedCountsView().get());
+
+		rec.getRetainedCountsView().set(Integer.MAX_VALUE);
+		assertEquals(Integer.MAX_VALUE - 1, rec.getRetainedCountsView().get());
+		assertEquals(Integer.MAX_VALUE, rec.getCountCombined());
+		assertFalse(rec.isLocked());
+
+		rec.getCountView().set(-5);
+		assertEquals(0, rec.getCountView().get());
+		rec.getRetainedCountsView().set(-5);
+		assertEquals(-1, rec.getRetainedCountsView().get());
+	}
+
+	public void testConcurrentIncrements() throws InterruptedException {
+		final AntiDoSCounter rec = new AntiDoSCounter();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			final boolean locking = i == 0;
+			threads[i] = new Thread(() -> {
+				for (int j = 0; j < 10000; j++) {
+					rec.addToCount(1);
+					rec.addToRetainedCounts(1);
+					if (locking && j == 5000)
+						rec.lock();
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		assertEquals(40000, rec.getCountValue());
+		assertEquals(39999, rec.getRetainedCountsValue());
+		assertTrue(rec.isLocked());
+	}
+
+	public void testStripedCells() {
+		AntiDoSCounter rec = new AntiDoSCounter();
+		rec.setRetainedCounts(5);
+		rec.addToCountAndGetState(10);
+		assertFalse(rec.stripe());
+		assertFalse(rec.isStriped());
+
+		rec.lock();
+		assertTrue(rec.stripe());
+		assertTrue(rec.isStriped());
+
+		// The state word keeps the count from before the striping:
+		long state = rec.addToCountAndGetState(3);
+		assertTrue(AntiDoSCounter.isLocked(state));
+		assertEquals(10, AntiDoSCounter.count(state));
+		assertEquals(10, AntiDoSCounter.count(rec.getStateEstimate()));
+
+		assertEquals(13, rec.getCountValue());
+		assertEquals(18, rec.getCountCombined());
+		assertEquals("Count:13 Retained:5 Locked:yes", rec.toString());
+		assertEquals(13, AntiDoSCounter.count(rec.getStateEstimate()));
+
+		rec.addToCountAndGetState(4);
+		assertTrue(rec.isCountCombinedOver(18));
+		assertTrue(rec.isCountCombinedOver(21));
+		assertFalse(rec.isCountCombinedOver(22));
+
+		rec.addToCount(-2);
+		assertEquals(15, rec.getCountValue());
+		assertFalse(rec.isCountCombinedOver(20));
+
+		rec.setCount(1);
+		assertFalse(rec.isStriped());
+		assertEquals(1, rec.getCountValue());
+		assertTrue(rec.isLocked());
+	}
+
+	public void testContendedLockedCounter() throws InterruptedException {
+		final AntiDoSCounter rec = new AntiDoSCounter();
+		rec.lock();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(() -> {
+				for (int j = 0; j < 100000; j++)
+					assertTrue(AntiDoSCounter.isLocked(rec.addToCountAndGetState(1)));
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		// Exact whether or not the counter has been striped:
+		assertEquals(800000, rec.getCountValue());
+		assertTrue(rec.isCountCombinedOver(799999));
+		assertFalse(rec.isCountCombinedOver(800000));
+	}
 }
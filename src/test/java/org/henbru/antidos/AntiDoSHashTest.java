@@ -0,0 +1,21 @@
+package org.henbru.antidos;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the seeded hash of the tables
+ */
+public class AntiDoSHashTest extends TestCase {
+
+	public void testSeed() {
+		assertEquals(AntiDoSHash.hash(42, "10.0.0.1"), AntiDoSHash.hash(42, "10.0.0.1"));
+		assertFalse(AntiDoSHash.hash(42, "10.0.0.1") == AntiDoSHash.hash(43, "10.0.0.1"));
+		assertFalse(AntiDoSHash.newSeed() == AntiDoSHash.newSeed());
+	}
+
+	public void testCollidingHashCodes() {
+		// "Aa" and "BB" have the same String.hashCode():
+		assertEquals("Aa".hashCode(), "BB".hashCode());
+		assertFalse(AntiDoSHash.hash(42, "Aa") == AntiDoSHash.hash(42, "BB"));
+	}
+}
@@ -0,0 +1,64 @@
+package org.henbru.antidos;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the metrics in the text format of Prometheus
+ */
+public class AntiDoSMetricsTest extends TestCase {
+
+	public void testVerdicts() {
+		AntiDoSMetrics metrics = new AntiDoSMetrics("allowed", "blocked");
+		metrics.registerVerdict(0, 500);
+		metrics.registerVerdict(0, 2000);
+		metrics.registerVerdict(1, 10000000);
+		metrics.registerConcurrencyRejection();
+
+		assertEquals(2, metrics.getVerdicts(0));
+		assertEquals(1, metrics.getVerdicts(1));
+		assertEquals(1, metrics.getConcurrencyRejections());
+
+		StringBuilder sb = new StringBuilder();
+		metrics.print(sb, "TEST");
+		String text = sb.toString();
+
+		assertTrue(text.contains("# TYPE antidos_requests_total counter\n"));
+		assertTrue(text.contains("antidos_requests_total{monitor=\"TEST\",verdict=\"allowed\"} 2\n"));
+		assertTrue(text.contains("antidos_requests_total{monitor=\"TEST\",verdict=\"blocked\"} 1\n"));
+		assertTrue(text.contains("antidos_concurrency_rejections_total{monitor=\"TEST\"} 1\n"));
+
+		// The buckets are cumulative:
+		assertTrue(text.contains("antidos_decision_duration_seconds_bucket{monitor=\"TEST\",le=\"1e-06\"} 1\n"));
+		assertTrue(text.contains("antidos_decision_duration_seconds_bucket{monitor=\"TEST\",le=\"5e-06\"} 2\n"));
+		assertTrue(text.contains("antidos_decision_duration_seconds_bucket{monitor=\"TEST\",le=\"0.005\"} 2\n"));
+		assertTrue(text.contains("antidos_decision_duration_seconds_bucket{monitor=\"TEST\",le=\"+Inf\"} 3\n"));
+		assertTrue(text.contains("antidos_decision_duration_seconds_sum{monitor=\"TEST\"} 0.0100025\n"));
+		assertTrue(text.contains("antidos_decision_duration_seconds_count{monitor=\"TEST\"} 3\n"));
+	}
+
+	public void testMonitors() {
+		AntiDoSMonitor monitor = new AntiDoSMonitor("TEST METRICS", 2, 3, 30, 1, 0);
+		monitor.registerAndCheckRequest("10.0.0.1");
+		monitor.registerAndCheckRequest("10.0.0.1");
+		monitor.registerAndCheckRequest("10.0.0.1");
+		monitor.registerAndCheckRequest("10.0.0.2");
+		monitor.registerAndCheckRequest("10.0.0.3");
+
+		StringBuilder sb = new StringBuilder();
+		new AntiDoSMetrics("allowed").print(sb, "TEST METRICS", monitor, null);
+		String text = sb.toString();
+
+		assertTrue(text.contains("antidos_locks_total{monitor=\"TEST METRICS\"} 1\n"));
+		assertTrue(text.contains("antidos_evictions_total{monitor=\"TEST METRICS\"} 1\n"));
+		assertTrue(text.contains("antidos_slot_rotations_total{monitor=\"TEST METRICS\"} 1\n"));
+		assertTrue(text.contains("antidos_counters{monitor=\"TEST METRICS\"} 2\n"));
+		assertTrue(text.contains("antidos_counters_per_slot_max{monitor=\"TEST METRICS\"} 2\n"));
+		assertTrue(text.contains("# TYPE antidos_counters gauge\n"));
+	}
+
+	public void testLabelEscaping() {
+		StringBuilder sb = new StringBuilder();
+		AntiDoSMetrics.appendLabel(sb, "monitor", "a\"b\\c\nd");
+		assertEquals("monitor=\"a\\\"b\\\\c\\nd\"", sb.toString());
+	}
+}
@@ -163,6 +163,20 @@ public class AntiDoSMonitorTest extends TestCase {
 		assertEquals(3, mon.getNumberOfActiveSlots());
 	}
 
+	public void testMillisUntilSlotEnd() {
+		int slotLength = 30;
+		AntiDoSMonitor4Test mon = new AntiDoSMonitor4Test(10, 3, slotLength, 3, (float) 0.5);
+
+		mon.referencetime = 10L * slotLength * 1000;
+		assertEquals(slotLength * 1000, mon.getMillisUntilSlotEnd());
+
+		mon.referencetime += 1;
+		assertEquals(slotLength * 1000 - 1, mon.getMillisUntilSlotEnd());
+
+		mon.referencetime += slotLength * 1000 - 2;
+		assertEquals(1, mon.getMillisUntilSlotEnd());
+	}
+
 	public void testMaxRequests() {
 		AntiDoSMonitor mon = new AntiDoSMonitor("TEST MAX REQ", 10, 5, 30, 3, (float) 0.5);
 
@@ -172,6 +186,240 @@ public class AntiDoSMonitorTest extends TestCase {
 		assertFalse(mon.registerAndCheckRequest("123.456.789.000"));
 	}
 
+	public void testAddressNotations() {
+		AntiDoSMonitor mon = new AntiDoSMonitor("TEST NOTATIONS", 10, 5, 30, 2, (float) 0.5);
+
+		assertTrue(mon.registerAndCheckRequest("0:0:0:0:0:0:0:1"));
+		assertTrue(mon.registerAndCheckRequest("::1"));
+		assertFalse(mon.registerAndCheckRequest("[::1]"));
+		assertEquals(3, mon.provideCurrentCounter("::1%lo").getCount().get());
+
+		assertTrue(mon.registerAndCheckRequest("::ffff:10.0.0.1"));
+		assertEquals(1, mon.provideCurrentCounter("10.0.0.1").getCount().get());
+	}
+
+	public void testLockedKeyIndex() {
+		int slotLength = 30;
+		AntiDoSMonitor4Test mon = new AntiDoSMonitor4Test(10, 3, slotLength, 2, 0);
+		mon.referencetime = 1000000000000L;
+		assertFalse(mon.isLockedKeyIndexEnabled());
+
+		for (int i = 0; i < 3; i++)
+			mon.registerAndCheckRequest("10.0.0.1");
+		assertFalse(mon.isLocked("10.0.0.1"));
+
+		mon.setLockedKeyIndexEnabled(true);
+		assertTrue(mon.isLockedKeyIndexEnabled());
+		for (int i = 0; i < 3; i++)
+			mon.registerAndCheckRequest("10.0.0.2");
+		assertTrue(mon.isLocked("10.0.0.2"));
+		assertTrue(mon.isLocked("::ffff:10.0.0.2"));
+		assertFalse(mon.isLocked("10.0.0.3"));
+		assertEquals(1, mon.getNumberOfLockedKeys());
+
+		// The index does not change the counter:
+		int count = mon.provideCurrentCounter("10.0.0.2").getCountValue();
+		for (int i = 0; i < 1000; i++)
+			assertTrue(mon.isLocked("10.0.0.2"));
+		assertEquals(count, mon.provideCurrentCounter("10.0.0.2").getCountValue());
+		assertTrue(mon.getFastRejectedRequests() > 0);
+
+		// The entry expires at the end of the slot:
+		mon.referencetime += slotLength * 1000;
+		assertFalse(mon.isLocked("10.0.0.2"));
+		assertEquals(0, mon.getNumberOfLockedKeys());
+		assertTrue(mon.registerAndCheckRequest("10.0.0.2"));
+
+		mon.setLockedKeyIndexEnabled(false);
+		assertEquals(0, mon.getNumberOfLockedKeys());
+	}
+
+	public void testLockedKeyIndexIsLimited() {
+		AntiDoSMonitor4Test mon = new AntiDoSMonitor4Test(3, 3, 30, 1, 0);
+		mon.setLockedKeyIndexEnabled(true);
+
+		for (int i = 0; i < 5; i++) {
+			mon.registerAndCheckRequest("10.0.0." + i);
+			mon.registerAndCheckRequest("10.0.0." + i);
+		}
+		assertEquals(3, mon.getNumberOfLockedKeys());
+		assertFalse(mon.isLocked("10.0.0.4"));
+
+		// Expired entries make room:
+		mon.referencetime += 30 * 1000;
+		mon.registerAndCheckRequest("10.0.0.9");
+		mon.registerAndCheckRequest("10.0.0.9");
+		assertTrue(mon.isLocked("10.0.0.9"));
+		assertEquals(1, mon.getNumberOfLockedKeys());
+	}
+
+	public void testBlockDuration() {
+		int slotLength = 10;
+		AntiDoSMonitor4Test mon = new AntiDoSMonitor4Test(10, 3, slotLength, 2, 0);
+		mon.referencetime = 1000000000000L;
+		mon.setBlockDuration(35);
+		assertEquals(35000, mon.getBlockDurationInMillis());
+
+		for (int i = 0; i < 3; i++)
+			mon.registerAndCheckRequest("10.0.0.1");
+		assertFalse(mon.registerAndCheckRequest("10.0.0.1"));
+		assertEquals(1, mon.getNumberOfLockedKeys());
+		// Only the fast path is off:
+		assertFalse(mon.isLocked("10.0.0.1"));
+		// The lock end is taken from the index, not from the slot:
+		assertEquals(35000, mon.getMillisUntilLockEnd("10.0.0.1"));
+		assertEquals(mon.getMillisUntilSlotEnd(), mon.getMillisUntilLockEnd("10.0.0.2"));
+
+		// The lock outlasts the following slots:
+		for (int slot = 1; slot <= 3; slot++) {
+			mon.referencetime += slotLength * 1000;
+			assertFalse(mon.registerAndCheckRequest("10.0.0.1"));
+			assertTrue(mon.provideCurrentCounter("10.0.0.1").isLocked());
+			assertTrue(mon.registerAndCheckRequest("10.0.0.2"));
+		}
+
+		// The counter of the last slot stays locked until the slot ends:
+		assertEquals(10000, mon.getMillisUntilLockEnd("10.0.0.1"));
+
+		// The lock has ended within the last slot, whose counter stays locked:
+		mon.referencetime += 5000;
+		assertFalse(mon.registerAndCheckRequest("10.0.0.1"));
+		mon.referencetime += slotLength * 1000;
+		assertTrue(mon.registerAndCheckRequest("10.0.0.1"));
+		assertEquals(0, mon.getNumberOfLockedKeys());
+
+		try {
+			mon.setBlockDuration(-1);
+			fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+
+	public void testBlockDurationShorterThanSlot() {
+		AntiDoSMonitor4Test mon = new AntiDoSMonitor4Test(10, 3, 30, 1, 0);
+		mon.referencetime = 1000000000000L;
+		mon.setBlockDuration(1);
+
+		mon.registerAndCheckRequest("10.0.0.1");
+		assertFalse(mon.registerAndCheckRequest("10.0.0.1"));
+
+		// The counter of the slot stays locked:
+		mon.referencetime += 2000;
+		assertFalse(mon.registerAndCheckRequest("10.0.0.1"));
+
+		mon.referencetime += 30 * 1000;
+		assertTrue(mon.registerAndCheckRequest("10.0.0.1"));
+	}
+
+	public void testLockExpiryWithoutLookup() {
+		AntiDoSMonitor4Test mon = new AntiDoSMonitor4Test(2, 3, 10, 1, 0);
+		mon.referencetime = 1000000000000L;
+		mon.setBlockDuration(60);
+
+		for (int i = 0; i < 2; i++) {
+			mon.registerAndCheckRequest("10.0.0." + i);
+			mon.registerAndCheckRequest("10.0.0." + i);
+		}
+		assertEquals(2, mon.getNumberOfLockedKeys());
+
+		// The index is full, so the ended locks are removed by the timing wheel:
+		mon.referencetime += 61 * 1000;
+		mon.registerAndCheckRequest("10.0.0.5");
+		mon.registerAndCheckRequest("10.0.0.5");
+		assertEquals(1, mon.getNumberOfLockedKeys());
+		assertFalse(mon.registerAndCheckRequest("10.0.0.5"));
+	}
+
+	public void testRepeatOffenders() {
+		int slotLength = 10;
+		AntiDoSMonitor4Test mon = new AntiDoSMonitor4Test(10, 3, slotLength, 1, 0);
+		mon.referencetime = 1000000000000L;
+		mon.setRepeatOffenders(1024, 3600, 60);
+
+		// First lock: until the end of the slot
+		mon.registerAndCheckRequest("10.0.0.1");
+		assertFalse(mon.registerAndCheckRequest("10.0.0.1"));
+		assertEquals(1, mon.getStrikes("10.0.0.1"));
+		mon.referencetime += slotLength * 1000;
+		assertTrue(mon.registerAndCheckRequest("10.0.0.1"));
+
+		// Second lock: two slot lengths
+		assertFalse(mon.registerAndCheckRequest("10.0.0.1"));
+		assertEquals(2, mon.getStrikes("10.0.0.1"));
+		mon.referencetime += slotLength * 1000;
+		assertFalse(mon.registerAndCheckRequest("10.0.0.1"));
+		mon.referencetime += slotLength * 1000;
+		assertTrue(mon.registerAndCheckRequest("10.0.0.1"));
+
+		// Third lock: four slot lengths, fourth lock: limited to 60 seconds
+		assertFalse(mon.registerAndCheckRequest("10.0.0.1"));
+		mon.referencetime += 4 * slotLength * 1000;
+		assertTrue(mon.registerAndCheckRequest("10.0.0.1"));
+		assertFalse(mon.registerAndCheckRequest("10.0.0.1"));
+		assertEquals(4, mon.getStrikes("10.0.0.1"));
+		mon.referencetime += 50 * 1000;
+		assertFalse(mon.registerAndCheckRequest("10.0.0.1"));
+		mon.referencetime += slotLength * 1000;
+		assertTrue(mon.registerAndCheckRequest("10.0.0.1"));
+
+		// Others are not affected:
+		assertTrue(mon.registerAndCheckRequest("10.0.0.2"));
+		assertEquals(0, mon.getStrikes("10.0.0.2"));
+
+		mon.setRepeatOffenders(0, 0, 0);
+		assertEquals(0, mon.getStrikes("10.0.0.1"));
+	}
+
+	public void testWeightedRequests() {
+		AntiDoSMonitor mon = new AntiDoSMonitor("TEST WEIGHT", 10, 5, 30, 10, (float) 0.5);
+
+		assertTrue(mon.registerAndCheckRequest("123.456.789.000", 5));
+		assertTrue(mon.registerAndCheckRequest("123.456.789.000", 4));
+		assertTrue(mon.registerAndCheckRequest("123.456.789.000"));
+		assertFalse(mon.registerAndCheckRequest("123.456.789.000"));
+		assertEquals(11, mon.provideCurrentCounter("123.456.789.000").getCount().get());
+
+		assertFalse(mon.registerAndCheckRequest("123.456.789.001", 11));
+		assertEquals(5, mon.getTotalrequests());
+		assertEquals(5, mon.getTotalRequestCount());
+
+		try {
+			mon.registerAndCheckRequest("123.456.789.002", 0);
+			fail("Weight 0 accepted");
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+
+	public void testChargeRequest() {
+		AntiDoSMonitor mon = new AntiDoSMonitor("TEST CHARGE", 10, 5, 30, 10, (float) 0.5);
+
+		assertTrue(mon.registerAndCheckRequest("123.456.789.000"));
+		assertTrue(mon.chargeRequest("123.456.789.000", 9));
+		assertEquals(1, mon.getTotalrequests());
+		assertFalse(mon.chargeRequest("123.456.789.000", 1));
+		assertFalse(mon.registerAndCheckRequest("123.456.789.000"));
+		assertEquals(2, mon.getTotalrequests());
+	}
+
+	public void testChangeAllowedRequests() {
+		AntiDoSMonitor mon = new AntiDoSMonitor("TEST CHANGE LIMIT", 10, 5, 30, 2, (float) 0.5);
+		assertEquals(2, mon.getAllowedRequestsPerSlot());
+
+		mon.setAllowedRequestsPerSlot(3);
+		assertEquals(3, mon.getAllowedRequestsPerSlot());
+
+		assertTrue(mon.registerAndCheckRequest("123.456.789.000"));
+		assertTrue(mon.registerAndCheckRequest("123.456.789.000"));
+		assertTrue(mon.registerAndCheckRequest("123.456.789.000"));
+		assertFalse(mon.registerAndCheckRequest("123.456.789.000"));
+
+		try {
+			mon.setAllowedRequestsPerSlot(0);
+			fail("Limit 0 accepted");
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+
 	public void testSlotOverflow() {
 		AntiDoSMonitor mon = new AntiDoSMonitor("TEST SLOT OVER", 1, 5, 30, 2, (float) 0.5);
 
@@ -184,4 +432,152 @@ public class AntiDoSMonitorTest extends TestCase {
 		assertTrue(mon.registerAndCheckRequest("123.456.789.000"));
 	}
 
+	public void testShedMemory() {
+		int slotLength = 30;
+		AntiDoSMonitor4Test mon = new AntiDoSMonitor4Test(100, 3, slotLength, 5, 1);
+
+		for (int slot = 0; slot < 3; slot++) {
+			for (int i = 0; i < 100; i++)
+				mon.registerAndCheckRequest("10.0.0." + i);
+			mon.referencetime += slotLength * 1000;
+		}
+		for (int i = 0; i < 100; i++)
+			mon.registerAndCheckRequest("10.0.0." + i);
+		assertEquals(3, mon.getNumberOfActiveSlots());
+		assertEquals(300, mon.getNumberOfCounters());
+
+		mon.shedMemory();
+		assertEquals(50, mon.getEffectiveMaxCountersPerSlot());
+		assertEquals(1, mon.getNumberOfActiveSlots());
+		assertEquals(50, mon.getNumberOfCounters());
+		assertNull(mon.provideCurrentCounter("10.0.0.0"));
+		assertNotNull(mon.provideCurrentCounter("10.0.0.99"));
+
+		// The current slot keeps working with the reduced capacity:
+		assertTrue(mon.registerAndCheckRequest("10.0.0.100"));
+		assertEquals(50, mon.getNumberOfCounters());
+
+		// Not below the minimum:
+		for (int i = 0; i < 10; i++)
+			mon.shedMemory();
+		assertEquals(AntiDoSMonitor.MIN_COUNTERS_AFTER_SHEDDING, mon.getEffectiveMaxCountersPerSlot());
+
+		// Each new slot doubles the capacity:
+		mon.referencetime += slotLength * 1000;
+		mon.registerAndCheckRequest("10.0.0.1");
+		assertEquals(32, mon.getEffectiveMaxCountersPerSlot());
+		for (int slot = 0; slot < 3; slot++) {
+			mon.referencetime += slotLength * 1000;
+			mon.registerAndCheckRequest("10.0.0.1");
+		}
+		assertEquals(100, mon.getEffectiveMaxCountersPerSlot());
+	}
+
+	public void testMaxCountersForMemory() {
+		assertEquals(1000, AntiDoSMonitor.provideMaxCountersForMemory(
+				1000L * 10 * AntiDoSMonitor.ESTIMATED_BYTES_PER_COUNTER, 10));
+		assertEquals(1, AntiDoSMonitor.provideMaxCountersForMemory(1, 10));
+		assertEquals(Integer.MAX_VALUE, AntiDoSMonitor.provideMaxCountersForMemory(Long.MAX_VALUE, 1));
+
+		try {
+			AntiDoSMonitor.provideMaxCountersForMemory(0, 10);
+			fail("Memory 0 accepted");
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+
+	public void testWindows() {
+		AntiDoSMonitor4Test mon = new AntiDoSMonitor4Test(100, 1, 1, 5, 0);
+		// Aligned to full hours:
+		mon.referencetime = 3600000L * 300000;
+		mon.setWindows(new int[] { 10, 60 }, new int[] { 12, 20 });
+
+		for (int second = 0; second < 2; second++) {
+			for (int i = 0; i < 5; i++)
+				assertTrue(mon.registerAndCheckRequest("10.0.0.1"));
+			mon.referencetime += 1000;
+		}
+		assertTrue(mon.registerAndCheckRequest("10.0.0.1"));
+		assertTrue(mon.registerAndCheckRequest("10.0.0.1"));
+		assertFalse(mon.registerAndCheckRequest("10.0.0.1"));
+		assertEquals(13, mon.getWindowCount("10.0.0.1", 0));
+		assertEquals(1, mon.getLocks());
+
+		// Blocked in the following slots until the window ends:
+		mon.referencetime += 1000;
+		assertFalse(mon.registerAndCheckRequest("10.0.0.1"));
+		mon.referencetime += 6000;
+		assertFalse(mon.registerAndCheckRequest("10.0.0.1"));
+		assertTrue(mon.registerAndCheckRequest("10.0.0.2"));
+
+		mon.referencetime += 1000;
+		assertTrue(mon.registerAndCheckRequest("10.0.0.1"));
+		assertEquals(1, mon.getWindowCount("10.0.0.1", 0));
+		assertEquals(14, mon.getWindowCount("10.0.0.1", 1));
+
+		// The longer window is exceeded next and blocks until its end:
+		for (int i = 0; i < 4; i++)
+			assertTrue(mon.registerAndCheckRequest("10.0.0.1"));
+		mon.referencetime += 1000;
+		assertTrue(mon.registerAndCheckRequest("10.0.0.1"));
+		assertTrue(mon.registerAndCheckRequest("10.0.0.1"));
+		assertFalse(mon.registerAndCheckRequest("10.0.0.1"));
+
+		mon.referencetime += 30000;
+		assertFalse(mon.registerAndCheckRequest("10.0.0.1"));
+		mon.referencetime += 19000;
+		assertTrue(mon.registerAndCheckRequest("10.0.0.1"));
+
+		mon.setWindows(null, null);
+		assertNull(mon.getWindows());
+	}
+
+	public void testWindowsFull() {
+		AntiDoSMonitor4Test mon = new AntiDoSMonitor4Test(1, 1, 1, 100, 0);
+		mon.referencetime = 3600000L * 300000;
+		mon.setWindows(new int[] { 60 }, new int[] { 3 });
+
+		assertTrue(mon.registerAndCheckRequest("10.0.0.1"));
+
+		// The record of the first address is replaced, the window still applies:
+		for (int i = 0; i < 3; i++)
+			assertTrue(mon.registerAndCheckRequest("10.0.0.2"));
+		assertFalse(mon.registerAndCheckRequest("10.0.0.2"));
+		assertEquals(1, mon.getWindows().getEvictions());
+	}
+
+	public void testSampling() {
+		AntiDoSMonitor4Test mon = new AntiDoSMonitor4Test(10, 3, 30, 1000, 0);
+		assertEquals(1, mon.getSamplingRate());
+		mon.setSampling(10, 8);
+		assertEquals(10, mon.getSamplingThreshold());
+		assertEquals(8, mon.getSamplingRate());
+
+		int allowed = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (mon.registerAndCheckRequest("10.0.0.1"))
+				allowed++;
+		}
+
+		// Estimates, far more than 5 standard deviations from the expected values:
+		AntiDoSCounter counter = mon.provideCurrentCounter("10.0.0.1");
+		assertTrue(counter.toString(), Math.abs(counter.getCountValue() - 10000) < 1500);
+		assertTrue("" + allowed, Math.abs(allowed - 1000) < 300);
+		assertTrue(counter.isLocked());
+
+		// Below the threshold every request is counted:
+		for (int i = 0; i < 10; i++)
+			mon.registerAndCheckRequest("10.0.0.2");
+		assertEquals(10, mon.provideCurrentCounter("10.0.0.2").getCountValue());
+
+		// Charges are not sampled:
+		mon.chargeRequest("10.0.0.2", 5);
+		assertEquals(15, mon.provideCurrentCounter("10.0.0.2").getCountValue());
+
+		try {
+			mon.setSampling(10, 0);
+			fail("Rate 0 accepted");
+		} catch (IllegalArgumentException ex) {
+		}
+	}
 }
@@ -0,0 +1,82 @@
+package org.henbru.antidos;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the table of repeat offenders
+ */
+public class AntiDoSOffenderTableTest extends TestCase {
+
+	private static final long NOW = 1000000000000L;
+
+	public void testStrikes() {
+		AntiDoSOffenderTable table = new AntiDoSOffenderTable(1024, 60000);
+		assertEquals(0, table.getStrikes("10.0.0.1", NOW));
+
+		assertEquals(1, table.addStrike("10.0.0.1", NOW));
+		assertEquals(2, table.addStrike("10.0.0.1", NOW + 1000));
+		assertEquals(3, table.addStrike("10.0.0.1", NOW + 2000));
+		assertEquals(3, table.getStrikes("10.0.0.1", NOW + 2000));
+		assertEquals(0, table.getStrikes("10.0.0.2", NOW + 2000));
+	}
+
+	public void testDecay() {
+		AntiDoSOffenderTable table = new AntiDoSOffenderTable(1024, 60000);
+		for (int i = 0; i < 3; i++)
+			table.addStrike("10.0.0.1", NOW);
+
+		assertEquals(3, table.getStrikes("10.0.0.1", NOW + 59000));
+		assertEquals(2, table.getStrikes("10.0.0.1", NOW + 60000));
+		assertEquals(1, table.getStrikes("10.0.0.1", NOW + 120000));
+		assertEquals(0, table.getStrikes("10.0.0.1", NOW + 180000));
+
+		// A new lock continues with the decayed strikes:
+		assertEquals(2, table.addStrike("10.0.0.1", NOW + 120000));
+	}
+
+	public void testMaxStrikes() {
+		AntiDoSOffenderTable table = new AntiDoSOffenderTable(16, 60000);
+		for (int i = 0; i < 300; i++)
+			table.addStrike("10.0.0.1", NOW);
+
+		assertEquals(AntiDoSOffenderTable.MAX_STRIKES, table.getStrikes("10.0.0.1", NOW));
+	}
+
+	public void testSharedEntry() {
+		// With a single entry every key takes the entry over:
+		AntiDoSOffenderTable table = new AntiDoSOffenderTable(1, 60000);
+		table.addStrike("10.0.0.1", NOW);
+		table.addStrike("10.0.0.1", NOW);
+
+		assertEquals(1, table.addStrike("10.0.0.2", NOW));
+		assertEquals(0, table.getStrikes("10.0.0.1", NOW));
+		assertEquals(1, table.getStrikes("10.0.0.2", NOW));
+	}
+
+	public void testCollidingHashCodes() {
+		// "Aa" and "BB" have the same String.hashCode():
+		assertEquals("Aa".hashCode(), "BB".hashCode());
+
+		AntiDoSOffenderTable table = new AntiDoSOffenderTable(1 << 20, 60000);
+		table.addStrike("Aa", NOW);
+		table.addStrike("Aa", NOW);
+
+		assertEquals(2, table.getStrikes("Aa", NOW));
+		assertEquals(0, table.getStrikes("BB", NOW));
+	}
+
+	public void testInvalidParameters() {
+		assertEquals(1024, new AntiDoSOffenderTable(1000, 60000).size());
+
+		try {
+			new AntiDoSOffenderTable(0, 60000);
+			fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException ex) {
+		}
+		try {
+			new AntiDoSOffenderTable(16, 0);
+			fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+}
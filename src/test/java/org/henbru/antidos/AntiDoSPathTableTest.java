@@ -0,0 +1,79 @@
+package org.henbru.antidos;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the path table implementation
+ */
+public class AntiDoSPathTableTest extends TestCase {
+
+	public void testParsing() {
+		AntiDoSPathTable table = new AntiDoSPathTable("/search.*=10; /export.*=5,60,10 ;", 1, 3);
+
+		assertEquals(2, table.size());
+		assertEquals("/search.*", table.getPath(0));
+		assertEquals("/export.*", table.getPath(1));
+
+		assertEquals(10, table.getValue(0, 0, -1));
+		assertEquals(-1, table.getValue(0, 1, -1));
+		assertEquals(5, table.getValue(1, 0, -1));
+		assertEquals(60, table.getValue(1, 1, -1));
+		assertEquals(10, table.getValue(1, 2, -1));
+	}
+
+	public void testInvalidValues() {
+		assertInvalid(null);
+		assertInvalid("");
+		assertInvalid(";");
+		assertInvalid("/search.*");
+		assertInvalid("=10");
+		assertInvalid("/search.*=x");
+		assertInvalid("/search.*=1,2,3,4");
+		assertInvalid("[a-z....=10");
+	}
+
+	public void testMatching() {
+		AntiDoSPathTable table = new AntiDoSPathTable("/search.*=10;/export/(pdf|csv)=5;/.*\\.jsp=7;/s.*=1", 1, 3);
+
+		assertEquals(0, table.match("/search"));
+		assertEquals(0, table.match("/search/x.jsp"));
+		assertEquals(1, table.match("/export/pdf"));
+		assertEquals(1, table.match("/export/csv"));
+		assertEquals(2, table.match("/export/x.jsp"));
+		assertEquals(3, table.match("/static/x.css"));
+		assertEquals(-1, table.match("/export/xls"));
+		assertEquals(-1, table.match(null));
+	}
+
+	public void testEqualSignInPath() {
+		AntiDoSPathTable table = new AntiDoSPathTable("/a\\?b=c.*=3", 1, 1);
+
+		assertEquals("/a\\?b=c.*", table.getPath(0));
+		assertEquals(3, table.getValue(0, 0, -1));
+		assertEquals(0, table.match("/a?b=cd"));
+	}
+
+	public void testGroups() {
+		// Groups and lookarounds keep their meaning in the combined expression:
+		AntiDoSPathTable table = new AntiDoSPathTable("/a/(x|y)+=1;/b/(?<!c)d(?=e).*=2;/c/\\\\1=3;/d/\\Q\\1\\E=4",
+				1, 1);
+		assertEquals(0, table.match("/a/xyx"));
+		assertEquals(1, table.match("/b/de"));
+		assertEquals(-1, table.match("/b/dx"));
+		assertEquals(2, table.match("/c/\\1"));
+		assertEquals(3, table.match("/d/\\1"));
+
+		// Backreferences and named groups would change it:
+		assertInvalid("/a/.*=1;/(x)/\\1=2");
+		assertInvalid("/(?<p>x)/\\k<p>=2");
+		assertInvalid("/(?<r0>x)=1");
+	}
+
+	private static void assertInvalid(String configValue) {
+		try {
+			new AntiDoSPathTable(configValue, 1, 3);
+			fail("Invalid value accepted: " + configValue);
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package org.henbru.antidos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the replay of access logs
+ */
+public class AntiDoSReplayTest extends TestCase {
+
+	private static final String[] PARAMETERS = { "monitorName=REPLAY TEST", "maxIPCacheSize=100",
+			"numberOfSlots=1", "slotLength=10", "allowedRequestsPerSlot=2", "shareOfRetainedFormerRequests=0" };
+
+	public void testTimestamp() {
+		assertEquals(971211336000L, parseTimestamp("10/Oct/2000:13:55:36 -0700]"));
+		assertEquals(971186136000L, parseTimestamp("10/Oct/2000:13:55:36 +0000]"));
+		assertEquals(951782400000L, parseTimestamp("29/Feb/2000:00:00:00 +0000]"));
+		assertEquals(-1, parseTimestamp("10/Okt/2000:13:55:36 -0700]"));
+		assertEquals(-1, parseTimestamp("10/Oct/2000:13:55"));
+	}
+
+	public void testReplay() throws IOException {
+		Path log = Files.createTempFile("access", ".log");
+		try {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < 4; i++)
+				sb.append(line("10.0.0.1", "00:00:0" + i, "/page?id=" + i));
+			sb.append(line("10.0.0.2", "00:00:05", "/page"));
+			sb.append("garbage\r\n");
+			// New slot:
+			sb.append(line("10.0.0.1", "00:00:12", "/page"));
+			sb.append(line("10.0.0.1", "00:00:13", "/page"));
+			sb.append(line("10.0.0.1", "00:00:14", "/page"));
+			// Without line break at the end:
+			sb.append(line("10.0.0.1", "00:00:25", "/page").trim());
+			Files.write(log, sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+			AntiDoSReplay replay = new AntiDoSReplay(PARAMETERS);
+			try {
+				replay.replay(log);
+			} finally {
+				replay.close();
+			}
+
+			assertEquals(9, replay.getRequests());
+			assertEquals(3, replay.getBlockedRequests());
+			assertEquals(1, replay.getSkippedLines());
+			assertNull(replay.getTimeline("10.0.0.3"));
+			assertEquals(0, replay.getTimeline("10.0.0.2").getBlocked());
+
+			AntiDoSReplay.Timeline timeline = replay.getTimeline("10.0.0.1");
+			assertEquals(8, timeline.getRequests());
+			assertEquals(3, timeline.getBlocked());
+
+			List<long[]> intervals = timeline.getIntervals();
+			assertEquals(2, intervals.size());
+			long start = parseTimestamp("01/Jan/2024:00:00:00 +0000]");
+			assertEquals(start + 2000, intervals.get(0)[0]);
+			assertEquals(start + 3000, intervals.get(0)[1]);
+			assertEquals(start + 14000, intervals.get(1)[0]);
+			assertEquals(start + 14000, intervals.get(1)[1]);
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			replay.printReport(new PrintStream(out, true, "UTF-8"), 5);
+			String report = out.toString("UTF-8");
+			assertTrue(report, report.contains("Requests: 9"));
+			assertTrue(report, report.contains("10.0.0.1 requests: 8 blocked: 3"));
+		} finally {
+			Files.delete(log);
+		}
+	}
+
+	public void testInvalidParameters() {
+		try {
+			new AntiDoSReplay("unknownParameter=1");
+			fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException ex) {
+		}
+		try {
+			new AntiDoSReplay("monitorName=REPLAY TEST", "relevantPaths=[");
+			fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+
+	private static String line(String ip, String time, String uri) {
+		return ip + " - - [01/Jan/2024:" + time + " +0000] \"GET " + uri + " HTTP/1.1\" 200 1234\n";
+	}
+
+	private static long parseTimestamp(String text) {
+		byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+		return AntiDoSReplay.parseTimestamp(ByteBuffer.wrap(bytes), 0, bytes.length);
+	}
+}
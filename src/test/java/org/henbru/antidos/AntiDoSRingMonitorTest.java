@@ -0,0 +1,167 @@
+package org.henbru.antidos;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the ring layout of the monitor. The decisions are compared with
+ * those of {@link AntiDoSMonitor} for the same traffic
+ */
+public class AntiDoSRingMonitorTest extends TestCase {
+
+	private static final int SLOT_LENGTH = 30;
+
+	private static class SlotMonitor4Test extends AntiDoSMonitor {
+		private long referencetime = 1000000000000L;
+
+		private SlotMonitor4Test(int maxCountersPerSlot, int numberOfSlots, int allowedRequestsPerSlot,
+				float shareOfRetainedFormerRequests) {
+			super("TEST SLOTS", maxCountersPerSlot, numberOfSlots, SLOT_LENGTH, allowedRequestsPerSlot,
+					shareOfRetainedFormerRequests);
+		}
+
+		@Override
+		protected long getTimeInMillis() {
+			return referencetime;
+		}
+	}
+
+	private static class RingMonitor4Test extends AntiDoSRingMonitor {
+		private long referencetime = 1000000000000L;
+
+		private RingMonitor4Test(int maxCountersPerSlot, int numberOfSlots, int allowedRequestsPerSlot,
+				float shareOfRetainedFormerRequests) {
+			super("TEST RING", maxCountersPerSlot, numberOfSlots, SLOT_LENGTH, allowedRequestsPerSlot,
+					shareOfRetainedFormerRequests);
+		}
+
+		@Override
+		protected long getTimeInMillis() {
+			return referencetime;
+		}
+	}
+
+	public void testRetainedCount() {
+		RingMonitor4Test mon = new RingMonitor4Test(10, 3, 5, 0.5f);
+		assertEquals(0, mon.getNumberOfActiveSlots());
+
+		for (int i = 0; i < 6; i++)
+			mon.registerAndCheckRequest("10.0.0.1");
+		assertEquals(1, mon.getNumberOfActiveSlots());
+		assertTrue(mon.provideCurrentCounter("10.0.0.1").isLocked());
+
+		// New slot: half of the average of one previous slot
+		mon.referencetime += SLOT_LENGTH * 1000;
+		assertNull(mon.provideCurrentCounter("10.0.0.1"));
+		assertTrue(mon.registerAndCheckRequest("10.0.0.1"));
+		AntiDoSCounter counter = mon.provideCurrentCounter("10.0.0.1");
+		assertEquals(1, counter.getCountValue());
+		assertEquals(3, counter.getRetainedCountsValue());
+		assertEquals(2, mon.getNumberOfActiveSlots());
+
+		// New slot: (6 + 1) / 2 slots * 0.5
+		mon.referencetime += SLOT_LENGTH * 1000;
+		mon.registerAndCheckRequest("10.0.0.1");
+		assertEquals(2, mon.provideCurrentCounter("10.0.0.1").getRetainedCountsValue());
+		assertEquals(3, mon.getNumberOfActiveSlots());
+
+		// The first slot drops out: (1 + 1) / 2 * 0.5
+		mon.referencetime += SLOT_LENGTH * 1000;
+		mon.registerAndCheckRequest("10.0.0.1");
+		assertEquals(1, mon.provideCurrentCounter("10.0.0.1").getRetainedCountsValue());
+		assertEquals(3, mon.getNumberOfActiveSlots());
+
+		assertEquals(1, mon.getNumberOfEntries());
+	}
+
+	public void testEntryPerCounter() {
+		RingMonitor4Test mon = new RingMonitor4Test(100, 10, 5, 1);
+
+		for (int slot = 0; slot < 25; slot++) {
+			for (int i = 0; i < 20; i++)
+				mon.registerAndCheckRequest("10.0.0." + i);
+			mon.referencetime += SLOT_LENGTH * 1000;
+		}
+		assertEquals(20, mon.getNumberOfEntries());
+		assertEquals(10, mon.getNumberOfActiveSlots());
+	}
+
+	public void testEviction() {
+		RingMonitor4Test mon = new RingMonitor4Test(2, 3, 2, 0.5f);
+
+		mon.registerAndCheckRequest("10.0.0.1");
+		mon.registerAndCheckRequest("10.0.0.2");
+		mon.registerAndCheckRequest("10.0.0.1");
+		mon.registerAndCheckRequest("10.0.0.3");
+
+		assertEquals(2, mon.getNumberOfEntries());
+		assertNotNull(mon.provideCurrentCounter("10.0.0.1"));
+		assertNull(mon.provideCurrentCounter("10.0.0.2"));
+		assertNotNull(mon.provideCurrentCounter("10.0.0.3"));
+	}
+
+	public void testShedMemory() {
+		RingMonitor4Test mon = new RingMonitor4Test(100, 3, 5, 0.5f);
+		for (int i = 0; i < 100; i++)
+			mon.registerAndCheckRequest("10.0.0." + i);
+
+		mon.shedMemory();
+		assertEquals(50, mon.getEffectiveMaxCountersPerSlot());
+		assertEquals(50, mon.getNumberOfEntries());
+		assertNull(mon.provideCurrentCounter("10.0.0.0"));
+		assertNotNull(mon.provideCurrentCounter("10.0.0.99"));
+
+		for (int i = 0; i < 100; i++)
+			mon.registerAndCheckRequest("10.0.1." + i);
+		assertEquals(50, mon.getNumberOfEntries());
+
+		// The next generation doubles the capacity:
+		mon.referencetime += SLOT_LENGTH * 1000;
+		mon.registerAndCheckRequest("10.0.0.1");
+		assertEquals(100, mon.getEffectiveMaxCountersPerSlot());
+	}
+
+	public void testMaxEntriesForMemory() {
+		int bytesPerEntry = AntiDoSRingMonitor.ESTIMATED_BYTES_PER_ENTRY + 16 + 4 * 10;
+		assertEquals(1000, AntiDoSRingMonitor.provideMaxEntriesForMemory(1000L * bytesPerEntry, 10));
+		assertEquals(1000, AntiDoSRingMonitor
+				.provideMaxEntriesForMemory(1000L * AntiDoSRingMonitor.ESTIMATED_BYTES_PER_ENTRY, 1));
+	}
+
+	public void testSameDecisionsAsSlotMonitor() {
+		Random random = new Random(42);
+
+		for (int round = 0; round < 10; round++) {
+			int numberOfSlots = 1 + random.nextInt(6);
+			int allowed = 1 + random.nextInt(20);
+			float share = random.nextInt(4) * 0.5f;
+
+			SlotMonitor4Test slots = new SlotMonitor4Test(1000, numberOfSlots, allowed, share);
+			RingMonitor4Test ring = new RingMonitor4Test(1000, numberOfSlots, allowed, share);
+
+			for (int step = 0; step < 3000; step++) {
+				int action = random.nextInt(100);
+				if (action == 0) {
+					// Several slots without any requests:
+					long skip = (1 + random.nextInt(2 * numberOfSlots)) * SLOT_LENGTH * 1000L;
+					slots.referencetime += skip;
+					ring.referencetime += skip;
+				} else if (action < 5) {
+					slots.referencetime += SLOT_LENGTH * 1000;
+					ring.referencetime += SLOT_LENGTH * 1000;
+				} else {
+					String ip = "10.0.0." + random.nextInt(30);
+					int weight = 1 + random.nextInt(3);
+					assertEquals(ip + " in step " + step, slots.registerAndCheckRequest(ip, weight),
+							ring.registerAndCheckRequest(ip, weight));
+
+					AntiDoSCounter expected = slots.provideCurrentCounter(ip);
+					AntiDoSCounter actual = ring.provideCurrentCounter(ip);
+					assertEquals(expected.toString(), actual.toString());
+					assertEquals(slots.getNumberOfActiveSlots(), ring.getNumberOfActiveSlots());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package org.henbru.antidos;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the shared layout of the monitor. Two monitors on the same file
+ * stand for two JVMs on one host
+ */
+public class AntiDoSSharedMonitorTest extends TestCase {
+
+	private static final int SLOT_LENGTH = 30;
+
+	private Path file;
+
+	private static class SharedMonitor4Test extends AntiDoSSharedMonitor {
+		private long referencetime = 1000000000000L;
+
+		private SharedMonitor4Test(Path file, int maxCountersPerSlot, int numberOfSlots, int allowedRequestsPerSlot,
+				float shareOfRetainedFormerRequests) {
+			super("TEST SHARED", maxCountersPerSlot, numberOfSlots, SLOT_LENGTH, allowedRequestsPerSlot,
+					shareOfRetainedFormerRequests, file);
+		}
+
+		@Override
+		protected long getTimeInMillis() {
+			return referencetime;
+		}
+	}
+
+	@Override
+	protected void setUp() throws IOException {
+		file = Files.createTempFile("antidos", ".antidos");
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	public void testSharedLimit() {
+		SharedMonitor4Test jvm1 = new SharedMonitor4Test(file, 100, 3, 4, 0);
+		SharedMonitor4Test jvm2 = new SharedMonitor4Test(file, 100, 3, 4, 0);
+
+		assertTrue(jvm1.registerAndCheckRequest("10.0.0.1"));
+		assertTrue(jvm2.registerAndCheckRequest("10.0.0.1"));
+		assertTrue(jvm1.registerAndCheckRequest("10.0.0.1"));
+		assertTrue(jvm2.registerAndCheckRequest("10.0.0.1"));
+		assertFalse(jvm1.registerAndCheckRequest("10.0.0.1"));
+		assertFalse(jvm2.registerAndCheckRequest("10.0.0.1"));
+
+		assertTrue(jvm2.provideCurrentCounter("10.0.0.1").isLocked());
+		assertEquals(6, jvm1.provideCurrentCounter("10.0.0.1").getCountValue());
+		assertTrue(jvm1.registerAndCheckRequest("10.0.0.2"));
+		assertEquals(2, jvm2.getNumberOfCounters());
+
+		// The lock ends with the slot in both JVMs:
+		jvm1.referencetime += SLOT_LENGTH * 1000;
+		jvm2.referencetime += SLOT_LENGTH * 1000;
+		assertNull(jvm2.provideCurrentCounter("10.0.0.1"));
+		assertTrue(jvm2.registerAndCheckRequest("10.0.0.1"));
+		assertEquals(1, jvm1.provideCurrentCounter("10.0.0.1").getCountValue());
+	}
+
+	public void testRetainedCount() {
+		SharedMonitor4Test mon = new SharedMonitor4Test(file, 10, 3, 5, 0.5f);
+		assertEquals(0, mon.getNumberOfActiveSlots());
+
+		for (int i = 0; i < 6; i++)
+			mon.registerAndCheckRequest("10.0.0.1");
+		assertEquals(1, mon.getNumberOfActiveSlots());
+		assertTrue(mon.provideCurrentCounter("10.0.0.1").isLocked());
+
+		// New slot: half of the average of one previous slot
+		mon.referencetime += SLOT_LENGTH * 1000;
+		assertNull(mon.provideCurrentCounter("10.0.0.1"));
+		assertTrue(mon.registerAndCheckRequest("10.0.0.1"));
+		AntiDoSCounter counter = mon.provideCurrentCounter("10.0.0.1");
+		assertEquals(1, counter.getCountValue());
+		assertEquals(3, counter.getRetainedCountsValue());
+		assertEquals(2, mon.getNumberOfActiveSlots());
+
+		// New slot: (6 + 1) / 2 slots * 0.5
+		mon.referencetime += SLOT_LENGTH * 1000;
+		mon.registerAndCheckRequest("10.0.0.1");
+		assertEquals(2, mon.provideCurrentCounter("10.0.0.1").getRetainedCountsValue());
+		assertEquals(3, mon.getNumberOfActiveSlots());
+
+		// The first slot drops out: (1 + 1) / 2 * 0.5
+		mon.referencetime += SLOT_LENGTH * 1000;
+		mon.registerAndCheckRequest("10.0.0.1");
+		assertEquals(1, mon.provideCurrentCounter("10.0.0.1").getRetainedCountsValue());
+		assertEquals(3, mon.getNumberOfActiveSlots());
+
+		assertEquals(1, mon.getNumberOfCounters());
+	}
+
+	public void testLayoutMismatch() {
+		new SharedMonitor4Test(file, 100, 3, 5, 0.5f);
+		new SharedMonitor4Test(file, 100, 3, 10, 1);
+
+		try {
+			new SharedMonitor4Test(file, 100, 4, 5, 0.5f);
+			fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException ex) {
+		}
+		try {
+			new SharedMonitor4Test(file, 1000, 3, 5, 0.5f);
+			fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+
+	public void testEviction() {
+		SharedMonitor4Test mon = new SharedMonitor4Test(file, 2, 3, 5, 0.5f);
+		assertEquals(2, mon.getEffectiveMaxCountersPerSlot());
+
+		mon.registerAndCheckRequest("10.0.0.1");
+		mon.registerAndCheckRequest("10.0.0.2");
+		mon.registerAndCheckRequest("10.0.0.3");
+
+		assertEquals(2, mon.getNumberOfCounters());
+		assertEquals(1, mon.getEvictions());
+		assertNotNull(mon.provideCurrentCounter("10.0.0.3"));
+
+		// Records of past slots are reused without eviction:
+		mon.referencetime += 3 * SLOT_LENGTH * 1000;
+		mon.registerAndCheckRequest("10.0.0.4");
+		mon.registerAndCheckRequest("10.0.0.5");
+		assertEquals(1, mon.getEvictions());
+	}
+
+	public void testCounterSetters() {
+		SharedMonitor4Test jvm1 = new SharedMonitor4Test(file, 100, 3, 4, 0);
+		SharedMonitor4Test jvm2 = new SharedMonitor4Test(file, 100, 3, 4, 0);
+		for (int i = 0; i < 5; i++)
+			jvm1.registerAndCheckRequest("10.0.0.1");
+
+		// The count is written to the table and keeps the lock:
+		AntiDoSCounter counter = jvm1.provideCurrentCounter("10.0.0.1");
+		counter.getCountView().set(2);
+		assertEquals(2, jvm2.provideCurrentCounter("10.0.0.1").getCountValue());
+		assertTrue(jvm2.provideCurrentCounter("10.0.0.1").isLocked());
+		assertEquals(3, counter.getCountView().incrementAndGet());
+
+		// The retained count belongs to the view:
+		counter.getRetainedCountsView().set(7);
+		assertEquals(8, counter.addToRetainedCounts(1));
+		assertEquals(11, counter.getCountCombined());
+		assertEquals(0, jvm2.provideCurrentCounter("10.0.0.1").getRetainedCountsValue());
+	}
+
+	public void testExactDecisions() throws InterruptedException {
+		final int allowed = 1000;
+		final SharedMonitor4Test[] jvms = { new SharedMonitor4Test(file, 100, 3, allowed, 0),
+				new SharedMonitor4Test(file, 100, 3, allowed, 0) };
+		final AtomicInteger allowedRequests = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final AntiDoSMonitor mon = jvms[t % 2];
+			threads[t] = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException ex) {
+					return;
+				}
+				for (int i = 0; i < 500; i++) {
+					if (mon.registerAndCheckRequest("10.0.0.1"))
+						allowedRequests.incrementAndGet();
+				}
+			});
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+
+		assertEquals(allowed, allowedRequests.get());
+		assertEquals(1, jvms[0].getLocks() + jvms[1].getLocks());
+	}
+
+	public void testClaimedRecord() throws Exception {
+		final int slots = 3;
+		final AntiDoSSharedTable table = new AntiDoSSharedTable(file, AntiDoSSharedTable.MAX_PROBES, slots,
+				SLOT_LENGTH);
+		for (int i = 0; i < AntiDoSSharedTable.MAX_PROBES; i++)
+			table.provideRecord("10.0.0." + i, 1);
+		int record = table.findRecord("10.0.0.0");
+
+		// Another JVM is taking the record over for the key 10.0.0.9:
+		VarHandle words = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+		int offset = 64 + record * (8 + 8 * slots);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+			words.setVolatile(buffer, offset, AntiDoSSharedTable.CLAIMED);
+
+			final AtomicInteger provided = new AtomicInteger(-1);
+			Thread thread = new Thread(() -> provided.set(table.provideRecord("10.0.0.9", 2)));
+			thread.start();
+
+			// The search waits for the takeover and finds the record of the key,
+			// instead of taking another record for it:
+			Thread.sleep(2);
+			words.setVolatile(buffer, offset, table.hash("10.0.0.9"));
+			thread.join();
+			assertEquals(record, provided.get());
+			assertEquals(record, table.findRecord("10.0.0.9"));
+
+			// A takeover that is never finished is finished by the next search:
+			words.setVolatile(buffer, offset, AntiDoSSharedTable.CLAIMED);
+			words.setVolatile(buffer, offset + 8 + 8 * 2, (2L << 31) | 5);
+			assertEquals(5, AntiDoSSharedTable.count(table.getCell(record, 2)));
+			assertEquals(record, table.provideRecord("10.0.0.10", 2));
+			assertEquals(record, table.findRecord("10.0.0.10"));
+			assertEquals(0L, table.getCell(record, 2));
+			for (int i = 1; i < AntiDoSSharedTable.MAX_PROBES; i++)
+				assertTrue(table.findRecord("10.0.0." + i) >= 0);
+		}
+	}
+}
@@ -14,12 +14,12 @@ public class AntiDoSSlotTest extends TestCase {
 		assertNotNull(slot.getCounter("123.456.789.000"));
 
 		AntiDoSCounter rec = slot.getCounter("123.456.789.000");
-		rec.getCount().set(11);
+		rec.getCountView().set(11);
 		AntiDoSCounter rec2 = slot.getCounter("123.456.789.000");
 		assertEquals(11, rec.getCountCombined());
 		assertEquals(11, rec2.getCountCombined());
 
-		rec2.getCount().addAndGet(1);
+		rec2.getCountView().addAndGet(1);
 		assertEquals(12, rec.getCountCombined());
 		assertEquals(12, rec2.getCountCombined());
 
@@ -69,6 +69,76 @@ public class AntiDoSSlotTest extends TestCase {
 
 	}
 
+	public void testSetMaxCounters() {
+		AntiDoSSlot slot = new AntiDoSSlot(null, "xx", 10);
+		for (int i = 0; i < 10; i++)
+			slot.getCounter("10.0.0." + i);
+		slot.getCounter("10.0.0.0");
+
+		slot.setMaxCounters(3);
+		assertEquals(3, slot.getNumberOfCounters());
+		assertNotNull(slot.getCounterIfExists("10.0.0.0"));
+		assertNotNull(slot.getCounterIfExists("10.0.0.9"));
+		assertNull(slot.getCounterIfExists("10.0.0.1"));
+
+		// The reduced capacity applies to new counters as well:
+		slot.getCounter("10.0.0.10");
+		assertEquals(3, slot.getNumberOfCounters());
+
+		try {
+			slot.setMaxCounters(0);
+			fail("Capacity 0 accepted");
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+
+	public void testFreeze() {
+		AntiDoSSlot slot = new AntiDoSSlot("FREEZE", "xx", 1000);
+		for (int i = 0; i < 500; i++)
+			slot.getCounter("10.0." + (i / 256) + "." + (i % 256)).getCountView().set(i + 1);
+
+		// "Aa" and "BB" have the same hash code:
+		slot.getCounter("Aa").getCountView().set(7);
+		slot.getCounter("BB").getCountView().set(8);
+		slot.getCounter("BB").lock();
+		slot.getCounter("BB").getRetainedCountsView().set(3);
+
+		String locked = slot.toString();
+		assertFalse(slot.isFrozen());
+		slot.freeze();
+		assertTrue(slot.isFrozen());
+		assertEquals(locked, slot.toString());
+
+		for (int i = 0; i < 500; i++) {
+			String name = "10.0." + (i / 256) + "." + (i % 256);
+			assertEquals(i + 1, slot.getCountIfExists(name));
+			assertEquals(i + 1, slot.getCounterIfExists(name).getCountCombined());
+		}
+		assertEquals(7, slot.getCountIfExists("Aa"));
+		assertEquals(8, slot.getCountIfExists("BB"));
+		assertEquals(-1, slot.getCountIfExists("C#"));
+		assertNull(slot.getCounterIfExists("10.0.9.9"));
+
+		// Counters of a frozen slot are copies:
+		AntiDoSCounter copy = slot.getCounter("BB");
+		assertTrue(copy.isLocked());
+		assertEquals(11, copy.getCountCombined());
+		copy.getCountView().addAndGet(10);
+		assertEquals(8, slot.getCountIfExists("BB"));
+
+		assertNotNull(slot.getCounter("10.0.9.9"));
+		assertNull(slot.getCounterIfExists("10.0.9.9"));
+	}
+
+	public void testFreezeEmpty() {
+		AntiDoSSlot slot = new AntiDoSSlot("FREEZE", "xx", 10);
+		slot.freeze();
+		slot.freeze();
+
+		assertEquals(-1, slot.getCountIfExists("10.0.0.1"));
+		assertEquals("#Counters: 0 Locked: -", slot.toString());
+	}
+
 	/**
 	 * Testdata returning a slot with a max counter number of 3 and 4 previous
 	 * calls to {@link AntiDoSSlot#getCounter(String)} with 4 different counter
@@ -78,13 +148,13 @@ public class AntiDoSSlotTest extends TestCase {
 		AntiDoSSlot slot = new AntiDoSSlot("TD1", "xx", 3);
 
 		AntiDoSCounter rec1 = slot.getCounter("123.456.789.001");
-		rec1.getCount().set(11);
+		rec1.getCountView().set(11);
 		AntiDoSCounter rec2 = slot.getCounter("123.456.789.002");
-		rec2.getCount().set(12);
+		rec2.getCountView().set(12);
 		AntiDoSCounter rec3 = slot.getCounter("123.456.789.003");
-		rec3.getCount().set(13);
+		rec3.getCountView().set(13);
 		AntiDoSCounter rec4 = slot.getCounter("123.456.789.004");
-		rec4.getCount().set(14);
+		rec4.getCountView().set(14);
 
 		return slot;
 	}
@@ -98,16 +168,16 @@ public class AntiDoSSlotTest extends TestCase {
 		AntiDoSSlot slot = new AntiDoSSlot("TD2", "xx", 3);
 
 		AntiDoSCounter rec1 = slot.getCounter("123.456.789.001");
-		rec1.getCount().set(11);
+		rec1.getCountView().set(11);
 		AntiDoSCounter rec2 = slot.getCounter("123.456.789.002");
-		rec2.getCount().set(12);
+		rec2.getCountView().set(12);
 
 		slot.getCounter("123.456.789.001");
 
 		AntiDoSCounter rec3 = slot.getCounter("123.456.789.003");
-		rec3.getCount().set(13);
+		rec3.getCountView().set(13);
 		AntiDoSCounter rec4 = slot.getCounter("123.456.789.004");
-		rec4.getCount().set(14);
+		rec4.getCountView().set(14);
 
 		return slot;
 	}
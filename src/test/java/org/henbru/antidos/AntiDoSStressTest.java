@@ -0,0 +1,182 @@
+package org.henbru.antidos;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/**
+ * Hammers the monitor from many threads. Checks that the counts and decisions
+ * are exact, that the requests of a flood do not write to the packed state of
+ * its locked counter, that new counters never decide without their retained
+ * count and that eviction and slot rotation do not lead to exceptions
+ */
+public class AntiDoSStressTest extends TestCase {
+
+	private static final int THREADS = 8;
+
+	private static class Monitor4Test extends AntiDoSMonitor {
+		private final AtomicLong now = new AtomicLong(1000000000000L);
+
+		private Monitor4Test(int maxCountersPerSlot, int numberOfSlots, int allowedRequestsPerSlot,
+				float shareOfRetainedFormerRequests) {
+			super("STRESS TEST", maxCountersPerSlot, numberOfSlots, 1, allowedRequestsPerSlot,
+					shareOfRetainedFormerRequests);
+		}
+
+		@Override
+		protected long getTimeInMillis() {
+			return now.get();
+		}
+	}
+
+	public void testExactDecisions() throws Exception {
+		final int numberOfKeys = 20;
+		final int requestsPerThread = 500;
+		final int allowed = 1000;
+		final Monitor4Test mon = new Monitor4Test(100, 3, allowed, 0);
+		final AtomicInteger[] allowedRequests = new AtomicInteger[numberOfKeys];
+		for (int k = 0; k < numberOfKeys; k++)
+			allowedRequests[k] = new AtomicInteger();
+
+		runThreads(t -> {
+			for (int r = 0; r < requestsPerThread; r++) {
+				for (int k = 0; k < numberOfKeys; k++) {
+					if (mon.registerAndCheckRequest("10.0.0." + k))
+						allowedRequests[k].incrementAndGet();
+				}
+			}
+		});
+
+		for (int k = 0; k < numberOfKeys; k++) {
+			AntiDoSCounter counter = mon.provideCurrentCounter("10.0.0." + k);
+			assertEquals(THREADS * requestsPerThread, counter.getCountValue());
+			assertEquals(allowed, allowedRequests[k].get());
+			assertTrue(counter.isLocked());
+		}
+		assertEquals(THREADS * requestsPerThread * numberOfKeys, mon.getTotalRequestCount());
+	}
+
+	public void testFloodOfLockedCounter() throws Exception {
+		final int requestsPerThread = 10000;
+		final int allowed = 10;
+		final Monitor4Test mon = new Monitor4Test(100, 3, allowed, 0);
+		for (int i = 0; i <= allowed; i++)
+			mon.registerAndCheckRequest("10.3.0.1");
+
+		// Striped as after the first contended request:
+		AntiDoSCounter counter = mon.provideCurrentCounter("10.3.0.1");
+		assertTrue(counter.stripe());
+		int packedCount = AntiDoSCounter.count(counter.getStateEstimate());
+
+		runThreads(t -> {
+			for (int r = 0; r < requestsPerThread; r++)
+				assertFalse(mon.registerAndCheckRequest("10.3.0.1"));
+		});
+
+		// The blocked requests have not written to the packed state of the counter,
+		// all counts are still exact:
+		assertEquals(packedCount, AntiDoSCounter.count(counter.getStateEstimate()));
+		assertEquals(allowed + 1 + THREADS * requestsPerThread, counter.getCountValue());
+		assertEquals(allowed + 1 + THREADS * requestsPerThread, mon.getTotalRequestCount());
+	}
+
+	public void testRetainedCountInitialization() throws Exception {
+		final int retained = 10;
+		final int allowed = retained + 2;
+		final Monitor4Test mon = new Monitor4Test(10000, 2, allowed, 1);
+
+		for (int round = 0; round < 200; round++) {
+			final String ip = "10.1." + (round >>> 8) + "." + (round & 0xff);
+			for (int i = 0; i < retained; i++)
+				mon.registerAndCheckRequest(ip);
+			mon.now.addAndGet(1000);
+
+			// All threads find the new counter at the same time:
+			final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+			final AtomicInteger allowedRequests = new AtomicInteger();
+			runThreads(t -> {
+				barrier.await();
+				if (mon.registerAndCheckRequest(ip))
+					allowedRequests.incrementAndGet();
+			});
+
+			AntiDoSCounter counter = mon.provideCurrentCounter(ip);
+			assertEquals(retained, counter.getRetainedCountsValue());
+			assertEquals(THREADS, counter.getCountValue());
+			assertEquals("Round " + round, allowed - retained, allowedRequests.get());
+
+			mon.now.addAndGet(1000);
+		}
+	}
+
+	public void testEvictionAndRotation() throws Exception {
+		final int requestsPerThread = 20000;
+		final Monitor4Test mon = new Monitor4Test(8, 3, 50, 1);
+		final AtomicInteger running = new AtomicInteger(THREADS);
+
+		Thread clock = new Thread(() -> {
+			while (running.get() > 0) {
+				mon.now.addAndGet(250);
+				Thread.yield();
+			}
+		});
+		clock.start();
+
+		try {
+			runThreads(t -> {
+				try {
+					for (int r = 0; r < requestsPerThread; r++) {
+						String ip = "10.2.0." + ((r * 7 + t) % 50);
+						mon.registerAndCheckRequest(ip);
+						mon.provideCurrentCounter(ip);
+					}
+				} finally {
+					running.decrementAndGet();
+				}
+			});
+		} finally {
+			running.set(0);
+			clock.join();
+		}
+
+		assertEquals(THREADS * requestsPerThread, mon.getTotalRequestCount());
+		assertTrue(mon.getNumberOfActiveSlots() <= 3);
+		assertTrue(mon.getNumberOfCounters() <= 3 * 8);
+	}
+
+	private interface Work {
+		void run(int thread) throws Exception;
+	}
+
+	/**
+	 * Runs the work in all threads and rethrows the first failure
+	 */
+	private static void runThreads(Work work) throws Exception {
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < THREADS; t++) {
+			final int thread = t;
+			threads.add(new Thread(() -> {
+				try {
+					work.run(thread);
+				} catch (Throwable ex) {
+					failure.compareAndSet(null, ex);
+				}
+			}));
+		}
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+
+		if (failure.get() instanceof Exception)
+			throw (Exception) failure.get();
+		if (failure.get() != null)
+			throw new AssertionError(failure.get());
+	}
+}
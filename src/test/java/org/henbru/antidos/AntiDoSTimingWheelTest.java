@@ -0,0 +1,156 @@
+package org.henbru.antidos;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the timing wheel implementation
+ */
+public class AntiDoSTimingWheelTest extends TestCase {
+
+	public void testAdvance() {
+		final List<String> done = new ArrayList<String>();
+		AntiDoSTimingWheel wheel = new AntiDoSTimingWheel(10, 8, () -> 1000);
+
+		wheel.schedule(1025, () -> done.add("a"));
+		wheel.schedule(1050, () -> done.add("b"));
+		wheel.schedule(1051, () -> done.add("c"));
+		assertEquals(3, wheel.size());
+
+		assertEquals(0, wheel.advance(1019));
+		assertEquals(1, wheel.advance(1020));
+		assertEquals("[a]", done.toString());
+
+		assertEquals(0, wheel.advance(1049));
+		assertEquals(2, wheel.advance(1050));
+		assertEquals("[a, b, c]", done.toString());
+		assertEquals(0, wheel.size());
+	}
+
+	public void testDeadlinesBeyondOneTurn() {
+		final List<String> done = new ArrayList<String>();
+		// One turn of the wheel covers 80 ms:
+		AntiDoSTimingWheel wheel = new AntiDoSTimingWheel(10, 8, () -> 0);
+
+		wheel.schedule(35, () -> done.add("a"));
+		wheel.schedule(115, () -> done.add("b"));
+		wheel.schedule(275, () -> done.add("c"));
+
+		for (long now = 0; now <= 100; now += 10)
+			wheel.advance(now);
+		assertEquals("[a]", done.toString());
+
+		wheel.advance(110);
+		assertEquals("[a, b]", done.toString());
+
+		// Jumps over several turns:
+		wheel.advance(1000);
+		assertEquals("[a, b, c]", done.toString());
+	}
+
+	public void testManyTasksInOneBucket() {
+		final int[] done = new int[2];
+		AntiDoSTimingWheel wheel = new AntiDoSTimingWheel(10, 8, () -> 0);
+
+		// The same deadline for all locks of a slot, mixed with tasks of a later
+		// turn in the same bucket:
+		for (int i = 0; i < 200000; i++) {
+			wheel.schedule(35, () -> done[0]++);
+			if (i % 1000 == 0)
+				wheel.schedule(115, () -> done[1]++);
+		}
+
+		assertEquals(200000, wheel.advance(40));
+		assertEquals(200000, done[0]);
+		assertEquals(0, done[1]);
+		assertEquals(200, wheel.size());
+
+		assertEquals(200, wheel.advance(120));
+		assertEquals(200, done[1]);
+		assertEquals(0, wheel.size());
+	}
+
+	public void testDeadlineInThePast() {
+		final List<String> done = new ArrayList<String>();
+		AntiDoSTimingWheel wheel = new AntiDoSTimingWheel(10, 8, () -> 0);
+
+		wheel.advance(100);
+		wheel.schedule(50, () -> done.add("a"));
+		assertEquals(0, done.size());
+
+		wheel.advance(110);
+		assertEquals("[a]", done.toString());
+	}
+
+	public void testFailingTask() {
+		final List<String> done = new ArrayList<String>();
+		AntiDoSTimingWheel wheel = new AntiDoSTimingWheel(10, 8, () -> 0);
+
+		wheel.schedule(10, () -> {
+			throw new IllegalStateException("Test");
+		});
+		wheel.schedule(10, () -> done.add("a"));
+
+		assertEquals(2, wheel.advance(10));
+		assertEquals("[a]", done.toString());
+	}
+
+	public void testTicking() throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(1);
+		AntiDoSTimingWheel wheel = new AntiDoSTimingWheel(5, 64, System::currentTimeMillis);
+		wheel.startTicking();
+		try {
+			wheel.schedule(System.currentTimeMillis() + 20, () -> latch.countDown());
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+		} finally {
+			wheel.stopTicking();
+		}
+	}
+
+	public void testStopTicking() {
+		int ticking = AntiDoSTimingWheel.getTickingWheels();
+		AntiDoSTimingWheel wheel1 = new AntiDoSTimingWheel(5, 64, System::currentTimeMillis);
+		AntiDoSTimingWheel wheel2 = new AntiDoSTimingWheel(5, 64, System::currentTimeMillis);
+
+		wheel1.startTicking();
+		wheel1.startTicking();
+		wheel2.startTicking();
+		assertTrue(wheel1.isTicking());
+		assertEquals(ticking + 2, AntiDoSTimingWheel.getTickingWheels());
+
+		wheel1.stopTicking();
+		wheel1.stopTicking();
+		assertFalse(wheel1.isTicking());
+		assertEquals(ticking + 1, AntiDoSTimingWheel.getTickingWheels());
+
+		// The thread ends with the last wheel:
+		wheel2.stopTicking();
+		assertEquals(ticking, AntiDoSTimingWheel.getTickingWheels());
+
+		wheel1.startTicking();
+		assertEquals(ticking + 1, AntiDoSTimingWheel.getTickingWheels());
+		wheel1.stopTicking();
+	}
+
+	public void testInvalidParameters() {
+		try {
+			new AntiDoSTimingWheel(0, 8, () -> 0);
+			fail("tickLength 0 accepted");
+		} catch (IllegalArgumentException ex) {
+		}
+		try {
+			new AntiDoSTimingWheel(10, 0, () -> 0);
+			fail("numberOfBuckets 0 accepted");
+		} catch (IllegalArgumentException ex) {
+		}
+		try {
+			new AntiDoSTimingWheel(10, 8, null);
+			fail("Missing clock accepted");
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package org.henbru.antidos;
 
+import junit.framework.JUnit4TestAdapter;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -23,6 +24,21 @@ public class AntiDoSToolsTest extends TestCase {
 		allTests.addTestSuite(AntiDoSSlotTest.class);
 		allTests.addTestSuite(AntiDoSMonitorTest.class);
 		allTests.addTestSuite(AntiDoSValveTest.class);
+		allTests.addTestSuite(AntiDoSPathTableTest.class);
+		allTests.addTestSuite(AntiDoSConcurrencyLimiterTest.class);
+		allTests.addTestSuite(AntiDoSTimingWheelTest.class);
+		allTests.addTest(new JUnit4TestAdapter(AntiDoSVirtualThreadTest.class));
+		allTests.addTestSuite(AntiDoSClientKeyExtractorTest.class);
+		allTests.addTestSuite(AntiDoSAddressTest.class);
+		allTests.addTestSuite(AntiDoSRingMonitorTest.class);
+		allTests.addTestSuite(AntiDoSSharedMonitorTest.class);
+		allTests.addTestSuite(AntiDoSWindowsTest.class);
+		allTests.addTestSuite(AntiDoSOffenderTableTest.class);
+		allTests.addTestSuite(AntiDoSHashTest.class);
+		allTests.addTestSuite(AntiDoSReplayTest.class);
+		allTests.addTestSuite(AntiDoSTunerTest.class);
+		allTests.addTestSuite(AntiDoSStressTest.class);
+		allTests.addTestSuite(AntiDoSMetricsTest.class);
 
 		return allTests;
 	}
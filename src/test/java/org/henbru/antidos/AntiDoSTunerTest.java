@@ -0,0 +1,81 @@
+package org.henbru.antidos;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the parameter sweep with synthetic traffic
+ */
+public class AntiDoSTunerTest extends TestCase {
+
+	private static AntiDoSTuner.TrafficModel smallModel() {
+		AntiDoSTuner.TrafficModel model = new AntiDoSTuner.TrafficModel();
+		model.setParameter("duration", "300");
+		model.setParameter("regularUsers", "200");
+		model.setParameter("regularRate", "5");
+		model.setParameter("crawlers", "2");
+		model.setParameter("crawlerBurst", "100");
+		model.setParameter("crawlerPause", "50");
+		model.setParameter("floodIPs", "20");
+		model.setParameter("floodRate", "40");
+		model.setParameter("floodStart", "100");
+		model.setParameter("floodEnd", "200");
+		model.setParameter("rotatingIPv6Rate", "2");
+		return model;
+	}
+
+	public void testSweep() {
+		List<AntiDoSTuner.Configuration> configurations = AntiDoSTuner.combine(new int[] { 1000 },
+				new int[] { 5 }, new int[] { 10 }, new int[] { 2, 100000 }, new float[] { 0 });
+		assertEquals(2, configurations.size());
+
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			List<AntiDoSTuner.Result> results = new AntiDoSTuner(smallModel()).sweep(configurations, pool);
+			AntiDoSTuner.Result strict = results.get(0);
+			AntiDoSTuner.Result loose = results.get(1);
+
+			assertNull(strict.getError());
+			assertEquals(0.0, loose.getFalseBlockRate());
+			assertEquals(1.0, loose.getAttackerShare());
+			assertTrue(strict.getFalseBlockRate() > 0);
+			assertTrue(strict.getAttackerThroughput() < loose.getAttackerThroughput());
+			// The rotating IPv6 client is never blocked:
+			assertTrue(strict.getAttackerThroughput() >= 1);
+
+			assertTrue(loose.getPeakCounters() > 0);
+			assertEquals(loose.getPeakCounters() * (long) AntiDoSMonitor.ESTIMATED_BYTES_PER_COUNTER,
+					loose.getEstimatedPeakMemory());
+
+			// The same seed gives the same traffic:
+			List<AntiDoSTuner.Result> again = new AntiDoSTuner(smallModel()).sweep(configurations, pool);
+			assertEquals(strict.toString(), again.get(0).toString());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public void testInvalidConfiguration() {
+		List<AntiDoSTuner.Configuration> configurations = AntiDoSTuner.combine(new int[] { 1000 },
+				new int[] { 0 }, new int[] { 10 }, new int[] { 2 }, new float[] { 0 });
+
+		List<AntiDoSTuner.Result> results = new AntiDoSTuner(smallModel()).sweep(configurations,
+				ForkJoinPool.commonPool());
+		assertNotNull(results.get(0).getError());
+	}
+
+	public void testParameters() {
+		AntiDoSTuner.TrafficModel model = new AntiDoSTuner.TrafficModel();
+		assertTrue(model.setParameter("duration", "60"));
+		assertEquals(60, model.getDuration());
+		assertFalse(model.setParameter("something", "1"));
+
+		try {
+			AntiDoSTuner.combine(new int[0], new int[] { 1 }, new int[] { 1 }, new int[] { 1 }, new float[] { 0 });
+			fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+}
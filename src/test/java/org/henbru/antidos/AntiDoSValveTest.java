@@ -1,6 +1,36 @@
 package org.henbru.antidos;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.WriteListener;
+
 import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.catalina.valves.ValveBase;
 
 import junit.framework.TestCase;
 
@@ -9,6 +39,264 @@ import junit.framework.TestCase;
  */
 public class AntiDoSValveTest extends TestCase {
 
+	/**
+	 * A request with only the properties read by the valve
+	 */
+	private static class Request4Test extends Request {
+		private final String remoteAddr;
+		private final String requestURI;
+		private final Map<String, Object> attributes = new HashMap<String, Object>();
+		private DispatcherType dispatcherType = DispatcherType.REQUEST;
+		private AsyncContext4Test asyncContext = null;
+
+		private Request4Test(String remoteAddr, String requestURI) {
+			super(null);
+			this.remoteAddr = remoteAddr;
+			this.requestURI = requestURI;
+		}
+
+		@Override
+		public String getRemoteAddr() {
+			return remoteAddr;
+		}
+
+		@Override
+		public String getRequestURI() {
+			return requestURI;
+		}
+
+		@Override
+		public DispatcherType getDispatcherType() {
+			return dispatcherType;
+		}
+
+		@Override
+		public Object getAttribute(String name) {
+			return attributes.get(name);
+		}
+
+		@Override
+		public void setAttribute(String name, Object value) {
+			attributes.put(name, value);
+		}
+
+		@Override
+		public void removeAttribute(String name) {
+			attributes.remove(name);
+		}
+
+		@Override
+		public boolean isAsyncSupported() {
+			return true;
+		}
+
+		@Override
+		public AsyncContext startAsync() {
+			asyncContext = new AsyncContext4Test(this);
+			return asyncContext;
+		}
+	}
+
+	/**
+	 * The asynchronous processing of a {@link Request4Test}. A dispatch only
+	 * counts down a latch, the test passes the request to the valve again
+	 */
+	private static class AsyncContext4Test implements AsyncContext {
+		private final Request4Test request;
+		private final List<AsyncListener> listeners = new ArrayList<AsyncListener>();
+		private final CountDownLatch dispatched = new CountDownLatch(1);
+		private long timeout = -1;
+
+		private AsyncContext4Test(Request4Test request) {
+			this.request = request;
+		}
+
+		@Override
+		public ServletRequest getRequest() {
+			return request;
+		}
+
+		@Override
+		public ServletResponse getResponse() {
+			return null;
+		}
+
+		@Override
+		public boolean hasOriginalRequestAndResponse() {
+			return true;
+		}
+
+		@Override
+		public void dispatch() {
+			dispatched.countDown();
+		}
+
+		@Override
+		public void dispatch(String path) {
+			dispatch();
+		}
+
+		@Override
+		public void dispatch(ServletContext context, String path) {
+			dispatch();
+		}
+
+		@Override
+		public void complete() {
+			for (AsyncListener listener : listeners) {
+				try {
+					listener.onComplete(new AsyncEvent(this));
+				} catch (IOException ex) {
+					throw new IllegalStateException(ex);
+				}
+			}
+		}
+
+		@Override
+		public void start(Runnable run) {
+			run.run();
+		}
+
+		@Override
+		public void addListener(AsyncListener listener) {
+			listeners.add(listener);
+		}
+
+		@Override
+		public void addListener(AsyncListener listener, ServletRequest request, ServletResponse response) {
+			listeners.add(listener);
+		}
+
+		@Override
+		public <T extends AsyncListener> T createListener(Class<T> clazz) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void setTimeout(long timeout) {
+			this.timeout = timeout;
+		}
+
+		@Override
+		public long getTimeout() {
+			return timeout;
+		}
+	}
+
+	/**
+	 * A response that keeps what the valve writes
+	 */
+	private static class Response4Test extends Response {
+		private final Request4Test request;
+		private final Map<String, String> headers = new HashMap<String, String>();
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		private int status = 200;
+		private int error = -1;
+		private boolean suspended = false;
+
+		private Response4Test(Request4Test request) {
+			this.request = request;
+			setCoyoteResponse(new org.apache.coyote.Response());
+		}
+
+		@Override
+		public Request getRequest() {
+			return request;
+		}
+
+		@Override
+		public void setStatus(int status) {
+			this.status = status;
+		}
+
+		@Override
+		public int getStatus() {
+			return status;
+		}
+
+		@Override
+		public void sendError(int status) {
+			this.status = status;
+			this.error = status;
+		}
+
+		@Override
+		public void setHeader(String name, String value) {
+			headers.put(name, value);
+		}
+
+		@Override
+		public String getHeader(String name) {
+			return headers.get(name);
+		}
+
+		@Override
+		public void setContentType(String type) {
+			headers.put("Content-Type", type);
+		}
+
+		@Override
+		public void setContentLength(int length) {
+			headers.put("Content-Length", Integer.toString(length));
+		}
+
+		@Override
+		public void setSuspended(boolean suspended) {
+			this.suspended = suspended;
+		}
+
+		@Override
+		public boolean isSuspended() {
+			return suspended;
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() {
+			return new ServletOutputStream() {
+				@Override
+				public void write(int b) {
+					body.write(b);
+				}
+
+				@Override
+				public boolean isReady() {
+					return true;
+				}
+
+				@Override
+				public void setWriteListener(WriteListener listener) {
+				}
+			};
+		}
+
+		private String getBody() {
+			return new String(body.toByteArray(), StandardCharsets.US_ASCII);
+		}
+	}
+
+	/**
+	 * Stands for the application behind the valve. Counts the requests and runs
+	 * an action while a request is processed
+	 */
+	private static class Next4Test extends ValveBase {
+		private int invocations = 0;
+		private Runnable action = null;
+
+		@Override
+		public void invoke(Request request, Response response) {
+			invocations++;
+			if (action != null)
+				action.run();
+		}
+	}
+
+	private static Response4Test invoke(AntiDoSValve valve, String ip, String requestURI)
+			throws IOException, ServletException {
+		Response4Test response = new Response4Test(new Request4Test(ip, requestURI));
+		valve.invoke(response.request, response);
+		return response;
+	}
+
 	public void testMonitorMode() {
 		AntiDoSValve valve = new AntiDoSValve();
 
@@ -32,6 +320,254 @@ public class AntiDoSValveTest extends TestCase {
 		assertTrue(valve.isMonitorModeMarking());		
 	}
 
+	public void testRejectingMode() {
+		AntiDoSValve valve = new AntiDoSValve();
+		assertFalse(valve.isMonitorModeRejecting());
+		assertEquals(AntiDoSValve.DEFAULT_REJECTION_HTTP_STATUS, valve.getRejectionHttpStatus());
+		assertTrue(valve.isRejectionHttpStatusValid());
+
+		valve.setMonitorMode("rejecting");
+		assertTrue(valve.isMonitorModeValid());
+		assertFalse(valve.isMonitorModeDefault());
+		assertFalse(valve.isMonitorModeMarking());
+		assertTrue(valve.isMonitorModeRejecting());
+
+		valve.setRejectionHttpStatus(403);
+		assertTrue(valve.isRejectionHttpStatusValid());
+
+		valve.setRejectionHttpStatus(200);
+		assertFalse(valve.isRejectionHttpStatusValid());
+	}
+
+	public void testRejectingInvoke() throws Exception {
+		AntiDoSValve valve = new AntiDoSValve();
+		setValidAntiDoSMonitorconfiguration(valve, "REJECTING INVOKE TEST");
+		valve.setMonitorMode("rejecting");
+		valve.setAllowedRequestsPerSlot(2);
+		valve.setRelevantPaths("/.*");
+		assertNull(valve.reloadMonitor());
+
+		Next4Test next = new Next4Test();
+		valve.setNext(next);
+
+		assertEquals(200, invoke(valve, "127.0.0.1", "/xyz").getStatus());
+		assertEquals(200, invoke(valve, "127.0.0.1", "/xyz").getStatus());
+
+		Response4Test response = invoke(valve, "127.0.0.1", "/xyz");
+		assertEquals(AntiDoSValve.DEFAULT_REJECTION_HTTP_STATUS, response.getStatus());
+		assertEquals(-1, response.error);
+		long retryAfter = Long.parseLong(response.getHeader("Retry-After"));
+		assertTrue(retryAfter >= 1 && retryAfter <= 30);
+		assertEquals("text/plain", response.getHeader("Content-Type"));
+		assertEquals("Too many requests\n", response.getBody());
+		assertEquals("18", response.getHeader("Content-Length"));
+		assertEquals(2, next.invocations);
+
+		valve.setRejectionHttpStatus(503);
+		assertEquals(503, invoke(valve, "127.0.0.1", "/xyz").getStatus());
+		assertEquals(2, next.invocations);
+	}
+
+	public void testDropMode() {
+		AntiDoSValve valve = new AntiDoSValve();
+		assertFalse(valve.isMonitorModeDrop());
+		assertEquals(-1, valve.getDropThreshold());
+
+		valve.setMonitorMode("drop");
+		assertTrue(valve.isMonitorModeValid());
+		assertFalse(valve.isMonitorModeDefault());
+		assertFalse(valve.isMonitorModeMarking());
+		assertFalse(valve.isMonitorModeRejecting());
+		assertTrue(valve.isMonitorModeDrop());
+
+		valve.setDropThreshold(500);
+		assertEquals(500, valve.getDropThreshold());
+	}
+
+	public void testDropInvoke() throws Exception {
+		AntiDoSValve valve = new AntiDoSValve();
+		setValidAntiDoSMonitorconfiguration(valve, "DROP INVOKE TEST");
+		valve.setMonitorMode("drop");
+		valve.setAllowedRequestsPerSlot(2);
+		valve.setRelevantPaths("/.*");
+		valve.setNonRelevantPaths("/static/.*");
+		valve.setAlwaysForbiddenIPs("10\\.0\\.0\\.9");
+		valve.setMaxConcurrentPerIP(1);
+		assertNull(valve.reloadMonitor());
+
+		Next4Test next = new Next4Test();
+		valve.setNext(next);
+
+		// Not counted:
+		Response4Test response = invoke(valve, "127.0.0.1", "/static/x.png");
+		assertEquals(200, response.getStatus());
+		assertFalse(response.isSuspended());
+		assertEquals(1, next.invocations);
+
+		// Allowed:
+		response = invoke(valve, "127.0.0.2", "/xyz");
+		assertEquals(200, response.getStatus());
+		assertFalse(response.isSuspended());
+		assertEquals(2, next.invocations);
+
+		// Over the concurrency limit, rejected and not dropped:
+		final Response4Test[] nested = new Response4Test[1];
+		next.action = () -> {
+			next.action = null;
+			try {
+				nested[0] = invoke(valve, "127.0.0.3", "/xyz");
+			} catch (Exception ex) {
+				throw new IllegalStateException(ex);
+			}
+		};
+		response = invoke(valve, "127.0.0.3", "/xyz");
+		assertEquals(200, response.getStatus());
+		assertEquals(AntiDoSValve.DEFAULT_REJECTION_HTTP_STATUS, nested[0].getStatus());
+		assertEquals("1", nested[0].getHeader("Retry-After"));
+		assertFalse(nested[0].isSuspended());
+		assertEquals(3, next.invocations);
+
+		// Blocked:
+		response = invoke(valve, "127.0.0.3", "/xyz");
+		assertTrue(response.isSuspended());
+		assertEquals(-1, response.error);
+		assertEquals(3, next.invocations);
+
+		// Forbidden:
+		response = invoke(valve, "10.0.0.9", "/xyz");
+		assertTrue(response.isSuspended());
+		assertEquals(-1, response.error);
+		assertEquals(3, next.invocations);
+	}
+
+	public void testDropThresholdInvoke() throws Exception {
+		AntiDoSValve valve = new AntiDoSValve();
+		setValidAntiDoSMonitorconfiguration(valve, "DROP THRESHOLD TEST");
+		valve.setAllowedRequestsPerSlot(1);
+		valve.setRelevantPaths("/.*");
+		valve.setAlwaysForbiddenIPs("10\\.0\\.0\\.9");
+		assertNull(valve.reloadMonitor());
+
+		Next4Test next = new Next4Test();
+		valve.setNext(next);
+
+		// Without threshold forbidden IP addresses are blocked as usual:
+		Response4Test response = invoke(valve, "10.0.0.9", "/xyz");
+		assertEquals(AntiDoSValve.BLOCKING_HTTP_STATUS, response.error);
+		assertFalse(response.isSuspended());
+
+		valve.setDropThreshold(3);
+		response = invoke(valve, "10.0.0.9", "/xyz");
+		assertTrue(response.isSuspended());
+		assertEquals(-1, response.error);
+
+		// Allowed, then blocked up to the threshold, then dropped:
+		assertEquals(200, invoke(valve, "127.0.0.1", "/xyz").getStatus());
+		assertEquals(1, next.invocations);
+		for (int i = 0; i < 2; i++) {
+			response = invoke(valve, "127.0.0.1", "/xyz");
+			assertEquals(AntiDoSValve.BLOCKING_HTTP_STATUS, response.error);
+			assertFalse(response.isSuspended());
+		}
+		response = invoke(valve, "127.0.0.1", "/xyz");
+		assertTrue(response.isSuspended());
+		assertEquals(-1, response.error);
+		assertEquals(1, next.invocations);
+	}
+
+	public void testTarpitMode() {
+		AntiDoSValve valve = new AntiDoSValve();
+		assertFalse(valve.isMonitorModeTarpit());
+		assertTrue(valve.isTarpitConfigurationValid());
+		assertEquals(0, valve.getTarpitDelay(100));
+
+		valve.setMonitorMode("tarpit");
+		assertTrue(valve.isMonitorModeValid());
+		assertTrue(valve.isMonitorModeTarpit());
+		assertFalse(valve.isMonitorModeDefault());
+		assertFalse(valve.isTarpitConfigurationValid());
+
+		valve.setTarpitSoftLimit(10);
+		valve.setTarpitDelay(100);
+		valve.setTarpitMaxDelay(1000);
+		assertTrue(valve.isTarpitConfigurationValid());
+
+		assertEquals(0, valve.getTarpitDelay(5));
+		assertEquals(0, valve.getTarpitDelay(10));
+		assertEquals(100, valve.getTarpitDelay(11));
+		assertEquals(500, valve.getTarpitDelay(15));
+		assertEquals(1000, valve.getTarpitDelay(20));
+		assertEquals(1000, valve.getTarpitDelay(Integer.MAX_VALUE));
+	}
+
+	public void testTarpitInvoke() throws Exception {
+		AntiDoSValve valve = new AntiDoSValve();
+		setValidAntiDoSMonitorconfiguration(valve, "TARPIT INVOKE TEST");
+		valve.setMonitorMode("tarpit");
+		valve.setTarpitSoftLimit(1);
+		valve.setTarpitDelay(10);
+		valve.setTarpitMaxDelay(50);
+		valve.setAllowedRequestsPerSlot(100);
+		valve.setRelevantPaths("/.*");
+		valve.setMaxConcurrentPerIP(1);
+		valve.setResponseTimeCostUnit(5);
+		assertNull(valve.reloadMonitor());
+
+		final Next4Test next = new Next4Test();
+		valve.setNext(next);
+
+		// Under the soft limit:
+		assertEquals(200, invoke(valve, "127.0.0.1", "/xyz").getStatus());
+		assertEquals(1, next.invocations);
+
+		// Over the soft limit the request is suspended:
+		Response4Test response = invoke(valve, "127.0.0.1", "/xyz");
+		Request4Test request = response.request;
+		assertNotNull(request.asyncContext);
+		assertNotNull(request.getAttribute(AntiDoSValve.TARPIT_ATTRIBUTE_NAME));
+		assertEquals(1, next.invocations);
+
+		// The suspended request keeps its concurrency slot:
+		assertEquals(AntiDoSValve.BLOCKING_HTTP_STATUS, invoke(valve, "127.0.0.1", "/xyz").error);
+
+		// Dispatched by the timing wheel after the delay:
+		assertTrue(request.asyncContext.dispatched.await(5, TimeUnit.SECONDS));
+		request.dispatcherType = DispatcherType.ASYNC;
+		next.action = () -> {
+			next.action = null;
+			try {
+				Thread.sleep(60);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		};
+		valve.invoke(request, response);
+		assertEquals(2, next.invocations);
+		assertNull(request.getAttribute(AntiDoSValve.TARPIT_ATTRIBUTE_NAME));
+
+		// The response time of the resumed request has been charged:
+		String status = valve.getIPAddressStatus("127.0.0.1");
+		int count = Integer.parseInt(status.substring("Count:".length(), status.indexOf(' ')));
+		assertTrue(status, count >= 3 + 12);
+
+		// The slot is released when the request is complete:
+		assertEquals(AntiDoSValve.BLOCKING_HTTP_STATUS, invoke(valve, "127.0.0.1", "/xyz").error);
+		request.asyncContext.complete();
+		valve.setTarpitMaxDelay(60000);
+		valve.setTarpitDelay(60000);
+		response = invoke(valve, "127.0.0.1", "/xyz");
+		assertEquals(-1, response.error);
+		assertNotNull(response.request.asyncContext);
+
+		// Stopping the valve dispatches the waiting requests at once:
+		StandardEngine engine = new StandardEngine();
+		engine.setName("TarpitInvokeTest");
+		valve.setContainer(engine);
+		valve.start();
+		valve.stop();
+		assertTrue(response.request.asyncContext.dispatched.await(0, TimeUnit.SECONDS));
+	}
+
 	public void testAlwaysAllowedIPs() {
 		AntiDoSValve valve = new AntiDoSValve();
 
@@ -249,6 +785,424 @@ public class AntiDoSValveTest extends TestCase {
 		assertFalse(valve.isRequestAllowed("127.0.0.2", "/xyz"));
 	}
 
+	public void testMonitorLayout() throws LifecycleException {
+		AntiDoSValve valve = new AntiDoSValve();
+		assertEquals(AntiDoSValve.DEFAULT_MONITOR_LAYOUT, valve.getMonitorLayout());
+		assertTrue(valve.isMonitorLayoutValid());
+
+		valve.setMonitorLayout("something");
+		assertFalse(valve.isMonitorLayoutValid());
+
+		valve.setMonitorLayout("ring");
+		assertTrue(valve.isMonitorLayoutValid());
+
+		setValidAntiDoSMonitorconfiguration(valve, "RING TEST");
+		valve.setAllowedRequestsPerSlot(2);
+		valve.setRouteRules("/search.*=1");
+		valve.setRelevantPaths("/xyz");
+		assertNull(valve.reloadMonitor());
+
+		assertTrue(valve.isRequestAllowed("127.0.0.1", "/xyz"));
+		assertTrue(valve.isRequestAllowed("127.0.0.1", "/xyz"));
+		assertFalse(valve.isRequestAllowed("127.0.0.1", "/xyz"));
+
+		assertTrue(valve.isRequestAllowed("127.0.0.1", "/search"));
+		assertFalse(valve.isRequestAllowed("127.0.0.1", "/search"));
+
+		assertEquals("Count:3 Retained:0 Locked:yes", valve.getIPAddressStatus("127.0.0.1"));
+	}
+
+	public void testSharedMonitorLayout() throws IOException {
+		AntiDoSValve valve = new AntiDoSValve();
+		assertNull(valve.getSharedMemoryDirectory());
+
+		valve.setMonitorLayout("shared");
+		assertTrue(valve.isMonitorLayoutValid());
+
+		setValidAntiDoSMonitorconfiguration(valve, "SHARED TEST/1");
+		valve.setAllowedRequestsPerSlot(2);
+		valve.setRelevantPaths("/xyz");
+		assertNotNull(valve.reloadMonitor());
+
+		Path directory = Files.createTempDirectory("antidos");
+		Path file = directory.resolve("SHARED_TEST_1.antidos");
+		try {
+			valve.setSharedMemoryDirectory(directory.toString());
+			assertNull(valve.reloadMonitor());
+			assertTrue(Files.exists(file));
+
+			assertTrue(valve.isRequestAllowed("127.0.0.1", "/xyz"));
+			assertTrue(valve.isRequestAllowed("127.0.0.1", "/xyz"));
+			assertFalse(valve.isRequestAllowed("127.0.0.1", "/xyz"));
+			assertEquals("Count:3 Retained:0 Locked:yes", valve.getIPAddressStatus("127.0.0.1"));
+		} finally {
+			Files.deleteIfExists(file);
+			Files.deleteIfExists(directory);
+		}
+	}
+
+	public void testFastRejectLockedIPs() throws LifecycleException {
+		AntiDoSValve valve = new AntiDoSValve();
+		assertFalse(valve.isFastRejectLockedIPs());
+
+		setValidAntiDoSMonitorconfiguration(valve, "FAST REJECT TEST");
+		valve.setAllowedRequestsPerSlot(2);
+		valve.setRelevantPaths("/xyz");
+		valve.setFastRejectLockedIPs(true);
+		assertNull(valve.reloadMonitor());
+
+		assertTrue(valve.isRequestAllowed("127.0.0.1", "/xyz"));
+		assertTrue(valve.isRequestAllowed("127.0.0.1", "/xyz"));
+		assertFalse(valve.isRequestAllowed("127.0.0.1", "/xyz"));
+
+		// Rejected by the index, without counting:
+		for (int i = 0; i < 10; i++)
+			assertFalse(valve.isRequestAllowed("127.0.0.1", "/xyz"));
+		assertEquals("Count:3 Retained:0 Locked:yes", valve.getIPAddressStatus("127.0.0.1"));
+		assertTrue(valve.getMonitorStatus().contains("#locked IP addresses: 1"));
+
+		assertTrue(valve.isRequestAllowed("127.0.0.2", "/xyz"));
+	}
+
+	public void testBlockDuration() throws LifecycleException {
+		AntiDoSValve valve = new AntiDoSValve();
+		assertEquals(0, valve.getBlockDuration());
+
+		setValidAntiDoSMonitorconfiguration(valve, "BLOCK DURATION TEST");
+		valve.setBlockDuration(-5);
+		assertNotNull(valve.reloadMonitor());
+
+		valve.setBlockDuration(600);
+		valve.setAllowedRequestsPerSlot(1);
+		valve.setRelevantPaths("/xyz");
+		assertNull(valve.reloadMonitor());
+
+		assertTrue(valve.isRequestAllowed("127.0.0.1", "/xyz"));
+		assertFalse(valve.isRequestAllowed("127.0.0.1", "/xyz"));
+
+		// A reload replaces the monitor and its locks:
+		assertNull(valve.reloadMonitor());
+		assertTrue(valve.isRequestAllowed("127.0.0.1", "/xyz"));
+	}
+
+	public void testBlockDurationRetryAfter() throws Exception {
+		AntiDoSValve valve = new AntiDoSValve();
+		setValidAntiDoSMonitorconfiguration(valve, "BLOCK DURATION RETRY TEST");
+		valve.setMonitorMode("rejecting");
+		valve.setBlockDuration(600);
+		valve.setAllowedRequestsPerSlot(1);
+		valve.setRelevantPaths("/.*");
+		assertNull(valve.reloadMonitor());
+		valve.setNext(new Next4Test());
+
+		assertEquals(200, invoke(valve, "127.0.0.1", "/xyz").getStatus());
+		Response4Test response = invoke(valve, "127.0.0.1", "/xyz");
+		assertEquals(AntiDoSValve.DEFAULT_REJECTION_HTTP_STATUS, response.getStatus());
+		// The lock outlasts the slot of 30 seconds:
+		long retryAfter = Long.parseLong(response.getHeader("Retry-After"));
+		assertTrue(retryAfter > 590 && retryAfter <= 600);
+	}
+
+	public void testLockExpiryStoppedWithValve() throws LifecycleException {
+		AntiDoSValve valve = new AntiDoSValve();
+		setValidAntiDoSMonitorconfiguration(valve, "LOCK EXPIRY STOP TEST");
+		valve.setBlockDuration(600);
+		StandardEngine engine = new StandardEngine();
+		engine.setName("LockExpiryStopTest");
+		valve.setContainer(engine);
+
+		int tickingWheels = AntiDoSTimingWheel.getTickingWheels();
+		valve.start();
+		assertEquals(tickingWheels + 1, AntiDoSTimingWheel.getTickingWheels());
+		valve.stop();
+		assertEquals(tickingWheels, AntiDoSTimingWheel.getTickingWheels());
+
+		// A restart of the valve resumes the expiry:
+		valve.start();
+		assertEquals(tickingWheels + 1, AntiDoSTimingWheel.getTickingWheels());
+		valve.stop();
+		assertEquals(tickingWheels, AntiDoSTimingWheel.getTickingWheels());
+	}
+
+	public void testRepeatOffenders() throws LifecycleException {
+		AntiDoSValve valve = new AntiDoSValve();
+		assertEquals(0, valve.getOffenderTableSize());
+		assertEquals(3600, valve.getStrikeDecay());
+		assertEquals(86400, valve.getMaxBlockDuration());
+
+		setValidAntiDoSMonitorconfiguration(valve, "OFFENDER TEST");
+		valve.setOffenderTableSize(-1);
+		assertNotNull(valve.reloadMonitor());
+
+		valve.setOffenderTableSize(1024);
+		valve.setMaxBlockDuration(0);
+		assertNotNull(valve.reloadMonitor());
+
+		valve.setMaxBlockDuration(600);
+		assertNull(valve.reloadMonitor());
+	}
+
+	public void testMaxMonitorMemory() throws LifecycleException {
+		AntiDoSValve valve = new AntiDoSValve();
+		assertEquals(0, valve.getMaxMonitorMemory());
+
+		setValidAntiDoSMonitorconfiguration(valve, "MEMORY TEST");
+		valve.setMaxMonitorMemory(-1);
+		assertNotNull(valve.reloadMonitor());
+
+		// 10 slots:
+		valve.setMaxMonitorMemory(500L * 10 * AntiDoSMonitor.ESTIMATED_BYTES_PER_COUNTER);
+		assertNull(valve.reloadMonitor());
+		assertTrue(valve.getMonitorStatus().contains("maxCountersPerSlot: 500;"));
+
+		// Shared with the monitor of the route:
+		valve.setRouteRules("/api/.*=10");
+		assertNull(valve.reloadMonitor());
+		assertTrue(valve.getMonitorStatus().contains("maxCountersPerSlot: 250;"));
+	}
+
+	public void testMemoryPressureThreshold() throws LifecycleException {
+		AntiDoSValve valve = new AntiDoSValve();
+		assertEquals(0, valve.getMemoryPressureThreshold());
+
+		setValidAntiDoSMonitorconfiguration(valve, "MEMORY PRESSURE TEST");
+		valve.setMemoryPressureThreshold(100);
+		assertNotNull(valve.reloadMonitor());
+		assertNull(AntiDoSMemoryGuard.getInstance());
+
+		// The action is only registered while the valve is started:
+		valve.setMemoryPressureThreshold(95);
+		assertNull(valve.reloadMonitor());
+		assertNull(AntiDoSMemoryGuard.getInstance());
+
+		StandardEngine engine = new StandardEngine();
+		engine.setName("MemoryPressureTest");
+		valve.setContainer(engine);
+		valve.start();
+		try {
+			AntiDoSMemoryGuard guard = AntiDoSMemoryGuard.getInstance();
+			assertEquals(95, guard.getThreshold());
+			assertEquals(1, guard.getNumberOfActions());
+
+			// A valve without threshold is not affected:
+			AntiDoSValve other = new AntiDoSValve();
+			setValidAntiDoSMonitorconfiguration(other, "MEMORY PRESSURE OTHER TEST");
+			assertNull(other.reloadMonitor());
+			assertEquals(1, guard.getNumberOfActions());
+
+			for (int i = 0; i < 200; i++) {
+				valve.isRequestAllowed("10.0.0." + i, "/");
+				other.isRequestAllowed("10.0.0." + i, "/");
+			}
+
+			// Under the threshold nothing happens:
+			guard.runActions(94, 100);
+			assertFalse(valve.getMonitorStatus().contains("maxCountersPerSlot reduced"));
+
+			// Over the threshold only the monitors of the valve shed memory:
+			guard.runActions(96, 100);
+			assertTrue(valve.getMonitorStatus().contains("maxCountersPerSlot reduced to 50"));
+			assertFalse(other.getMonitorStatus().contains("maxCountersPerSlot reduced"));
+
+			// Reloading the monitor keeps the action:
+			assertNull(valve.reloadMonitor());
+			assertSame(guard, AntiDoSMemoryGuard.getInstance());
+		} finally {
+			valve.stop();
+		}
+		assertNull(AntiDoSMemoryGuard.getInstance());
+
+		// Without threshold the started valve does not install the guard:
+		valve.setMemoryPressureThreshold(0);
+		valve.start();
+		assertNull(AntiDoSMemoryGuard.getInstance());
+		valve.stop();
+	}
+
+	public void testMemoryGuardKeepsThresholds() {
+		MemoryPoolMXBean pool = null;
+		for (MemoryPoolMXBean heapPool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (heapPool.getType() == MemoryType.HEAP && heapPool.isCollectionUsageThresholdSupported()
+					&& heapPool.getUsage().getMax() > 0 && heapPool.getCollectionUsageThreshold() == 0) {
+				pool = heapPool;
+				break;
+			}
+		}
+		if (pool == null)
+			return;
+
+		// A threshold set by someone else is neither overwritten nor reset:
+		long foreignThreshold = pool.getUsage().getMax() / 100 * 97;
+		pool.setCollectionUsageThreshold(foreignThreshold);
+		Runnable action = () -> {
+		};
+		try {
+			AntiDoSMemoryGuard.addAction(action, 80);
+			assertEquals(foreignThreshold, pool.getCollectionUsageThreshold());
+			AntiDoSMemoryGuard.removeAction(action);
+			assertEquals(foreignThreshold, pool.getCollectionUsageThreshold());
+		} finally {
+			AntiDoSMemoryGuard.removeAction(action);
+			pool.setCollectionUsageThreshold(0);
+		}
+
+		// A threshold set by the guard is reset when it is uninstalled:
+		AntiDoSMemoryGuard.addAction(action, 80);
+		assertEquals(pool.getUsage().getMax() / 100 * 80, pool.getCollectionUsageThreshold());
+		AntiDoSMemoryGuard.removeAction(action);
+		assertEquals(0, pool.getCollectionUsageThreshold());
+	}
+
+	public void testMemoryPressureThresholdStop() throws LifecycleException {
+		AntiDoSValve valve = new AntiDoSValve();
+		setValidAntiDoSMonitorconfiguration(valve, "MEMORY PRESSURE STOP TEST");
+		valve.setMemoryPressureThreshold(90);
+		StandardEngine engine = new StandardEngine();
+		engine.setName("MemoryPressureStopTest");
+		valve.setContainer(engine);
+
+		valve.start();
+		assertEquals(90, AntiDoSMemoryGuard.getInstance().getThreshold());
+
+		// The guard is uninstalled with the last valve:
+		valve.stop();
+		assertNull(AntiDoSMemoryGuard.getInstance());
+
+		valve.start();
+		assertEquals(90, AntiDoSMemoryGuard.getInstance().getThreshold());
+		valve.stop();
+		assertNull(AntiDoSMemoryGuard.getInstance());
+	}
+
+	public void testSampling() throws LifecycleException {
+		AntiDoSValve valve = new AntiDoSValve();
+		assertEquals(0, valve.getSamplingThreshold());
+		assertEquals(1, valve.getSamplingRate());
+
+		setValidAntiDoSMonitorconfiguration(valve, "SAMPLING TEST");
+		valve.setSamplingRate(0);
+		assertNotNull(valve.reloadMonitor());
+
+		valve.setSamplingRate(4);
+		valve.setSamplingThreshold(-1);
+		assertNotNull(valve.reloadMonitor());
+
+		valve.setSamplingThreshold(40);
+		valve.setRelevantPaths("/.*");
+		assertNull(valve.reloadMonitor());
+
+		// 10 IP addresses under the threshold are counted exactly:
+		for (int i = 0; i < 40; i++) {
+			for (int ip = 0; ip < 10; ip++)
+				assertTrue(valve.isRequestAllowed("10.0.0." + ip, "/"));
+		}
+		assertEquals("Count:40 Retained:0 Locked:no", valve.getIPAddressStatus("10.0.0.1"));
+	}
+
+	public void testAdditionalWindows() throws LifecycleException {
+		AntiDoSValve valve = new AntiDoSValve();
+		assertNull(valve.getAdditionalWindows());
+
+		setValidAntiDoSMonitorconfiguration(valve, "WINDOWS TEST");
+		valve.setRelevantPaths("/.*");
+		valve.setAdditionalWindows("60=4;x");
+		assertNotNull(valve.reloadMonitor());
+		valve.setAdditionalWindows("60=0");
+		assertNotNull(valve.reloadMonitor());
+
+		valve.setAdditionalWindows(" 60=4; 3600=100 ");
+		assertEquals("60=4; 3600=100", valve.getAdditionalWindows());
+		assertNull(valve.reloadMonitor());
+
+		for (int i = 0; i < 4; i++)
+			assertTrue(valve.isRequestAllowed("10.0.0.1", "/"));
+		assertFalse(valve.isRequestAllowed("10.0.0.1", "/"));
+		assertTrue(valve.isRequestAllowed("10.0.0.2", "/"));
+
+		valve.setAdditionalWindows("");
+		assertNull(valve.getAdditionalWindows());
+		assertNull(valve.reloadMonitor());
+		assertTrue(valve.isRequestAllowed("10.0.0.1", "/"));
+	}
+
+	public void testMetrics() throws LifecycleException {
+		AntiDoSValve valve = new AntiDoSValve();
+		assertNull(valve.getMetricsPath());
+		valve.setMetricsPath("/metrics");
+		assertEquals("/metrics", valve.getMetricsPath());
+		valve.setMetricsPath("");
+		assertNull(valve.getMetricsPath());
+
+		setValidAntiDoSMonitorconfiguration(valve, "METRICS TEST");
+		valve.setAllowedRequestsPerSlot(1);
+		valve.setRelevantPaths("/.*");
+		valve.setNonRelevantPaths("/static/.*");
+		valve.setRouteRules("/search.*=1");
+		valve.setAlwaysForbiddenIPs("10\\.0\\.0\\.9");
+		assertNull(valve.reloadMonitor());
+
+		assertTrue(valve.isRequestAllowed("127.0.0.1", "/"));
+		assertFalse(valve.isRequestAllowed("127.0.0.1", "/"));
+		assertTrue(valve.isRequestAllowed("127.0.0.1", "/static/x.png"));
+		assertFalse(valve.isRequestAllowed("10.0.0.9", "/"));
+		assertTrue(valve.isRequestAllowed("127.0.0.1", "/search"));
+
+		String text = valve.getMetrics();
+		assertTrue(text.contains("antidos_requests_total{monitor=\"METRICS TEST\",verdict=\"allowed\"} 2\n"));
+		assertTrue(text.contains("antidos_requests_total{monitor=\"METRICS TEST\",verdict=\"blocked\"} 1\n"));
+		assertTrue(text.contains("antidos_requests_total{monitor=\"METRICS TEST\",verdict=\"not_counted\"} 1\n"));
+		assertTrue(text.contains("antidos_requests_total{monitor=\"METRICS TEST\",verdict=\"forbidden\"} 1\n"));
+		assertTrue(text.contains("antidos_decision_duration_seconds_count{monitor=\"METRICS TEST\"} 5\n"));
+		assertTrue(text.contains("antidos_locks_total{monitor=\"METRICS TEST\"} 1\n"));
+		assertTrue(text.contains("antidos_counters{monitor=\"METRICS TEST#1\"} 1\n"));
+	}
+
+	public void testMetricsPathInvoke() throws Exception {
+		AntiDoSValve valve = new AntiDoSValve();
+		setValidAntiDoSMonitorconfiguration(valve, "METRICS PATH TEST");
+		valve.setRelevantPaths("/.*");
+		valve.setMetricsPath("/antidos/metrics");
+		valve.setAlwaysForbiddenIPs("10\\.0\\.0\\.9");
+		assertNull(valve.reloadMonitor());
+		Next4Test next = new Next4Test();
+		valve.setNext(next);
+
+		// Without metricsAllowedIPs no address gets the metrics:
+		Response4Test response = invoke(valve, "127.0.0.1", "/antidos/metrics");
+		assertEquals("", response.getBody());
+		assertEquals(1, next.invocations);
+
+		valve.setMetricsAllowedIPs("[");
+		assertFalse(valve.isMetricsAllowedIPsValid());
+		valve.setMetricsAllowedIPs("10\\.1\\.2\\.3|10\\.0\\.0\\.9");
+		assertTrue(valve.isMetricsAllowedIPsValid());
+		assertEquals("10\\.1\\.2\\.3|10\\.0\\.0\\.9", valve.getMetricsAllowedIPsConfigValue());
+
+		response = invoke(valve, "10.1.2.3", "/antidos/metrics");
+		assertEquals(200, response.getStatus());
+		assertEquals(AntiDoSMetrics.CONTENT_TYPE, response.getHeader("Content-Type"));
+		String body = response.getBody();
+		assertTrue(body.contains("antidos_requests_total"));
+		assertEquals(1, next.invocations);
+
+		// Within a second the same answer is delivered again:
+		invoke(valve, "127.0.0.1", "/index.html");
+		assertEquals(2, next.invocations);
+		assertEquals(body, invoke(valve, "10.1.2.3", "/antidos/metrics").getBody());
+		assertEquals(2, next.invocations);
+
+		// Other addresses are passed on like any request:
+		response = invoke(valve, "127.0.0.1", "/antidos/metrics");
+		assertEquals("", response.getBody());
+		assertEquals(3, next.invocations);
+
+		// Forbidden addresses do not get the metrics:
+		response = invoke(valve, "10.0.0.9", "/antidos/metrics");
+		assertEquals(AntiDoSValve.BLOCKING_HTTP_STATUS, response.error);
+		assertEquals("", response.getBody());
+		assertEquals(3, next.invocations);
+	}
+
 	public void testReloadAntiDoSMonitor() throws LifecycleException {
 		AntiDoSValve valve = new AntiDoSValve();
 		assertNotNull(valve.reloadMonitor());
@@ -309,6 +1263,225 @@ public class AntiDoSValveTest extends TestCase {
 
 	}
 
+	public void testRouteRules() throws LifecycleException {
+		AntiDoSValve valve = new AntiDoSValve();
+
+		assertTrue(valve.isRouteRulesValid());
+
+		valve.setRouteRules("[a-z....=3");
+		assertFalse(valve.isRouteRulesValid());
+
+		valve.setRouteRules("/search.*=3");
+		assertTrue(valve.isRouteRulesValid());
+
+		valve.setRouteRules(null);
+		assertTrue(valve.isRouteRulesValid());
+		assertEquals(-1, valve.getRouteForRequestURI("/search"));
+
+		setValidAntiDoSMonitorconfiguration(valve, "ROUTE TEST");
+		valve.setAllowedRequestsPerSlot(4);
+		valve.setRelevantPaths("/.*");
+		valve.setRouteRules("/search.*=2;/export.*=1,60,5");
+		assertNull(valve.reloadMonitor());
+
+		assertEquals(0, valve.getRouteForRequestURI("/search/x"));
+		assertEquals(1, valve.getRouteForRequestURI("/export"));
+		assertEquals(-1, valve.getRouteForRequestURI("/index.html"));
+
+		// Every route is counted in its own monitor:
+		assertTrue(valve.isRequestAllowed("127.0.0.1", "/search"));
+		assertTrue(valve.isRequestAllowed("127.0.0.1", "/search"));
+		assertFalse(valve.isRequestAllowed("127.0.0.1", "/search"));
+
+		assertTrue(valve.isRequestAllowed("127.0.0.1", "/export"));
+		assertFalse(valve.isRequestAllowed("127.0.0.1", "/export"));
+
+		assertTrue(valve.isRequestAllowed("127.0.0.1", "/index.html"));
+		assertTrue(valve.isRequestAllowed("127.0.0.1", "/index.html"));
+		assertTrue(valve.isRequestAllowed("127.0.0.1", "/index.html"));
+		assertTrue(valve.isRequestAllowed("127.0.0.1", "/index.html"));
+		assertFalse(valve.isRequestAllowed("127.0.0.1", "/index.html"));
+
+		assertTrue(valve.isRequestAllowed("127.0.0.2", "/search"));
+
+		// The monitor of a removed route is dropped:
+		AntiDoSMonitor exportMonitor = AntiDoSValve.getRegisteredMonitor("ROUTE TEST#2");
+		assertNotNull(exportMonitor);
+		valve.setRouteRules("/search.*=2");
+		assertNull(valve.reloadMonitor());
+		assertNotNull(AntiDoSValve.getRegisteredMonitor("ROUTE TEST#1"));
+		assertNull(AntiDoSValve.getRegisteredMonitor("ROUTE TEST#2"));
+		assertFalse(exportMonitor.isLockExpiryStarted());
+		assertEquals(-1, valve.getRouteForRequestURI("/export"));
+
+		valve.setRouteRules(null);
+		assertNull(valve.reloadMonitor());
+		assertNull(AntiDoSValve.getRegisteredMonitor("ROUTE TEST#1"));
+
+		valve.setRouteRules("/(x)/\\1=2");
+		assertFalse(valve.isRouteRulesValid());
+
+		valve.setRouteRules("/search.*=0");
+		assertNotNull(valve.reloadMonitor());
+	}
+
+	public void testPathCosts() throws LifecycleException {
+		AntiDoSValve valve = new AntiDoSValve();
+
+		assertTrue(valve.isPathCostsValid());
+		assertEquals(1, valve.getCostForRequestURI("/report"));
+
+		valve.setPathCosts("/report.*=0");
+		assertFalse(valve.isPathCostsValid());
+
+		valve.setPathCosts("/report.*=x");
+		assertFalse(valve.isPathCostsValid());
+
+		valve.setPathCosts("/report.*=5;/pdf/.*=2");
+		assertTrue(valve.isPathCostsValid());
+		assertEquals(5, valve.getCostForRequestURI("/report/1"));
+		assertEquals(2, valve.getCostForRequestURI("/pdf/1"));
+		assertEquals(1, valve.getCostForRequestURI("/index.html"));
+
+		setValidAntiDoSMonitorconfiguration(valve, "COST TEST");
+		valve.setAllowedRequestsPerSlot(10);
+		valve.setRelevantPaths("/.*");
+		assertNull(valve.reloadMonitor());
+
+		assertTrue(valve.isRequestAllowed("127.0.0.1", "/report/1"));
+		assertTrue(valve.isRequestAllowed("127.0.0.1", "/pdf/1"));
+		assertTrue(valve.isRequestAllowed("127.0.0.1", "/index.html"));
+		assertTrue(valve.isRequestAllowed("127.0.0.1", "/pdf/1"));
+		assertFalse(valve.isRequestAllowed("127.0.0.1", "/index.html"));
+	}
+
+	public void testChargeRequest() throws LifecycleException {
+		AntiDoSValve valve = new AntiDoSValve();
+		setValidAntiDoSMonitorconfiguration(valve, "CHARGE TEST");
+		valve.setAllowedRequestsPerSlot(5);
+		valve.setRelevantPaths("/xyz");
+		assertNull(valve.reloadMonitor());
+
+		assertTrue(valve.isRequestAllowed("127.0.0.1", "/xyz"));
+		valve.chargeRequest("127.0.0.1", "/xyz", 4);
+		// Not counted requests are not charged:
+		valve.chargeRequest("127.0.0.2", "/abc", 10);
+
+		assertFalse(valve.isRequestAllowed("127.0.0.1", "/xyz"));
+		assertTrue(valve.isRequestAllowed("127.0.0.2", "/xyz"));
+	}
+
+	public void testAdaptiveLimit() throws LifecycleException {
+		final float[] loadRatio = new float[] { 0 };
+		AntiDoSValve valve = new AntiDoSValve() {
+			@Override
+			protected float provideLoadRatio() {
+				return loadRatio[0];
+			}
+		};
+		setValidAntiDoSMonitorconfiguration(valve, "ADAPTIVE TEST");
+		assertNull(valve.reloadMonitor());
+
+		assertFalse(valve.isAdaptiveMode());
+		assertEquals(-1, valve.updateAdaptiveLimit());
+
+		valve.setAdaptiveMinRequestsPerSlot(10);
+		valve.setAdaptiveMaxRequestsPerSlot(110);
+		assertTrue(valve.isAdaptiveMode());
+
+		assertEquals(110, valve.updateAdaptiveLimit());
+		loadRatio[0] = 0.5f;
+		assertEquals(60, valve.updateAdaptiveLimit());
+		loadRatio[0] = 1;
+		assertEquals(10, valve.updateAdaptiveLimit());
+		loadRatio[0] = 2;
+		assertEquals(10, valve.updateAdaptiveLimit());
+
+		valve.setRelevantPaths("/xyz");
+		for (int i = 0; i < 10; i++)
+			assertTrue(valve.isRequestAllowed("127.0.0.1", "/xyz"));
+		assertFalse(valve.isRequestAllowed("127.0.0.1", "/xyz"));
+
+		// Without a container there is no executor to sample:
+		assertEquals(0, new AntiDoSValve().provideLoadRatio(), 0);
+	}
+
+	public void testMaxConcurrentPerIP() {
+		AntiDoSValve valve = new AntiDoSValve();
+		assertEquals(-1, valve.getMaxConcurrentPerIP());
+
+		valve.setMaxConcurrentPerIP(5);
+		assertEquals(5, valve.getMaxConcurrentPerIP());
+
+		valve.setMaxConcurrentPerIP(0);
+		assertEquals(-1, valve.getMaxConcurrentPerIP());
+	}
+
+	public void testMaxConcurrentPerIPInvoke() throws Exception {
+		AntiDoSValve valve = new AntiDoSValve();
+		setValidAntiDoSMonitorconfiguration(valve, "CONCURRENCY TEST");
+		valve.setRelevantPaths("/.*");
+		valve.setMaxConcurrentPerIP(1);
+		assertNull(valve.reloadMonitor());
+
+		final Next4Test next = new Next4Test();
+		valve.setNext(next);
+
+		// Requests of the same IP address while the first one is processed:
+		final Response4Test[] nested = new Response4Test[2];
+		next.action = () -> {
+			next.action = null;
+			try {
+				nested[0] = invoke(valve, "127.0.0.1", "/xyz");
+				nested[1] = invoke(valve, "127.0.0.2", "/xyz");
+			} catch (Exception ex) {
+				throw new IllegalStateException(ex);
+			}
+		};
+
+		Response4Test response = invoke(valve, "127.0.0.1", "/xyz");
+		assertEquals(200, response.getStatus());
+		assertEquals(AntiDoSValve.BLOCKING_HTTP_STATUS, nested[0].error);
+		assertEquals(200, nested[1].getStatus());
+		assertEquals(2, next.invocations);
+
+		// The slots have been released:
+		assertEquals(200, invoke(valve, "127.0.0.1", "/xyz").getStatus());
+		assertEquals(3, next.invocations);
+		assertTrue(valve.getMetrics()
+				.contains("antidos_concurrency_rejections_total{monitor=\"CONCURRENCY TEST\"} 1\n"));
+	}
+
+	public void testClientKey() {
+		AntiDoSValve valve = new AntiDoSValve();
+		assertEquals("REMOTE_ADDR", valve.getClientKeySource());
+		assertTrue(valve.isClientKeyValid());
+
+		valve.setClientKeySource("x_forwarded_for");
+		assertEquals("X_FORWARDED_FOR", valve.getClientKeySource());
+		assertFalse(valve.isClientKeyValid());
+
+		valve.setTrustedProxies("10\\.0\\.0\\.\\d+");
+		assertTrue(valve.isTrustedProxiesValid());
+		assertTrue(valve.isClientKeyValid());
+
+		valve.setClientKeySource("COOKIE");
+		assertFalse(valve.isClientKeyValid());
+
+		valve.setClientKeyName("JSESSIONID");
+		assertTrue(valve.isClientKeyValid());
+
+		valve.setClientKeySource("SOMETHING");
+		assertFalse(valve.isClientKeyValid());
+
+		valve.setClientKeySource(null);
+		assertEquals("REMOTE_ADDR", valve.getClientKeySource());
+		assertTrue(valve.isClientKeyValid());
+
+		valve.setTrustedProxies("[a-z....");
+		assertFalse(valve.isTrustedProxiesValid());
+	}
+
 	private static void setValidAntiDoSMonitorconfiguration(AntiDoSValve valve, String monitorName) {
 		valve.setMonitorName(monitorName);
 		valve.setNumberOfSlots(10);
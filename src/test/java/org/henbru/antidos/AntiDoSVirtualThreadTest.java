@@ -0,0 +1,118 @@
+package org.henbru.antidos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Drives the valve from many virtual threads. Checks that the counts stay
+ * correct and that no carrier thread is pinned. Skipped on JDKs without virtual
+ * threads. The project is compiled for an older release, so they are started
+ * via reflection. Written for JUnit 4, as JUnit 3 cannot skip a test
+ */
+public class AntiDoSVirtualThreadTest {
+
+	private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+	private static final int NUMBER_OF_IPS = 50;
+
+	private static final int REQUESTS_PER_IP = 200;
+
+	private static final int SLOT_LENGTH = 3600;
+
+	@Test
+	public void testCountsAndPinning() throws Exception {
+		Method startVirtualThread = null;
+		try {
+			startVirtualThread = Thread.class.getMethod("startVirtualThread", Runnable.class);
+		} catch (NoSuchMethodException ex) {
+		}
+		Assume.assumeNotNull(startVirtualThread);
+
+		final AntiDoSValve valve = new AntiDoSValve();
+		valve.setMonitorName("VIRTUAL THREAD TEST");
+		valve.setNumberOfSlots(5);
+		valve.setSlotLength(SLOT_LENGTH);
+		valve.setShareOfRetainedFormerRequests("1");
+		valve.setAllowedRequestsPerSlot(NUMBER_OF_IPS * REQUESTS_PER_IP);
+		valve.setMaxIPCacheSize(NUMBER_OF_IPS * 2);
+		valve.setRelevantPaths("/.*");
+		assertNull(valve.reloadMonitor());
+
+		final AtomicInteger blocked = new AtomicInteger(0);
+		List<Thread> threads = new ArrayList<Thread>();
+		int pinned;
+
+		// The slots are aligned to multiples of their length. Do not start right
+		// before the end of a slot, so all requests are counted in the same slot:
+		long slotLengthInMillis = SLOT_LENGTH * 1000L;
+		long untilSlotEnd = slotLengthInMillis - System.currentTimeMillis() % slotLengthInMillis;
+		if (untilSlotEnd < 30000)
+			Thread.sleep(untilSlotEnd + 100);
+
+		Recording recording = new Recording();
+		try {
+			recording.enable(PINNED_EVENT).withThreshold(Duration.ZERO);
+			recording.start();
+
+			for (int i = 0; i < NUMBER_OF_IPS; i++) {
+				final String ip = "10.0.0." + i;
+				for (int t = 0; t < 4; t++) {
+					threads.add((Thread) startVirtualThread.invoke(null, (Runnable) () -> {
+						for (int r = 0; r < REQUESTS_PER_IP / 4; r++) {
+							if (!valve.isRequestAllowed(ip, "/xyz"))
+								blocked.incrementAndGet();
+						}
+					}));
+				}
+			}
+			for (Thread thread : threads)
+				thread.join();
+
+			recording.stop();
+			pinned = countEvents(recording, PINNED_EVENT);
+		} finally {
+			recording.close();
+		}
+
+		assertEquals(0, pinned);
+		assertEquals(0, blocked.get());
+
+		String monitorStatus = valve.getMonitorStatus();
+		assertTrue(monitorStatus, monitorStatus.startsWith("#Slots: 1;"));
+		assertTrue(monitorStatus, monitorStatus.contains("#total requests: " + NUMBER_OF_IPS * REQUESTS_PER_IP + "\n"));
+		for (int i = 0; i < NUMBER_OF_IPS; i++) {
+			String status = valve.getIPAddressStatus("10.0.0." + i);
+			assertTrue(status, status.startsWith("Count:" + REQUESTS_PER_IP + " "));
+		}
+	}
+
+	private static int countEvents(Recording recording, String eventName) throws Exception {
+		File file = File.createTempFile("antidos", ".jfr");
+		try {
+			recording.dump(file.toPath());
+
+			int count = 0;
+			for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+				if (eventName.equals(event.getEventType().getName()))
+					count++;
+			}
+			return count;
+		} finally {
+			file.delete();
+		}
+	}
+}
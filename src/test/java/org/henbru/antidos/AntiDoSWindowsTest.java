@@ -0,0 +1,88 @@
+package org.henbru.antidos;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the additional time windows of a monitor
+ */
+public class AntiDoSWindowsTest extends TestCase {
+
+	/**
+	 * Aligned to full hours
+	 */
+	private static final long NOW = 3600000L * 300000;
+
+	public void testRegister() {
+		AntiDoSWindows windows = new AntiDoSWindows("TEST", new int[] { 1, 60 }, new int[] { 2, 3 }, 100);
+		AtomicLongArray record = windows.provideRecord("10.0.0.1", NOW);
+		assertSame(record, windows.provideRecord("10.0.0.1", NOW));
+
+		assertEquals(-1, windows.register(record, 1, NOW));
+		assertEquals(-1, windows.register(record, 1, NOW + 500));
+		assertEquals(0, windows.register(record, 1, NOW + 999));
+		assertEquals(3, windows.getCount("10.0.0.1", 0, NOW + 999));
+
+		// The first window starts over, the second one is exceeded:
+		assertEquals(1, windows.register(record, 1, NOW + 1000));
+		assertEquals(1, windows.getCount("10.0.0.1", 0, NOW + 1000));
+		assertEquals(4, windows.getCount("10.0.0.1", 1, NOW + 1000));
+		assertEquals(NOW + 60000, windows.getWindowEnd(1, NOW + 1000));
+
+		assertEquals(0, windows.getCount("10.0.0.2", 1, NOW));
+	}
+
+	public void testWeight() {
+		AntiDoSWindows windows = new AntiDoSWindows("TEST", new int[] { 60 }, new int[] { 10 }, 100);
+		AtomicLongArray record = windows.provideRecord("10.0.0.1", NOW);
+
+		assertEquals(-1, windows.register(record, 10, NOW));
+		assertEquals(0, windows.register(record, 1, NOW));
+	}
+
+	public void testRecordLimit() {
+		AntiDoSWindows windows = new AntiDoSWindows("TEST", new int[] { 10 }, new int[] { 5 }, 2);
+		windows.register(windows.provideRecord("10.0.0.1", NOW), 1, NOW);
+		windows.register(windows.provideRecord("10.0.0.2", NOW + 10000), 1, NOW + 10000);
+
+		// The record used least recently makes room, its window has ended:
+		AtomicLongArray record = windows.provideRecord("10.0.0.3", NOW + 10000);
+		assertNotNull(record);
+		windows.register(record, 1, NOW + 10000);
+		assertEquals(0, windows.getCount("10.0.0.1", 0, NOW + 10000));
+		assertEquals(1, windows.getCount("10.0.0.2", 0, NOW + 10000));
+		assertEquals(0, windows.getEvictions());
+
+		// A full table never leaves a key uncounted:
+		record = windows.provideRecord("10.0.0.4", NOW + 10000);
+		assertNotNull(record);
+		assertEquals(-1, windows.register(record, 5, NOW + 10000));
+		assertEquals(0, windows.register(record, 1, NOW + 10000));
+		assertEquals(1, windows.getEvictions());
+		assertEquals(2, windows.getNumberOfRecords());
+	}
+
+	public void testInvalidParameters() {
+		try {
+			new AntiDoSWindows("TEST", new int[] { 10, 60 }, new int[] { 5 }, 100);
+			fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException ex) {
+		}
+		try {
+			new AntiDoSWindows("TEST", new int[] { 0 }, new int[] { 5 }, 100);
+			fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException ex) {
+		}
+		try {
+			new AntiDoSWindows("TEST", new int[] { 10 }, new int[] { 0 }, 100);
+			fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException ex) {
+		}
+		try {
+			new AntiDoSWindows("TEST", new int[] { 10 }, new int[] { 5 }, 0);
+			fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+}